@@ -0,0 +1,375 @@
+package fr.telecom.chat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class stores the files sent by clients (see FileTransfer) by content : a file is a blob named by the SHA-256 hash of
+ * its bytes, the same file sent many times is stored once and is not uploaded again.
+ *
+ * Blobs are packed in segment files (segment-000000, segment-000001...) : each record is [hash (32 bytes), length (8 bytes), data].
+ * A new segment is started when the last one would be bigger than the segment size (a single blob bigger than it has its own segment).
+ * The index of the blobs (hash to segment and offset) is kept in memory, it is built again by scanning the segments when the store is opened.
+ *
+ * Uploads are written directly in the segment : the record is reserved with an empty hash (skipped when scanning), its hash is written
+ * once the whole blob has been received and checked. The record of an upload given up is released : the segment is truncated if
+ * it is the last one of its segment, it stays empty otherwise. A record cut by a crash at the end of a segment is removed. Blobs are read through a memory mapping of their segment.
+ *
+ * Committing a blob forces its segment to the disk, which may take long : it is done by a worker thread. The blob goes back to
+ * the server thread through a lock-free queue and the selector is woken up, the server calls completeNextCommit to index it.
+ * Apart from the worker thread, used by the server thread only.
+ *
+ */
+public class BlobStore {
+	/** Size of a SHA-256 hash */
+	public static final int HASH_SIZE = 32;
+	private static final int RECORD_HEADER_SIZE = HASH_SIZE + 8;
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final long CLOSE_TIMEOUT_SECONDS = 10;
+	private static Logger storeLogger = Logger.getLogger(BlobStore.class.getSimpleName());
+
+	private final File directory;
+	private final long segmentSize;
+	private final List<FileChannel> segments = new ArrayList<FileChannel>();
+	/* End of the last record of each segment, records reserved included */
+	private final List<Long> segmentEnds = new ArrayList<Long>();
+	/* Mapping of each segment, made again when a blob is beyond its end */
+	private final List<MappedByteBuffer> mappedSegments = new ArrayList<MappedByteBuffer>();
+	private final Map<String, Blob> index = new HashMap<String, Blob>();
+	private final Runnable wakeup;
+	private final ExecutorService committer;
+	private final Queue<Commit> completedCommits = new ConcurrentLinkedQueue<Commit>();
+
+	/**
+	 * Place of a blob in a segment, stored or reserved for an upload
+	 */
+	public static class Blob {
+		private final int segment;
+		private final long recordOffset;
+		private final long length;
+
+		private Blob(int segment, long recordOffset, long length) {
+			this.segment = segment;
+			this.recordOffset = recordOffset;
+			this.length = length;
+		}
+
+		/**
+		 * @return offset of the data of the blob in its segment
+		 */
+		public long getDataOffset() {
+			return recordOffset + RECORD_HEADER_SIZE;
+		}
+
+		/**
+		 * @return length of the blob in bytes
+		 */
+		public long getLength() {
+			return length;
+		}
+	}
+
+	/**
+	 * Blob committed by the worker thread, given back to the server thread by completeNextCommit
+	 */
+	public static class Commit {
+		private final String hash;
+		private final String token;
+		private Blob blob;
+		private IOException failure;
+
+		private Commit(String hash, Blob blob, String token) {
+			this.hash = hash;
+			this.blob = blob;
+			this.token = token;
+		}
+
+		/**
+		 * @return hash of the blob (hexadecimal)
+		 */
+		public String getHash() {
+			return hash;
+		}
+
+		/**
+		 * @return blob stored with this hash
+		 */
+		public Blob getBlob() {
+			return blob;
+		}
+
+		/**
+		 * @return token of the file transfer that has uploaded the blob
+		 */
+		public String getToken() {
+			return token;
+		}
+
+		/**
+		 * @return error of the commit, null if the blob is stored
+		 */
+		public IOException getFailure() {
+			return failure;
+		}
+	}
+
+	/**
+	 * Open the store : the segments of the directory are scanned to build the index
+	 *
+	 * @param directory Directory of the segments
+	 * @param segmentSize Size a segment does not exceed, unless it contains a single blob
+	 * @param wakeup Called from the worker thread when a commit is done (wakes the selector up)
+	 * @throws IOException if a segment can not be read
+	 */
+	public BlobStore(File directory, long segmentSize, Runnable wakeup) throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.wakeup = wakeup;
+		committer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "blob-commit");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		while(segmentFile(segments.size()).isFile())
+			openSegment(segments.size());
+		storeLogger.info(index.size() + " blobs found in " + segments.size() + " segments");
+	}
+
+	/**
+	 * @param hash Hash of a blob (hexadecimal)
+	 * @return true if the blob is stored
+	 */
+	public boolean contains(String hash) {
+		return index.containsKey(hash);
+	}
+
+	/**
+	 * @param hash Hash of a blob (hexadecimal)
+	 * @return place of the blob, null if it is not stored
+	 */
+	public Blob get(String hash) {
+		return index.get(hash);
+	}
+
+	/**
+	 * Reserve the record of a blob to be uploaded, at the end of the last segment (or of a new one).
+	 * Its header is written with an empty hash : the record is skipped until it is committed.
+	 *
+	 * @param length Length of the blob in bytes
+	 * @return place of the blob
+	 * @throws IOException if the header can not be written
+	 */
+	public Blob reserve(long length) throws IOException {
+		int segment = segments.size() - 1;
+		if(segment < 0 || (segmentEnds.get(segment) > 0 && segmentEnds.get(segment) + RECORD_HEADER_SIZE + length > segmentSize)) {
+			segment = segments.size();
+			openSegment(segment);
+		}
+		long recordOffset = segmentEnds.get(segment);
+		writeHeader(segments.get(segment), recordOffset, new byte[HASH_SIZE], length);
+		segmentEnds.set(segment, recordOffset + RECORD_HEADER_SIZE + length);
+		return new Blob(segment, recordOffset, length);
+	}
+
+	/**
+	 * Release the record reserved for an upload that will not be committed. The last record of a segment is truncated so that
+	 * the next reservation reuses its space, other records stay empty (as well as the last one if the segment can not be truncated).
+	 *
+	 * @param blob Record reserved, not committed
+	 */
+	public void release(Blob blob) {
+		if(segmentEnds.get(blob.segment).longValue() != blob.getDataOffset() + blob.length)
+			return;
+		try {
+			segments.get(blob.segment).truncate(blob.recordOffset);
+			segmentEnds.set(blob.segment, blob.recordOffset);
+		} catch (IOException e) {
+			storeLogger.warn("Unable to release a record of segment " + blob.segment + " : " + e);
+		}
+	}
+
+	/**
+	 * @param blob Blob stored or reserved
+	 * @return channel of the segment of the blob, its data are written at getDataOffset
+	 */
+	public FileChannel getChannel(Blob blob) {
+		return segments.get(blob.segment);
+	}
+
+	/**
+	 * Commit a blob whose data have been written and checked, on the worker thread : its data are forced to the disk,
+	 * then its hash is written. The commit is given back by completeNextCommit once it is done.
+	 * If the blob is already stored, the record stays empty. If two uploads of the same blob are committed at the same time,
+	 * both records keep the hash and the first one committed is indexed.
+	 *
+	 * @param hash Hash of the blob (hexadecimal)
+	 * @param blob Record reserved for the blob
+	 * @param token Token of the file transfer that has uploaded the blob
+	 */
+	public void commit(final String hash, final Blob blob, String token) {
+		final Commit commit = new Commit(hash, blob, token);
+		if(index.containsKey(hash)) {
+			completedCommits.add(commit);
+			wakeup.run();
+			return;
+		}
+		final FileChannel channel = segments.get(blob.segment);
+		committer.execute(new Runnable() {
+			public void run() {
+				try {
+					channel.force(false);
+					byte[] hashBytes = new byte[HASH_SIZE];
+					for(int i = 0; i < HASH_SIZE; i++)
+						hashBytes[i] = (byte) Integer.parseInt(hash.substring(2 * i, 2 * i + 2), 16);
+					writeHeader(channel, blob.recordOffset, hashBytes, blob.length);
+				} catch (IOException e) {
+					commit.failure = e;
+				}
+				completedCommits.add(commit);
+				wakeup.run();
+			}
+		});
+	}
+
+	/**
+	 * Index a blob committed by the worker thread
+	 *
+	 * @return commit done, null if there is none
+	 */
+	public Commit completeNextCommit() {
+		Commit commit = completedCommits.poll();
+		if(commit == null || commit.failure != null)
+			return commit;
+		Blob stored = index.get(commit.hash);
+		if(stored == null)
+			index.put(commit.hash, commit.blob);
+		else
+			commit.blob = stored;
+		return commit;
+	}
+
+	/**
+	 * Read a blob through the mapping of its segment
+	 *
+	 * @param blob Blob stored
+	 * @return data of the blob, in reading mode
+	 * @throws IOException if the segment can not be mapped
+	 */
+	public ByteBuffer map(Blob blob) throws IOException {
+		long end = blob.getDataOffset() + blob.length;
+		MappedByteBuffer mapped = mappedSegments.get(blob.segment);
+		if(mapped == null || mapped.capacity() < end) {
+			FileChannel channel = segments.get(blob.segment);
+			mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.max(end, channel.size()));
+			mappedSegments.set(blob.segment, mapped);
+		}
+		ByteBuffer data = mapped.duplicate();
+		data.limit((int) end);
+		data.position((int) blob.getDataOffset());
+		return data.slice();
+	}
+
+	/**
+	 * Close the segments once the commits started are done. Mappings are released once the blobs read are not used anymore.
+	 */
+	public void close() {
+		committer.shutdown();
+		try {
+			if(!committer.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+				storeLogger.warn("Commits not done in " + CLOSE_TIMEOUT_SECONDS + " s, blobs not stored");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for(FileChannel channel : segments) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				storeLogger.warn("Unable to close segment : " + e);
+			}
+		}
+	}
+
+	/**
+	 * Open a segment, created if it does not exist, and index its blobs
+	 *
+	 * @param segment Number of the segment
+	 * @throws IOException if the segment can not be read
+	 */
+	private void openSegment(int segment) throws IOException {
+		FileChannel channel = FileChannel.open(segmentFile(segment).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		segments.add(channel);
+		mappedSegments.add(null);
+		segmentEnds.add(scan(segment, channel));
+	}
+
+	/**
+	 * Index the blobs of a segment. Records with an empty hash are skipped, a record cut by a crash is removed.
+	 *
+	 * @param segment Number of the segment
+	 * @param channel Channel of the segment
+	 * @return end of the last record
+	 * @throws IOException if the segment can not be read
+	 */
+	private long scan(int segment, FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		byte[] hash = new byte[HASH_SIZE];
+		long size = channel.size();
+		long position = 0;
+		while(position + RECORD_HEADER_SIZE <= size) {
+			header.clear();
+			while(header.hasRemaining() && channel.read(header, position + header.position()) > 0);
+			header.flip();
+			header.get(hash);
+			long length = header.getLong();
+			if(length < 0 || position + RECORD_HEADER_SIZE + length > size)
+				break;
+			if(!isEmpty(hash))
+				index.put(FileTransfer.toHex(hash), new Blob(segment, position, length));
+			position += RECORD_HEADER_SIZE + length;
+		}
+		if(position < size) {
+			storeLogger.warn("Record cut at the end of " + segmentFile(segment) + " removed");
+			channel.truncate(position);
+		}
+		return position;
+	}
+
+	private static void writeHeader(FileChannel channel, long recordOffset, byte[] hash, long length) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		header.put(hash).putLong(length).flip();
+		while(header.hasRemaining())
+			channel.write(header, recordOffset + header.position());
+	}
+
+	private static boolean isEmpty(byte[] hash) {
+		for(byte b : hash) {
+			if(b != 0)
+				return false;
+		}
+		return true;
+	}
+
+	private File segmentFile(int segment) {
+		return new File(directory, SEGMENT_PREFIX + String.format("%06d", segment));
+	}
+}
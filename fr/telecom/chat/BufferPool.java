@@ -0,0 +1,80 @@
+package fr.telecom.chat;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * Pool of ByteBuffers of the same size.
+ * Buffers are allocated only when the pool is empty and released buffers are kept for the next connections,
+ * up to a maximum number of pooled buffers.
+ * This class is thread safe.
+ *
+ */
+public class BufferPool {
+	private final int bufferSize;
+	private final int maxPooledBuffers;
+	private final boolean direct;
+	private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger nbPooledBuffers = new AtomicInteger();
+	private final AtomicInteger nbAllocatedBuffers = new AtomicInteger();
+
+	/**
+	 * @param bufferSize Capacity of the buffers of the pool
+	 * @param maxPooledBuffers Maximum number of buffers kept by the pool when they are released
+	 * @param direct true to allocate direct buffers
+	 */
+	public BufferPool(int bufferSize, int maxPooledBuffers, boolean direct) {
+		this.bufferSize = bufferSize;
+		this.maxPooledBuffers = maxPooledBuffers;
+		this.direct = direct;
+	}
+
+	/**
+	 * Get a cleared buffer from the pool. A new one is allocated if the pool is empty.
+	 *
+	 * @return buffer in writing mode
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = buffers.poll();
+		if(buffer != null) {
+			nbPooledBuffers.decrementAndGet();
+			return buffer;
+		}
+		nbAllocatedBuffers.incrementAndGet();
+		return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+	}
+
+	/**
+	 * Give back a buffer to the pool. The buffer must not be used after.
+	 *
+	 * @param buffer Buffer acquired from this pool
+	 */
+	public void release(ByteBuffer buffer) {
+		if(buffer == null || buffer.capacity() != bufferSize)
+			return;
+		if(nbPooledBuffers.incrementAndGet() > maxPooledBuffers) {
+			nbPooledBuffers.decrementAndGet();
+			return;
+		}
+		buffer.clear();
+		buffers.offer(buffer);
+	}
+
+	/**
+	 * @return capacity of the buffers of the pool
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * @return number of buffers allocated by the pool since its creation
+	 */
+	public int getNbAllocatedBuffers() {
+		return nbAllocatedBuffers.get();
+	}
+}
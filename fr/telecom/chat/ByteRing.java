@@ -0,0 +1,112 @@
+package fr.telecom.chat;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class is a bounded ring of bytes between one writing thread and one reading thread, without lock.
+ * Each side only moves its own position : the writer publishes the bytes it has copied by moving the write position,
+ * the reader frees the bytes it has copied by moving the read position. Positions only grow, their difference is the number of bytes stored.
+ *
+ * Each side can also close the ring : the reader sees the end of the data once it has read everything, the writer can not write anymore.
+ * Used by LoopbackChannel, one ring for each direction of a connection.
+ *
+ */
+class ByteRing {
+	private final byte[] bytes;
+	private final int mask;
+	private final AtomicLong writePosition = new AtomicLong();
+	private final AtomicLong readPosition = new AtomicLong();
+	private volatile boolean writerClosed = false;
+	private volatile boolean readerClosed = false;
+
+	/**
+	 * @param capacity Maximum number of bytes stored, rounded up to a power of two
+	 */
+	ByteRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+		bytes = new byte[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * Copy as many bytes as possible into the ring. Called by the writing thread only.
+	 *
+	 * @param src Bytes to be written, its position is moved forward
+	 * @return number of bytes written, 0 if the ring is full
+	 */
+	int write(ByteBuffer src) {
+		long write = writePosition.get();
+		int free = bytes.length - (int) (write - readPosition.get());
+		int length = Math.min(free, src.remaining());
+		int offset = (int) write & mask;
+		int first = Math.min(length, bytes.length - offset);
+		src.get(bytes, offset, first);
+		src.get(bytes, 0, length - first);
+		// Ordered store : bytes are visible to the reader before the position is
+		writePosition.lazySet(write + length);
+		return length;
+	}
+
+	/**
+	 * Copy as many bytes as possible out of the ring. Called by the reading thread only.
+	 *
+	 * @param dst Buffer receiving the bytes, its position is moved forward
+	 * @return number of bytes read, 0 if the ring is empty
+	 */
+	int read(ByteBuffer dst) {
+		long read = readPosition.get();
+		int stored = (int) (writePosition.get() - read);
+		int length = Math.min(stored, dst.remaining());
+		int offset = (int) read & mask;
+		int first = Math.min(length, bytes.length - offset);
+		dst.put(bytes, offset, first);
+		dst.put(bytes, 0, length - first);
+		readPosition.lazySet(read + length);
+		return length;
+	}
+
+	/**
+	 * @return true if some bytes can be read
+	 */
+	boolean isReadable() {
+		return writePosition.get() != readPosition.get();
+	}
+
+	/**
+	 * @return true if some bytes can be written
+	 */
+	boolean isWritable() {
+		return writePosition.get() - readPosition.get() < bytes.length;
+	}
+
+	/**
+	 * The writer will not write anymore : the reader sees the end of the data once it has read everything
+	 */
+	void closeWriter() {
+		writerClosed = true;
+	}
+
+	/**
+	 * The reader will not read anymore : the writer can not write
+	 */
+	void closeReader() {
+		readerClosed = true;
+	}
+
+	/**
+	 * @return true if the writer has closed the ring
+	 */
+	boolean isWriterClosed() {
+		return writerClosed;
+	}
+
+	/**
+	 * @return true if the reader has closed the ring
+	 */
+	boolean isReaderClosed() {
+		return readerClosed;
+	}
+}
@@ -3,14 +3,15 @@ package fr.telecom.chat;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Channel;
 import org.apache.log4j.Logger;
 
 
 /**
  * @author Tristan Klempka and Valentin Roussel - 2015
  *
- *	This class provide methods to simplify reading or writing operations with SocketChannel.
+ *	This class provide methods to simplify reading or writing operations with the channels of a Transport (SocketChannel for TCP).
  *
  */
 public class ChannelIO {
@@ -19,7 +20,7 @@ public class ChannelIO {
 	private static Logger channelIOLogger = Logger.getLogger(ChannelIO.class.getSimpleName());
 	
 	/**
-	 * Allows the user to read data from a SocketChannel. 
+	 * Allows the user to read data from a channel. 
 	 * 
 	 * Returned buffer size is limited by the constant BUFFER_SIZE (default : 1024).
 	 * ByteBuffer is automatically switched to reading mode.
@@ -28,7 +29,7 @@ public class ChannelIO {
 	 * @return Buffer filled with data. Empty if channel is closed (End Of Stream received)
 	 * @throws IOException if the reading has failed
 	 */
-	public static ByteBuffer readDataFromChannel(SocketChannel channel) throws IOException{
+	public static ByteBuffer readDataFromChannel(ByteChannel channel) throws IOException{
 		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);		
 		int nbBytesRead = 0, b = 0;		
 			do {
@@ -53,14 +54,14 @@ public class ChannelIO {
 	}
 	
 	/**
-	 * Allows the user to write data on a SocketChannel.
+	 * Allows the user to write data on a channel.
 	 * 
-	 * @param dataBuffer Buffer that will be filled with data
+	 * @param dataBuffer Buffer containing data to be written
 	 * @param channel Channel you want to write on
 	 * @return Number of bytes written
 	 * @throws IOException if the writing has failed 
 	 */
-	public static int writeDataToChannel(ByteBuffer dataBuffer, SocketChannel channel) throws IOException{	
+	public static int writeDataToChannel(ByteBuffer dataBuffer, ByteChannel channel) throws IOException{	
 		int nbBytesWritten = 0, b = 0;
 		try {
 			do {
@@ -69,23 +70,79 @@ public class ChannelIO {
 			} while (dataBuffer.hasRemaining() && b != 0);
 			
 		} catch (IOException e) {
-
+			channelIOLogger.fatal("Error while writing to a channel");
 			forceCloseConnection(channel);
 			throw e;
-			channelIOLogger.fatal("Error while writing to a channel");
-			e.printStackTrace();
 		}
-		dataBuffer.clear();
 		channelIOLogger.info(nbBytesWritten + " bytes written to a channel");
 		return nbBytesWritten;
 	}
+	
+	/**
+	 * Allows the user to read data from a channel secured by TLS.
+	 * 
+	 * Same as readDataFromChannel(ByteChannel) but data are decrypted by the TLS session. 
+	 * The returned buffer is empty while the handshake is not finished.
+	 * 
+	 * @param channel Channel you want to read from
+	 * @param tls TLS session of the channel, null if the channel is not secured
+	 * @return Buffer filled with data. Empty if channel is closed (End Of Stream received)
+	 * @throws IOException if the reading has failed
+	 */
+	public static ByteBuffer readDataFromChannel(ByteChannel channel, TlsSession tls) throws IOException{
+		if(tls == null)
+			return readDataFromChannel(channel);
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		int nbBytesRead;
+		try {
+			nbBytesRead = tls.read(channel, buffer);
+		} catch (IOException e) {
+			channelIOLogger.fatal("Error while reading from a TLS channel");
+			forceCloseConnection(channel);
+			throw e;
+		}
+		if(nbBytesRead == DISCONNECTED_BY_USER_CODE){
+			forceCloseConnection(channel);
+			return ByteBuffer.allocate(0);
+		}
+		buffer.flip();
+		channelIOLogger.info(nbBytesRead + " bytes read from a TLS channel");
+		return buffer;
+	}
+	
+	/**
+	 * Allows the user to write data on a channel secured by TLS.
+	 * 
+	 * Same as writeDataToChannel(ByteBuffer, ByteChannel) but data are encrypted by the TLS session. 
+	 * Nothing is written while the handshake is not finished.
+	 * 
+	 * @param dataBuffer Buffer containing data to be written
+	 * @param channel Channel you want to write on
+	 * @param tls TLS session of the channel, null if the channel is not secured
+	 * @return Number of bytes of dataBuffer written
+	 * @throws IOException if the writing has failed 
+	 */
+	public static int writeDataToChannel(ByteBuffer dataBuffer, ByteChannel channel, TlsSession tls) throws IOException{
+		if(tls == null)
+			return writeDataToChannel(dataBuffer, channel);
+		int nbBytesWritten;
+		try {
+			nbBytesWritten = tls.write(dataBuffer, channel);
+		} catch (IOException e) {
+			channelIOLogger.fatal("Error while writing to a TLS channel");
+			forceCloseConnection(channel);
+			throw e;
+		}
+		channelIOLogger.info(nbBytesWritten + " bytes written to a TLS channel");
+		return nbBytesWritten;
+	}
 
 	/**
-	 * Close a SocketChannel
+	 * Close a channel
 	 * 
 	 * @param channel Channel that you want to close
 	 */
-	public static void forceCloseConnection(SocketChannel channel) {
+	public static void forceCloseConnection(Channel channel) {
 		try {
 			//channel's key is canceled implicitly
 			channel.close(); 
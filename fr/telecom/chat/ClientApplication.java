@@ -1,70 +1,173 @@
 package fr.telecom.chat;
 
+import java.io.File;
 import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.channels.SocketChannel;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
 import org.apache.log4j.Logger;
 
-import fr.telecom.chat.ChannelIO;
-
 /**
  * @author Tristan Klempka and Valentin Roussel - 2015
- * 
- * This class implements the client side of the chat. 
+ *
+ * This class implements the client side of the chat.
  * It connects with the server and allows to communicate with it by using the Message protocol.
- * 
- * It implements Runnable because it is a service started by the UI
+ *
+ * It implements Runnable because it is a service started by the UI.
+ * The connection is a single ClientSession driven by a ClientEngine running on the thread given by the UI.
+ * Applications hosting many nicknames should use ClientEngine (or ClientEngineGroup) and ClientSession directly.
  *
  */
 public class ClientApplication implements MessageAnalyzer, Runnable{
-	/* Constantes */
-	private static final int MAX_MESSAGE_SIZE = ChannelIO.BUFFER_SIZE;
 	/* Attributs */
-	private SocketChannel _socket;
-	private Selector _selector;
-	private SelectionKey _key;
-	private String _nickname;
-	private ByteBuffer _pendingWritingData = ByteBuffer.allocate(2048);
-	boolean _pendingWritingDataHasEnoughSpace = true;
-	private ByteBuffer _pendingReadingData = ByteBuffer.allocate(2048);
-	private Set<String> _clientsConnected = new HashSet<String>();
+	private ClientEngine _engine;
+	private ClientSession _session;
+	private boolean _compressionEnabled = true;
+	private boolean _tlsEnabled = TlsContext.isEnabled();
+	private boolean _sessionIdsEnabled = Boolean.parseBoolean(System.getProperty("chat.sessionIds", "true"));
+	private boolean _autoReconnectEnabled = Boolean.parseBoolean(System.getProperty("chat.reconnect", "true"));
+	private boolean _reliableEnabled = Boolean.parseBoolean(System.getProperty("chat.reliable", "false"));
+	private boolean _signalsEnabled = Boolean.parseBoolean(System.getProperty("chat.signals", "true"));
+	private LatencyTracer _latencyTracer = Boolean.parseBoolean(System.getProperty("chat.trace", "false")) ? new LatencyTracer() : null;
 	private Logger clientLogger;
-	
+
 	protected ClientApplicationListener _lsn;
-	
+	private SearchResultsListener _searchLsn;
+	private FileTransferListener _fileLsn;
+	private SignalListener _signalLsn;
+
 	/**
 	 * Add ClientApplicationListener
-	 * 
+	 *
 	 * @param lsn ClientApplicationListener to be added
 	 */
 	public void addClientApplicationListener(ClientApplicationListener lsn){
-		if(_lsn == null)
+		if(_lsn == null) {
 			_lsn = lsn;
+			if(_session != null)
+				_session.setClientApplicationListener(lsn);
+		}
 	}
-	
+
 	/**
 	 * Remove ClientApplicationListener
-	 * 
+	 *
 	 * @param lsn ClientApplicationListener to be removed
 	 */
 	public void removeClientApplicationListener(ClientApplicationListener lsn){
 		if(_lsn == null)
 			_lsn = null;
 	}
-	
+
+	/**
+	 * Set the listener of the search answers
+	 *
+	 * @param searchLsn SearchResultsListener receiving the answers of the search requests
+	 */
+	public void setSearchResultsListener(SearchResultsListener searchLsn){
+		_searchLsn = searchLsn;
+		if(_session != null)
+			_session.setSearchResultsListener(searchLsn);
+	}
+
+	/**
+	 * Set the listener of the file transfers
+	 *
+	 * @param fileLsn FileTransferListener receiving the offers and the end of the file transfers
+	 */
+	public void setFileTransferListener(FileTransferListener fileLsn){
+		_fileLsn = fileLsn;
+		if(_session != null)
+			_session.setFileTransferListener(fileLsn);
+	}
+
+	/**
+	 * Set the SignalListener
+	 *
+	 * @param signalLsn SignalListener receiving the signals of the other users
+	 */
+	public void setSignalListener(SignalListener signalLsn){
+		_signalLsn = signalLsn;
+		if(_session != null)
+			_session.setSignalListener(signalLsn);
+	}
+
+	/**
+	 * Enable or disable compression. Must be called before setup, compression is only used if the server accepts it.
+	 *
+	 * @param compressionEnabled true to ask the server for compression (default)
+	 */
+	public void setCompressionEnabled(boolean compressionEnabled) {
+		_compressionEnabled = compressionEnabled;
+	}
+
+	/**
+	 * Enable or disable TLS. Must be called before setup. Default value is given by the chat.tls system property.
+	 *
+	 * @param tlsEnabled true to secure the connection with TLS
+	 */
+	public void setTlsEnabled(boolean tlsEnabled) {
+		_tlsEnabled = tlsEnabled;
+	}
+
+	/**
+	 * Enable or disable session IDs. Must be called before setup, session IDs are only used if the server accepts them.
+	 *
+	 * @param sessionIdsEnabled true to ask the server for session IDs (default value given by the chat.sessionIds system property)
+	 */
+	public void setSessionIdsEnabled(boolean sessionIdsEnabled) {
+		_sessionIdsEnabled = sessionIdsEnabled;
+	}
+
+	/**
+	 * Enable or disable the automatic reconnection. Must be called before setup.
+	 *
+	 * @param autoReconnectEnabled true to connect again and resume the session when the connection is lost (default value given by the chat.reconnect system property)
+	 */
+	public void setAutoReconnectEnabled(boolean autoReconnectEnabled) {
+		_autoReconnectEnabled = autoReconnectEnabled;
+	}
+
+	/**
+	 * Enable or disable reliable delivery. Must be called before setup, reliable delivery is only used if the server accepts it.
+	 *
+	 * @param reliableEnabled true to have standard messages acknowledged and sent again if needed (default value given by the chat.reliable system property)
+	 */
+	public void setReliableEnabled(boolean reliableEnabled) {
+		_reliableEnabled = reliableEnabled;
+	}
+
+	/**
+	 * Enable or disable the UDP side channel. Must be called before setup, it is only used if the server has one.
+	 *
+	 * @param signalsEnabled true to send and receive signals (default value given by the chat.signals system property)
+	 */
+	public void setSignalsEnabled(boolean signalsEnabled) {
+		_signalsEnabled = signalsEnabled;
+	}
+
+	/**
+	 * Trace the latency of the standard Messages. Must be called before setup, traces are only used if the server accepts them.
+	 * By default a LatencyTracer is created if the chat.trace system property is true.
+	 *
+	 * @param latencyTracer LatencyTracer recording the latency of the Messages received, null to disable tracing
+	 */
+	public void setLatencyTracer(LatencyTracer latencyTracer) {
+		_latencyTracer = latencyTracer;
+	}
+
 	/**
-	 *  Setup the client. 
-	 *  Open the SocketChannel, set non-blocking mode and register the Selector. 
-	 * 
-	 *  ServerSocket is set up to listen for connections (OP_CONNECT).
+	 * @return LatencyTracer of the client, its histograms can be exported. null if tracing is disabled
+	 */
+	public LatencyTracer getLatencyTracer() {
+		return _latencyTracer;
+	}
 
-	 * @param iPAdress String containing the IP address
+	/**
+	 *  Setup the client.
+	 *  Create the engine and its session, the connection starts when the engine runs.
+	 *  If the path of a socket file is given instead of an IP address, the client connects through this Unix domain socket
+	 *  and the port is ignored (see UnixTransport).
+	 *
+	 * @param iPAdress String containing the IP address, or the path of the Unix domain socket of the server
 	 * @param port String containing the port
 	 * @param nickname String containing the client nickname
 	 */
@@ -72,253 +175,117 @@ public class ClientApplication implements MessageAnalyzer, Runnable{
 		clientLogger = Logger.getLogger(ClientApplication.class.getSimpleName() + "." + nickname);
 		try {
 			clientLogger.info("Client setup starting");
-			_nickname = nickname;
-			_socket = SocketChannel.open();
-			_selector = Selector.open();
-			_socket.configureBlocking(false);
-			_socket.connect(new InetSocketAddress(iPAdress, Integer.parseInt(port)));
-			_key = _socket.register(_selector, SelectionKey.OP_CONNECT);
-			
+			boolean unixSocket = UnixTransport.isSocketPath(iPAdress);
+			_engine = unixSocket ? new ClientEngine(new UnixTransport(iPAdress)) : new ClientEngine();
+			_session = new ClientSession(nickname, _lsn);
+			_session.setCompressionEnabled(_compressionEnabled);
+			_session.setTlsEnabled(_tlsEnabled);
+			_session.setSessionIdsEnabled(_sessionIdsEnabled);
+			_session.setAutoReconnectEnabled(_autoReconnectEnabled);
+			_session.setReliableEnabled(_reliableEnabled);
+			_session.setSearchResultsListener(_searchLsn);
+			_session.setFileTransferListener(_fileLsn);
+			_session.setSignalsEnabled(_signalsEnabled);
+			_session.setSignalListener(_signalLsn);
+			_session.setLatencyTracer(_latencyTracer);
+			_engine.connect(_session, iPAdress, unixSocket ? 0 : Integer.parseInt(port));
 		} catch (IOException e) {
 			clientLogger.fatal("Client setup failed");
 		}
-		clientLogger.info("Client launched");
 	}
-	/**
-	 * Run the client until thread is interrupted by UI.
-	 * Loop start by processing the pending reading data if any. 
-	 * After that it iterates over all the SelectionKey to check if events are pending (Connectable, Readable or Writable). Only keys that have event are checked.
-	 * Finally low level operations are made : if key is connectable, client finishes connection, if key is readable, client reads and adds pending reading data, if key is writable, 
-	 * client write its pending writing data.
-	 * 
-	 * It is important to notice that we can not write or read directly from channel that is why pending data are used.
-	 */
-	public void run() {
-		try {
-			while(!Thread.currentThread().isInterrupted()){				
-				if(_key.isValid());
-					processPendingReadingData(_key);
-
-				int readyChannels = _selector.select();
-				if(readyChannels == 0) continue;
-				
-				
-				Set<SelectionKey> selectedKeys = _selector.selectedKeys();
-				Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
-				while(keyIterator.hasNext()) {
 
-					SelectionKey key = keyIterator.next();
-					
-				    if(key.isValid() && key.isConnectable() ) {
-				        // a connection was accepted by a ServerSocketChannel.
-				    	connectClient();
-				    }
-				    else if (key.isValid() && key.isReadable()) {
-				        // a channel is ready for reading
-				    	SocketChannel channel = (SocketChannel)key.channel();
-				    	ByteBuffer dataToBeRead = ChannelIO.readDataFromChannel(channel);
-				    	if(dataToBeRead.capacity() == 0) {
-							clientLogger.fatal("Unexpected disconnection from server");
-				    		ChannelIO.forceCloseConnection((SocketChannel) key.channel());
-				    	}
-				    	addPendingReadingData(dataToBeRead);
-				    }				    
-				    else if (key.isValid() && key.isWritable()) {
-				    	// a channel is ready for writing
-				    	_pendingWritingData.flip();
-				    	int dataRemaining =  _pendingWritingData.remaining();
-				    	int nbBytesWritten = 
-				    			ChannelIO.writeDataToChannel(_pendingWritingData, (SocketChannel) key.channel());
-				    	
-		    			if(nbBytesWritten == dataRemaining) {
-				    		key.interestOps(SelectionKey.OP_READ);
-				    		_pendingWritingData.clear();
-		    			}
-		    			else
-		    				_pendingWritingData.compact();
-		    			
-		    			if(_pendingWritingData.remaining() >= 1024) {
-				    		_pendingWritingDataHasEnoughSpace= true;
-		    			}
-		    			
-				    }
-				    keyIterator.remove();
-				}
-			}
-		} catch (IOException e) {
-			clientLogger.fatal("Connection with the server lost");
-		}
-		
-	}
 	/**
-	 * Connect the client on the server.
-	 * It finishes its connection if any. Then send an acknowledgment to the server and set up its key in reading mode.
-	 * 
+	 * Run the client until thread is interrupted by UI or the client is stopped (see ClientEngine.run).
 	 */
-	private void connectClient() {
-		clientLogger.info("Trying to connect to server");
-		if(_socket.isConnectionPending()){
-			try {
-				if(_socket.finishConnect()){
-					_key.interestOps(SelectionKey.OP_READ);
-					clientLogger.info("Connected to server");
-					sendConnectionMessage();
-				}
-			} catch (IOException e) {
-				clientLogger.info("Unable to connect to server");
-			}
-		}
-	}
-	
-	/**
-	 * Send connection acknowledgment message to the server.
-	 */
-	private void sendConnectionMessage() {		
-		Message msg = new Message("", _nickname, "Server", Message.Type.CONNECTION);
-		addToPendingWritingData(msg.constructByteBuffer());
-		_key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-		clientLogger.info("Connection message sent to server");
+	public void run() {
+		_engine.run();
 	}
-	
+
 	/**
 	 * Send disconnection message to the server.
 	 */
 	public void sendDisconnectionMessage(){
-		Message msg = new Message("", _nickname, "Server", Message.Type.DISCONNECTION);
-		addToPendingWritingData(msg.constructByteBuffer());
-		_key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-		clientLogger.info("Disconnection message sent to server");
-		_selector.wakeup();
+		_session.sendDisconnectionMessage();
 	}
-	
+
 	/**
 	 * Send a message through the server at a user of the chat.
-	 * 
+	 *
 	 * @param str String containing the message content
-	 * @param toString containing the nickname of the receiver
+	 * @param to String containing the nickname of the receiver
 	 */
 	public void sendStandardMessage(String str, String to) {
-		Message msg = new Message(str, _nickname, to, Message.Type.STANDARD);
-		addToPendingWritingData(msg.constructByteBuffer());
-		_key.interestOps(SelectionKey.OP_WRITE);
-		clientLogger.info("Message sent to " + to + " : " + str);
-		_selector.wakeup();
+		_session.sendStandardMessage(str, to);
 	}
-	
+
 	/**
-	 * Method to analyze message and take actions from it. This method implements how to deal with Messages received from server.
-	 * Client connected : Register nickname of the client, fire client connected event to the UI
-	 * Client disconnected : Unregister nickname of the client, fire client disconnected event to the UI
-	 * Connection : Fire connection event to the UI, fetch clients already connected list, fire list received event to UI 
-	 * Standard : Fire message received event to UI
-	 * 
-	 * @param msg Message to be read
-	 * @param key SelectionKey that contains the sender channel
+	 * Search the conversation with another user on the server, the answer is given to the SearchResultsListener.
+	 *
+	 * @param with String containing the nickname of the other user
+	 * @param query String containing the terms to be found, phrases between double quotes
 	 */
-	public void performActionFromReceivedMessage(Message msg, SelectionKey key) {
-		switch(msg.getType()) {
-		case CLIENT_CONNECTED:
-			_clientsConnected.add(msg.getFrom());
-			_lsn.clientConnected(msg.getFrom());
-			clientLogger.info(msg.getFrom() + " is connected");
-			break;
-		case CLIENT_DISCONNECTED:
-			_clientsConnected.remove(msg.getFrom());
-			_lsn.clientDisconnected(msg.getFrom());
-			clientLogger.info(msg.getFrom() + " is disconnected");
-			break;
-		case CONNECTION:
-			_lsn.connected();
-			String[] connectedClients = msg.getContent().split(",");
-			for(String nickname : connectedClients) {
-				_clientsConnected.add(nickname);
-			}
-			_lsn.listClientsReceived(connectedClients);
-			clientLogger.info("Client registered to server");
-			break;
-		case DISCONNECTION:
-			_lsn.disconnected();
-			break;
-		case STANDARD:
-			_lsn.messageReceived(msg.getContent(), msg.getFrom());
-			clientLogger.info("Message received from " + msg.getFrom() + " :" + msg.getContent());
-			break;
-		case BAD_MESSAGE:
-		default:
-			break;	
-		}
+	public void search(String with, String query) {
+		_session.search(with, query);
 	}
 
 	/**
-	 * Add data to the pending writing buffer.
-	 * 
-	 * SelectionKey is set to write mode if the buffer is full. 
-	 * It allows to free the buffer by actually write data on the ChannelSocket during the server loop.
-	 * 
-	 * 
-	 * @param buffer ByteBuffer to be added
+	 * Offer a file to another user, it is uploaded once accepted unless the server already has it (the calling thread reads it
+	 * to compute its hash). The end of the transfer is given to the FileTransferListener.
+	 *
+	 * @param to String containing the nickname of the receiver
+	 * @param file File to be sent
+	 * @return token of the transfer
 	 */
-	private void addToPendingWritingData(ByteBuffer buffer){
-		_pendingWritingData.put(buffer);
-		_key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-		if (_pendingWritingData.remaining() < MAX_MESSAGE_SIZE) {
-			_pendingWritingDataHasEnoughSpace = false;
-			_key.interestOps(SelectionKey.OP_WRITE);
-		}
+	public String sendFile(String to, File file) {
+		return _session.sendFile(to, file);
 	}
-	
+
 	/**
-	 * Add data to the pending reading buffer.
-	 * 
-	 * SelectionKey is set to write mode if the buffer is full. 
-	 * It allows to free the buffer by actually write data on the ChannelSocket during the server loop.
-	 * 
-	 * @param buffer ByteBuffer to be added
+	 * Accept a file offered by another user. An existing destination file is resumed from its size.
+	 *
+	 * @param token String containing the token given by FileTransferListener.fileOffered
+	 * @param destination File the download is written to
 	 */
-	
-	private void addPendingReadingData(ByteBuffer buffer){
-		_pendingReadingData.put(buffer);
-		if (_pendingReadingData.remaining() < MAX_MESSAGE_SIZE) {
-			_key.interestOps(SelectionKey.OP_WRITE);
-		}
+	public void acceptFile(String token, File destination) {
+		_session.acceptFile(token, destination);
+	}
+
+	/**
+	 * Cancel a file transfer offered by or to this user.
+	 *
+	 * @param token String containing the token of the transfer
+	 */
+	public void cancelFile(String token) {
+		_session.cancelFile(token);
 	}
-	
+
 	/**
-	 * Process pending reading data.
-	 * 
-	 * This methods tries to construct messages from the pending data.
-	 * If the message constructed is valid, it also called performActionFromReceivedMessage automatically.
-	 * 
-	 * @param key SelectionKey
+	 * Send an ephemeral signal to another user, such as a typing indicator. It is dropped if it can not be sent at once.
+	 *
+	 * @param to String containing the nickname of the receiver
+	 * @param content String containing the signal
 	 */
-	private void processPendingReadingData(SelectionKey key) {
-		boolean msgValid = true;
-		do {
-			Message newMsg = new Message();
-			_pendingReadingData.flip();
-			newMsg.ConstructFromByteBuffer(_pendingReadingData);
-			_pendingReadingData.compact();
+	public void sendSignal(String to, String content) {
+		_session.sendSignal(to, content);
+	}
 
-			if (newMsg.isValid()) {
-				performActionFromReceivedMessage(newMsg, key);
-			} else {
-				msgValid = false;
-			}
-		} while (_pendingReadingData.hasRemaining() && msgValid && _pendingWritingDataHasEnoughSpace);
+	/**
+	 * Method to analyze message and take actions from it (see ClientSession.performActionFromReceivedMessage).
+	 * Must be called from the client thread.
+	 *
+	 * @param msg Message to be read
+	 * @param key SelectionKey that contains the sender channel
+	 */
+	public void performActionFromReceivedMessage(Message msg, SelectionKey key) {
+		_session.performActionFromReceivedMessage(msg, key);
 	}
-	
+
 	/**
-	 *  Simple method to stop the server
+	 *  Simple method to stop the client. The connection is closed by the client thread.
 	 */
 	public void stop(){
-		try {
-			clientLogger.info("Client Application stopped");
-			if(_socket.isOpen()){
-				_socket.close();
-			}
-				
-		} catch (IOException e) {
-			clientLogger.fatal(e);
-		}
+		clientLogger.info("Client Application stopped");
+		if(_engine != null)
+			_engine.stop();
 	}
 }
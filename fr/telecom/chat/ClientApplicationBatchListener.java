@@ -0,0 +1,18 @@
+package fr.telecom.chat;
+
+import java.util.List;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * Interface that provides methods implementing actions on batches of events (see UIEventBatcher).
+ * All methods are called on the UI thread.
+ *
+ */
+public interface ClientApplicationBatchListener {
+	void messagesReceived(String from, List<String> texts);
+	void connected();
+	void disconnected();
+	void listClientsReceived(String[] listClients);
+	void rosterChanged(List<String> connectedClients, List<String> disconnectedClients);
+}
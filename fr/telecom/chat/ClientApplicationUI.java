@@ -1,6 +1,8 @@
 package fr.telecom.chat;
 
-import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.eclipse.jface.action.MenuManager;
 import org.eclipse.jface.action.StatusLineManager;
@@ -8,6 +10,7 @@ import org.eclipse.jface.action.ToolBarManager;
 import org.eclipse.jface.window.ApplicationWindow;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.graphics.Color;
+import org.eclipse.swt.graphics.Font;
 import org.eclipse.swt.graphics.Point;
 import org.eclipse.swt.layout.FormAttachment;
 import org.eclipse.swt.layout.FormData;
@@ -21,7 +24,6 @@ import org.eclipse.swt.widgets.Display;
 import org.eclipse.swt.widgets.Event;
 import org.eclipse.swt.widgets.Group;
 import org.eclipse.swt.widgets.Label;
-import org.eclipse.swt.widgets.List;
 import org.eclipse.swt.widgets.MessageBox;
 import org.eclipse.swt.widgets.Shell;
 import org.eclipse.swt.widgets.Text;
@@ -51,17 +53,19 @@ public class ClientApplicationUI extends ApplicationWindow {
 	protected ClientApplicationListener _lsn;
 	private ClientApplication _clientApplication;
 	private boolean _isConnected;
-	private List _listClientsConnected;
-	private Text txtTest;
+	private RosterView _rosterClientsConnected;
 	private CTabFolder _tabFolderConversations;
+	private Map<String, CTabItem> _conversationTabs = new HashMap<String, CTabItem>();
+	private Map<CTabItem, ConversationView> _conversationViews = new HashMap<CTabItem, ConversationView>();
 	private Thread _clientApplicationThread;
 	private Button _btnSend;
 	private Button _btnConnection;
 	/**
-	 * Create the application window. Also implements methods of a ClientApp listener:
+	 * Create the application window. Also implements methods of a ClientApp listener, whose events are delivered in batches
+	 * by an UIEventBatcher (one UI task per display frame):
 	 *  - Connected / Disconnected when the connections's status changes
-	 *  - Message received when there is an incoming message from an other client
-	 *  - ClientConnected / ClientDisconnected when an other client's connections's status changes
+	 *  - Messages received when there are incoming messages from an other client, grouped per sender
+	 *  - Roster changed when other clients have connected / disconnected from server, applied as one update of the list
 	 *  - listClientsReceived when, at connection, the clientApp receives the list of clients already connected to the server
 	 */
 	public ClientApplicationUI() {
@@ -72,91 +76,49 @@ public class ClientApplicationUI extends ApplicationWindow {
 		addStatusLine();
 		
 		_clientApplication = new ClientApplication();
-		_lsn = new ClientApplicationListener() {
-			public void messageReceived(final String text, final String from) {
-				Display.getDefault().asyncExec(new Runnable() {
-					public void run() {
-						for(CTabItem item : _tabFolderConversations.getItems()){
-							if(item.getText().equals(from)){
-								Text txt = (Text)(item.getControl());
-								txt.append(from + ": " + text + "\n");
-								return;
-							}
-						}
-						createConversationTab(from);
-						Text txt = (Text)(_tabFolderConversations.getSelection().getControl());
-						txt.append(from + ": " + text + "\n");
-					}
-				});
+		_lsn = new UIEventBatcher(Display.getDefault(), new ClientApplicationBatchListener() {
+			public void messagesReceived(String from, List<String> texts) {
+				CTabItem item = _conversationTabs.get(from);
+				if(item == null)
+					item = createConversationTab(from);
+				_conversationViews.get(item).append(from, texts);
 			}
 
 			public void connected() {
-				Display.getDefault().asyncExec(new Runnable() {
-
-					public void run() {
-						_isConnected = true;
-						ClientApplicationUI.this.setStatus("Connected");
-						_btnConnection.setText("Disconnection");
-						_textIP.setEnabled(false);
-						_textPort.setEnabled(false);
-						_textPseudo.setEnabled(false);
-					}
-				});
+				_isConnected = true;
+				ClientApplicationUI.this.setStatus("Connected");
+				_btnConnection.setText("Disconnection");
+				_textIP.setEnabled(false);
+				_textPort.setEnabled(false);
+				_textPseudo.setEnabled(false);
 			}
 
 			public void disconnected() {
-				Display.getDefault().asyncExec(new Runnable() {
-					public void run() {
-						_isConnected = false;
-						_clientApplication.stop();
-						_clientApplicationThread.interrupt();
-						ClientApplicationUI.this.setStatus("Disconnected");
-						_btnConnection.setText("Connection");
-						_btnSend.setEnabled(false);
-						_textIP.setEnabled(true);
-						_textPort.setEnabled(true);
-						_textPseudo.setEnabled(true);
-						_listClientsConnected.removeAll();
-					}
-				});
+				_isConnected = false;
+				_clientApplication.stop();
+				_clientApplicationThread.interrupt();
+				ClientApplicationUI.this.setStatus("Disconnected");
+				_btnConnection.setText("Connection");
+				_btnSend.setEnabled(false);
+				_textIP.setEnabled(true);
+				_textPort.setEnabled(true);
+				_textPseudo.setEnabled(true);
+				_rosterClientsConnected.clear();
 			}
 
-			public void listClientsReceived(final String[] listClients) {
-				Display.getDefault().asyncExec(new Runnable() {
-					public void run() {
-						for(String client : listClients) {
-							if(!client.isEmpty())
-								_listClientsConnected.add(client);
-						}
-						if(isNicknameConnected(getCurrentConversationNickname())) {
-							_btnSend.setEnabled(true);
-						}
-					}
-				});
-			}
-
-			public void clientConnected(final String nickname) {
-				Display.getDefault().asyncExec(new Runnable() {
-					public void run() {
-						_listClientsConnected.add(nickname);
-						if(getCurrentConversationNickname().equals(nickname)) {
-							_btnSend.setEnabled(true);
-						}
-					}
-				});
+			public void listClientsReceived(String[] listClients) {
+				_rosterClientsConnected.addAll(listClients);
+				if(isNicknameConnected(getCurrentConversationNickname())) {
+					_btnSend.setEnabled(true);
+				}
 			}
 
-			public void clientDisconnected(final String nickname) {
-				Display.getDefault().asyncExec(new Runnable() {
-					public void run() {
-						_listClientsConnected.remove(nickname);
-						if(getCurrentConversationNickname().equals(nickname)) {
-							_btnSend.setEnabled(false);
-						}
-					}
-				});
+			public void rosterChanged(List<String> connectedClients, List<String> disconnectedClients) {
+				// Roster is updated in one go, it is redrawn once
+				_rosterClientsConnected.applyChanges(connectedClients, disconnectedClients);
+				_btnSend.setEnabled(isNicknameConnected(getCurrentConversationNickname()));
 			}
-		};
+		});
 	}
 
 	/**
@@ -170,29 +132,30 @@ public class ClientApplicationUI extends ApplicationWindow {
 		container.setLayout(new FormLayout());
 		
 		//List of clients connected to the server, located on the right on the UI
-		_listClientsConnected = new List(container, SWT.BORDER | SWT.V_SCROLL);
+		_rosterClientsConnected = new RosterView(container);
 		FormData fd_list = new FormData();
 		fd_list.bottom = new FormAttachment(100);
 		fd_list.left = new FormAttachment(75);
 		fd_list.top = new FormAttachment(12);
 		fd_list.right = new FormAttachment(100);
-		_listClientsConnected.setLayoutData(fd_list);
-		_listClientsConnected.addSelectionListener(new SelectionAdapter() {
+		_rosterClientsConnected.getControl().setLayoutData(fd_list);
+		_rosterClientsConnected.addSelectionListener(new SelectionAdapter() {
 			
 			// Click on a client's nickname on the list
 			@Override
 			public void widgetSelected(SelectionEvent e) {
 				
-				for (CTabItem item : _tabFolderConversations.getItems()){
-					// If a tab is already open for this conversation, we switch to it
-					if(item.getText().equals(_listClientsConnected.getSelection()[0])) {
-						_tabFolderConversations.setSelection(item);
-						return;
-					}
+				String nickname = _rosterClientsConnected.getSelection();
+				if (nickname == null)
+					return;
+				CTabItem item = _conversationTabs.get(nickname);
+				// If a tab is already open for this conversation, we switch to it
+				if(item != null) {
+					_tabFolderConversations.setSelection(item);
+					return;
 				}
 				// Else a new tab is created
-				if (_listClientsConnected.getSelection().length > 0)
-					createConversationTab(_listClientsConnected.getSelection()[0]);
+				createConversationTab(nickname);
 			}
 			
 		});
@@ -210,10 +173,9 @@ public class ClientApplicationUI extends ApplicationWindow {
 			@Override
 			public void widgetSelected(SelectionEvent e) {
 				String textItemSelected = getCurrentConversationNickname();
-				java.util.List<String> listTextClientsConnected = Arrays.asList(_listClientsConnected.getItems());
 				
 				//If the other client is disconnected, the send button is disabled
-				if (listTextClientsConnected.contains(textItemSelected)) {
+				if (_rosterClientsConnected.contains(textItemSelected)) {
 					_btnSend.setEnabled(true);
 				}
 				else
@@ -287,7 +249,13 @@ public class ClientApplicationUI extends ApplicationWindow {
 		
 		_btnConnection = new Button(grpServer, SWT.NONE);
 		_btnConnection.setLayoutData(new RowData(100, SWT.DEFAULT));
-		_btnConnection.setFont(SWTResourceManager.getFont("Segoe UI", 9, SWT.NORMAL));
+		final Font connectionFont = SWTResourceManager.acquireFont("Segoe UI", 9, SWT.NORMAL);
+		_btnConnection.setFont(connectionFont);
+		_btnConnection.addDisposeListener(new DisposeListener() {
+			public void widgetDisposed(DisposeEvent e) {
+				SWTResourceManager.release(connectionFont);
+			}
+		});
 		_btnConnection.setText("Connect");
 		_btnConnection.addSelectionListener(new SelectionAdapter(){
 			public void widgetSelected(SelectionEvent e) {
@@ -343,8 +311,7 @@ public class ClientApplicationUI extends ApplicationWindow {
 					return;
 				_clientApplication.sendStandardMessage(_textToSend.getText(), _tabFolderConversations.getSelection().getText());
 				
-				Text txt = (Text)(_tabFolderConversations.getSelection().getControl());
-				txt.append(_textPseudo.getText() + ": " + _textToSend.getText() + "\n");
+				_conversationViews.get(_tabFolderConversations.getSelection()).append(_textPseudo.getText(), _textToSend.getText());
 				
 				_textToSend.setText("");
 		}
@@ -354,20 +321,35 @@ public class ClientApplicationUI extends ApplicationWindow {
 	}
 
 	/**
-	 * Creates a new tab for a new conversation
+	 * Creates a new tab for a new conversation. The tab is registered with the nickname so that it is found directly.
+	 * Its background color is taken from the SWTResourceManager and given back when the tab is closed.
 	 * 
 	 * @param nickname String containing the nickname of the other client
+	 * @return the new tab
 	 */
-	private void createConversationTab(String nickname) {
-		CTabItem tabItem = new CTabItem(_tabFolderConversations, SWT.NONE);
+	private CTabItem createConversationTab(final String nickname) {
+		final CTabItem tabItem = new CTabItem(_tabFolderConversations, SWT.NONE);
 		tabItem.setText(nickname);
-		txtTest = new Text(_tabFolderConversations, SWT.READ_ONLY | SWT.WRAP | SWT.V_SCROLL);
-		//txtTest.setEditable(false);
-		txtTest.setBackground(new Color(Display.getCurrent(), 255, 255, 255));
-		tabItem.setControl(txtTest);
+		ConversationView view = new ConversationView(_tabFolderConversations);
+		final Color background = SWTResourceManager.acquireColor(255, 255, 255);
+		view.getControl().setBackground(background);
+		tabItem.setControl(view.getControl());
+		_conversationTabs.put(nickname, tabItem);
+		_conversationViews.put(tabItem, view);
+		// Closing the tab releases the conversation
+		tabItem.addDisposeListener(new DisposeListener() {
+			public void widgetDisposed(DisposeEvent e) {
+				_conversationTabs.remove(nickname);
+				ConversationView closedView = _conversationViews.remove(tabItem);
+				if(closedView != null)
+					closedView.dispose();
+				SWTResourceManager.release(background);
+			}
+		});
 		
 		_tabFolderConversations.setSelection(tabItem);
 		_btnSend.setEnabled(true);
+		return tabItem;
 	}
 
 	/**
@@ -409,6 +391,7 @@ public class ClientApplicationUI extends ApplicationWindow {
 			ClientApplicationUI window = new ClientApplicationUI();
 			window.setBlockOnOpen(true);
 			window.open();
+			SWTResourceManager.dispose();
 			Display.getCurrent().dispose();
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -446,7 +429,7 @@ public class ClientApplicationUI extends ApplicationWindow {
 	 * @return true if this client is connected
 	 */
 	private boolean isNicknameConnected(String nickname) {
-		return Arrays.asList(_listClientsConnected.getItems()).contains(nickname);
+		return _rosterClientsConnected.contains(nickname);
 	}
 	
 	/**
@@ -0,0 +1,349 @@
+package fr.telecom.chat;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.log4j.Logger;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class runs the selector loop of many client sessions on a single thread.
+ * A bot gateway hosting thousands of nicknames needs one engine (or a few, see ClientEngineGroup) instead of
+ * one Selector and one thread per nickname.
+ *
+ * Other threads never touch the sessions : they submit tasks (connections, Messages to be sent) to a lock-free queue
+ * which is drained by the engine thread at each turn of the loop. The Selector is woken up only by the first task
+ * submitted while the engine is waiting, following submissions do not call wakeup again.
+ *
+ * Sessions can also schedule delayed tasks (reconnections) : the Selector does not wait longer than the next one.
+ * The datagram channels of the UDP side channel (see SignalChannel) are registered with the same Selector.
+ *
+ */
+public class ClientEngine implements Runnable {
+	private static Logger engineLogger = Logger.getLogger(ClientEngine.class.getSimpleName());
+
+	private final Selector _selector;
+	private final Transport _transport;
+	private final Queue<Runnable> _submittedTasks = new ConcurrentLinkedQueue<Runnable>();
+	/* true while a wakeup has been requested and not consumed by the loop */
+	private final AtomicBoolean _wakeupPending = new AtomicBoolean(false);
+	private final Queue<ClientSession> _tlsTasksCompleted = new ConcurrentLinkedQueue<ClientSession>();
+	private Map<SelectionKey, ClientSession> _sessions = new HashMap<SelectionKey, ClientSession>();
+	/* Size of _sessions, written by the engine thread only and read by any thread */
+	private volatile int _nbSessions = 0;
+	private Map<SelectionKey, ClientSession> _signalSessions = new HashMap<SelectionKey, ClientSession>();
+	private List<ClientSession> _sessionsWithBufferedData = new ArrayList<ClientSession>();
+	private PriorityQueue<ScheduledTask> _scheduledTasks = new PriorityQueue<ScheduledTask>();
+	private volatile boolean _stopped = false;
+
+	/**
+	 * Create an engine using the default Transport (see Transports). Its loop is started by running it on a thread.
+	 *
+	 * @throws IOException if the Selector can not be opened
+	 */
+	public ClientEngine() throws IOException {
+		this(Transports.getDefault());
+	}
+
+	/**
+	 * Create an engine. Its loop is started by running it on a thread.
+	 *
+	 * @param transport Transport the sessions connect with
+	 * @throws IOException if the Selector can not be opened
+	 */
+	public ClientEngine(Transport transport) throws IOException {
+		_selector = Selector.open();
+		_transport = transport;
+	}
+
+	/**
+	 * Connect a session to a server. Can be called from any thread.
+	 * Options of the session (compression, TLS, session IDs) must be set before.
+	 *
+	 * @param session ClientSession to be connected
+	 * @param host String containing the IP address
+	 * @param port Port of the server
+	 */
+	public void connect(final ClientSession session, final String host, final int port) {
+		session.attach(this);
+		execute(new Runnable() {
+			public void run() {
+				try {
+					SelectionKey key = session.open(_selector, _transport, host, port);
+					if(key.isValid()) {
+						_sessions.put(key, session);
+						_nbSessions = _sessions.size();
+					}
+				} catch (IOException e) {
+					engineLogger.fatal("Client setup failed for " + session.getNickname());
+					session.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Open a new connection for a session whose connection has been lost. Called on the engine thread.
+	 *
+	 * @param session ClientSession to be connected again
+	 * @param host String containing the IP address
+	 * @param port Port of the server
+	 */
+	void reconnect(ClientSession session, String host, int port) {
+		try {
+			SelectionKey key = session.open(_selector, _transport, host, port);
+			if(key.isValid()) {
+				_sessions.put(key, session);
+				_nbSessions = _sessions.size();
+			}
+		} catch (IOException e) {
+			engineLogger.warn("Reconnection failed for " + session.getNickname());
+			session.connectionLost();
+		}
+	}
+
+	/**
+	 * Schedule a task to be run by the engine thread after a delay. Called on the engine thread.
+	 *
+	 * @param task Runnable to be run on the engine thread
+	 * @param delayMillis Delay in milliseconds
+	 */
+	void schedule(Runnable task, long delayMillis) {
+		_scheduledTasks.add(new ScheduledTask(System.currentTimeMillis() + delayMillis, task));
+	}
+
+	/**
+	 * Submit a task to be run by the engine thread. Can be called from any thread.
+	 * The Selector is woken up only if no wakeup is already pending.
+	 *
+	 * @param task Runnable to be run on the engine thread
+	 */
+	public void execute(Runnable task) {
+		_submittedTasks.offer(task);
+		if(_wakeupPending.compareAndSet(false, true))
+			_selector.wakeup();
+	}
+
+	/**
+	 * Can be called from any thread.
+	 *
+	 * @return number of sessions driven by the engine
+	 */
+	public int getNbSessions() {
+		return _nbSessions;
+	}
+
+	/**
+	 * Run the engine until the thread is interrupted or the engine is stopped.
+	 * Loop starts by running the submitted tasks and the scheduled tasks that are due, resuming the TLS handshakes
+	 * whose delegated tasks are done and processing the data already decrypted by TLS sessions.
+	 * After that it waits for events (it does not wait if keys handled by the Transport are already ready) and handles them
+	 * on the corresponding session (Connectable, Readable or Writable).
+	 */
+	public void run() {
+		try {
+			while(!_stopped && !Thread.currentThread().isInterrupted()) {
+				// Tasks submitted after this point will wake the selector up again
+				_wakeupPending.set(false);
+				runSubmittedTasks();
+				long timeout = runScheduledTasks();
+				resumeTlsHandshakes();
+				readBufferedTlsData();
+
+				if(_sessionsWithBufferedData.isEmpty() && _submittedTasks.isEmpty() && !_transport.hasReadyKeys(_selector))
+					_selector.select(timeout);
+				else
+					_selector.selectNow();
+
+				processSelectedKeys(_selector.selectedKeys());
+				processSelectedKeys(_transport.selectedKeys(_selector));
+			}
+		} catch (IOException e) {
+			engineLogger.fatal("Client engine stopped : " + e);
+		}
+		closeAllSessions();
+	}
+
+	/**
+	 * Handle the keys that are ready on their session. Keys are removed from the set once handled.
+	 *
+	 * @param selectedKeys Keys selected by the Selector or by the Transport
+	 */
+	private void processSelectedKeys(Set<SelectionKey> selectedKeys) {
+		Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
+		while(keyIterator.hasNext()) {
+			SelectionKey key = keyIterator.next();
+			keyIterator.remove();
+			ClientSession signalSession = _signalSessions.get(key);
+			if(signalSession != null) {
+				if(key.isValid() && key.isReadable())
+					signalSession.readSignals();
+				continue;
+			}
+			ClientSession session = _sessions.get(key);
+			if(session == null)
+				continue;
+			try {
+				if(key.isValid() && key.isConnectable()) {
+					session.connectClient();
+				}
+				else if (key.isValid() && key.isReadable()) {
+					session.readFromServer();
+				}
+				else if (key.isValid() && key.isWritable()) {
+					session.writeToServer();
+				}
+				if(session.hasBufferedTlsData())
+					_sessionsWithBufferedData.add(session);
+			} catch (IOException e) {
+				engineLogger.fatal("Connection with the server lost for " + session.getNickname());
+				session.connectionLost();
+			}
+		}
+	}
+
+	/**
+	 * Stop the engine and close all its sessions. Can be called from any thread.
+	 */
+	public void stop() {
+		_stopped = true;
+		_selector.wakeup();
+	}
+
+	/**
+	 * Record that the delegated tasks of a TLS handshake are done. Called from the TLS worker pool.
+	 *
+	 * @param session ClientSession whose handshake can go forward
+	 */
+	void tlsTaskCompleted(ClientSession session) {
+		_tlsTasksCompleted.offer(session);
+		if(_wakeupPending.compareAndSet(false, true))
+			_selector.wakeup();
+	}
+
+	/**
+	 * Forget a closed session. Called on the engine thread.
+	 *
+	 * @param key SelectionKey of the session that has been closed
+	 */
+	void sessionClosed(SelectionKey key) {
+		_sessions.remove(key);
+		_nbSessions = _sessions.size();
+	}
+
+	/**
+	 * Handle the datagrams received by the side channel of a session. Called on the engine thread.
+	 *
+	 * @param key SelectionKey of the datagram channel
+	 * @param session ClientSession owning the side channel
+	 */
+	void signalChannelOpened(SelectionKey key, ClientSession session) {
+		_signalSessions.put(key, session);
+	}
+
+	/**
+	 * Forget a side channel that has been closed. Called on the engine thread.
+	 *
+	 * @param key SelectionKey of the datagram channel
+	 */
+	void signalChannelClosed(SelectionKey key) {
+		_signalSessions.remove(key);
+	}
+
+	private void runSubmittedTasks() {
+		Runnable task;
+		while((task = _submittedTasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				engineLogger.error("Submitted task failed", e);
+			}
+		}
+	}
+
+	private void resumeTlsHandshakes() {
+		ClientSession session;
+		while((session = _tlsTasksCompleted.poll()) != null) {
+			try {
+				session.resumeTlsHandshake();
+			} catch (IOException e) {
+				engineLogger.fatal("TLS handshake failed for " + session.getNickname());
+				session.connectionLost();
+			}
+		}
+	}
+
+	private void readBufferedTlsData() {
+		if(_sessionsWithBufferedData.isEmpty())
+			return;
+		List<ClientSession> sessions = _sessionsWithBufferedData;
+		_sessionsWithBufferedData = new ArrayList<ClientSession>();
+		for(ClientSession session : sessions) {
+			try {
+				session.readBufferedTlsData();
+				if(session.hasBufferedTlsData())
+					_sessionsWithBufferedData.add(session);
+			} catch (IOException e) {
+				engineLogger.fatal("Connection with the server lost for " + session.getNickname());
+				session.connectionLost();
+			}
+		}
+	}
+
+	/**
+	 * Run the scheduled tasks that are due.
+	 *
+	 * @return time the Selector can wait before the next scheduled task, 0 if there is none
+	 */
+	private long runScheduledTasks() {
+		while(!_scheduledTasks.isEmpty()) {
+			long remaining = _scheduledTasks.peek().deadline - System.currentTimeMillis();
+			if(remaining > 0)
+				return remaining;
+			try {
+				_scheduledTasks.poll().task.run();
+			} catch (RuntimeException e) {
+				engineLogger.error("Scheduled task failed", e);
+			}
+		}
+		return 0;
+	}
+
+	private void closeAllSessions() {
+		for(ClientSession session : new ArrayList<ClientSession>(_sessions.values()))
+			session.close();
+		try {
+			_selector.close();
+		} catch (IOException e) {
+			engineLogger.fatal(e);
+		}
+	}
+
+	/**
+	 * Task waiting for its deadline
+	 */
+	private static class ScheduledTask implements Comparable<ScheduledTask> {
+		final long deadline;
+		final Runnable task;
+
+		ScheduledTask(long deadline, Runnable task) {
+			this.deadline = deadline;
+			this.task = task;
+		}
+
+		public int compareTo(ScheduledTask other) {
+			return Long.compare(deadline, other.deadline);
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package fr.telecom.chat;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class spreads client sessions over a few ClientEngine, each one running on its own thread.
+ * Sessions are given to the engines in turn.
+ *
+ * The number of engines is given by the chat.client.engines system property (default : 1).
+ *
+ */
+public class ClientEngineGroup {
+	private static final int NB_ENGINES = Integer.getInteger("chat.client.engines", 1);
+	private static Logger engineLogger = Logger.getLogger(ClientEngineGroup.class.getSimpleName());
+
+	private final ClientEngine[] _engines;
+	private final Thread[] _threads;
+	private final AtomicInteger _nextEngine = new AtomicInteger();
+
+	/**
+	 * Create a group with the default number of engines
+	 *
+	 * @throws IOException if a Selector can not be opened
+	 */
+	public ClientEngineGroup() throws IOException {
+		this(NB_ENGINES);
+	}
+
+	/**
+	 * @param nbEngines Number of engines, each one having its own Selector and thread
+	 * @throws IOException if a Selector can not be opened
+	 */
+	public ClientEngineGroup(int nbEngines) throws IOException {
+		_engines = new ClientEngine[Math.max(1, nbEngines)];
+		_threads = new Thread[_engines.length];
+		for(int i = 0; i < _engines.length; i++)
+			_engines[i] = new ClientEngine();
+	}
+
+	/**
+	 * Start the thread of each engine
+	 */
+	public void start() {
+		for(int i = 0; i < _engines.length; i++) {
+			_threads[i] = new Thread(_engines[i], "client-engine-" + i);
+			_threads[i].start();
+		}
+		engineLogger.info(_engines.length + " client engines started");
+	}
+
+	/**
+	 * Connect a session to a server on the next engine. Can be called from any thread.
+	 *
+	 * @param session ClientSession to be connected
+	 * @param host String containing the IP address
+	 * @param port Port of the server
+	 */
+	public void connect(ClientSession session, String host, int port) {
+		int index = (_nextEngine.getAndIncrement() & Integer.MAX_VALUE) % _engines.length;
+		_engines[index].connect(session, host, port);
+	}
+
+	/**
+	 * Stop every engine and close all the sessions
+	 */
+	public void stop() {
+		for(ClientEngine engine : _engines)
+			engine.stop();
+	}
+}
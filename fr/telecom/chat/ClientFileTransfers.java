@@ -0,0 +1,212 @@
+package fr.telecom.chat;
+
+import java.io.File;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.log4j.Logger;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class keeps the file transfers of a client session (see FileTransfer) : offers are Messages of the session,
+ * the data are transferred on other connections by FileTransferClient threads. Transfers go on while the session reconnects,
+ * the FileTransferListener is told when they are over. Files are offered with their SHA-256 hash : a file the server
+ * already has is not uploaded again.
+ * Not thread-safe, used on the engine thread only (see ClientSession.sendFile, acceptFile and cancelFile).
+ *
+ */
+class ClientFileTransfers {
+	private static final SecureRandom TOKEN_RANDOM = new SecureRandom();
+	private static final int MAX_FILE_NAME_LENGTH = 200;
+
+	private final ClientSession _session;
+	private volatile FileTransferListener _fileLsn;
+	/* File transfers offered or accepted by the client, not over yet, by token */
+	private Map<String, FileTransferClient> _fileTransfers = new HashMap<String, FileTransferClient>();
+	/* Port of the data connections, given by the server with the file transfer Messages */
+	private int _filePort;
+	private Logger fileLogger;
+
+	/**
+	 * @param session ClientSession whose Messages carry the offers
+	 */
+	ClientFileTransfers(ClientSession session) {
+		_session = session;
+		fileLogger = Logger.getLogger(ClientFileTransfers.class.getSimpleName() + "." + session.getNickname());
+	}
+
+	/**
+	 * @return random token of a new file transfer
+	 */
+	static String newToken() {
+		byte[] random = new byte[16];
+		TOKEN_RANDOM.nextBytes(random);
+		StringBuilder token = new StringBuilder();
+		for(byte b : random)
+			token.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		return token.toString();
+	}
+
+	/**
+	 * Change the listener of the file transfers. Can be called from any thread.
+	 *
+	 * @param fileLsn FileTransferListener receiving the offers and the end of the file transfers, null to ignore them
+	 */
+	void setListener(FileTransferListener fileLsn) {
+		_fileLsn = fileLsn;
+	}
+
+	/**
+	 * Offer a file to another client. It is uploaded once the receiver has accepted it.
+	 *
+	 * @param token Token of the transfer
+	 * @param to Nickname of the receiver
+	 * @param file File to be sent
+	 * @param size Size of the file
+	 * @param hash SHA-256 hash of the file, null if it could not be read
+	 */
+	void offer(String token, String to, File file, long size, String hash) {
+		if(!_session.isRegistered()) {
+			failed(token, "not connected");
+			return;
+		}
+		if(hash == null) {
+			failed(token, "file not found");
+			return;
+		}
+		String name = file.getName();
+		if(name.length() > MAX_FILE_NAME_LENGTH)
+			name = name.substring(0, MAX_FILE_NAME_LENGTH);
+		FileTransferClient upload = new FileTransferClient(_session, token, size, true);
+		upload.setFile(file);
+		_fileTransfers.put(token, upload);
+		_session.addToPendingWritingData(new Message(token + FileTransfer.FIELD_SEPARATOR + size + FileTransfer.FIELD_SEPARATOR + hash
+				+ FileTransfer.FIELD_SEPARATOR + name, _session.getNickname(), to, Message.Type.FILE_OFFER));
+		fileLogger.info("File " + file + " offered to " + to);
+	}
+
+	/**
+	 * Accept a file offered by another client and start its download.
+	 *
+	 * @param token Token of the transfer
+	 * @param destination File the download is written to
+	 */
+	void accept(String token, File destination) {
+		FileTransferClient download = _fileTransfers.get(token);
+		if(download == null || download.isUpload() || download.isStarted()) {
+			fileLogger.warn("Unknown file transfer accepted");
+			return;
+		}
+		if(!_session.isRegistered()) {
+			_fileTransfers.remove(token);
+			failed(token, "not connected");
+			return;
+		}
+		_session.addToPendingWritingData(new Message(token, _session.getNickname(), "Server", Message.Type.FILE_ACCEPT));
+		download.setFile(destination);
+		download.start(_session.dataConnectionHost(), _filePort);
+		fileLogger.info("File accepted, downloaded to " + destination);
+	}
+
+	/**
+	 * Cancel a file transfer, the other client is told if the session is connected.
+	 *
+	 * @param token Token of the transfer
+	 */
+	void cancel(String token) {
+		FileTransferClient transfer = _fileTransfers.remove(token);
+		if(transfer == null)
+			return;
+		transfer.cancel();
+		if(_session.isRegistered())
+			_session.addToPendingWritingData(new Message(token + FileTransfer.FIELD_SEPARATOR + "cancelled by " + _session.getNickname(),
+					_session.getNickname(), "Server", Message.Type.FILE_CANCEL));
+		fileLogger.info("File transfer " + token + " cancelled");
+	}
+
+	/**
+	 * Tell the FileTransferListener that a file transfer is over.
+	 *
+	 * @param token Token of the transfer
+	 * @param failure Reason of the failure, null if the file has been transferred
+	 */
+	void ended(String token, String failure) {
+		FileTransferClient transfer = _fileTransfers.remove(token);
+		FileTransferListener fileLsn = _fileLsn;
+		if(transfer == null)
+			return;
+		if(failure != null)
+			failed(token, failure);
+		else if(fileLsn != null)
+			fileLsn.fileTransferred(token, transfer.getFile());
+	}
+
+	/**
+	 * Read a file transfer Message of the server : an offer "token, size, port, name", the acceptance of an offer
+	 * "token, port, staged" or the cancellation of a transfer "token, reason" (see FileTransfer).
+	 * An offer accepted is not uploaded if the server has already staged the whole file.
+	 *
+	 * @param msg File transfer Message
+	 */
+	void process(Message msg) {
+		String[] fields = msg.getContent().split(String.valueOf(FileTransfer.FIELD_SEPARATOR), msg.getType() == Message.Type.FILE_OFFER ? 4 : msg.getType() == Message.Type.FILE_ACCEPT ? 3 : 2);
+		String token = fields[0];
+		try {
+			if(msg.getType() == Message.Type.FILE_OFFER && fields.length == 4) {
+				long size = Long.parseLong(fields[1]);
+				_filePort = Integer.parseInt(fields[2]);
+				_fileTransfers.put(token, new FileTransferClient(_session, token, size, false));
+				fileLogger.info("File " + fields[3] + " offered by " + msg.getFrom());
+				FileTransferListener fileLsn = _fileLsn;
+				if(fileLsn != null)
+					fileLsn.fileOffered(msg.getFrom(), token, fields[3], size);
+			} else if(msg.getType() == Message.Type.FILE_ACCEPT && fields.length == 3) {
+				FileTransferClient upload = _fileTransfers.get(token);
+				if(upload == null || !upload.isUpload() || upload.isStarted())
+					return;
+				_filePort = Integer.parseInt(fields[1]);
+				fileLogger.info("File " + upload.getFile() + " accepted by " + msg.getFrom());
+				if(Long.parseLong(fields[2]) == upload.getSize()) {
+					_fileTransfers.remove(token);
+					fileLogger.info("File " + upload.getFile() + " already on the server, not uploaded");
+					FileTransferListener fileLsn = _fileLsn;
+					if(fileLsn != null)
+						fileLsn.fileTransferred(token, upload.getFile());
+					return;
+				}
+				upload.start(_session.dataConnectionHost(), _filePort);
+			} else if(msg.getType() == Message.Type.FILE_CANCEL) {
+				FileTransferClient transfer = _fileTransfers.remove(token);
+				if(transfer == null)
+					return;
+				transfer.cancel();
+				failed(token, fields.length > 1 ? fields[1] : "cancelled");
+			}
+		} catch (NumberFormatException e) {
+			fileLogger.warn("Invalid file transfer message received");
+		}
+	}
+
+	/**
+	 * Stop the file transfers not over, the session is closed
+	 */
+	void cancelAll() {
+		for(FileTransferClient transfer : _fileTransfers.values())
+			transfer.cancel();
+		_fileTransfers.clear();
+	}
+
+	/**
+	 * Tell the FileTransferListener that a file transfer has failed
+	 *
+	 * @param token Token of the transfer
+	 * @param reason Reason of the failure
+	 */
+	private void failed(String token, String reason) {
+		fileLogger.warn("File transfer " + token + " failed : " + reason);
+		FileTransferListener fileLsn = _fileLsn;
+		if(fileLsn != null)
+			fileLsn.fileTransferFailed(token, reason);
+	}
+}
@@ -0,0 +1,186 @@
+package fr.telecom.chat;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class keeps what a client session needs to come back after the loss of its connection (see ClientSession.connectionLost).
+ *
+ * The session connects again after a random delay growing exponentially with the number of attempts (full jitter, so that
+ * the clients of a restarted server do not all come back at once). Base and maximum delays are given by the chat.reconnect.base
+ * (default : 250 ms) and chat.reconnect.max (default : 30 s) system properties. The session gives up after chat.reconnect.attempts
+ * attempts in a row (default : 0, never).
+ *
+ * It resumes its server session with the token given at connection : the server sends the presence events missed since
+ * the presence version received last, and the standard Messages missed since the last sequence number received from each client.
+ * Messages already received (known by their sequence number) are ignored.
+ *
+ * Messages sent while reconnecting, or while the send window is full (see ReliableSender), wait in a bounded outbox.
+ * Its size is given by chat.reconnect.outbox (default : 256 Messages).
+ * Not thread-safe, used on the engine thread only.
+ *
+ */
+class ClientReconnection {
+	private static final long RECONNECT_BASE_MILLIS = Long.getLong("chat.reconnect.base", 250);
+	private static final long RECONNECT_MAX_MILLIS = Long.getLong("chat.reconnect.max", 30000);
+	private static final int MAX_ATTEMPTS = Integer.getInteger("chat.reconnect.attempts", 0);
+	private static final int OUTBOX_SIZE = Integer.getInteger("chat.reconnect.outbox", 256);
+	private static final String RESUME_SEPARATOR = ";";
+	private static final Random BACKOFF_RANDOM = new Random();
+
+	private int _attempt = 0;
+	private String _resumeToken;
+	private int _presenceVersion = 0;
+	private Map<String, Integer> _lastSequenceByNickname = new HashMap<String, Integer>();
+	/* Messages waiting to be sent : {content, receiver} */
+	private Deque<String[]> _outbox = new ArrayDeque<String[]>();
+
+	/**
+	 * Count a reconnection attempt and give its delay : random between 0 and base * 2^attempt, capped by the maximum delay (full jitter).
+	 *
+	 * @return delay in milliseconds
+	 */
+	long nextDelay() {
+		long ceiling = RECONNECT_BASE_MILLIS << Math.min(_attempt++, 20);
+		ceiling = Math.min(RECONNECT_MAX_MILLIS, ceiling);
+		return (long)(BACKOFF_RANDOM.nextDouble() * ceiling);
+	}
+
+	/**
+	 * @return number of reconnection attempts made since the session has been registered
+	 */
+	int getAttempt() {
+		return _attempt;
+	}
+
+	/**
+	 * @return true if another reconnection attempt can be made
+	 */
+	boolean hasAttemptsLeft() {
+		return MAX_ATTEMPTS <= 0 || _attempt < MAX_ATTEMPTS;
+	}
+
+	/**
+	 * The server has registered (or resumed) the session : attempts are counted from 0 again
+	 */
+	void registered() {
+		_attempt = 0;
+	}
+
+	/**
+	 * Build the content of a resume Message : "token;presenceVersion;nickname:sequence,..." with the last sequence number
+	 * received from each client (as many as fit in the Message, Messages of the other conversations sent again are ignored
+	 * by their sequence number).
+	 *
+	 * @return content of the resume Message, null if the server has not given a token
+	 */
+	String buildResumeContent() {
+		if(_resumeToken == null)
+			return null;
+		StringBuilder content = new StringBuilder();
+		content.append(_resumeToken).append(RESUME_SEPARATOR).append(_presenceVersion).append(RESUME_SEPARATOR);
+		int conversationsStart = content.length();
+		for(Map.Entry<String, Integer> conversation : _lastSequenceByNickname.entrySet()) {
+			String entry = conversation.getKey() + PresenceAggregator.SESSION_ID_SEPARATOR + conversation.getValue();
+			if(content.length() + entry.length() + 1 > Message.MAX_CONTENT_SIZE)
+				break;
+			if(content.length() > conversationsStart)
+				content.append(PresenceAggregator.SEPARATOR);
+			content.append(entry);
+		}
+		return content.toString();
+	}
+
+	/**
+	 * Read the content of a CONNECTION Message of the server : "token;nickname,..." if it is able to resume the session,
+	 * the list of the connected clients otherwise. Sequence numbers of a new server session start again.
+	 *
+	 * @param msg CONNECTION Message of the server
+	 * @return list of the connected clients
+	 */
+	String readConnection(Message msg) {
+		String list = msg.getContent();
+		_resumeToken = null;
+		int separator = list.indexOf(RESUME_SEPARATOR);
+		if(msg.hasFlag(Message.FLAG_RESUME_SUPPORTED) && separator >= 0) {
+			_resumeToken = list.substring(0, separator);
+			list = list.substring(separator + 1);
+			_presenceVersion = msg.getSequence();
+		}
+		_lastSequenceByNickname.clear();
+		return list;
+	}
+
+	/**
+	 * @param presenceVersion Version of the presence events received last
+	 */
+	void setPresenceVersion(int presenceVersion) {
+		_presenceVersion = presenceVersion;
+	}
+
+	/**
+	 * Record the sequence number of a standard Message received
+	 *
+	 * @param msg Standard Message received
+	 * @return true if the Message has already been received (sent again after a resume)
+	 */
+	boolean isAlreadyReceived(Message msg) {
+		if(!msg.isSequenced())
+			return false;
+		Integer lastSequence = _lastSequenceByNickname.get(msg.getFrom());
+		if(lastSequence != null && msg.getSequence() <= lastSequence)
+			return true;
+		_lastSequenceByNickname.put(msg.getFrom(), msg.getSequence());
+		return false;
+	}
+
+	/**
+	 * Keep a Message in the outbox until it can be sent
+	 *
+	 * @param content Content of the Message
+	 * @param to Nickname of the receiver
+	 * @return false if the outbox is full, the Message is dropped
+	 */
+	boolean hold(String content, String to) {
+		if(_outbox.size() >= OUTBOX_SIZE)
+			return false;
+		_outbox.add(new String[] {content, to});
+		return true;
+	}
+
+	/**
+	 * Put a Message back in front of the outbox, whatever its size
+	 *
+	 * @param content Content of the Message
+	 * @param to Nickname of the receiver
+	 */
+	void holdFirst(String content, String to) {
+		_outbox.addFirst(new String[] {content, to});
+	}
+
+	/**
+	 * @return true if Messages are waiting in the outbox
+	 */
+	boolean hasHeldMessages() {
+		return !_outbox.isEmpty();
+	}
+
+	/**
+	 * @return oldest Message of the outbox : {content, receiver}, null if it is empty
+	 */
+	String[] nextHeldMessage() {
+		return _outbox.poll();
+	}
+
+	/**
+	 * Drop the Messages of the outbox
+	 */
+	void clearOutbox() {
+		_outbox.clear();
+	}
+}
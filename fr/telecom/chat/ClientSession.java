@@ -0,0 +1,1098 @@
+package fr.telecom.chat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.log4j.Logger;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class implements one chat session of a client : a connection with the server, a nickname and a listener.
+ *
+ * Sessions are driven by a ClientEngine, which runs the selector loop of many sessions on a single thread.
+ * Every method changing the state of the session runs on the engine thread.
+ * sendStandardMessage and sendDisconnectionMessage can be called from any thread once the session has been given
+ * to ClientEngine.connect, they are submitted to the engine.
+ *
+ * When the connection with the server is lost, the session connects again after a backoff delay and resumes its server
+ * session, Messages sent meanwhile wait in a bounded outbox (see ClientReconnection). If the server can not resume the session,
+ * the client is connected again as a new one and its list of connected clients is updated.
+ *
+ * With reliable delivery, standard Messages are kept until the server acknowledges them (see ReliableSender).
+ *
+ * Conversations can be searched on the server (see search), answers are given to the SearchResultsListener.
+ *
+ * Files are sent to other clients through the server (see sendFile and acceptFile, ClientFileTransfers).
+ *
+ * Ephemeral signals (typing indicators, presence pings, see sendSignal) go through the UDP side channel of the server
+ * if it has one (see SignalClient).
+ *
+ * With a LatencyTracer (see setLatencyTracer), the session asks the server for traces (see ClientTracing).
+ *
+ */
+public class ClientSession implements MessageAnalyzer {
+	/* Constantes */
+	private static final int MAX_MESSAGE_SIZE = Message.MAX_SIZE;
+	/* Pending data hold a Message not complete yet and the data read after it (no more than a Message) */
+	private static final int MAX_PENDING_DATA_SIZE = 2 * MAX_MESSAGE_SIZE;
+	/* Attributs */
+	private final String _nickname;
+	private ClientApplicationListener _lsn;
+	private volatile SearchResultsListener _searchLsn;
+	private volatile ClientEngine _engine;
+	private Transport _transport;
+	private ByteChannel _channel;
+	private SelectionKey _key;
+	private String _host;
+	private int _port;
+	private ByteBuffer _pendingWritingData = ByteBuffer.allocate(MAX_PENDING_DATA_SIZE);
+	private boolean _pendingWritingDataHasEnoughSpace = true;
+	private ByteBuffer _pendingReadingData = ByteBuffer.allocate(MAX_PENDING_DATA_SIZE);
+	private Set<String> _clientsConnected = new HashSet<String>();
+	private boolean _compressionEnabled = true;
+	private PayloadCompressor _compressor;
+	private boolean _tlsEnabled = TlsContext.isEnabled();
+	private TlsSession _tls;
+	private boolean _connectionMessageSent = false;
+	private boolean _sessionIdsEnabled = Boolean.parseBoolean(System.getProperty("chat.sessionIds", "true"));
+	private int _sessionId = -1;
+	private Map<String, Integer> _sessionIdByNickname = new HashMap<String, Integer>();
+	private Map<Integer, String> _nicknameBySessionId = new HashMap<Integer, String>();
+	private boolean _autoReconnectEnabled = Boolean.parseBoolean(System.getProperty("chat.reconnect", "true"));
+	private boolean _registered = false;
+	private boolean _reconnecting = false;
+	private boolean _closed = false;
+	private ClientReconnection _reconnection = new ClientReconnection();
+	private boolean _reliableEnabled = Boolean.parseBoolean(System.getProperty("chat.reliable", "false"));
+	private final ReliableSender _reliableSender;
+	private final ClientFileTransfers _fileTransfers;
+	private boolean _signalsEnabled = Boolean.parseBoolean(System.getProperty("chat.signals", "true"));
+	private final SignalClient _signals;
+	private ClientTracing _tracing = new ClientTracing();
+	private Logger clientLogger;
+
+	/**
+	 * Create a session. It is connected by ClientEngine.connect.
+	 *
+	 * @param nickname String containing the client nickname
+	 * @param lsn ClientApplicationListener receiving the events of the session
+	 */
+	public ClientSession(String nickname, ClientApplicationListener lsn) {
+		_nickname = nickname;
+		_lsn = lsn;
+		clientLogger = Logger.getLogger(ClientApplication.class.getSimpleName() + "." + nickname);
+		_reliableSender = new ReliableSender(this);
+		_fileTransfers = new ClientFileTransfers(this);
+		_signals = new SignalClient(this);
+	}
+
+	/**
+	 * Change the listener of the session
+	 *
+	 * @param lsn ClientApplicationListener receiving the events of the session
+	 */
+	public void setClientApplicationListener(ClientApplicationListener lsn) {
+		_lsn = lsn;
+	}
+
+	/**
+	 * Change the listener of the search answers
+	 *
+	 * @param searchLsn SearchResultsListener receiving the answers of the search requests, null to ignore them
+	 */
+	public void setSearchResultsListener(SearchResultsListener searchLsn) {
+		_searchLsn = searchLsn;
+	}
+
+	/**
+	 * Change the listener of the file transfers
+	 *
+	 * @param fileLsn FileTransferListener receiving the offers and the end of the file transfers, null to ignore them
+	 */
+	public void setFileTransferListener(FileTransferListener fileLsn) {
+		_fileTransfers.setListener(fileLsn);
+	}
+
+	/**
+	 * Change the listener of the signals
+	 *
+	 * @param signalLsn SignalListener receiving the signals of the other clients, null to ignore them
+	 */
+	public void setSignalListener(SignalListener signalLsn) {
+		_signals.setListener(signalLsn);
+	}
+
+	/**
+	 * Enable or disable compression. Must be called before connecting, compression is only used if the server accepts it.
+	 *
+	 * @param compressionEnabled true to ask the server for compression (default)
+	 */
+	public void setCompressionEnabled(boolean compressionEnabled) {
+		_compressionEnabled = compressionEnabled;
+	}
+
+	/**
+	 * Enable or disable TLS. Must be called before connecting. Default value is given by the chat.tls system property.
+	 *
+	 * @param tlsEnabled true to secure the connection with TLS
+	 */
+	public void setTlsEnabled(boolean tlsEnabled) {
+		_tlsEnabled = tlsEnabled;
+	}
+
+	/**
+	 * Enable or disable session IDs. Must be called before connecting, session IDs are only used if the server accepts them.
+	 *
+	 * @param sessionIdsEnabled true to ask the server for session IDs (default value given by the chat.sessionIds system property)
+	 */
+	public void setSessionIdsEnabled(boolean sessionIdsEnabled) {
+		_sessionIdsEnabled = sessionIdsEnabled;
+	}
+
+	/**
+	 * Enable or disable the automatic reconnection. Must be called before connecting.
+	 *
+	 * @param autoReconnectEnabled true to connect again when the connection is lost (default value given by the chat.reconnect system property)
+	 */
+	public void setAutoReconnectEnabled(boolean autoReconnectEnabled) {
+		_autoReconnectEnabled = autoReconnectEnabled;
+	}
+
+	/**
+	 * Enable or disable reliable delivery. Must be called before connecting, reliable delivery is only used if the server accepts it.
+	 *
+	 * @param reliableEnabled true to have standard messages acknowledged by the server (default value given by the chat.reliable system property)
+	 */
+	public void setReliableEnabled(boolean reliableEnabled) {
+		_reliableEnabled = reliableEnabled;
+	}
+
+	/**
+	 * Enable or disable the UDP side channel. Must be called before connecting, it is only used if the server has one.
+	 *
+	 * @param signalsEnabled true to ask the server for the side channel (default value given by the chat.signals system property)
+	 */
+	public void setSignalsEnabled(boolean signalsEnabled) {
+		_signalsEnabled = signalsEnabled;
+	}
+
+	/**
+	 * Trace the latency of the standard Messages. Must be called before connecting, traces are only used if the server accepts them.
+	 *
+	 * @param latencyTracer LatencyTracer sampling the Messages sent and recording the traces received, null to disable tracing (default)
+	 */
+	public void setLatencyTracer(LatencyTracer latencyTracer) {
+		_tracing.setLatencyTracer(latencyTracer);
+	}
+
+	/**
+	 * @return nickname of the session
+	 */
+	public String getNickname() {
+		return _nickname;
+	}
+
+	/**
+	 * Give the session to the engine that will drive it.
+	 *
+	 * @param engine ClientEngine driving the session
+	 */
+	void attach(ClientEngine engine) {
+		_engine = engine;
+	}
+
+	/**
+	 * @return ClientEngine driving the session
+	 */
+	ClientEngine getEngine() {
+		return _engine;
+	}
+
+	/**
+	 * @return Selector of the engine the connection is registered with
+	 */
+	Selector getSelector() {
+		return _key.selector();
+	}
+
+	/**
+	 * @return true if the session is registered by the server and its connection is open
+	 */
+	boolean isRegistered() {
+		return !_closed && !_reconnecting && _registered && _key != null && _key.isValid();
+	}
+
+	/**
+	 * @return true if the session waits for a new connection with the server
+	 */
+	boolean isReconnecting() {
+		return _reconnecting;
+	}
+
+	/**
+	 * @return true if the session is closed
+	 */
+	boolean isClosed() {
+		return _closed;
+	}
+
+	/**
+	 * @return true if the pending writing data have enough space left for a Message
+	 */
+	boolean hasSpaceForMessage() {
+		return _key.isValid() && _pendingWritingData.remaining() >= MAX_MESSAGE_SIZE;
+	}
+
+	/**
+	 * @return session ID given by the server, -1 if session IDs are not used
+	 */
+	int getSessionId() {
+		return _sessionId;
+	}
+
+	/**
+	 * @param nickname Nickname of another client
+	 * @return session ID of the client, null if it is not known
+	 */
+	Integer getSessionId(String nickname) {
+		return _sessionIdByNickname.get(nickname);
+	}
+
+	/**
+	 * @param sessionId Session ID of another client
+	 * @return nickname of the client, null if it is not known
+	 */
+	String getNickname(int sessionId) {
+		return _nicknameBySessionId.get(sessionId);
+	}
+
+	/**
+	 * Start the connection with the Transport of the engine, its channel is registered with the selector of the engine (OP_CONNECT).
+	 * The connection is finished at once if it is already established.
+	 * Called on the engine thread.
+	 *
+	 * @param selector Selector of the engine
+	 * @param transport Transport of the engine
+	 * @param host String containing the IP address
+	 * @param port Port of the server
+	 * @return SelectionKey of the session
+	 * @throws IOException if the connection can not be started
+	 */
+	SelectionKey open(Selector selector, Transport transport, String host, int port) throws IOException {
+		_host = host;
+		_port = port;
+		_transport = transport;
+		_key = _transport.connect(selector, _host, _port);
+		_channel = (ByteChannel) _key.channel();
+		clientLogger.info(_reconnecting ? "Reconnecting to server" : "Client launched");
+		// Local connections (Unix domain sockets) may be established at once : their key never becomes connectable
+		connectClient();
+		return _key;
+	}
+
+	/**
+	 * Connect the client on the server.
+	 * It finishes its connection if any. Then send an acknowledgment to the server and set up its key in reading mode.
+	 * If TLS is enabled, the acknowledgment is sent once the TLS handshake is finished.
+	 *
+	 */
+	void connectClient() {
+		clientLogger.info("Trying to connect to server");
+		try {
+			if(_transport.finishConnect(_key)){
+				_key.interestOps(SelectionKey.OP_READ);
+				clientLogger.info("Connected to server");
+				if(_tlsEnabled) {
+					startTlsHandshake();
+				} else {
+					sendConnectionMessage();
+				}
+			}
+		} catch (IOException e) {
+			clientLogger.info("Unable to connect to server");
+			connectionLost();
+		}
+	}
+
+	/**
+	 * Read data from the server and process the Messages received.
+	 *
+	 * @throws IOException if the connection with the server is lost
+	 */
+	void readFromServer() throws IOException {
+		ByteBuffer dataToBeRead = ChannelIO.readDataFromChannel(_channel, _tls);
+		if(dataToBeRead.capacity() == 0) {
+			clientLogger.fatal("Unexpected disconnection from server");
+			connectionLost();
+			return;
+		}
+		addPendingReadingData(dataToBeRead);
+		afterTlsOperation();
+		processPendingReadingData();
+	}
+
+	/**
+	 * Write the pending writing data on the channel.
+	 *
+	 * @throws IOException if the connection with the server is lost
+	 */
+	void writeToServer() throws IOException {
+		_pendingWritingData.flip();
+		int dataRemaining =  _pendingWritingData.remaining();
+		int nbBytesWritten = ChannelIO.writeDataToChannel(_pendingWritingData, _channel, _tls);
+
+		if(nbBytesWritten == dataRemaining && (_tls == null || !_tls.hasPendingNetworkData())) {
+			_key.interestOps(readInterest());
+			_pendingWritingData.clear();
+		}
+		else
+			_pendingWritingData.compact();
+
+		if(_pendingWritingData.remaining() >= MAX_MESSAGE_SIZE && !_pendingWritingDataHasEnoughSpace) {
+			_pendingWritingDataHasEnoughSpace = true;
+			// Messages left in the reading buffer can now be answered
+			processPendingReadingData();
+		}
+		flushOutbox();
+		afterTlsOperation();
+	}
+
+	/**
+	 * Resume the TLS handshake once its delegated tasks are done.
+	 *
+	 * @throws IOException if the handshake has failed
+	 */
+	void resumeTlsHandshake() throws IOException {
+		if(_tls == null || !_key.isValid())
+			return;
+		_tls.handshake(_channel);
+		afterTlsOperation();
+	}
+
+	/**
+	 * Process the data already decrypted by the TLS session without reading the channel.
+	 *
+	 * @throws IOException if the decryption has failed
+	 */
+	void readBufferedTlsData() throws IOException {
+		if(_tls != null && _tls.hasBufferedData() && _pendingReadingData.remaining() >= MAX_MESSAGE_SIZE)
+			_tls.readBufferedData(_pendingReadingData);
+		processPendingReadingData();
+	}
+
+	/**
+	 * @return true if decrypted data are waiting to be read without reading the channel
+	 */
+	boolean hasBufferedTlsData() {
+		return _tls != null && _tls.hasBufferedData();
+	}
+
+	/**
+	 * Create the TLS session of the connection and send the first handshake message.
+	 * A previous session with the same server is resumed if it is still in the session cache.
+	 *
+	 * @throws IOException if the handshake has failed
+	 */
+	private void startTlsHandshake() throws IOException {
+		try {
+			_tls = TlsContext.createClientSession(_host, _port, new Runnable() {
+				public void run() {
+					_engine.tlsTaskCompleted(ClientSession.this);
+				}
+			});
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("TLS is not available", e);
+		}
+		_tls.handshake(_channel);
+		afterTlsOperation();
+	}
+
+	/**
+	 * Send the connection acknowledgment once the TLS handshake is finished
+	 * and ask for writing events while encrypted data are waiting to be written.
+	 * Writing events are not needed while the handshake waits for the server.
+	 */
+	private void afterTlsOperation() {
+		if(_tls == null || !_key.isValid())
+			return;
+		if(!_connectionMessageSent && !_tls.isHandshaking()) {
+			clientLogger.info("TLS handshake finished");
+			sendConnectionMessage();
+		}
+		if(_tls.hasPendingNetworkData() || (!_tls.isHandshaking() && _pendingWritingData.position() > 0))
+			_key.interestOps(_key.interestOps() | SelectionKey.OP_WRITE);
+		else if(_tls.isHandshaking())
+			_key.interestOps(SelectionKey.OP_READ);
+	}
+
+	/**
+	 * Send connection acknowledgment message to the server.
+	 * The message is flagged if the client wants to use compression, session IDs, the side channel and to be able to resume its session.
+	 * After a connection loss, a resume message is sent instead if the server has given a token (see ClientReconnection).
+	 */
+	private void sendConnectionMessage() {
+		_connectionMessageSent = true;
+		Message msg;
+		String resumeContent = _reconnection.buildResumeContent();
+		if(resumeContent != null) {
+			msg = new Message(resumeContent, _nickname, "Server", Message.Type.RESUME);
+		} else {
+			msg = new Message("", _nickname, "Server", Message.Type.CONNECTION);
+		}
+		if(_compressionEnabled)
+			msg.setFlag(Message.FLAG_COMPRESSION_SUPPORTED);
+		if(_sessionIdsEnabled)
+			msg.setFlag(Message.FLAG_SESSION_IDS);
+		if(_autoReconnectEnabled)
+			msg.setFlag(Message.FLAG_RESUME_SUPPORTED);
+		if(_reliableEnabled)
+			msg.setFlag(Message.FLAG_RELIABLE);
+		if(_signalsEnabled)
+			msg.setFlag(Message.FLAG_SIGNALS);
+		if(_tracing.isRequested())
+			msg.setFlag(Message.FLAG_TRACED);
+		addToPendingWritingData(msg);
+		clientLogger.info((resumeContent != null ? "Resume" : "Connection") + " message sent to server");
+	}
+
+	/**
+	 * Send disconnection message to the server. Can be called from any thread.
+	 */
+	public void sendDisconnectionMessage(){
+		_engine.execute(new Runnable() {
+			public void run() {
+				// Nothing to tell the server : reconnection is cancelled
+				if(_reconnecting) {
+					_lsn.disconnected();
+					close();
+					return;
+				}
+				if(_key == null || !_key.isValid())
+					return;
+				Message msg = new Message("", _nickname, "Server", Message.Type.DISCONNECTION);
+				// The session is over even if the acknowledgment is not received
+				_registered = false;
+				addToPendingWritingData(msg);
+				clientLogger.info("Disconnection message sent to server");
+			}
+		});
+	}
+
+	/**
+	 * Search the conversation with another client on the server. Can be called from any thread.
+	 * The request is not sent while the session is reconnecting.
+	 *
+	 * @param with Nickname of the other client of the conversation
+	 * @param query Terms to be found, phrases between double quotes
+	 */
+	public void search(final String with, final String query) {
+		_engine.execute(new Runnable() {
+			public void run() {
+				if(!isRegistered()) {
+					clientLogger.warn("Not connected, search request dropped");
+					return;
+				}
+				Message msg = new Message(with + SearchHandler.FIELD_SEPARATOR + query, _nickname, "Server", Message.Type.SEARCH);
+				if(_compressor != null)
+					_compressor.compress(msg);
+				addToPendingWritingData(msg);
+				clientLogger.info("Search request sent : " + query);
+			}
+		});
+	}
+
+	/**
+	 * Offer a file to another client. Can be called from any thread, the file is read by the calling thread to compute its hash.
+	 * The file is uploaded once the receiver has accepted it, unless the server already has it. The FileTransferListener is told when it is over.
+	 *
+	 * @param to Nickname of the receiver
+	 * @param file File to be sent
+	 * @return token of the transfer
+	 */
+	public String sendFile(final String to, final File file) {
+		final String fileToken = ClientFileTransfers.newToken();
+		final long[] size = new long[1];
+		String hash = null;
+		try {
+			if(file.isFile())
+				hash = FileTransferClient.hash(file, size);
+		} catch (IOException e) {
+			clientLogger.warn("Unable to read " + file + " : " + e);
+		}
+		final String fileHash = hash;
+		_engine.execute(new Runnable() {
+			public void run() {
+				_fileTransfers.offer(fileToken, to, file, size[0], fileHash);
+			}
+		});
+		return fileToken;
+	}
+
+	/**
+	 * Accept a file offered by another client (see FileTransferListener.fileOffered). Can be called from any thread.
+	 * If the destination file already exists, the download goes on from its size : a transfer interrupted is resumed
+	 * by accepting it again with the same file.
+	 *
+	 * @param token Token of the transfer
+	 * @param destination File the download is written to
+	 */
+	public void acceptFile(final String token, final File destination) {
+		_engine.execute(new Runnable() {
+			public void run() {
+				_fileTransfers.accept(token, destination);
+			}
+		});
+	}
+
+	/**
+	 * Cancel a file transfer offered by the client or to the client, the other client is told. Can be called from any thread.
+	 *
+	 * @param token Token of the transfer
+	 */
+	public void cancelFile(final String token) {
+		_engine.execute(new Runnable() {
+			public void run() {
+				_fileTransfers.cancel(token);
+			}
+		});
+	}
+
+	/**
+	 * Tell the FileTransferListener that a file transfer is over. Called by the thread of the transfer.
+	 *
+	 * @param token Token of the transfer
+	 * @param failure Reason of the failure, null if the file has been transferred
+	 */
+	void fileTransferEnded(final String token, final String failure) {
+		_engine.execute(new Runnable() {
+			public void run() {
+				_fileTransfers.ended(token, failure);
+			}
+		});
+	}
+
+	/**
+	 * Data connections use TCP : the server is reached on the local host when the session uses a Unix domain socket
+	 *
+	 * @return host of the data connections
+	 */
+	String dataConnectionHost() {
+		return UnixTransport.isSocketPath(_host) ? "localhost" : _host;
+	}
+
+	/**
+	 * Send a signal to another client through the UDP side channel. Can be called from any thread.
+	 * Signals are ephemeral : they are dropped if the side channel is not bound, and may be lost on the way.
+	 * The server drops signals bigger than its chat.signal.maxSize.
+	 *
+	 * @param to Nickname of the receiver
+	 * @param content Content of the signal, such as "typing"
+	 */
+	public void sendSignal(final String to, final String content) {
+		_engine.execute(new Runnable() {
+			public void run() {
+				_signals.send(to, content);
+			}
+		});
+	}
+
+	/**
+	 * Read the datagrams received on the side channel (see SignalClient). Called on the engine thread.
+	 */
+	void readSignals() {
+		_signals.read();
+	}
+
+	/**
+	 * Send a message through the server at a user of the chat. Can be called from any thread.
+	 * Content is cut to the characters that fit in Message.MAX_CONTENT_SIZE bytes (see Message.fitContent), then compressed
+	 * if compression has been negotiated and the content is big enough.
+	 * Message is addressed by session IDs if they have been negotiated and the session ID of the receiver is known.
+	 * While the session is reconnecting or the send window is full, the message waits in the outbox.
+	 *
+	 * @param str String containing the message content
+	 * @param to String containing the nickname of the receiver
+	 */
+	public void sendStandardMessage(final String str, final String to) {
+		_engine.execute(new Runnable() {
+			public void run() {
+				if(_closed)
+					return;
+				String content = Message.fitContent(str);
+				if(content.length() < str.length())
+					clientLogger.warn("Message to " + to + " is bigger than " + Message.MAX_CONTENT_SIZE + " bytes, truncated to " + content.length() + " characters");
+				if(_reconnecting || _reconnection.hasHeldMessages() || _reliableSender.isFull()) {
+					if(!_reconnection.hold(content, to))
+						clientLogger.warn("Outbox is full, message to " + to + " dropped");
+					return;
+				}
+				if(_key == null || !_key.isValid())
+					return;
+				writeStandardMessage(content, to);
+			}
+		});
+	}
+
+	/**
+	 * Add a standard message to the pending writing data. Called on the engine thread.
+	 * With reliable delivery, the message is numbered and kept until it is acknowledged.
+	 *
+	 * @param str String containing the message content
+	 * @param to String containing the nickname of the receiver
+	 */
+	private void writeStandardMessage(String str, String to) {
+		writeStandardMessage(str, to, _reliableSender.add(str, to));
+	}
+
+	/**
+	 * Add a standard message to the pending writing data.
+	 *
+	 * @param str String containing the message content
+	 * @param to String containing the nickname of the receiver
+	 * @param sequence Sequence number given by the send window, 0 without reliable delivery
+	 */
+	void writeStandardMessage(String str, String to, int sequence) {
+		Integer toId = _sessionIdByNickname.get(to);
+		Message msg;
+		if(_sessionId >= 0 && toId != null)
+			msg = new Message(str, _sessionId, toId, Message.Type.STANDARD);
+		else
+			msg = new Message(str, _nickname, to, Message.Type.STANDARD);
+		if(sequence > 0)
+			msg.setSequence(sequence);
+		_tracing.stamp(msg);
+		if(_compressor != null)
+			_compressor.compress(msg);
+		addToPendingWritingData(msg);
+		clientLogger.info("Message sent to " + to + " : " + str);
+	}
+
+	/**
+	 * Method to analyze message and take actions from it. This method implements how to deal with Messages received from server.
+	 * Client connected : Register nickname of the client, fire client connected event to the UI
+	 * Client disconnected : Unregister nickname of the client, fire client disconnected event to the UI
+	 * Presence : Register or unregister every nickname of the aggregated events, fire the corresponding events to the UI
+	 * Connection : Fire connection event to the UI, enable compression and session IDs if the server has accepted them, fetch clients already connected list, fire list received event to UI.
+	 * After a reconnection, only the changes of the list are fired.
+	 * Resume : Apply the presence events missed while reconnecting, send the messages of the outbox
+	 * Acknowledgment : Release the messages acknowledged by the server from the send window, send the messages of the outbox
+	 * Refusal : Release the message refused by the server (unknown receiver) from the send window, send the messages of the outbox
+	 * Disconnection : Fire disconnection event to the UI and close the session
+	 * Standard : Fire message received event to UI, unless it has already been received (sequence number already seen).
+	 * The trace of a traced Message is given to the LatencyTracer.
+	 * File offer : Record the file offered and fire file offered event to the FileTransferListener
+	 * File accept : Start the upload of the file accepted by its receiver
+	 * File cancel : Stop the file transfer and fire file transfer failed event to the FileTransferListener
+	 * Signal : Open the UDP side channel with the token given by the server
+	 *
+	 * @param msg Message to be read
+	 * @param key SelectionKey that contains the sender channel
+	 */
+	public void performActionFromReceivedMessage(Message msg, SelectionKey key) {
+		long receivedTime = msg.isTraced() ? Message.currentTimeMicros() : 0;
+		if(msg.isCompressed() && (_compressor == null || !_compressor.decompress(msg))) {
+			clientLogger.warn("Unable to decompress message from " + msg.getFrom());
+			return;
+		}
+		if(msg.isCompact() && msg.getType() != Message.Type.CONNECTION) {
+			String from = _nicknameBySessionId.get(msg.getFromId());
+			msg.setNicknameAddresses(from != null ? from : "Server", _nickname);
+		}
+		switch(msg.getType()) {
+		case CLIENT_CONNECTED:
+			_clientsConnected.add(msg.getFrom());
+			_lsn.clientConnected(msg.getFrom());
+			clientLogger.info(msg.getFrom() + " is connected");
+			break;
+		case CLIENT_DISCONNECTED:
+			_clientsConnected.remove(msg.getFrom());
+			_lsn.clientDisconnected(msg.getFrom());
+			clientLogger.info(msg.getFrom() + " is disconnected");
+			break;
+		case PRESENCE:
+			processPresenceEvents(msg.getContent());
+			if(msg.isSequenced())
+				_reconnection.setPresenceVersion(msg.getSequence());
+			break;
+		case CONNECTION:
+			enableCompression(msg);
+			String list = _reconnection.readConnection(msg);
+			_sessionIdByNickname.clear();
+			_nicknameBySessionId.clear();
+			String[] connectedClients = list.split(",");
+			if(msg.isCompact() && msg.hasFlag(Message.FLAG_SESSION_IDS)) {
+				_sessionId = msg.getToId();
+				for(int i = 0; i < connectedClients.length; i++)
+					connectedClients[i] = registerSessionId(connectedClients[i]);
+				clientLogger.info("Session ID " + _sessionId + " given by the server");
+			}
+			_reliableSender.enable(msg, _reliableEnabled, _reconnection);
+			_tracing.enable(msg);
+			if(_reconnecting) {
+				updateClientsConnected(connectedClients);
+			} else {
+				_lsn.connected();
+				for(String nickname : connectedClients) {
+					_clientsConnected.add(nickname);
+				}
+				_lsn.listClientsReceived(connectedClients);
+			}
+			registered();
+			clientLogger.info("Client registered to server");
+			break;
+		case RESUME:
+			enableCompression(msg);
+			if(msg.isCompact() && msg.hasFlag(Message.FLAG_SESSION_IDS))
+				_sessionId = msg.getToId();
+			processPresenceEvents(msg.getContent());
+			_reconnection.setPresenceVersion(msg.getSequence());
+			_reliableSender.enable(msg, _reliableEnabled, _reconnection);
+			_tracing.enable(msg);
+			registered();
+			clientLogger.info("Session resumed");
+			break;
+		case ACK:
+			if(_reliableSender.acknowledge(msg))
+				flushOutbox();
+			break;
+		case NACK:
+			if(_reliableSender.refuse(msg))
+				flushOutbox();
+			break;
+		case SIGNAL:
+			_signals.open(msg.getContent());
+			break;
+		case DISCONNECTION:
+			_lsn.disconnected();
+			close();
+			break;
+		case STANDARD:
+			if(_reconnection.isAlreadyReceived(msg)) {
+				clientLogger.info("Message " + msg.getSequence() + " from " + msg.getFrom() + " already received");
+				break;
+			}
+			_tracing.record(msg, receivedTime);
+			_lsn.messageReceived(msg.getContent(), msg.getFrom());
+			clientLogger.info("Message received from " + msg.getFrom() + " :" + msg.getContent());
+			break;
+		case SEARCH:
+			processSearchResults(msg.getContent());
+			break;
+		case FILE_OFFER:
+		case FILE_ACCEPT:
+		case FILE_CANCEL:
+			_fileTransfers.process(msg);
+			break;
+		case BAD_MESSAGE:
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Read the answer to a search request and give it to the SearchResultsListener (see SearchHandler for the format).
+	 * A record cut at the end of the Message is ignored.
+	 *
+	 * @param content Content of the answer
+	 */
+	private void processSearchResults(String content) {
+		SearchResultsListener searchLsn = _searchLsn;
+		String[] records = content.split(String.valueOf(SearchHandler.RECORD_SEPARATOR));
+		String[] request = records[0].split(String.valueOf(SearchHandler.FIELD_SEPARATOR), 2);
+		if(searchLsn == null || request.length < 2)
+			return;
+		List<SearchIndex.Hit> hits = new ArrayList<SearchIndex.Hit>();
+		for(int i = 1; i < records.length; i++) {
+			String[] fields = records[i].split(String.valueOf(SearchHandler.FIELD_SEPARATOR), 3);
+			if(fields.length < 3)
+				continue;
+			try {
+				hits.add(new SearchIndex.Hit(Long.parseLong(fields[0]), fields[1], fields[2]));
+			} catch (NumberFormatException e) {
+				clientLogger.warn("Invalid search result received");
+			}
+		}
+		searchLsn.searchResultsReceived(request[0], request[1], hits);
+	}
+
+	/**
+	 * Enable compression if the server has accepted it.
+	 *
+	 * @param msg Connection or resume Message of the server
+	 */
+	private void enableCompression(Message msg) {
+		if(_compressor == null && _compressionEnabled && msg.hasFlag(Message.FLAG_COMPRESSION_SUPPORTED)) {
+			_compressor = new PayloadCompressor();
+			clientLogger.info("Compression enabled");
+		}
+	}
+
+	/**
+	 * Replace the list of connected clients by the list received after a reconnection.
+	 * Clients that have left meanwhile are fired as disconnected, the new ones as a received list.
+	 *
+	 * @param connectedClients Clients connected to the server
+	 */
+	private void updateClientsConnected(String[] connectedClients) {
+		Set<String> clients = new HashSet<String>();
+		for(String nickname : connectedClients) {
+			if(!nickname.isEmpty())
+				clients.add(nickname);
+		}
+		for(String nickname : new ArrayList<String>(_clientsConnected)) {
+			if(!clients.contains(nickname)) {
+				_clientsConnected.remove(nickname);
+				_lsn.clientDisconnected(nickname);
+			}
+		}
+		List<String> newClients = new ArrayList<String>();
+		for(String nickname : clients) {
+			if(_clientsConnected.add(nickname))
+				newClients.add(nickname);
+		}
+		if(!newClients.isEmpty())
+			_lsn.listClientsReceived(newClients.toArray(new String[newClients.size()]));
+	}
+
+	/**
+	 * The server has registered (or resumed) the session : the reconnection is over, the outbox can be sent.
+	 */
+	private void registered() {
+		_registered = true;
+		_reconnecting = false;
+		_reconnection.registered();
+		flushOutbox();
+	}
+
+	/**
+	 * Move the messages of the outbox to the pending writing data, as long as there is enough space.
+	 */
+	private void flushOutbox() {
+		while(!_reconnecting && _reconnection.hasHeldMessages() && hasSpaceForMessage() && !_reliableSender.isFull()) {
+			String[] message = _reconnection.nextHeldMessage();
+			writeStandardMessage(message[0], message[1]);
+		}
+	}
+
+	/**
+	 * Apply the events of an aggregated presence Message.
+	 *
+	 * Events about clients already known in the same state are ignored, it happens when the list of connected clients
+	 * received at connection already contains clients whose events were still being aggregated by the server.
+	 *
+	 * @param content Content of the presence Message
+	 */
+	private void processPresenceEvents(String content) {
+		for(String event : content.split(String.valueOf(PresenceAggregator.SEPARATOR))) {
+			if(event.length() < 2)
+				continue;
+			String nickname = event.substring(1);
+			if(event.charAt(0) == PresenceAggregator.CONNECTED_PREFIX) {
+				nickname = registerSessionId(nickname);
+				if(_clientsConnected.add(nickname)) {
+					_lsn.clientConnected(nickname);
+					clientLogger.info(nickname + " is connected");
+				}
+			} else {
+				nickname = unregisterSessionId(nickname);
+				if(_clientsConnected.remove(nickname)) {
+					_lsn.clientDisconnected(nickname);
+					clientLogger.info(nickname + " is disconnected");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Record the session ID of a client from a "nickname:id" entry. Entries without session ID are left unchanged.
+	 *
+	 * @param entry Entry of a connected clients list or of a presence event
+	 * @return nickname of the entry
+	 */
+	private String registerSessionId(String entry) {
+		int separator = entry.lastIndexOf(PresenceAggregator.SESSION_ID_SEPARATOR);
+		if(separator < 0)
+			return entry;
+		String nickname = entry.substring(0, separator);
+		try {
+			int sessionId = Integer.parseInt(entry.substring(separator + 1));
+			Integer previousId = _sessionIdByNickname.put(nickname, sessionId);
+			if(previousId != null)
+				_nicknameBySessionId.remove(previousId);
+			_nicknameBySessionId.put(sessionId, nickname);
+		} catch (NumberFormatException e) {
+			clientLogger.warn("Invalid session ID for " + nickname);
+		}
+		return nickname;
+	}
+
+	/**
+	 * Forget the session ID of a client.
+	 *
+	 * @param entry Nickname, followed by ":id" if the server sends session IDs
+	 * @return nickname of the entry
+	 */
+	private String unregisterSessionId(String entry) {
+		int separator = entry.lastIndexOf(PresenceAggregator.SESSION_ID_SEPARATOR);
+		String nickname = separator < 0 ? entry : entry.substring(0, separator);
+		Integer sessionId = _sessionIdByNickname.remove(nickname);
+		if(sessionId != null)
+			_nicknameBySessionId.remove(sessionId);
+		return nickname;
+	}
+
+	/**
+	 * Add a Message to the pending writing buffer. The Message is encoded directly in the buffer.
+	 *
+	 * SelectionKey is set to write mode. If the buffer is full, reading is stopped
+	 * until the engine loop has freed the buffer by actually writing data on the SocketChannel.
+	 *
+	 * @param msg Message to be added
+	 */
+	void addToPendingWritingData(Message msg){
+		if(!msg.writeTo(_pendingWritingData)) {
+			clientLogger.warn("Pending writing data is full, message to " + msg.getTo() + " dropped");
+			return;
+		}
+		if(_tls != null && _tls.isHandshaking())
+			return;
+		_key.interestOps(readInterest() | SelectionKey.OP_WRITE);
+		if (_pendingWritingData.remaining() < MAX_MESSAGE_SIZE) {
+			_pendingWritingDataHasEnoughSpace = false;
+			_key.interestOps(SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * Add data to the pending reading buffer.
+	 *
+	 * SelectionKey is set to write mode if the buffer is full.
+	 * It allows to free the buffer by actually write data on the ChannelSocket during the engine loop.
+	 *
+	 * @param buffer ByteBuffer to be added
+	 */
+	private void addPendingReadingData(ByteBuffer buffer){
+		_pendingReadingData.put(buffer);
+		if (_pendingReadingData.remaining() < MAX_MESSAGE_SIZE) {
+			_key.interestOps(SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * @return OP_READ, or 0 if pending reading data have not enough space left for the data of a read
+	 */
+	private int readInterest() {
+		return _pendingReadingData.remaining() < MAX_MESSAGE_SIZE ? 0 : SelectionKey.OP_READ;
+	}
+
+	/**
+	 * Process pending reading data.
+	 *
+	 * This methods tries to construct messages from the pending data.
+	 * If the message constructed is valid, it also called performActionFromReceivedMessage automatically.
+	 * A malformed message can never be completed : the connection is handled as lost.
+	 */
+	private void processPendingReadingData() {
+		boolean msgValid = true;
+		while (msgValid && _pendingReadingData.position() > 0 && _pendingWritingDataHasEnoughSpace && _key.isValid()) {
+			Message newMsg = new Message();
+			_pendingReadingData.flip();
+			newMsg.ConstructFromByteBuffer(_pendingReadingData);
+			_pendingReadingData.compact();
+
+			if(newMsg.isMalformed()) {
+				clientLogger.fatal("Malformed message received from server");
+				connectionLost();
+				return;
+			}
+			if (newMsg.isValid()) {
+				performActionFromReceivedMessage(newMsg, _key);
+			} else {
+				msgValid = false;
+			}
+		}
+		// Reading stopped by full pending reading data starts again once they have been processed
+		if(_key.isValid() && (_key.interestOps() & SelectionKey.OP_READ) == 0 && _pendingWritingDataHasEnoughSpace)
+			_key.interestOps(_key.interestOps() | readInterest());
+	}
+
+	/**
+	 * Handle the loss of the connection with the server. Called on the engine thread.
+	 * If automatic reconnection is enabled and the session has been registered by the server, the connection is released
+	 * and a new one is opened after the backoff delay, as long as the reconnection attempts fail (the server may still be down).
+	 * Otherwise the session is closed, and the listener is told if it had been connected.
+	 */
+	void connectionLost() {
+		if(_closed)
+			return;
+		if(!_autoReconnectEnabled || (!_registered && !_reconnecting) || !_reconnection.hasAttemptsLeft()) {
+			boolean wasConnected = _registered || _reconnecting;
+			if(_reconnecting)
+				clientLogger.warn("Unable to reconnect to server after " + _reconnection.getAttempt() + " attempts");
+			close();
+			if(wasConnected)
+				_lsn.disconnected();
+			return;
+		}
+		releaseConnection();
+		_reconnecting = true;
+		_registered = false;
+		long delay = _reconnection.nextDelay();
+		clientLogger.warn("Connection with the server lost, reconnecting in " + delay + " ms (attempt " + _reconnection.getAttempt() + ")");
+		_engine.schedule(new Runnable() {
+			public void run() {
+				if(!_closed)
+					_engine.reconnect(ClientSession.this, _host, _port);
+			}
+		}, delay);
+	}
+
+	/**
+	 * Close the connection and release the resources of the session, file transfers not over are stopped. Called on the engine thread.
+	 */
+	void close() {
+		_closed = true;
+		_reconnecting = false;
+		_reconnection.clearOutbox();
+		_fileTransfers.cancelAll();
+		_reliableSender.stop();
+		releaseConnection();
+		_sessionId = -1;
+		_sessionIdByNickname.clear();
+		_nicknameBySessionId.clear();
+	}
+
+	/**
+	 * Close the connection and release its resources. What the session knows about the other clients is kept.
+	 */
+	private void releaseConnection() {
+		if(_tls != null) {
+			_tls.close(_channel);
+			_tls = null;
+		}
+		if(_channel != null)
+			ChannelIO.forceCloseConnection(_channel);
+		if(_compressor != null) {
+			_compressor.end();
+			_compressor = null;
+		}
+		_pendingWritingData.clear();
+		_pendingReadingData.clear();
+		_pendingWritingDataHasEnoughSpace = true;
+		_connectionMessageSent = false;
+		_signals.close();
+		if(_key != null)
+			_engine.sessionClosed(_key);
+	}
+}
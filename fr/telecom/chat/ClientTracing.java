@@ -0,0 +1,60 @@
+package fr.telecom.chat;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class traces the latency of the standard Messages of a client session with a LatencyTracer : traces are asked for
+ * in the connection Message, a sample of the Messages sent carry the time they are sent once the server has accepted them,
+ * and the traces of the Messages received are recorded by the tracer hop by hop.
+ * Not thread-safe, used on the engine thread only.
+ *
+ */
+class ClientTracing {
+	/* Not null if traces are asked for, they are sent once the server has accepted them */
+	private LatencyTracer _latencyTracer;
+	private boolean _tracingAccepted = false;
+
+	/**
+	 * @param latencyTracer LatencyTracer sampling the Messages sent and recording the traces received, null to disable tracing
+	 */
+	void setLatencyTracer(LatencyTracer latencyTracer) {
+		_latencyTracer = latencyTracer;
+	}
+
+	/**
+	 * @return true if the server must be asked for traces
+	 */
+	boolean isRequested() {
+		return _latencyTracer != null;
+	}
+
+	/**
+	 * Send traces if the server has accepted them.
+	 *
+	 * @param msg Connection or resume Message of the server
+	 */
+	void enable(Message msg) {
+		_tracingAccepted = _latencyTracer != null && msg.hasFlag(Message.FLAG_TRACED);
+	}
+
+	/**
+	 * Stamp a standard Message with the time it is sent if it is in the sample
+	 *
+	 * @param msg Standard Message about to be sent
+	 */
+	void stamp(Message msg) {
+		if(_tracingAccepted && _latencyTracer.sample())
+			msg.setTrace(Message.TRACE_SENT, Message.currentTimeMicros());
+	}
+
+	/**
+	 * Give the trace of a Message received to the tracer
+	 *
+	 * @param msg Standard Message received
+	 * @param receivedTime Time the Message has been received, in microseconds since the epoch
+	 */
+	void record(Message msg, long receivedTime) {
+		if(msg.isTraced() && _latencyTracer != null)
+			_latencyTracer.record(msg, receivedTime);
+	}
+}
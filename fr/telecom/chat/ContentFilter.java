@@ -0,0 +1,154 @@
+package fr.telecom.chat;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class is the moderation stage of the server : standard Messages containing a banned term or link are dropped,
+ * or the banned parts are masked (chat.moderation.action = drop (default) or mask).
+ *
+ * Patterns are read from a file (chat.moderation.patterns), one per line, lines starting with # are ignored.
+ * The content is scanned once by a PatternMatcher, whatever the number of patterns : the filter runs on the server thread.
+ * The file is checked every chat.moderation.reload milliseconds (default : 5000, 0 to never reload) : when it changes,
+ * the new automaton is compiled by the reloading thread and swapped in at once, Messages are never held meanwhile.
+ *
+ */
+public class ContentFilter implements MessageHandler {
+	private static final boolean MASK = "mask".equalsIgnoreCase(System.getProperty("chat.moderation.action", "drop"));
+	private static final char MASK_CHARACTER = '*';
+	private static Logger filterLogger = Logger.getLogger(ContentFilter.class.getSimpleName());
+
+	private volatile PatternMatcher matcher = new PatternMatcher(Collections.<String>emptyList());
+	private final AtomicLong nbMessagesFiltered = new AtomicLong();
+
+	/**
+	 * The filter is cheap and never blocks
+	 *
+	 * @return true
+	 */
+	public boolean isServerThreadSafe() {
+		return true;
+	}
+
+	/**
+	 * Drop or mask a Message containing a pattern. A Message whose content is still compressed can not be checked, it is dropped.
+	 *
+	 * @param msg Message received
+	 * @param sender Nickname of the sender
+	 * @return false if the Message has to be dropped
+	 */
+	public boolean handle(Message msg, String sender) {
+		if(msg.isCompressed()) {
+			filterLogger.warn("Compressed message from " + sender + " can not be checked, it is dropped");
+			return false;
+		}
+		String content = msg.getContent();
+		if(content == null)
+			return true;
+		PatternMatcher current = matcher;
+		if(MASK) {
+			String masked = current.mask(content, MASK_CHARACTER);
+			if(masked != content) {
+				msg.setContent(masked);
+				countFiltered(sender);
+			}
+			return true;
+		}
+		if(current.find(content) < 0)
+			return true;
+		countFiltered(sender);
+		return false;
+	}
+
+	/**
+	 * Replace the patterns. The automaton is compiled by the calling thread, Messages are filtered with the old patterns meanwhile.
+	 *
+	 * @param patterns New patterns
+	 */
+	public void setPatterns(Collection<String> patterns) {
+		long start = System.nanoTime();
+		PatternMatcher newMatcher = new PatternMatcher(patterns);
+		matcher = newMatcher;
+		filterLogger.info(newMatcher.getNbPatterns() + " moderation patterns loaded (" + newMatcher.getNbStates() + " states, compiled in "
+				+ (System.nanoTime() - start) / 1000000 + " ms)");
+	}
+
+	/**
+	 * Read the patterns of a file
+	 *
+	 * @param file File with one pattern per line
+	 * @throws IOException if the file can not be read, patterns are not changed
+	 */
+	public void loadPatterns(File file) throws IOException {
+		List<String> patterns = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+		try {
+			String line;
+			while((line = reader.readLine()) != null) {
+				line = line.trim();
+				if(!line.isEmpty() && !line.startsWith("#"))
+					patterns.add(line);
+			}
+		} finally {
+			reader.close();
+		}
+		setPatterns(patterns);
+	}
+
+	/**
+	 * Reload the patterns when their file changes, from a daemon thread.
+	 *
+	 * @param file File of the patterns, already loaded
+	 * @param intervalMillis Time between two checks of the file
+	 */
+	public void startReloading(final File file, final long intervalMillis) {
+		Thread reloader = new Thread(new Runnable() {
+			public void run() {
+				long lastModified = file.lastModified();
+				while(true) {
+					try {
+						Thread.sleep(intervalMillis);
+					} catch (InterruptedException e) {
+						return;
+					}
+					long modified = file.lastModified();
+					if(modified == lastModified)
+						continue;
+					lastModified = modified;
+					try {
+						loadPatterns(file);
+					} catch (IOException e) {
+						filterLogger.warn("Unable to reload moderation patterns, old ones are kept : " + e);
+					}
+				}
+			}
+		}, "moderation-reloader");
+		reloader.setDaemon(true);
+		reloader.start();
+	}
+
+	/**
+	 * @return number of Messages dropped or masked since startup
+	 */
+	public long getNbMessagesFiltered() {
+		return nbMessagesFiltered.get();
+	}
+
+	private void countFiltered(String sender) {
+		long nbFiltered = nbMessagesFiltered.incrementAndGet();
+		filterLogger.info("Message from " + sender + " " + (MASK ? "masked" : "dropped") + " by moderation (" + nbFiltered + " since startup)");
+	}
+}
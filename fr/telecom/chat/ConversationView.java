@@ -0,0 +1,242 @@
+package fr.telecom.chat;
+
+import java.util.List;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.widgets.Composite;
+import org.eclipse.swt.widgets.Control;
+import org.eclipse.swt.widgets.Event;
+import org.eclipse.swt.widgets.Listener;
+import org.eclipse.swt.widgets.Table;
+import org.eclipse.swt.widgets.TableItem;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class displays the messages of one conversation.
+ *
+ * Messages are kept in a bounded ring buffer of lines : when it is full, the oldest lines are forgotten,
+ * so a conversation never uses more memory than its capacity, however long the session is.
+ * Lines are shown by a virtual Table : a row is only filled (SWT.SetData) when it becomes visible,
+ * older lines are loaded when the user scrolls back to them.
+ * Rows are not wrapped : a line too long for the table is shown wrapped in the tooltip of its row.
+ *
+ * The capacity is given by the chat.ui.history system property (default : 5000 lines).
+ * Must be used from the UI thread.
+ *
+ */
+public class ConversationView {
+	private static final int HISTORY_SIZE = Integer.getInteger("chat.ui.history", 5000);
+	private static final String CONTINUATION_INDENT = "    ";
+	/* Lines longer than this have a tooltip, wrapped at this column */
+	private static final int WRAP_COLUMN = 80;
+
+	private final Table _table;
+	/* Ring buffer : line i of the view is at index (_first + i) % capacity */
+	private final String[] _senders;
+	private final String[] _lines;
+	private int _first = 0;
+	private int _nbLines = 0;
+	/* Row whose line is in the tooltip, -1 if none */
+	private int _toolTipRow = -1;
+
+	/**
+	 * @param parent Composite containing the view
+	 */
+	public ConversationView(Composite parent) {
+		this(parent, HISTORY_SIZE);
+	}
+
+	/**
+	 * @param parent Composite containing the view
+	 * @param capacity Maximum number of lines kept
+	 */
+	public ConversationView(Composite parent, int capacity) {
+		_senders = new String[Math.max(1, capacity)];
+		_lines = new String[_senders.length];
+		_table = new Table(parent, SWT.VIRTUAL | SWT.SINGLE | SWT.FULL_SELECTION | SWT.V_SCROLL);
+		_table.addListener(SWT.SetData, new Listener() {
+			public void handleEvent(Event event) {
+				TableItem item = (TableItem)event.item;
+				item.setText(getLine(event.index));
+			}
+		});
+		_table.addListener(SWT.MouseMove, new Listener() {
+			public void handleEvent(Event event) {
+				updateToolTip(event.y);
+			}
+		});
+	}
+
+	/**
+	 * @return Control to be put in the conversation tab
+	 */
+	public Control getControl() {
+		return _table;
+	}
+
+	/**
+	 * Add a message at the end of the conversation
+	 *
+	 * @param from String containing the nickname of the sender
+	 * @param text String containing the message
+	 */
+	public void append(String from, String text) {
+		int nbLinesBefore = _nbLines;
+		boolean scrolledToEnd = isScrolledToEnd();
+		int nbEvicted = addMessage(from, text);
+		refresh(nbLinesBefore, nbEvicted, scrolledToEnd);
+	}
+
+	/**
+	 * Add several messages of the same sender at the end of the conversation. The table is refreshed once.
+	 *
+	 * @param from String containing the nickname of the sender
+	 * @param texts Messages in order of arrival
+	 */
+	public void append(String from, List<String> texts) {
+		int nbLinesBefore = _nbLines;
+		boolean scrolledToEnd = isScrolledToEnd();
+		int nbEvicted = 0;
+		for(String text : texts)
+			nbEvicted += addMessage(from, text);
+		refresh(nbLinesBefore, nbEvicted, scrolledToEnd);
+	}
+
+	/**
+	 * @return number of lines kept in the view
+	 */
+	public int getNbLines() {
+		return _nbLines;
+	}
+
+	/**
+	 * Get a line as displayed
+	 *
+	 * @param index Index of the line, 0 is the oldest line kept
+	 * @return line of the conversation
+	 */
+	public String getLine(int index) {
+		if(index < 0 || index >= _nbLines)
+			return "";
+		int slot = (_first + index) % _lines.length;
+		if(_senders[slot] == null)
+			return CONTINUATION_INDENT + _lines[slot];
+		return _senders[slot] + ": " + _lines[slot];
+	}
+
+	/**
+	 * Dispose the table of the view. Lines are released.
+	 */
+	public void dispose() {
+		_table.dispose();
+		_nbLines = 0;
+		for(int i = 0; i < _lines.length; i++) {
+			_senders[i] = null;
+			_lines[i] = null;
+		}
+	}
+
+	/**
+	 * Store a message in the ring buffer, one entry per line of text.
+	 *
+	 * @return number of lines forgotten to make room
+	 */
+	private int addMessage(String from, String text) {
+		int nbEvicted = 0;
+		String sender = from;
+		int lineStart = 0;
+		do {
+			int lineEnd = text.indexOf('\n', lineStart);
+			if(lineEnd < 0)
+				lineEnd = text.length();
+			// Trailing new line does not make an empty line
+			if(lineEnd > lineStart || sender != null)
+				nbEvicted += addLine(sender, text.substring(lineStart, lineEnd));
+			sender = null;
+			lineStart = lineEnd + 1;
+		} while(lineStart < text.length());
+		return nbEvicted;
+	}
+
+	private int addLine(String sender, String line) {
+		int slot = (_first + _nbLines) % _lines.length;
+		_senders[slot] = sender;
+		_lines[slot] = line;
+		if(_nbLines < _lines.length) {
+			_nbLines++;
+			return 0;
+		}
+		_first = (_first + 1) % _lines.length;
+		return 1;
+	}
+
+	/**
+	 * Update the table after new lines have been added.
+	 * Rows already filled are cleared if lines have been forgotten, because every line has moved up.
+	 * The table follows the conversation if its end was visible.
+	 */
+	private void refresh(int nbLinesBefore, int nbEvicted, boolean scrolledToEnd) {
+		if(_nbLines == nbLinesBefore && nbEvicted == 0)
+			return;
+		// Lines may have moved under the mouse
+		_toolTipRow = -1;
+		_table.setRedraw(false);
+		if(_nbLines != nbLinesBefore)
+			_table.setItemCount(_nbLines);
+		if(nbEvicted > 0)
+			_table.clearAll();
+		if(scrolledToEnd && _nbLines > 0)
+			_table.setTopIndex(Math.max(0, _nbLines - getNbVisibleRows()));
+		_table.setRedraw(true);
+	}
+
+	/**
+	 * Show the line of the row under the mouse in the tooltip if it is long, wrapped. Rows are found from their height : 
+	 * nothing is searched.
+	 *
+	 * @param y Vertical position of the mouse in the table
+	 */
+	private void updateToolTip(int y) {
+		int itemHeight = _table.getItemHeight();
+		int row = itemHeight <= 0 ? -1 : _table.getTopIndex() + (y - _table.getHeaderHeight()) / itemHeight;
+		if(row >= _nbLines)
+			row = -1;
+		if(row == _toolTipRow)
+			return;
+		_toolTipRow = row;
+		String line = getLine(row);
+		_table.setToolTipText(line.length() > WRAP_COLUMN ? wrap(line) : null);
+	}
+
+	/**
+	 * Wrap a line at the first space after WRAP_COLUMN characters, or at twice WRAP_COLUMN characters if there is none
+	 */
+	private static String wrap(String line) {
+		StringBuilder wrapped = new StringBuilder(line.length() + line.length() / WRAP_COLUMN);
+		int column = 0;
+		for(int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if((c == ' ' && column >= WRAP_COLUMN) || column >= 2 * WRAP_COLUMN) {
+				wrapped.append('\n');
+				column = 0;
+				if(c == ' ')
+					continue;
+			}
+			wrapped.append(c);
+			column++;
+		}
+		return wrapped.toString();
+	}
+
+	private boolean isScrolledToEnd() {
+		return _table.getTopIndex() + getNbVisibleRows() >= _table.getItemCount();
+	}
+
+	private int getNbVisibleRows() {
+		int itemHeight = _table.getItemHeight();
+		if(itemHeight <= 0)
+			return 1;
+		return Math.max(1, _table.getClientArea().height / itemHeight);
+	}
+}
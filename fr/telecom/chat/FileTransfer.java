@@ -0,0 +1,342 @@
+package fr.telecom.chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class is a file sent by a client to another one, staged on the disk of the server as a blob of the BlobStore.
+ *
+ * The sender offers the file with a FILE_OFFER Message giving its SHA-256 hash, the receiver accepts it with a FILE_ACCEPT Message
+ * (or refuses it with FILE_CANCEL). The data do not go through the chat connections : both clients open a data connection to
+ * the file port of the server. The sender uploads the file, it is written in the record reserved in the store as it arrives ;
+ * the record is reserved when the upload starts and released if the transfer is removed before the file is stored (see release) ;
+ * the receiver downloads it meanwhile, the staged bytes are sent with FileChannel.transferTo (sendfile) straight from the disk
+ * to its socket. Once the whole file has been received and its hash checked, the blob is committed by the worker of the store
+ * and the rest of the download is read from the memory mapping of its segment (see stored). A file already in the store is not uploaded at all : the
+ * acceptance sent to the sender gives the number of bytes staged, the whole file in that case.
+ *
+ * A data connection starts with a single Message : FILE_UPLOAD with the token, answered by FILE_UPLOAD with the token and
+ * the number of bytes already staged (the sender goes on from there), or FILE_DOWNLOAD with the token and the number of bytes
+ * the receiver already has. Raw bytes follow until the end of the file. Both transfers are thus resumed by offset after a
+ * connection loss. Fields of the Messages are separated by FIELD_SEPARATOR.
+ *
+ * The token is chosen by the sender, it is the only way to reach the file : it must be random (see isValidToken).
+ * Used by the server thread only.
+ *
+ */
+public class FileTransfer {
+	/** Separator of the fields of the file transfer Messages */
+	public static final char FIELD_SEPARATOR = '\u001F';
+
+	private final String token;
+	private final String sender;
+	private final String receiver;
+	private final String name;
+	private final long size;
+	private final String hash;
+	/* Record of the file in the store, reserved when the upload starts then committed */
+	private BlobStore.Blob blob;
+	private boolean committed = false;
+	/* Segment the upload is written to, null once the blob is stored */
+	private FileChannel file;
+	private MessageDigest digest;
+	/* Mapping of the blob once it is stored */
+	private ByteBuffer data;
+	/* Bytes received from the sender, written at the beginning of the record */
+	private long staged = 0;
+	/* Next byte to be sent to the receiver */
+	private long downloadPosition = 0;
+	private long deadline;
+
+	/**
+	 * Create a transfer, staged by open
+	 *
+	 * @param token Token of the transfer (see isValidToken)
+	 * @param sender Nickname of the sender
+	 * @param receiver Nickname of the receiver
+	 * @param name Name of the file, as given by the sender
+	 * @param size Size of the file in bytes
+	 * @param hash SHA-256 hash of the file (see isValidHash)
+	 */
+	public FileTransfer(String token, String sender, String receiver, String name, long size, String hash) {
+		this.token = token;
+		this.sender = sender;
+		this.receiver = receiver;
+		this.name = name;
+		this.size = size;
+		this.hash = hash;
+	}
+
+	/**
+	 * Stage the transfer in the store : the file is read from the store if it is already there, otherwise it is uploaded (see startUpload)
+	 *
+	 * @param store BlobStore of the server
+	 * @throws IOException if the store has failed
+	 */
+	public void open(BlobStore store) throws IOException {
+		BlobStore.Blob stored = store.get(hash);
+		if(stored != null && stored.getLength() == size) {
+			setBlob(store, stored);
+			return;
+		}
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("SHA-256 is not available");
+		}
+	}
+
+	/**
+	 * Reserve the record of the file in the store when its upload starts, it is kept when the upload is resumed
+	 *
+	 * @param store BlobStore of the server
+	 * @throws IOException if the store has failed
+	 */
+	public void startUpload(BlobStore store) throws IOException {
+		if(blob != null)
+			return;
+		blob = store.reserve(size);
+		file = store.getChannel(blob);
+	}
+
+	/**
+	 * Release the record reserved for the upload if the file has not been committed
+	 *
+	 * @param store BlobStore of the server
+	 */
+	public void release(BlobStore store) {
+		if(blob == null || committed || data != null)
+			return;
+		store.release(blob);
+		blob = null;
+		file = null;
+	}
+
+	/**
+	 * Commit the file once it has been uploaded, if its hash is the one offered. The commit is done by the worker of the store,
+	 * the download goes on from the record meanwhile.
+	 *
+	 * @param store BlobStore of the server
+	 * @return false if the file received is not the one offered
+	 */
+	public boolean store(BlobStore store) {
+		if(!toHex(digest.digest()).equals(hash))
+			return false;
+		store.commit(hash, blob, token);
+		committed = true;
+		return true;
+	}
+
+	/**
+	 * Read the rest of the download from the blob once it has been committed
+	 *
+	 * @param store BlobStore of the server
+	 * @param stored Blob stored with the hash of the file
+	 * @throws IOException if the blob can not be mapped
+	 */
+	public void stored(BlobStore store, BlobStore.Blob stored) throws IOException {
+		setBlob(store, stored);
+	}
+
+	/**
+	 * Only 16 to 64 lower case hexadecimal digits are accepted : tokens are random numbers
+	 *
+	 * @param token Token given by a client
+	 * @return true if the token can be used
+	 */
+	public static boolean isValidToken(String token) {
+		return token.length() >= 16 && token.length() <= 64 && isHex(token);
+	}
+
+	/**
+	 * @param hash Hash given by a client
+	 * @return true if the hash is a SHA-256 hash in lower case hexadecimal digits
+	 */
+	public static boolean isValidHash(String hash) {
+		return hash.length() == 2 * BlobStore.HASH_SIZE && isHex(hash);
+	}
+
+	/**
+	 * @param bytes Bytes of a hash
+	 * @return hash in lower case hexadecimal digits
+	 */
+	public static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(2 * bytes.length);
+		for(byte b : bytes)
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		return hex.toString();
+	}
+
+	private static boolean isHex(String s) {
+		for(int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if((c < '0' || c > '9') && (c < 'a' || c > 'f'))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Write the bytes received from the sender after the staged ones, they are added to the hash
+	 *
+	 * @param channel Data connection of the sender
+	 * @param buffer Buffer used to copy the bytes, its capacity is the maximum number of bytes received
+	 * @return number of bytes received, -1 if the connection is closed
+	 * @throws IOException if the connection or the store has failed
+	 */
+	public long receive(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.clear();
+		if(buffer.remaining() > size - staged)
+			buffer.limit((int) (size - staged));
+		int nbBytesRead = channel.read(buffer);
+		if(nbBytesRead <= 0)
+			return nbBytesRead;
+		buffer.flip();
+		digest.update(buffer.duplicate());
+		while(buffer.hasRemaining())
+			staged += file.write(buffer, blob.getDataOffset() + staged);
+		return nbBytesRead;
+	}
+
+	/**
+	 * Send the staged bytes following the download position to the receiver : from the mapping of the blob once it is stored,
+	 * from the disk to the socket (sendfile) while it is uploaded
+	 *
+	 * @param channel Data connection of the receiver
+	 * @param maxBytes Maximum number of bytes sent
+	 * @return number of bytes sent
+	 * @throws IOException if the connection or the store has failed
+	 */
+	public long send(WritableByteChannel channel, long maxBytes) throws IOException {
+		long count = Math.min(maxBytes, staged - downloadPosition);
+		if(count <= 0)
+			return 0;
+		long nbBytesSent;
+		if(data != null) {
+			data.limit((int) (downloadPosition + count));
+			data.position((int) downloadPosition);
+			nbBytesSent = channel.write(data);
+		} else {
+			nbBytesSent = file.transferTo(blob.getDataOffset() + downloadPosition, count, channel);
+		}
+		downloadPosition += nbBytesSent;
+		return nbBytesSent;
+	}
+
+	/**
+	 * Start the download again from the bytes the receiver already has
+	 *
+	 * @param offset Number of bytes the receiver already has
+	 */
+	public void startDownload(long offset) {
+		downloadPosition = Math.max(0, Math.min(offset, size));
+	}
+
+	/**
+	 * @return true if staged bytes are waiting to be sent to the receiver
+	 */
+	public boolean hasDataToSend() {
+		return downloadPosition < staged;
+	}
+
+	/**
+	 * @return true once the whole file has been received from the sender
+	 */
+	public boolean isUploaded() {
+		return staged == size;
+	}
+
+	/**
+	 * @return true once the whole file has been sent to the receiver
+	 */
+	public boolean isDownloaded() {
+		return downloadPosition == size;
+	}
+
+	/**
+	 * Postpone the expiry of the transfer
+	 *
+	 * @param deadline Time (System.currentTimeMillis) when the transfer expires if nothing happens meanwhile
+	 */
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	/**
+	 * @return time (System.currentTimeMillis) when the transfer expires
+	 */
+	public long getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * @return true once the file is stored, sent from the mapping of its blob
+	 */
+	public boolean isStored() {
+		return data != null;
+	}
+
+	/**
+	 * @return token of the transfer
+	 */
+	public String getToken() {
+		return token;
+	}
+
+	/**
+	 * @return nickname of the sender
+	 */
+	public String getSender() {
+		return sender;
+	}
+
+	/**
+	 * @return nickname of the receiver
+	 */
+	public String getReceiver() {
+		return receiver;
+	}
+
+	/**
+	 * @return name of the file, as given by the sender
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return size of the file in bytes
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return SHA-256 hash of the file
+	 */
+	public String getHash() {
+		return hash;
+	}
+
+	/**
+	 * @return number of bytes received from the sender
+	 */
+	public long getStaged() {
+		return staged;
+	}
+
+	private void setBlob(BlobStore store, BlobStore.Blob stored) throws IOException {
+		data = store.map(stored);
+		blob = stored;
+		staged = size;
+		file = null;
+		digest = null;
+	}
+}
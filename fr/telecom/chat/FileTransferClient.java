@@ -0,0 +1,285 @@
+package fr.telecom.chat;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class runs the data phase of a file transfer on the client side (see FileTransfer) : the upload of a file offered
+ * by the client once its receiver has accepted it, or the download of a file the client has accepted.
+ * It runs on its own thread with a blocking data connection, so that the engine thread is never held by a file.
+ *
+ * Files offered are identified by their SHA-256 hash (see hash). Uploads are sent with FileChannel.transferTo, from the disk to the socket. Downloads are written with FileChannel.transferFrom.
+ * When the data connection is lost, the transfer is resumed from a new one after a delay : the upload goes on from the
+ * number of bytes staged by the server, the download from the number of bytes already written in the file.
+ * Attempts are given by the chat.file.retries system property (default : 5), the delay by chat.file.retryDelay
+ * (default : 1 s, multiplied by the number of attempts).
+ *
+ */
+public class FileTransferClient implements Runnable {
+	private static final int RETRIES = Integer.getInteger("chat.file.retries", 5);
+	private static final long RETRY_DELAY_MILLIS = Long.getLong("chat.file.retryDelay", 1000);
+
+	private final ClientSession _session;
+	private final String _token;
+	private final long _size;
+	private final boolean _upload;
+	private File _file;
+	private String _host;
+	private int _port;
+	private volatile Thread _thread;
+	private volatile SocketChannel _channel;
+	private volatile boolean _cancelled = false;
+	private Logger transferLogger;
+
+	/**
+	 * Create the data phase of a transfer. It is run by start.
+	 *
+	 * @param session ClientSession told when the transfer is over
+	 * @param token Token of the transfer
+	 * @param size Size of the file in bytes
+	 * @param upload true to upload a file offered by the client, false to download a file offered to it
+	 */
+	public FileTransferClient(ClientSession session, String token, long size, boolean upload) {
+		_session = session;
+		_token = token;
+		_size = size;
+		_upload = upload;
+		transferLogger = Logger.getLogger(FileTransferClient.class.getSimpleName() + "." + session.getNickname());
+	}
+
+	/**
+	 * @param file File to be uploaded, or file the download is written to
+	 */
+	public void setFile(File file) {
+		_file = file;
+	}
+
+	/**
+	 * @return File to be uploaded, or file the download is written to
+	 */
+	public File getFile() {
+		return _file;
+	}
+
+	/**
+	 * @return size of the file in bytes
+	 */
+	public long getSize() {
+		return _size;
+	}
+
+	/**
+	 * @return true for the upload of a file offered by the client
+	 */
+	public boolean isUpload() {
+		return _upload;
+	}
+
+	/**
+	 * @return true once the transfer has been started
+	 */
+	public boolean isStarted() {
+		return _thread != null;
+	}
+
+	/**
+	 * Compute the SHA-256 hash of a file, as checked by the server
+	 *
+	 * @param file File to be offered
+	 * @param size Array whose first element is set to the number of bytes read
+	 * @return hash in lower case hexadecimal digits
+	 * @throws IOException if the file can not be read
+	 */
+	public static String hash(File file, long[] size) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("SHA-256 is not available");
+		}
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+			long nbBytesRead = 0;
+			while(channel.read(buffer) >= 0) {
+				buffer.flip();
+				nbBytesRead += buffer.remaining();
+				digest.update(buffer);
+				buffer.clear();
+			}
+			size[0] = nbBytesRead;
+		} finally {
+			channel.close();
+		}
+		return FileTransfer.toHex(digest.digest());
+	}
+
+	/**
+	 * Start the transfer on a new thread
+	 *
+	 * @param host String containing the IP address of the server
+	 * @param port Port of the data connections
+	 */
+	public void start(String host, int port) {
+		_host = host;
+		_port = port;
+		Thread thread = new Thread(this, "file-transfer-" + _token);
+		thread.setDaemon(true);
+		_thread = thread;
+		thread.start();
+	}
+
+	/**
+	 * Stop the transfer, the session is not told. Can be called from any thread.
+	 */
+	public void cancel() {
+		_cancelled = true;
+		SocketChannel channel = _channel;
+		if(channel != null)
+			ChannelIO.forceCloseConnection(channel);
+		Thread thread = _thread;
+		if(thread != null)
+			thread.interrupt();
+	}
+
+	/**
+	 * Transfer the file, resumed from a new data connection after a failure. The session is told once it is over.
+	 */
+	public void run() {
+		String failure = null;
+		for(int attempt = 1; !_cancelled; attempt++) {
+			try {
+				if(_upload)
+					upload();
+				else
+					download();
+				transferLogger.info("File " + _file + (_upload ? " uploaded" : " downloaded"));
+				_session.fileTransferEnded(_token, null);
+				return;
+			} catch (IOException e) {
+				failure = e.getMessage() != null ? e.getMessage() : e.toString();
+				if(_cancelled || attempt > RETRIES)
+					break;
+				transferLogger.warn("File transfer " + _token + " interrupted (" + failure + "), resumed in " + RETRY_DELAY_MILLIS * attempt + " ms");
+				try {
+					Thread.sleep(RETRY_DELAY_MILLIS * attempt);
+				} catch (InterruptedException e1) {
+					break;
+				}
+			} finally {
+				SocketChannel channel = _channel;
+				_channel = null;
+				if(channel != null)
+					ChannelIO.forceCloseConnection(channel);
+			}
+		}
+		if(!_cancelled)
+			_session.fileTransferEnded(_token, failure);
+	}
+
+	/**
+	 * Upload the file from the number of bytes already staged by the server. The server closes the data connection
+	 * once the whole file has been received.
+	 *
+	 * @throws IOException if the data connection or the file has failed
+	 */
+	private void upload() throws IOException {
+		FileChannel file = FileChannel.open(_file.toPath(), StandardOpenOption.READ);
+		try {
+			SocketChannel channel = openDataConnection(new Message(_token, _session.getNickname(), "Server", Message.Type.FILE_UPLOAD));
+			String[] fields = readAnswer(channel);
+			long position;
+			try {
+				position = Long.parseLong(fields[1]);
+			} catch (RuntimeException e) {
+				throw new IOException("invalid answer from the server");
+			}
+			while(position < _size) {
+				long nbBytesSent = file.transferTo(position, _size - position, channel);
+				if(nbBytesSent == 0 && file.size() <= position)
+					throw new IOException("file is shorter than offered");
+				position += nbBytesSent;
+			}
+			if(channel.read(ByteBuffer.allocate(1)) >= 0)
+				throw new IOException("data received on an upload connection");
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Download the file from the number of bytes already written, until the server has sent the whole file.
+	 *
+	 * @throws IOException if the data connection or the file has failed
+	 */
+	private void download() throws IOException {
+		FileChannel file = FileChannel.open(_file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		try {
+			long position = Math.min(file.size(), _size);
+			file.truncate(position);
+			SocketChannel channel = openDataConnection(new Message(_token + FileTransfer.FIELD_SEPARATOR + position,
+					_session.getNickname(), "Server", Message.Type.FILE_DOWNLOAD));
+			while(position < _size) {
+				long nbBytesReceived = file.transferFrom(channel, position, _size - position);
+				// A blocking channel gives nothing only at the end of stream
+				if(nbBytesReceived == 0)
+					throw new IOException("data connection closed at byte " + position);
+				position += nbBytesReceived;
+			}
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Open a blocking data connection and send its first Message
+	 *
+	 * @param request FILE_UPLOAD or FILE_DOWNLOAD Message
+	 * @return SocketChannel of the data connection
+	 * @throws IOException if the connection has failed
+	 */
+	private SocketChannel openDataConnection(Message request) throws IOException {
+		SocketChannel channel = SocketChannel.open();
+		_channel = channel;
+		if(_cancelled)
+			throw new IOException("transfer cancelled");
+		channel.connect(new InetSocketAddress(_host, _port));
+		ByteBuffer data = request.constructByteBuffer();
+		while(data.hasRemaining())
+			channel.write(data);
+		return channel;
+	}
+
+	/**
+	 * Read the answer of the server to an upload request
+	 *
+	 * @param channel SocketChannel of the data connection
+	 * @return fields of the answer : token and number of bytes already staged
+	 * @throws IOException if the connection has failed or the server has refused the request
+	 */
+	private static String[] readAnswer(SocketChannel channel) throws IOException {
+		ByteBuffer answer = ByteBuffer.allocate(ChannelIO.BUFFER_SIZE);
+		while(answer.position() < 2 || answer.position() < answer.getShort(0)) {
+			if(!answer.hasRemaining() || channel.read(answer) < 0)
+				throw new IOException("upload refused by the server");
+		}
+		answer.flip();
+		Message msg = new Message();
+		msg.ConstructFromByteBuffer(answer);
+		String[] fields = msg.isValid() ? msg.getContent().split(String.valueOf(FileTransfer.FIELD_SEPARATOR), -1) : new String[0];
+		if(msg.getType() != Message.Type.FILE_UPLOAD || fields.length != 2)
+			throw new IOException("invalid answer from the server");
+		return fields;
+	}
+}
@@ -0,0 +1,16 @@
+package fr.telecom.chat;
+
+import java.io.File;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ * 
+ * Interface that provides the methods called when a file is offered to the client and when a file transfer is over
+ * (see ClientApplication.sendFile and ClientApplication.acceptFile). Called on the client thread.
+ *
+ */
+public interface FileTransferListener {
+		public abstract void fileOffered(String from, String token, String name, long size);
+		public abstract void fileTransferred(String token, File file);
+		public abstract void fileTransferFailed(String token, String reason);
+}
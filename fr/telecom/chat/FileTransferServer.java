@@ -0,0 +1,598 @@
+package fr.telecom.chat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class is the server side of the file transfers (see FileTransfer) : it handles the file transfer Messages of the clients
+ * and the data connections accepted on chat.file.port (0, the default, disables file transfers), with the loop of the server.
+ * Files are staged in the BlobStore of chat.file.dir (default : chat-files in the temporary directory), in segments of
+ * chat.file.segmentSize bytes (default : 256 MiB). Its worker commits the blobs and wakes the loop up (see resume).
+ *
+ * Files are chat.file.maxSize bytes at most (default and maximum : 1 GiB, blobs are mapped). Uploads and downloads share
+ * chat.file.rate bytes per second (default : 32 MiB, 0 for no limit) and move chat.file.chunk bytes at most per event
+ * (default : 64 KiB), so that they do not starve the Messages handled by the same loop. Transfers left unfinished for
+ * chat.file.timeout milliseconds (default : 10 min) are cancelled, data connections that have not sent their first Message
+ * within REQUEST_TIMEOUT_MILLIS are closed.
+ * Used by the server thread only.
+ *
+ */
+class FileTransferServer {
+	static final int PORT = Integer.getInteger("chat.file.port", 0);
+	private static final String DIRECTORY = System.getProperty("chat.file.dir", new File(System.getProperty("java.io.tmpdir"), "chat-files").getPath());
+	private static final long SEGMENT_SIZE = Math.min(Long.getLong("chat.file.segmentSize", 256L << 20), 1L << 30);
+	private static final long MAX_SIZE = Math.min(Long.getLong("chat.file.maxSize", 1L << 30), 1L << 30);
+	private static final long TIMEOUT_MILLIS = Long.getLong("chat.file.timeout", 600000);
+	private static final int CHUNK_SIZE = Integer.getInteger("chat.file.chunk", 64 * 1024);
+	private static final int RATE_BYTES = Integer.getInteger("chat.file.rate", 32 * 1024 * 1024);
+	private static final long BURST_MILLIS = Long.getLong("chat.file.burst", 250);
+	/* Time given to a data connection to send its first Message */
+	private static final long REQUEST_TIMEOUT_MILLIS = 10000;
+	private static Logger fileLogger = Logger.getLogger(FileTransferServer.class.getSimpleName());
+
+	private final ServerApplication server;
+	private Transport transport;
+	private SelectionKey serverKey;
+	private BlobStore blobStore;
+	private Map<String, FileTransfer> transfers = new HashMap<String, FileTransfer>();
+	/* Data connections whose first Message has not been received yet, and their deadline in the order they have been accepted */
+	private Map<SelectionKey, ByteBuffer> requests = new HashMap<SelectionKey, ByteBuffer>();
+	private LinkedHashMap<SelectionKey, Long> requestDeadlines = new LinkedHashMap<SelectionKey, Long>();
+	private Map<SelectionKey, FileTransfer> uploads = new HashMap<SelectionKey, FileTransfer>();
+	private Map<SelectionKey, FileTransfer> downloads = new HashMap<SelectionKey, FileTransfer>();
+	/* Bytes received from senders are copied to the blob store through a single buffer */
+	private ByteBuffer buffer;
+	/* Shared by all the file transfers, null for no limit */
+	private RateLimiter rateLimiter;
+	/* Data connections waiting for the rate limiter to be refilled */
+	private List<SelectionKey> throttledKeys = new ArrayList<SelectionKey>();
+
+	/**
+	 * @param server ServerApplication relaying the file transfer Messages
+	 */
+	FileTransferServer(ServerApplication server) {
+		this.server = server;
+	}
+
+	/**
+	 * Open the blob store and listen for the data connections if chat.file.port gives a port
+	 *
+	 * @param selector Selector of the server, woken up by the worker of the blob store
+	 * @throws IOException if the directory of the blob store can not be created or the port can not be bound
+	 */
+	void listen(final Selector selector) throws IOException {
+		if(PORT == 0)
+			return;
+		File directory = new File(DIRECTORY);
+		if(!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create the directory of the blob store " + directory);
+		blobStore = new BlobStore(directory, SEGMENT_SIZE, new Runnable() {
+			public void run() {
+				selector.wakeup();
+			}
+		});
+		buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+		if(RATE_BYTES > 0)
+			rateLimiter = new RateLimiter(0, RATE_BYTES, BURST_MILLIS, CHUNK_SIZE);
+		transport = new TcpTransport(false);
+		serverKey = transport.listen(selector, PORT);
+		fileLogger.info("Listening for file transfers on port " + PORT);
+	}
+
+	/**
+	 * @param key SelectionKey of a listening channel
+	 * @return true if it is the listening channel of the data connections
+	 */
+	boolean isListening(SelectionKey key) {
+		return serverKey != null && key == serverKey;
+	}
+
+	/**
+	 * @param key SelectionKey of a connection
+	 * @return true if the connection is a data connection of a file transfer
+	 */
+	boolean isConnection(SelectionKey key) {
+		return requests.containsKey(key) || uploads.containsKey(key) || downloads.containsKey(key);
+	}
+
+	/**
+	 * Accept a data connection of a file transfer. It waits for its first Message (see readRequest).
+	 *
+	 * @throws IOException if the connection can not be accepted
+	 */
+	void accept() throws IOException {
+		SelectionKey dataKey = transport.accept(serverKey, serverKey.selector());
+		if(dataKey == null)
+			return;
+		requests.put(dataKey, ByteBuffer.allocate(Message.MAX_SIZE));
+		requestDeadlines.put(dataKey, System.currentTimeMillis() + REQUEST_TIMEOUT_MILLIS);
+		fileLogger.info("Incomming data connection accepted");
+	}
+
+	/**
+	 * Handle a file transfer Message of a registered client : an offer, the acceptance of an offer or a cancellation.
+	 *
+	 * @param msg File transfer Message, not compressed
+	 * @param key SelectionKey of the client
+	 */
+	void processMessage(Message msg, SelectionKey key) {
+		String[] fields = msg.getContent().split(String.valueOf(FileTransfer.FIELD_SEPARATOR), 4);
+		if(msg.getType() == Message.Type.FILE_OFFER)
+			processOffer(msg, key, fields);
+		else if(msg.getType() == Message.Type.FILE_ACCEPT)
+			processAccept(key, fields);
+		else
+			processCancel(key, fields);
+	}
+
+	/**
+	 * Handle a data connection that is ready : read its first Message, or receive bytes from the sender,
+	 * or send bytes to the receiver. The connection is closed if it fails, the client resumes the transfer from a new one.
+	 *
+	 * @param key SelectionKey of the data connection
+	 */
+	void processConnection(SelectionKey key) {
+		try {
+			if(requests.containsKey(key))
+				readRequest(key);
+			else if(uploads.containsKey(key))
+				receiveData(key);
+			else
+				sendData(key);
+		} catch (IOException e) {
+			fileLogger.warn("Data connection lost : " + e);
+			closeConnection(key);
+		}
+	}
+
+	/**
+	 * Go on with the data connections stopped by the rate limiter once it has been refilled (downloads having nothing to send
+	 * keep waiting for their sender), and with the file transfers whose blob has been committed by the worker of the blob store.
+	 */
+	void resume() {
+		resumeThrottledConnections();
+		completeBlobCommits();
+	}
+
+	/**
+	 * Cancel the file transfers left unfinished for too long and close the data connections that have not sent their first Message in time
+	 */
+	void expire() {
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<SelectionKey, Long>> deadlines = requestDeadlines.entrySet().iterator();
+		while(deadlines.hasNext()) {
+			Map.Entry<SelectionKey, Long> deadline = deadlines.next();
+			if(deadline.getValue() > now)
+				break;
+			deadlines.remove();
+			requests.remove(deadline.getKey());
+			ChannelIO.forceCloseConnection(deadline.getKey().channel());
+			fileLogger.warn("Data connection closed, no request received");
+		}
+		if(transfers.isEmpty())
+			return;
+		for(FileTransfer transfer : new ArrayList<FileTransfer>(transfers.values())) {
+			if(transfer.getDeadline() <= now)
+				cancel(transfer, "transfer has expired", null);
+		}
+	}
+
+	/**
+	 * @param now Current time in milliseconds
+	 * @return time until the next deadline of the file transfers in milliseconds (1 at least), 0 if there is none
+	 */
+	long millisUntilNextDeadline(long now) {
+		long timeout = 0;
+		if(!throttledKeys.isEmpty())
+			timeout = Math.max(1, rateLimiter.getDelayedUntil() - now);
+		if(!requestDeadlines.isEmpty()) {
+			long remaining = Math.max(1, requestDeadlines.values().iterator().next() - now);
+			if(timeout == 0 || remaining < timeout)
+				timeout = remaining;
+		}
+		for(FileTransfer transfer : transfers.values()) {
+			long remaining = Math.max(1, transfer.getDeadline() - now);
+			if(timeout == 0 || remaining < timeout)
+				timeout = remaining;
+		}
+		return timeout;
+	}
+
+	/**
+	 * Stop listening for data connections
+	 *
+	 * @throws IOException if the listening channel can not be closed
+	 */
+	void stopListening() throws IOException {
+		if(serverKey != null)
+			serverKey.channel().close();
+	}
+
+	/**
+	 * Remove every file transfer and close their data connections and the blob store : transfers are not handed over to a new
+	 * server, the store is opened again by it
+	 */
+	void close() {
+		for(FileTransfer transfer : new ArrayList<FileTransfer>(transfers.values()))
+			remove(transfer);
+		for(SelectionKey key : new ArrayList<SelectionKey>(requests.keySet()))
+			closeConnection(key);
+		if(blobStore != null)
+			blobStore.close();
+	}
+
+	/**
+	 * Start a file transfer offered by a client : content of the offer is "token, size, hash, name".
+	 * The transfer is staged in the blob store and the offer is sent to the receiver with the port of the data connections :
+	 * "token, size, port, name". The offer is refused with a FILE_CANCEL Message if file transfers are disabled, if the token
+	 * or the hash is not valid, if the token is already used, if the file is too big or if the receiver is not connected.
+	 *
+	 * @param msg Offer of the sender
+	 * @param key SelectionKey of the sender
+	 * @param fields Fields of the content
+	 */
+	private void processOffer(Message msg, SelectionKey key, String[] fields) {
+		String token = fields[0];
+		String receiver = server.getReceiver(msg);
+		SelectionKey keyTo = receiver != null ? server.getKey(receiver) : null;
+		long size = -1;
+		try {
+			if(fields.length == 4 && FileTransfer.isValidHash(fields[2]))
+				size = Long.parseLong(fields[1]);
+		} catch (NumberFormatException e) {
+			// Refused below
+		}
+		String refusal = null;
+		if(PORT == 0)
+			refusal = "file transfers are disabled";
+		else if(size < 0 || !FileTransfer.isValidToken(token) || transfers.containsKey(token))
+			refusal = "invalid offer";
+		else if(size > MAX_SIZE)
+			refusal = "file is bigger than " + MAX_SIZE + " bytes";
+		else if(keyTo == null || !keyTo.isValid() || keyTo == key)
+			refusal = "receiver is not connected";
+		FileTransfer transfer = null;
+		if(refusal == null) {
+			try {
+				transfer = new FileTransfer(token, server.getNickname(key), receiver, fields[3], size, fields[2]);
+				transfer.open(blobStore);
+			} catch (IOException e) {
+				fileLogger.warn("Unable to stage file : " + e);
+				refusal = "file can not be staged";
+			}
+		}
+		if(refusal != null) {
+			server.sendMessage(key, server.buildMessage(token + FileTransfer.FIELD_SEPARATOR + refusal, null, key, Message.Type.FILE_CANCEL));
+			fileLogger.info("File offer refused : " + refusal);
+			return;
+		}
+		transfer.setDeadline(System.currentTimeMillis() + TIMEOUT_MILLIS);
+		transfers.put(token, transfer);
+		String offer = token + FileTransfer.FIELD_SEPARATOR + size + FileTransfer.FIELD_SEPARATOR + PORT + FileTransfer.FIELD_SEPARATOR + fields[3];
+		server.sendMessage(keyTo, server.buildMessage(offer, key, keyTo, Message.Type.FILE_OFFER));
+		fileLogger.info("File " + fields[3] + " (" + size + " bytes" + (transfer.isStored() ? ", already stored" : "")
+				+ ") offered by " + transfer.getSender() + " to " + receiver);
+	}
+
+	/**
+	 * Tell the sender of a file that its receiver has accepted it : "token, port, staged". The sender then uploads the file,
+	 * unless the number of bytes staged is the size of the file (the file is already in the blob store).
+	 * The transfer is cancelled if the sender is not connected anymore.
+	 *
+	 * @param key SelectionKey of the receiver
+	 * @param fields Fields of the content : token
+	 */
+	private void processAccept(SelectionKey key, String[] fields) {
+		FileTransfer transfer = transfers.get(fields[0]);
+		if(transfer == null || !transfer.getReceiver().equals(server.getNickname(key))) {
+			fileLogger.warn("Unknown file transfer accepted");
+			return;
+		}
+		SelectionKey senderKey = server.getKey(transfer.getSender());
+		if(senderKey == null || !senderKey.isValid()) {
+			cancel(transfer, "sender is not connected", null);
+			return;
+		}
+		transfer.setDeadline(System.currentTimeMillis() + TIMEOUT_MILLIS);
+		String accept = transfer.getToken() + FileTransfer.FIELD_SEPARATOR + PORT + FileTransfer.FIELD_SEPARATOR + transfer.getStaged();
+		server.sendMessage(senderKey, server.buildMessage(accept, key, senderKey, Message.Type.FILE_ACCEPT));
+		fileLogger.info("File " + transfer.getName() + " accepted by " + transfer.getReceiver());
+	}
+
+	/**
+	 * Cancel a file transfer at the request of its sender or of its receiver : "token, reason". The other client is told.
+	 *
+	 * @param key SelectionKey of the client
+	 * @param fields Fields of the content
+	 */
+	private void processCancel(SelectionKey key, String[] fields) {
+		FileTransfer transfer = transfers.get(fields[0]);
+		String nickname = server.getNickname(key);
+		if(transfer == null || (!transfer.getSender().equals(nickname) && !transfer.getReceiver().equals(nickname))) {
+			fileLogger.warn("Unknown file transfer cancelled by " + nickname);
+			return;
+		}
+		cancel(transfer, fields.length > 1 ? fields[1] : "cancelled by " + nickname, key);
+	}
+
+	/**
+	 * Remove a file transfer and tell its clients, except the one that has cancelled it
+	 *
+	 * @param transfer FileTransfer
+	 * @param reason Reason given to the clients
+	 * @param keyFrom SelectionKey of the client that has cancelled the transfer, null if the server has cancelled it
+	 */
+	private void cancel(FileTransfer transfer, String reason, SelectionKey keyFrom) {
+		remove(transfer);
+		String content = transfer.getToken() + FileTransfer.FIELD_SEPARATOR + reason;
+		for(String nickname : new String[] {transfer.getSender(), transfer.getReceiver()}) {
+			SelectionKey keyTo = server.getKey(nickname);
+			if(keyTo != null && keyTo != keyFrom && keyTo.isValid())
+				server.sendMessage(keyTo, server.buildMessage(content, keyFrom, keyTo, Message.Type.FILE_CANCEL));
+		}
+		fileLogger.info("File transfer " + transfer.getToken() + " cancelled : " + reason);
+	}
+
+	/**
+	 * Remove a file transfer : its data connections are closed and the record reserved for a file not committed is released.
+	 *
+	 * @param transfer FileTransfer
+	 */
+	private void remove(FileTransfer transfer) {
+		transfers.remove(transfer.getToken());
+		closeConnections(uploads, transfer);
+		closeConnections(downloads, transfer);
+		transfer.release(blobStore);
+	}
+
+	/**
+	 * Read the first Message of a data connection and start the upload or the download it asks for.
+	 * An upload is answered by the number of bytes already staged, the sender goes on from there. A download starts from
+	 * the number of bytes the receiver already has. The previous data connection of the same upload or download is closed.
+	 *
+	 * @param key SelectionKey of the data connection
+	 * @throws IOException if the connection has failed
+	 */
+	private void readRequest(SelectionKey key) throws IOException {
+		ByteBuffer request = requests.get(key);
+		SocketChannel channel = (SocketChannel) key.channel();
+		if(channel.read(request) < 0) {
+			closeConnection(key);
+			return;
+		}
+		if(ServerApplication.completeMessageSize(request) == 0) {
+			if(!request.hasRemaining())
+				closeConnection(key);
+			return;
+		}
+		requests.remove(key);
+		requestDeadlines.remove(key);
+		request.flip();
+		Message msg = new Message();
+		msg.ConstructFromByteBuffer(request);
+		String[] fields = msg.isValid() && !msg.isCompressed() ? msg.getContent().split(String.valueOf(FileTransfer.FIELD_SEPARATOR), -1) : new String[] {""};
+		FileTransfer transfer = transfers.get(fields[0]);
+		// Nothing is sent before the answer to an upload
+		if(transfer == null || request.hasRemaining()) {
+			fileLogger.warn("Data connection of an unknown file transfer closed");
+			ChannelIO.forceCloseConnection(channel);
+			return;
+		}
+		transfer.setDeadline(System.currentTimeMillis() + TIMEOUT_MILLIS);
+		if(msg.getType() == Message.Type.FILE_UPLOAD && fields.length == 1) {
+			closeConnections(uploads, transfer);
+			try {
+				if(!transfer.isStored())
+					transfer.startUpload(blobStore);
+			} catch (IOException e) {
+				fileLogger.warn("Unable to stage file : " + e);
+				ChannelIO.forceCloseConnection(channel);
+				cancel(transfer, "file can not be staged", null);
+				return;
+			}
+			// Answer is small and the connection is new : it is written at once
+			Message answer = new Message(transfer.getToken() + FileTransfer.FIELD_SEPARATOR + transfer.getStaged(), "Server", transfer.getSender(), Message.Type.FILE_UPLOAD);
+			ChannelIO.writeDataToChannel(answer.constructByteBuffer(), channel);
+			if(transfer.isUploaded()) {
+				ChannelIO.forceCloseConnection(channel);
+				return;
+			}
+			uploads.put(key, transfer);
+			key.interestOps(SelectionKey.OP_READ);
+			fileLogger.info("Upload of file " + transfer.getName() + " started at byte " + transfer.getStaged());
+		} else if(msg.getType() == Message.Type.FILE_DOWNLOAD && fields.length == 2) {
+			long offset;
+			try {
+				offset = Long.parseLong(fields[1]);
+			} catch (NumberFormatException e) {
+				ChannelIO.forceCloseConnection(channel);
+				return;
+			}
+			closeConnections(downloads, transfer);
+			transfer.startDownload(offset);
+			downloads.put(key, transfer);
+			fileLogger.info("Download of file " + transfer.getName() + " started at byte " + offset);
+			if(transfer.isDownloaded())
+				downloadCompleted(key, transfer);
+			else
+				key.interestOps(transfer.hasDataToSend() ? SelectionKey.OP_WRITE : 0);
+		} else {
+			fileLogger.warn("Invalid request on a data connection");
+			ChannelIO.forceCloseConnection(channel);
+		}
+	}
+
+	/**
+	 * Receive bytes from the sender of a file (chat.file.chunk at most) and write them in the blob store.
+	 * The download waiting for them goes on. The data connection is closed once the whole file has been received :
+	 * the file is stored if its hash is the one offered, the transfer is cancelled otherwise.
+	 *
+	 * @param key SelectionKey of the data connection of the sender
+	 * @throws IOException if the connection or the blob store has failed
+	 */
+	private void receiveData(SelectionKey key) throws IOException {
+		if(rateLimiter != null && !rateLimiter.hasByteTokens()) {
+			throttleConnection(key);
+			return;
+		}
+		FileTransfer transfer = uploads.get(key);
+		long nbBytesReceived = transfer.receive((SocketChannel) key.channel(), buffer);
+		if(nbBytesReceived < 0) {
+			fileLogger.warn("Upload of file " + transfer.getName() + " interrupted at byte " + transfer.getStaged());
+			closeConnection(key);
+			return;
+		}
+		if(rateLimiter != null)
+			rateLimiter.consume(nbBytesReceived);
+		transfer.setDeadline(System.currentTimeMillis() + TIMEOUT_MILLIS);
+		for(Map.Entry<SelectionKey, FileTransfer> download : downloads.entrySet()) {
+			if(download.getValue() == transfer && download.getKey().isValid() && !throttledKeys.contains(download.getKey()))
+				download.getKey().interestOps(SelectionKey.OP_WRITE);
+		}
+		if(transfer.isUploaded()) {
+			closeConnection(key);
+			if(!transfer.store(blobStore)) {
+				cancel(transfer, "file received does not match its hash", null);
+				return;
+			}
+			fileLogger.info("File " + transfer.getName() + " uploaded by " + transfer.getSender());
+		}
+	}
+
+	/**
+	 * Go on with the file transfers whose blob has been committed by the worker of the blob store : the rest of their download
+	 * is read from the mapping of the blob. Transfers whose blob can not be stored are cancelled.
+	 */
+	private void completeBlobCommits() {
+		if(blobStore == null)
+			return;
+		BlobStore.Commit commit;
+		while((commit = blobStore.completeNextCommit()) != null) {
+			FileTransfer transfer = transfers.get(commit.getToken());
+			// Transfer already downloaded from the record and removed
+			if(transfer != null && !transfer.getHash().equals(commit.getHash()))
+				transfer = null;
+			try {
+				if(commit.getFailure() != null)
+					throw commit.getFailure();
+				if(transfer != null)
+					transfer.stored(blobStore, commit.getBlob());
+				fileLogger.info("File " + commit.getHash() + " stored");
+			} catch (IOException e) {
+				fileLogger.warn("Unable to store file : " + e);
+				if(transfer != null)
+					cancel(transfer, "file can not be stored", null);
+			}
+		}
+	}
+
+	/**
+	 * Send staged bytes of a file to its receiver (chat.file.chunk at most), with sendfile or from the mapping of its blob.
+	 * The data connection waits for the sender when every staged byte has been sent. The transfer is over once the whole file has been sent.
+	 *
+	 * @param key SelectionKey of the data connection of the receiver
+	 * @throws IOException if the connection or the blob store has failed
+	 */
+	private void sendData(SelectionKey key) throws IOException {
+		if(rateLimiter != null && !rateLimiter.hasByteTokens()) {
+			throttleConnection(key);
+			return;
+		}
+		FileTransfer transfer = downloads.get(key);
+		long nbBytesSent = transfer.send((SocketChannel) key.channel(), CHUNK_SIZE);
+		if(rateLimiter != null)
+			rateLimiter.consume(nbBytesSent);
+		transfer.setDeadline(System.currentTimeMillis() + TIMEOUT_MILLIS);
+		if(transfer.isDownloaded())
+			downloadCompleted(key, transfer);
+		else if(!transfer.hasDataToSend())
+			key.interestOps(0);
+	}
+
+	/**
+	 * The whole file has been sent to its receiver : the data connection is closed (the receiver reads the last bytes before
+	 * the end of stream) and the transfer is removed.
+	 *
+	 * @param key SelectionKey of the data connection of the receiver
+	 * @param transfer FileTransfer
+	 */
+	private void downloadCompleted(SelectionKey key, FileTransfer transfer) {
+		fileLogger.info("File " + transfer.getName() + " downloaded by " + transfer.getReceiver());
+		closeConnection(key);
+		remove(transfer);
+	}
+
+	/**
+	 * Stop a data connection until the rate limiter has been refilled
+	 *
+	 * @param key SelectionKey of the data connection
+	 */
+	private void throttleConnection(SelectionKey key) {
+		if(!rateLimiter.isDelayed())
+			rateLimiter.delay(System.currentTimeMillis() + rateLimiter.millisUntilAvailable(1));
+		key.interestOps(0);
+		if(!throttledKeys.contains(key))
+			throttledKeys.add(key);
+	}
+
+	/**
+	 * Go on with the data connections stopped by the rate limiter once it has been refilled.
+	 * Downloads having nothing to send keep waiting for their sender.
+	 */
+	private void resumeThrottledConnections() {
+		if(throttledKeys.isEmpty() || rateLimiter.getDelayedUntil() > System.currentTimeMillis())
+			return;
+		rateLimiter.resume();
+		for(int i = 0; i < throttledKeys.size(); i++) {
+			SelectionKey key = throttledKeys.get(i);
+			if(!key.isValid())
+				continue;
+			if(uploads.containsKey(key))
+				key.interestOps(SelectionKey.OP_READ);
+			else if(downloads.containsKey(key) && downloads.get(key).hasDataToSend())
+				key.interestOps(SelectionKey.OP_WRITE);
+		}
+		throttledKeys.clear();
+	}
+
+	/**
+	 * Close the data connections of a file transfer
+	 *
+	 * @param connections Data connections of the uploads or of the downloads
+	 * @param transfer FileTransfer
+	 */
+	private void closeConnections(Map<SelectionKey, FileTransfer> connections, FileTransfer transfer) {
+		for(SelectionKey key : new ArrayList<SelectionKey>(connections.keySet())) {
+			if(connections.get(key) == transfer)
+				closeConnection(key);
+		}
+	}
+
+	/**
+	 * Close a data connection. Its transfer is kept, it can be resumed from a new data connection.
+	 *
+	 * @param key SelectionKey of the data connection
+	 */
+	private void closeConnection(SelectionKey key) {
+		requests.remove(key);
+		requestDeadlines.remove(key);
+		uploads.remove(key);
+		downloads.remove(key);
+		throttledKeys.remove(key);
+		ChannelIO.forceCloseConnection(key.channel());
+	}
+}
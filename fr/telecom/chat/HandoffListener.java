@@ -0,0 +1,167 @@
+package fr.telecom.chat;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.security.MessageDigest;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.log4j.Logger;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class accepts the control connection of a new server taking over (see ServerApplication.handOver) on the handoff port,
+ * on the loopback interface. Any local process can connect to it : the new server must first send the handoff secret, read
+ * from the file given by chat.handoff.secret, which must only be accessible by its owner (the user running both servers).
+ * Connections are authenticated one at a time by a daemon thread, a connection sending a wrong secret or nothing within
+ * chat.handoff.timeout milliseconds is closed and the server goes on. The first one authenticated is given to the server loop,
+ * which is woken up.
+ *
+ */
+class HandoffListener {
+	private static final String SECRET_FILE = System.getProperty("chat.handoff.secret");
+	private static final int MIN_SECRET_SIZE = 16;
+	private static final int MAX_SECRET_SIZE = 4096;
+	private static final Set<PosixFilePermission> OWNER_PERMISSIONS = EnumSet.of(PosixFilePermission.OWNER_READ,
+			PosixFilePermission.OWNER_WRITE, PosixFilePermission.OWNER_EXECUTE);
+	private static Logger handoffLogger = Logger.getLogger(HandoffListener.class.getSimpleName());
+
+	private final ServerSocketChannel socket;
+	private final byte[] secret;
+	private final int timeoutMillis;
+	private final Selector selector;
+	/* Control connection authenticated, taken by the server loop */
+	private final AtomicReference<SocketChannel> control = new AtomicReference<SocketChannel>();
+
+	/**
+	 * Bind the handoff port, connections are only accepted once started
+	 *
+	 * @param port Handoff port, on the loopback interface
+	 * @param timeoutMillis Time given to a connection to send the secret
+	 * @param selector Selector of the server, woken up once a connection is authenticated
+	 * @throws IOException if the secret can not be read or the port can not be bound
+	 */
+	HandoffListener(int port, int timeoutMillis, Selector selector) throws IOException {
+		secret = readSecret();
+		this.timeoutMillis = timeoutMillis;
+		this.selector = selector;
+		socket = ServerSocketChannel.open();
+		socket.socket().setReuseAddress(true);
+		socket.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+	}
+
+	/**
+	 * Connect to the handoff port of the running server and send the secret (new server side)
+	 *
+	 * @param port Handoff port of the running server
+	 * @return control connection, the snapshot of the sessions can be read from it
+	 * @throws IOException if the secret can not be read or the running server can not be reached
+	 */
+	static SocketChannel connect(int port) throws IOException {
+		byte[] secret = readSecret();
+		SocketChannel control = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+		ByteBuffer secretBuffer = ByteBuffer.wrap(secret);
+		while(secretBuffer.hasRemaining())
+			control.write(secretBuffer);
+		return control;
+	}
+
+	/**
+	 * Read the handoff secret from the file given by chat.handoff.secret. Its permissions are checked
+	 * when the file system has POSIX permissions : group and others must have none.
+	 *
+	 * @return handoff secret
+	 * @throws IOException if the file is not given, is accessible by others, can not be read or is too short
+	 */
+	private static byte[] readSecret() throws IOException {
+		if(SECRET_FILE == null)
+			throw new IOException("Handoff needs a secret file (chat.handoff.secret)");
+		Path path = Paths.get(SECRET_FILE);
+		if(Files.getFileStore(path).supportsFileAttributeView(PosixFileAttributeView.class)
+				&& !OWNER_PERMISSIONS.containsAll(Files.getPosixFilePermissions(path)))
+			throw new IOException("Handoff secret file " + path + " must only be accessible by its owner");
+		if(Files.size(path) > MAX_SECRET_SIZE)
+			throw new IOException("Handoff secret file " + path + " is larger than " + MAX_SECRET_SIZE + " bytes");
+		byte[] secret = Files.readAllBytes(path);
+		if(secret.length < MIN_SECRET_SIZE)
+			throw new IOException("Handoff secret file " + path + " is shorter than " + MIN_SECRET_SIZE + " bytes");
+		return secret;
+	}
+
+	/**
+	 * Start accepting control connections, from a daemon thread, until one is authenticated or the listener is closed
+	 */
+	void start() {
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				while(socket.isOpen()) {
+					SocketChannel accepted;
+					try {
+						accepted = socket.accept();
+					} catch (IOException e) {
+						// Closed by the server
+						return;
+					}
+					if(authenticate(accepted)) {
+						control.set(accepted);
+						selector.wakeup();
+						return;
+					}
+					ChannelIO.forceCloseConnection(accepted);
+				}
+			}
+		}, "handoff-listener");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * @return control connection of the new server once authenticated, null otherwise
+	 */
+	SocketChannel takeControl() {
+		return control.getAndSet(null);
+	}
+
+	/**
+	 * Stop accepting control connections and release the handoff port
+	 *
+	 * @throws IOException if the handoff port can not be closed
+	 */
+	void close() throws IOException {
+		socket.close();
+	}
+
+	/**
+	 * Read the secret sent by a control connection and compare it in constant time
+	 *
+	 * @param control Control connection just accepted
+	 * @return true if the secret is the right one
+	 */
+	private boolean authenticate(SocketChannel control) {
+		byte[] received = new byte[secret.length];
+		try {
+			control.socket().setSoTimeout(timeoutMillis);
+			new DataInputStream(control.socket().getInputStream()).readFully(received);
+		} catch (IOException e) {
+			handoffLogger.warn("Handoff connection closed, no secret received : " + e);
+			return false;
+		}
+		if(!MessageDigest.isEqual(received, secret)) {
+			handoffLogger.warn("Handoff connection closed, wrong secret");
+			return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,282 @@
+package fr.telecom.chat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeSet;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class is an immutable part of the search index : the Messages indexed together, their inverted index and their stored fields.
+ *
+ * Terms are sorted and found by binary search. The postings of all the terms are compressed in a single byte array
+ * (see PostingsWriter) and decoded on the fly by cursors. Messages are numbered from 0 in the order they have been indexed.
+ * Conversations are sorted too : a segment without the conversation of a query is skipped at once.
+ *
+ * Segments are written once (see SegmentBuilder and merge) and never changed : they are read by any thread without lock.
+ *
+ */
+public class IndexSegment {
+	private final String[] terms;
+	private final int[] postingsStart;
+	private final byte[] postings;
+	private final String[] conversations;
+	private final int[] documentConversations;
+	private final long[] documentTimes;
+	private final String[] documentSenders;
+	private final String[] documentContents;
+
+	/**
+	 * Cursor over the postings of one term : Messages in increasing order and positions of the term in the current one.
+	 */
+	private class PostingsCursor {
+		private int offset;
+		private final int end;
+		private int document = -1;
+		private int[] positions = new int[4];
+		private int nbPositions = 0;
+
+		private PostingsCursor(int term) {
+			offset = postingsStart[term];
+			end = postingsStart[term + 1];
+		}
+
+		/**
+		 * Go to the next Message containing the term and decode its positions
+		 *
+		 * @return false if there is no more Message
+		 */
+		private boolean next() {
+			if(offset >= end)
+				return false;
+			document += readVarint();
+			nbPositions = readVarint();
+			if(nbPositions > positions.length)
+				positions = new int[Integer.highestOneBit(nbPositions) << 1];
+			int position = 0;
+			for(int i = 0; i < nbPositions; i++) {
+				position += readVarint();
+				positions[i] = position;
+			}
+			return true;
+		}
+
+		private boolean hasPosition(int position) {
+			return Arrays.binarySearch(positions, 0, nbPositions, position) >= 0;
+		}
+
+		private int readVarint() {
+			int value = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = postings[offset++];
+				value |= (b & 0x7F) << shift;
+				shift += 7;
+			} while(b < 0);
+			return value;
+		}
+	}
+
+	IndexSegment(String[] terms, int[] postingsStart, byte[] postings, String[] conversations, int[] documentConversations,
+			long[] documentTimes, String[] documentSenders, String[] documentContents) {
+		this.terms = terms;
+		this.postingsStart = postingsStart;
+		this.postings = postings;
+		this.conversations = conversations;
+		this.documentConversations = documentConversations;
+		this.documentTimes = documentTimes;
+		this.documentSenders = documentSenders;
+		this.documentContents = documentContents;
+	}
+
+	/**
+	 * @return number of Messages of the segment
+	 */
+	public int getNbDocuments() {
+		return documentTimes.length;
+	}
+
+	/**
+	 * Add the Messages of a conversation matching a query to a list, most recent first, until the list is full.
+	 * A Message matches if it contains every phrase of the query (a single term is a phrase of one term).
+	 *
+	 * @param conversation Conversation (see SearchIndex.conversation)
+	 * @param phrases Terms of each phrase, in order
+	 * @param maxHits Maximum size of the list
+	 * @param hits List receiving the Messages found
+	 */
+	public void search(String conversation, String[][] phrases, int maxHits, List<SearchIndex.Hit> hits) {
+		int conversationIndex = Arrays.binarySearch(conversations, conversation);
+		if(conversationIndex < 0 || phrases.length == 0)
+			return;
+		List<PostingsCursor> cursorList = new ArrayList<PostingsCursor>();
+		for(String[] phrase : phrases) {
+			for(String term : phrase) {
+				int termIndex = Arrays.binarySearch(terms, term);
+				if(termIndex < 0)
+					return;
+				cursorList.add(new PostingsCursor(termIndex));
+			}
+		}
+		PostingsCursor[] cursors = cursorList.toArray(new PostingsCursor[cursorList.size()]);
+		for(PostingsCursor cursor : cursors)
+			if(!cursor.next())
+				return;
+
+		// Leapfrog intersection of the posting lists
+		int[] matches = new int[16];
+		int nbMatches = 0;
+		search:
+		while(true) {
+			int target = 0;
+			for(PostingsCursor cursor : cursors)
+				target = Math.max(target, cursor.document);
+			for(PostingsCursor cursor : cursors) {
+				while(cursor.document < target)
+					if(!cursor.next())
+						break search;
+			}
+			boolean aligned = true;
+			for(PostingsCursor cursor : cursors)
+				aligned &= cursor.document == target;
+			if(!aligned)
+				continue;
+			if(documentConversations[target] == conversationIndex && phrasesMatch(phrases, cursors)) {
+				if(nbMatches == matches.length)
+					matches = Arrays.copyOf(matches, nbMatches * 2);
+				matches[nbMatches++] = target;
+			}
+			if(!cursors[0].next())
+				break;
+		}
+		for(int i = nbMatches - 1; i >= 0 && hits.size() < maxHits; i--) {
+			int document = matches[i];
+			hits.add(new SearchIndex.Hit(documentTimes[document], documentSenders[document], documentContents[document]));
+		}
+	}
+
+	/**
+	 * @return true if the terms of each phrase are at consecutive positions in the current Message of the cursors
+	 */
+	private static boolean phrasesMatch(String[][] phrases, PostingsCursor[] cursors) {
+		int first = 0;
+		for(String[] phrase : phrases) {
+			if(phrase.length > 1 && !phraseMatches(cursors, first, phrase.length))
+				return false;
+			first += phrase.length;
+		}
+		return true;
+	}
+
+	private static boolean phraseMatches(PostingsCursor[] cursors, int first, int length) {
+		PostingsCursor start = cursors[first];
+		for(int p = 0; p < start.nbPositions; p++) {
+			int position = start.positions[p];
+			int i = 1;
+			while(i < length && cursors[first + i].hasPosition(position + i))
+				i++;
+			if(i == length)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Merge segments into a new one. Messages keep their order : the ones of the first segment, then the ones of the second...
+	 *
+	 * @param segments Segments to be merged, oldest first
+	 * @return new segment
+	 */
+	public static IndexSegment merge(List<IndexSegment> segments) {
+		TreeSet<String> allConversations = new TreeSet<String>();
+		TreeSet<String> allTerms = new TreeSet<String>();
+		int nbDocuments = 0;
+		for(IndexSegment segment : segments) {
+			allConversations.addAll(Arrays.asList(segment.conversations));
+			allTerms.addAll(Arrays.asList(segment.terms));
+			nbDocuments += segment.getNbDocuments();
+		}
+		String[] conversations = allConversations.toArray(new String[allConversations.size()]);
+		int[] documentConversations = new int[nbDocuments];
+		long[] documentTimes = new long[nbDocuments];
+		String[] documentSenders = new String[nbDocuments];
+		String[] documentContents = new String[nbDocuments];
+		int base = 0;
+		for(IndexSegment segment : segments) {
+			int nbSegmentDocuments = segment.getNbDocuments();
+			for(int d = 0; d < nbSegmentDocuments; d++) {
+				String conversation = segment.conversations[segment.documentConversations[d]];
+				documentConversations[base + d] = Arrays.binarySearch(conversations, conversation);
+			}
+			System.arraycopy(segment.documentTimes, 0, documentTimes, base, nbSegmentDocuments);
+			System.arraycopy(segment.documentSenders, 0, documentSenders, base, nbSegmentDocuments);
+			System.arraycopy(segment.documentContents, 0, documentContents, base, nbSegmentDocuments);
+			base += nbSegmentDocuments;
+		}
+
+		String[] terms = allTerms.toArray(new String[allTerms.size()]);
+		PostingsWriter[] writers = new PostingsWriter[terms.length];
+		int postingsLength = 0;
+		for(int t = 0; t < terms.length; t++) {
+			PostingsWriter writer = new PostingsWriter();
+			base = 0;
+			for(IndexSegment segment : segments) {
+				int termIndex = Arrays.binarySearch(segment.terms, terms[t]);
+				if(termIndex >= 0) {
+					PostingsCursor cursor = segment.new PostingsCursor(termIndex);
+					while(cursor.next())
+						writer.add(base + cursor.document, cursor.positions, cursor.nbPositions);
+				}
+				base += segment.getNbDocuments();
+			}
+			writers[t] = writer;
+			postingsLength += writer.getLength();
+		}
+		return build(terms, writers, postingsLength, conversations, documentConversations, documentTimes, documentSenders, documentContents);
+	}
+
+	/**
+	 * Build a segment from the postings of its terms
+	 *
+	 * @param terms Sorted terms
+	 * @param writers Postings of each term
+	 * @param postingsLength Total length of the postings
+	 */
+	static IndexSegment build(String[] terms, PostingsWriter[] writers, int postingsLength, String[] conversations, int[] documentConversations,
+			long[] documentTimes, String[] documentSenders, String[] documentContents) {
+		int[] postingsStart = new int[terms.length + 1];
+		byte[] postings = new byte[postingsLength];
+		int offset = 0;
+		for(int t = 0; t < terms.length; t++) {
+			postingsStart[t] = offset;
+			writers[t].copyTo(postings, offset);
+			offset += writers[t].getLength();
+		}
+		postingsStart[terms.length] = offset;
+		return new IndexSegment(terms, postingsStart, postings, conversations, documentConversations, documentTimes, documentSenders, documentContents);
+	}
+
+	/**
+	 * Split a text into terms : lower case sequences of letters and digits
+	 *
+	 * @param text Text to be split
+	 * @return terms, in order
+	 */
+	public static List<String> tokenize(String text) {
+		List<String> tokens = new ArrayList<String>();
+		int start = -1;
+		for(int i = 0; i <= text.length(); i++) {
+			boolean inWord = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if(inWord && start < 0) {
+				start = i;
+			} else if(!inWord && start >= 0) {
+				tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+				start = -1;
+			}
+		}
+		return tokens;
+	}
+}
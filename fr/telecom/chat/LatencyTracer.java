@@ -0,0 +1,209 @@
+package fr.telecom.chat;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class aggregates the latency of the traced Messages received by clients (see Message.FLAG_TRACED), hop by hop :
+ * from the sender to the server, in the server (queue and pending writing data), from the server to the receiver, and end to end.
+ * Hops between two hosts are measured with the clocks of both : they are as accurate as the clocks are synchronized,
+ * negative latencies (clocks too far apart) are counted as 0 and reported apart.
+ *
+ * Each hop has a log-linear histogram : exact below 16 microseconds, then 8 buckets per power of two (12.5 % precision).
+ * Histograms can be read (getPercentile) or exported as text (export).
+ * Standard Messages sent are traced one out of chat.trace.sample (default : 100, 0 for none) so that tracing stays cheap.
+ * A tracer can be shared by the sessions of many nicknames, it is thread safe.
+ *
+ */
+public class LatencyTracer {
+	/** Default number of standard Messages sent for one traced */
+	public static final int DEFAULT_SAMPLE_INTERVAL = Integer.getInteger("chat.trace.sample", 100);
+	private static final int LINEAR_BUCKETS = 16;
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	/* Exponent of the linear limit (16 = 2^4) and of the biggest value counted (2^40 microseconds, about 12 days) */
+	private static final int FIRST_EXPONENT = 4;
+	private static final int LAST_EXPONENT = 40;
+	private static final int NB_BUCKETS = LINEAR_BUCKETS + (LAST_EXPONENT - FIRST_EXPONENT) * SUB_BUCKETS;
+
+	/**
+	 * Hops of a traced Message
+	 */
+	public enum Hop {
+		/** From the client sending to the server reading the Message */
+		SENDER_TO_SERVER,
+		/** From the server reading the Message to the server writing it to the receiver */
+		SERVER,
+		/** From the server writing the Message to the receiver handling it */
+		SERVER_TO_RECEIVER,
+		/** From the client sending to the receiver handling the Message */
+		END_TO_END
+	}
+
+	private final int sampleInterval;
+	private final AtomicLong nbMessagesSent = new AtomicLong();
+	private final long[][] buckets = new long[Hop.values().length][NB_BUCKETS];
+	private final long[] nbValues = new long[Hop.values().length];
+	private final long[] nbNegativeValues = new long[Hop.values().length];
+	private final long[] sums = new long[Hop.values().length];
+	private final long[] maxValues = new long[Hop.values().length];
+
+	/**
+	 * Create a tracer sampling one standard Message out of chat.trace.sample
+	 */
+	public LatencyTracer() {
+		this(DEFAULT_SAMPLE_INTERVAL);
+	}
+
+	/**
+	 * Create a tracer
+	 *
+	 * @param sampleInterval Number of standard Messages sent for one traced, 0 to trace none (traces received are still recorded)
+	 */
+	public LatencyTracer(int sampleInterval) {
+		this.sampleInterval = sampleInterval;
+	}
+
+	/**
+	 * Tell whether the next standard Message sent must be traced
+	 *
+	 * @return true one time out of the sample interval
+	 */
+	public boolean sample() {
+		return sampleInterval > 0 && nbMessagesSent.getAndIncrement() % sampleInterval == 0;
+	}
+
+	/**
+	 * Record the latencies of a traced Message. Traces missing a timestamp are ignored.
+	 *
+	 * @param msg Message received
+	 * @param receivedTime Time the Message has been received by the client, in microseconds since the epoch
+	 */
+	public synchronized void record(Message msg, long receivedTime) {
+		long sent = msg.getTrace(Message.TRACE_SENT);
+		long serverReceived = msg.getTrace(Message.TRACE_RECEIVED);
+		long serverWritten = msg.getTrace(Message.TRACE_WRITTEN);
+		if(sent == 0 || serverReceived == 0 || serverWritten == 0)
+			return;
+		add(Hop.SENDER_TO_SERVER, serverReceived - sent);
+		add(Hop.SERVER, serverWritten - serverReceived);
+		add(Hop.SERVER_TO_RECEIVER, receivedTime - serverWritten);
+		add(Hop.END_TO_END, receivedTime - sent);
+	}
+
+	/**
+	 * @param hop Hop
+	 * @return number of latencies recorded for the hop
+	 */
+	public synchronized long getCount(Hop hop) {
+		return nbValues[hop.ordinal()];
+	}
+
+	/**
+	 * Get a percentile of the latencies of a hop
+	 *
+	 * @param hop Hop
+	 * @param percentile Percentile, between 0 and 100
+	 * @return upper bound of the bucket of the percentile in microseconds, 0 if nothing has been recorded
+	 */
+	public synchronized long getPercentile(Hop hop, double percentile) {
+		long[] hopBuckets = buckets[hop.ordinal()];
+		long rank = (long) Math.ceil(nbValues[hop.ordinal()] * percentile / 100);
+		long nbValuesSeen = 0;
+		for(int bucket = 0; bucket < NB_BUCKETS; bucket++) {
+			nbValuesSeen += hopBuckets[bucket];
+			if(nbValuesSeen > 0 && nbValuesSeen >= rank)
+				return Math.min(upperBound(bucket), maxValues[hop.ordinal()]);
+		}
+		return 0;
+	}
+
+	/**
+	 * Export the histograms as text, one line per hop followed by one line per bucket that is not empty :
+	 * "hop count=... negative=... mean=... p50=... p90=... p99=... max=..." then "hop upperBound count", latencies in microseconds.
+	 *
+	 * @param out Destination of the text
+	 * @throws IOException if the text can not be written
+	 */
+	public synchronized void export(Appendable out) throws IOException {
+		for(Hop hop : Hop.values()) {
+			int h = hop.ordinal();
+			out.append(hop.name())
+				.append(" count=").append(String.valueOf(nbValues[h]))
+				.append(" negative=").append(String.valueOf(nbNegativeValues[h]))
+				.append(" mean=").append(String.valueOf(nbValues[h] > 0 ? sums[h] / nbValues[h] : 0))
+				.append(" p50=").append(String.valueOf(getPercentile(hop, 50)))
+				.append(" p90=").append(String.valueOf(getPercentile(hop, 90)))
+				.append(" p99=").append(String.valueOf(getPercentile(hop, 99)))
+				.append(" max=").append(String.valueOf(maxValues[h]))
+				.append('\n');
+			for(int bucket = 0; bucket < NB_BUCKETS; bucket++) {
+				if(buckets[h][bucket] > 0)
+					out.append(hop.name()).append(' ').append(String.valueOf(upperBound(bucket)))
+						.append(' ').append(String.valueOf(buckets[h][bucket])).append('\n');
+			}
+		}
+	}
+
+	/**
+	 * Forget the latencies recorded
+	 */
+	public synchronized void reset() {
+		for(int h = 0; h < buckets.length; h++) {
+			Arrays.fill(buckets[h], 0);
+			nbValues[h] = 0;
+			nbNegativeValues[h] = 0;
+			sums[h] = 0;
+			maxValues[h] = 0;
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		for(Hop hop : Hop.values())
+			text.append(hop.name()).append(" p50=").append(getPercentile(hop, 50)).append(" p99=").append(getPercentile(hop, 99)).append(' ');
+		return text.toString().trim();
+	}
+
+	private void add(Hop hop, long latency) {
+		int h = hop.ordinal();
+		if(latency < 0) {
+			nbNegativeValues[h]++;
+			latency = 0;
+		}
+		buckets[h][bucket(latency)]++;
+		nbValues[h]++;
+		sums[h] += latency;
+		maxValues[h] = Math.max(maxValues[h], latency);
+	}
+
+	/**
+	 * @param value Latency in microseconds
+	 * @return bucket of the latency, the last one for latencies too big
+	 */
+	private static int bucket(long value) {
+		if(value < LINEAR_BUCKETS)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if(exponent >= LAST_EXPONENT)
+			return NB_BUCKETS - 1;
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return LINEAR_BUCKETS + (exponent - FIRST_EXPONENT) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * @param bucket Bucket
+	 * @return biggest latency counted in the bucket, in microseconds
+	 */
+	private static long upperBound(int bucket) {
+		if(bucket < LINEAR_BUCKETS)
+			return bucket;
+		int exponent = FIRST_EXPONENT + (bucket - LINEAR_BUCKETS) / SUB_BUCKETS;
+		int subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+		return (1L << exponent) + ((long) (subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+}
@@ -0,0 +1,402 @@
+package fr.telecom.chat;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.AbstractSelectableChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class is a Transport between a server and clients running in the same JVM, without any socket :
+ * protocol and routing can be measured and tested without the cost and the variations of the network stack.
+ *
+ * Servers listen on ports of an in-memory registry shared by the JVM (see getInstance), the host given by clients is ignored.
+ * Each direction of a connection is a lock-free ByteRing of chat.loopback.bufferSize bytes (default : 65536) : as with TCP,
+ * the writer is told to wait for OP_WRITE when the ring of its peer is full. Closing a channel is seen by its peer as the end of the stream.
+ *
+ * Keys are handled by the transport, not by the Selector : their readiness is computed from the state of the rings each time the loop
+ * asks for it (every key of the Selector is checked), and the Selector is woken up when data arrive for a key that is interested in them.
+ * Wakeups of a Selector are not repeated until its loop has checked the keys again.
+ *
+ */
+public class LoopbackTransport implements Transport {
+	private static final int BUFFER_SIZE = Integer.getInteger("chat.loopback.bufferSize", 65536);
+	private static final LoopbackTransport INSTANCE = new LoopbackTransport();
+
+	private final ConcurrentMap<Integer, ListeningChannel> listeningChannels = new ConcurrentHashMap<Integer, ListeningChannel>();
+	private final Map<Selector, SelectorState> selectorStates = new ConcurrentHashMap<Selector, SelectorState>();
+
+	/**
+	 * @return transport shared by the servers and clients of the JVM
+	 */
+	public static LoopbackTransport getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @param selector Selector of the server
+	 * @param port Port to listen on
+	 * @return SelectionKey of the listening channel
+	 * @throws IOException if a server already listens on the port
+	 */
+	public SelectionKey listen(Selector selector, int port) throws IOException {
+		ListeningChannel listeningChannel = new ListeningChannel(port);
+		if(listeningChannels.putIfAbsent(port, listeningChannel) != null)
+			throw new BindException("Loopback port " + port + " is already used");
+		return register(listeningChannel, selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * @param listeningKey SelectionKey given by listen
+	 * @param selector Selector of the server
+	 * @return SelectionKey of the server side of the connection, null if no connection is pending
+	 * @throws IOException if the Selector is closed
+	 */
+	public SelectionKey accept(SelectionKey listeningKey, Selector selector) throws IOException {
+		LoopbackChannel channel = ((ListeningChannel) listeningKey.channel()).pendingConnections.poll();
+		if(channel == null)
+			return null;
+		return register(channel, selector, SelectionKey.OP_READ);
+	}
+
+	/**
+	 * The connection is made at once, it is connectable as soon as the loop checks its key
+	 *
+	 * @param selector Selector of the client
+	 * @param host Ignored
+	 * @param port Port of the server
+	 * @return SelectionKey of the client side of the connection
+	 * @throws IOException if no server listens on the port
+	 */
+	public SelectionKey connect(Selector selector, String host, int port) throws IOException {
+		ListeningChannel listeningChannel = listeningChannels.get(port);
+		if(listeningChannel == null || !listeningChannel.isOpen())
+			throw new ConnectException("Connection refused by loopback port " + port);
+		ByteRing toServer = new ByteRing(BUFFER_SIZE);
+		ByteRing toClient = new ByteRing(BUFFER_SIZE);
+		LoopbackChannel clientChannel = new LoopbackChannel(toClient, toServer);
+		LoopbackChannel serverChannel = new LoopbackChannel(toServer, toClient);
+		clientChannel.peer = serverChannel;
+		serverChannel.peer = clientChannel;
+		clientChannel.connectionPending = true;
+		SelectionKey key = register(clientChannel, selector, SelectionKey.OP_CONNECT);
+		listeningChannel.pendingConnections.offer(serverChannel);
+		listeningChannel.signal(SelectionKey.OP_ACCEPT);
+		return key;
+	}
+
+	/**
+	 * @param key SelectionKey given by connect
+	 * @return true if the connection was pending
+	 * @throws IOException if the channel is closed
+	 */
+	public boolean finishConnect(SelectionKey key) throws IOException {
+		LoopbackChannel channel = (LoopbackChannel) key.channel();
+		if(!channel.isOpen())
+			throw new ClosedChannelException();
+		boolean pending = channel.connectionPending;
+		channel.connectionPending = false;
+		return pending;
+	}
+
+	/**
+	 * Forget the keys that have been cancelled and allow the Selector to be woken up again
+	 *
+	 * @param selector Selector of the loop
+	 * @return true if one of the keys of the Selector is ready
+	 */
+	public boolean hasReadyKeys(Selector selector) {
+		SelectorState state = selectorStates.get(selector);
+		if(state == null)
+			return false;
+		// Data arriving from now on wake the Selector up again
+		state.wakeupPending.set(false);
+		boolean ready = false;
+		Iterator<LoopbackKey> keyIterator = state.keys.iterator();
+		while(keyIterator.hasNext()) {
+			LoopbackKey key = keyIterator.next();
+			if(!key.isValid())
+				keyIterator.remove();
+			else if(!ready)
+				ready = key.readyOps() != 0;
+		}
+		return ready;
+	}
+
+	/**
+	 * @param selector Selector of the loop
+	 * @return keys of the Selector that are ready, the same set is reused by the following calls
+	 */
+	public Set<SelectionKey> selectedKeys(Selector selector) {
+		SelectorState state = selectorStates.get(selector);
+		if(state == null)
+			return Collections.emptySet();
+		state.selectedKeys.clear();
+		for(LoopbackKey key : state.keys)
+			if(key.isValid() && key.readyOps() != 0)
+				state.selectedKeys.add(key);
+		return state.selectedKeys;
+	}
+
+	/**
+	 * Create the key of a channel. Called on the thread of the Selector.
+	 * States of the Selectors that have been closed are forgotten.
+	 */
+	private SelectionKey register(LoopbackEndpoint channel, Selector selector, int ops) throws IOException {
+		if(!selector.isOpen())
+			throw new ClosedChannelException();
+		SelectorState state = selectorStates.get(selector);
+		if(state == null) {
+			Iterator<Selector> selectorIterator = selectorStates.keySet().iterator();
+			while(selectorIterator.hasNext())
+				if(!selectorIterator.next().isOpen())
+					selectorIterator.remove();
+			state = new SelectorState(selector);
+			selectorStates.put(selector, state);
+		}
+		channel.configureBlocking(false);
+		LoopbackKey key = new LoopbackKey(channel, selector, state, ops);
+		state.keys.add(key);
+		channel.key = key;
+		return key;
+	}
+
+	/**
+	 * Keys of a Selector, only used by the thread of the Selector, and its wakeups
+	 */
+	private static class SelectorState {
+		private final Selector selector;
+		private final List<LoopbackKey> keys = new ArrayList<LoopbackKey>();
+		private final Set<SelectionKey> selectedKeys = new HashSet<SelectionKey>();
+		/* true while a wakeup has been requested and the loop has not checked the keys since */
+		private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+
+		private SelectorState(Selector selector) {
+			this.selector = selector;
+		}
+
+		/**
+		 * Wake the Selector up unless a wakeup is already pending. Called from any thread.
+		 */
+		private void wakeup() {
+			if(wakeupPending.compareAndSet(false, true))
+				selector.wakeup();
+		}
+	}
+
+	/**
+	 * Key of a channel of the transport, its ready operations are computed from the state of the channel
+	 */
+	private static class LoopbackKey extends SelectionKey {
+		private final LoopbackEndpoint channel;
+		private final Selector selector;
+		private final SelectorState state;
+		private volatile int interestOps;
+		private volatile boolean valid = true;
+
+		private LoopbackKey(LoopbackEndpoint channel, Selector selector, SelectorState state, int interestOps) {
+			this.channel = channel;
+			this.selector = selector;
+			this.state = state;
+			this.interestOps = interestOps;
+		}
+
+		public SelectableChannel channel() {
+			return channel;
+		}
+
+		public Selector selector() {
+			return selector;
+		}
+
+		public boolean isValid() {
+			return valid;
+		}
+
+		public void cancel() {
+			valid = false;
+		}
+
+		public int interestOps() {
+			if(!valid)
+				throw new CancelledKeyException();
+			return interestOps;
+		}
+
+		public SelectionKey interestOps(int ops) {
+			if(!valid)
+				throw new CancelledKeyException();
+			if((ops & ~channel.validOps()) != 0)
+				throw new IllegalArgumentException("Invalid operations " + ops);
+			interestOps = ops;
+			return this;
+		}
+
+		public int readyOps() {
+			if(!valid)
+				throw new CancelledKeyException();
+			return channel.readyOps() & interestOps;
+		}
+	}
+
+	/**
+	 * Channel of the transport, never registered with a Selector : its key is created by the transport
+	 */
+	private abstract static class LoopbackEndpoint extends AbstractSelectableChannel {
+		protected volatile LoopbackKey key;
+
+		protected LoopbackEndpoint() {
+			super(SelectorProvider.provider());
+		}
+
+		/**
+		 * @return operations that can be done without waiting
+		 */
+		protected abstract int readyOps();
+
+		/**
+		 * Wake the Selector of the key up if the key is interested in one of the operations. Called from any thread.
+		 *
+		 * @param ops Operations that may have become ready
+		 */
+		protected void signal(int ops) {
+			LoopbackKey currentKey = key;
+			if(currentKey != null && currentKey.valid && (currentKey.interestOps & ops) != 0)
+				currentKey.state.wakeup();
+		}
+
+		protected void implConfigureBlocking(boolean block) throws IOException {
+			if(block)
+				throw new IllegalBlockingModeException();
+		}
+	}
+
+	/**
+	 * Listening channel of a port, connections wait in a queue until they are accepted
+	 */
+	private class ListeningChannel extends LoopbackEndpoint {
+		private final int port;
+		private final ConcurrentLinkedQueue<LoopbackChannel> pendingConnections = new ConcurrentLinkedQueue<LoopbackChannel>();
+
+		private ListeningChannel(int port) {
+			this.port = port;
+		}
+
+		public int validOps() {
+			return SelectionKey.OP_ACCEPT;
+		}
+
+		protected int readyOps() {
+			return pendingConnections.isEmpty() ? 0 : SelectionKey.OP_ACCEPT;
+		}
+
+		/**
+		 * Free the port and refuse the connections that have not been accepted
+		 */
+		protected void implCloseSelectableChannel() throws IOException {
+			listeningChannels.remove(port, this);
+			LoopbackChannel channel;
+			while((channel = pendingConnections.poll()) != null)
+				channel.close();
+			if(key != null)
+				key.cancel();
+		}
+	}
+
+	/**
+	 * One side of a connection : it reads the ring written by its peer and writes the ring read by its peer
+	 */
+	private static class LoopbackChannel extends LoopbackEndpoint implements ByteChannel {
+		private final ByteRing in;
+		private final ByteRing out;
+		private LoopbackChannel peer;
+		private boolean connectionPending = false;
+
+		private LoopbackChannel(ByteRing in, ByteRing out) {
+			this.in = in;
+			this.out = out;
+		}
+
+		public int validOps() {
+			return SelectionKey.OP_CONNECT | SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+		}
+
+		/**
+		 * Readable when data or the end of the stream can be read, writable when data can be written or writing will fail
+		 */
+		protected int readyOps() {
+			int ops = 0;
+			if(connectionPending)
+				ops |= SelectionKey.OP_CONNECT;
+			if(in.isReadable() || in.isWriterClosed())
+				ops |= SelectionKey.OP_READ;
+			if(out.isWritable() || out.isReaderClosed())
+				ops |= SelectionKey.OP_WRITE;
+			return ops;
+		}
+
+		/**
+		 * @param dst Buffer receiving the data
+		 * @return number of bytes read, -1 at the end of the stream
+		 * @throws IOException if the channel is closed
+		 */
+		public int read(ByteBuffer dst) throws IOException {
+			if(!isOpen())
+				throw new ClosedChannelException();
+			int nbBytesRead = in.read(dst);
+			if(nbBytesRead > 0)
+				peer.signal(SelectionKey.OP_WRITE);
+			else if(dst.hasRemaining() && in.isWriterClosed() && !in.isReadable())
+				return -1;
+			return nbBytesRead;
+		}
+
+		/**
+		 * @param src Data to be written
+		 * @return number of bytes written, 0 if the ring of the peer is full
+		 * @throws IOException if the channel or its peer is closed
+		 */
+		public int write(ByteBuffer src) throws IOException {
+			if(!isOpen())
+				throw new ClosedChannelException();
+			if(out.isReaderClosed())
+				throw new IOException("Loopback connection closed by peer");
+			int nbBytesWritten = out.write(src);
+			if(nbBytesWritten > 0)
+				peer.signal(SelectionKey.OP_READ);
+			return nbBytesWritten;
+		}
+
+		/**
+		 * The peer reads the end of the stream and can not write anymore
+		 */
+		protected void implCloseSelectableChannel() throws IOException {
+			in.closeReader();
+			out.closeWriter();
+			if(key != null)
+				key.cancel();
+			peer.signal(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	}
+}
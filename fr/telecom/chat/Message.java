@@ -1,12 +1,25 @@
 package fr.telecom.chat;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
 
 /**
  * @author Tristan Klempka and Valentin Roussel - 2015
  * 
  * Class that represent our new communication protocol called "MESSAGE".
  * Structure of the protocol : [size (2 bytes), type (2 bytes), sender (12 bytes), receiver (12 bytes), content (1024 - 28 = 996 bytes)]
+ * Strings are encoded in UTF-8, the size field is the number of bytes of the whole Message.
+ * The low 7 bits of the type field contain the Message type, the other bits contain flags (see FLAG_* constants).
+ * 
+ * Compact Messages (FLAG_COMPACT) address clients by the session ID given by the server instead of their nickname :
+ * [size (2 bytes), type (2 bytes), sender ID (4 bytes), receiver ID (4 bytes), content (996 bytes)]
+ * 
+ * Sequenced Messages (FLAG_SEQUENCED) have a sequence number (4 bytes) between the receiver and the content.
+ * 
+ * Traced Messages (FLAG_TRACED) have a trace (3 timestamps of 8 bytes, in microseconds since the epoch) after the sequence number :
+ * sent by the client, received by the server, written by the server to the receiver.
  *
  */
 public class Message {
@@ -17,6 +30,17 @@ public class Message {
 		STANDARD,
 		CLIENT_CONNECTED,
 		CLIENT_DISCONNECTED,
+		PRESENCE,
+		RESUME,
+		ACK,
+		SEARCH,
+		FILE_OFFER,
+		FILE_ACCEPT,
+		FILE_CANCEL,
+		FILE_UPLOAD,
+		FILE_DOWNLOAD,
+		SIGNAL,
+		NACK,
 		BAD_MESSAGE
 	}
 
@@ -36,6 +60,28 @@ public class Message {
 			return 4;
 			case CLIENT_DISCONNECTED :
 			return 5;
+			case PRESENCE :
+			return 6;
+			case RESUME :
+			return 7;
+			case ACK :
+			return 8;
+			case SEARCH :
+			return 9;
+			case FILE_OFFER :
+			return 10;
+			case FILE_ACCEPT :
+			return 11;
+			case FILE_CANCEL :
+			return 12;
+			case FILE_UPLOAD :
+			return 13;
+			case FILE_DOWNLOAD :
+			return 14;
+			case SIGNAL :
+			return 15;
+			case NACK :
+			return 16;
 			case BAD_MESSAGE:
 			default:
 			return 99;
@@ -58,21 +104,87 @@ public class Message {
 			return Type.CLIENT_CONNECTED;
 			case 5 :
 			return Type.CLIENT_DISCONNECTED;
+			case 6 :
+			return Type.PRESENCE;
+			case 7 :
+			return Type.RESUME;
+			case 8 :
+			return Type.ACK;
+			case 9 :
+			return Type.SEARCH;
+			case 10 :
+			return Type.FILE_OFFER;
+			case 11 :
+			return Type.FILE_ACCEPT;
+			case 12 :
+			return Type.FILE_CANCEL;
+			case 13 :
+			return Type.FILE_UPLOAD;
+			case 14 :
+			return Type.FILE_DOWNLOAD;
+			case 15 :
+			return Type.SIGNAL;
+			case 16 :
+			return Type.NACK;
 			case 99:
 			default:
 			return Type.BAD_MESSAGE;
 		}
 	}
 	
+	public static final int MAX_CONTENT_SIZE = 996;
+	/* Flags of the type field */
+	/** Content is compressed (see PayloadCompressor) */
+	public static final short FLAG_COMPRESSED = 0x0100;
+	/** Set on CONNECTION messages by a peer able to receive compressed content */
+	public static final short FLAG_COMPRESSION_SUPPORTED = 0x0200;
+	/** Set on CONNECTION messages by a peer that wants to use session IDs (see FLAG_COMPACT) */
+	public static final short FLAG_SESSION_IDS = 0x0400;
+	/** Header contains session IDs instead of nicknames */
+	public static final short FLAG_COMPACT = 0x0800;
+	/** Header contains a sequence number (conversation sequence for standard messages, presence version for presence messages) */
+	public static final short FLAG_SEQUENCED = 0x1000;
+	/** Set on CONNECTION messages by a peer able to resume its session after a connection loss */
+	public static final short FLAG_RESUME_SUPPORTED = 0x2000;
+	/** Set on CONNECTION messages by a peer using reliable delivery (standard messages are numbered and acknowledged) */
+	public static final short FLAG_RELIABLE = 0x4000;
+	/** Set on CONNECTION messages by a peer that wants to use the UDP side channel (see SignalChannel) */
+	public static final short FLAG_SIGNALS = (short) 0x8000;
+	/** Header contains a trace (see getTrace). Set on CONNECTION messages by a peer able to receive traces */
+	public static final short FLAG_TRACED = 0x0080;
+	/* Trace timestamps, in microseconds since the epoch */
+	/** Index of the time the Message was sent by its client */
+	public static final int TRACE_SENT = 0;
+	/** Index of the time the Message was received by the server */
+	public static final int TRACE_RECEIVED = 1;
+	/** Index of the time the Message was written by the server to its receiver */
+	public static final int TRACE_WRITTEN = 2;
+	private static final short TYPE_MASK = 0x007F;
 	private static final int SHORT_SIZE = 2;
-	private static final int HEADER_SIZE = 28;
-	private static final int HEADER_NICKNAME_SIZE = 12;
+	static final int HEADER_SIZE = 28;
+	static final int HEADER_NICKNAME_SIZE = 12;
+	static final int COMPACT_HEADER_SIZE = 12;
+	static final int SEQUENCE_SIZE = 4;
+	static final int TRACE_SIZE = 24;
+	/** Biggest header : nicknames, sequence number and trace */
+	static final int MAX_HEADER_SIZE = HEADER_SIZE + SEQUENCE_SIZE + TRACE_SIZE;
+	/** Biggest Message that can be read or written, in bytes */
+	public static final int MAX_SIZE = MAX_HEADER_SIZE + MAX_CONTENT_SIZE;
 	private String content;
+	private byte[] compressedContent;
+	/* Number of bytes of compressedContent, it may be the output buffer of a PayloadCompressor (see setCompressedContent) */
+	private int compressedLength;
+	private boolean isCompressedContentShared;
 	private String from;
 	private String to;
+	private int fromId;
+	private int toId;
+	private int sequence;
+	private long[] trace;
 	private short size;
 	private short type;
 	private boolean isValid = false;
+	private boolean isMalformed = false;
 	
 	/**
 	 * Allows user to construct a ready to be sent ByteBuffer from Message
@@ -80,46 +192,120 @@ public class Message {
 	 * @return ByteBuffer representing the message
 	 */
 	public ByteBuffer constructByteBuffer() {
-		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
-		header.putShort(size);
-		header.putShort(type);
-		header.put(from.getBytes());
-		header.put(to.getBytes());
-		header.flip();
-		ByteBuffer bufferContent = ByteBuffer.wrap(content.getBytes());
-		ByteBuffer msg = ByteBuffer.allocate(header.capacity() + bufferContent.capacity()).put(header).put(bufferContent);
+		ByteBuffer msg = ByteBuffer.allocate(getMaxEncodedSize(MessageEncoder.get()));
+		writeTo(msg);
 		msg.flip();
 		return msg;
 	}
 	
+	/**
+	 * Allows user to write the Message directly at the position of a buffer, usually the pending writing data of a connection.
+	 * Nothing is allocated : strings are encoded in UTF-8 by an encoder owned by the current thread.
+	 * 
+	 * @param out Buffer in writing mode
+	 * @return false if the buffer has not enough space for the Message, nothing is written in this case
+	 */
+	public boolean writeTo(ByteBuffer out) {
+		MessageEncoder encoder = MessageEncoder.get();
+		if(out.remaining() < getMaxEncodedSize(encoder))
+			return false;
+		if(isCompact())
+			size = (short)encoder.encodeCompact(type, fromId, toId, sequence, trace, content, compressedContent, compressedLength, out);
+		else
+			size = (short)encoder.encode(type, from, to, sequence, trace, content, compressedContent, compressedLength, out);
+		return true;
+	}
+	
+	/**
+	 * @return number of bytes needed in the worst case to write the Message as it is
+	 */
+	int getMaxEncodedSize() {
+		return getMaxEncodedSize(MessageEncoder.get());
+	}
+	
+	/**
+	 * @return number of bytes needed in the worst case to write the Message
+	 */
+	private int getMaxEncodedSize(MessageEncoder encoder) {
+		int headerSize = headerSize(type);
+		if(isCompressed())
+			return headerSize + compressedLength;
+		return headerSize + Math.min(MAX_CONTENT_SIZE, content.length() * encoder.maxBytesPerChar());
+	}
+	
+	/**
+	 * @param type Type field, with its flags
+	 * @return number of bytes of the header of a Message of this type
+	 */
+	private static int headerSize(short type) {
+		int headerSize = (type & FLAG_COMPACT) != 0 ? COMPACT_HEADER_SIZE : HEADER_SIZE;
+		if((type & FLAG_SEQUENCED) != 0)
+			headerSize += SEQUENCE_SIZE;
+		if((type & FLAG_TRACED) != 0)
+			headerSize += TRACE_SIZE;
+		return headerSize;
+	}
+	
 	/**
 	 * Allows user to construct a Message directly from a ByteBuffer. This method verifies if the ByteBuffer contains a valid message. If not, it rewinds to allow data to be treated after.
+	 * A size smaller than the header given by the flags or bigger than MAX_SIZE can never be completed : the Message is malformed
+	 * (see isMalformed), the buffer is left untouched and the connection should be closed.
 	 * 
 	 * @param buffer ByteBuffer containing data to construct the Message
 	 * @return true if the Message constructed is valid
 	 */
 	
 	public boolean ConstructFromByteBuffer(ByteBuffer buffer) {
-		if(buffer.remaining() < HEADER_SIZE) {
+		if(buffer.remaining() < COMPACT_HEADER_SIZE) {
 			isValid = false;
 			return isValid;
 		}	
-		this.size = buffer.getShort();
+		this.size = buffer.getShort(buffer.position());
+		short typeField = buffer.getShort(buffer.position() + SHORT_SIZE);
+		if(size < headerSize(typeField) || size > MAX_SIZE) {
+			isMalformed = true;
+			isValid = false;
+			return isValid;
+		}
+		buffer.getShort();
 		if (buffer.remaining() < size - SHORT_SIZE) {
 			buffer.rewind();
 			isValid = false;
 			return isValid;
 		}
 		this.type = buffer.getShort();
-		byte[] byteArrayFrom = new byte[HEADER_NICKNAME_SIZE];
-		buffer.get(byteArrayFrom, 0, HEADER_NICKNAME_SIZE);
-		this.from = new String(byteArrayFrom);
-		byte[] byteArrayTo = new byte[HEADER_NICKNAME_SIZE];
-		buffer.get(byteArrayTo, 0, HEADER_NICKNAME_SIZE);
-		this.to = new String(byteArrayTo);
-		byte[] byteArrayContent = new byte[this.size - HEADER_SIZE];
-		buffer.get(byteArrayContent, 0, this.size - HEADER_SIZE);
-		this.content = new String(byteArrayContent);
+		int headerSize;
+		if(isCompact()) {
+			headerSize = COMPACT_HEADER_SIZE;
+			this.fromId = buffer.getInt();
+			this.toId = buffer.getInt();
+		} else {
+			headerSize = HEADER_SIZE;
+			byte[] byteArrayFrom = new byte[HEADER_NICKNAME_SIZE];
+			buffer.get(byteArrayFrom, 0, HEADER_NICKNAME_SIZE);
+			this.from = new String(byteArrayFrom, StandardCharsets.UTF_8);
+			byte[] byteArrayTo = new byte[HEADER_NICKNAME_SIZE];
+			buffer.get(byteArrayTo, 0, HEADER_NICKNAME_SIZE);
+			this.to = new String(byteArrayTo, StandardCharsets.UTF_8);
+		}
+		if(isSequenced()) {
+			headerSize += SEQUENCE_SIZE;
+			this.sequence = buffer.getInt();
+		}
+		if(isTraced()) {
+			headerSize += TRACE_SIZE;
+			this.trace = new long[] {buffer.getLong(), buffer.getLong(), buffer.getLong()};
+		}
+		byte[] byteArrayContent = new byte[this.size - headerSize];
+		buffer.get(byteArrayContent, 0, this.size - headerSize);
+		if(isCompressed()) {
+			this.compressedContent = byteArrayContent;
+			this.compressedLength = byteArrayContent.length;
+			this.isCompressedContentShared = false;
+			this.content = null;
+		} else {
+			this.content = new String(byteArrayContent, StandardCharsets.UTF_8);
+		}
 		isValid = true;
 		return isValid;
 		
@@ -141,14 +327,31 @@ public class Message {
 	 * @param type
 	 */
 	public Message(String messageContent, String from, String to, Message.Type type) {
-		this.content = messageContent.substring(0, 996);
+		this.content = messageContent.substring(0, Math.min(messageContent.length(), MAX_CONTENT_SIZE));
 		this.from = formatToHeaderString(from);
 		this.to = formatToHeaderString(to);
 		this.type = MessageTypetoShort(type);
-		size = (short)(HEADER_SIZE + messageContent.length()); 
+		size = (short)(HEADER_SIZE + content.length()); 
 		isValid = true;
 		
 	}
+	
+	/**
+	 * Constructor to create a full valid compact Message
+	 * 
+	 * @param messageContent 
+	 * @param fromId Session ID of the sender
+	 * @param toId Session ID of the receiver
+	 * @param type
+	 */
+	public Message(String messageContent, int fromId, int toId, Message.Type type) {
+		this.content = messageContent.substring(0, Math.min(messageContent.length(), MAX_CONTENT_SIZE));
+		this.fromId = fromId;
+		this.toId = toId;
+		this.type = (short)(MessageTypetoShort(type) | FLAG_COMPACT);
+		size = (short)(COMPACT_HEADER_SIZE + content.length()); 
+		isValid = true;
+	}
 
 	/**
 	 * Format a string to header format
@@ -169,13 +372,15 @@ public class Message {
 	 * @return string that can be read by humans. Example : [Valentin   ] => [Valentin] 
 	 */
 	private String formatToReadableString(String str) {
+		if(str == null)
+			return "";
 		return str.replace("\0", "");
 	}
 	
 	/**
 	 * Get Message content
 	 * 
-	 * @return Message content
+	 * @return Message content, null if the content is still compressed
 	 */
 	public String getContent() {
 		return content;
@@ -196,13 +401,118 @@ public class Message {
 	public String getTo() {
 		return formatToReadableString(to);
 	}
+	/**
+	 * Get session ID of the sender of a compact Message
+	 * 
+	 * @return Session ID of the sender
+	 */
+	public int getFromId() {
+		return fromId;
+	}
+	/**
+	 * Get session ID of the receiver of a compact Message
+	 * 
+	 * @return Session ID of the receiver
+	 */
+	public int getToId() {
+		return toId;
+	}
+	/**
+	 * Get sequence number of a sequenced Message
+	 * 
+	 * @return Sequence number
+	 */
+	public int getSequence() {
+		return sequence;
+	}
+	/**
+	 * Get a timestamp of the trace of a traced Message
+	 * 
+	 * @param index TRACE_SENT, TRACE_RECEIVED or TRACE_WRITTEN
+	 * @return timestamp in microseconds since the epoch, 0 if it has not been set
+	 */
+	public long getTrace(int index) {
+		return trace != null ? trace[index] : 0;
+	}
+	/**
+	 * Get the offset of the TRACE_WRITTEN timestamp in the bytes of the Message, from the size field
+	 * 
+	 * @return offset of the timestamp written by the server
+	 */
+	public int getWrittenTraceOffset() {
+		int headerSize = isCompact() ? COMPACT_HEADER_SIZE : HEADER_SIZE;
+		if(isSequenced())
+			headerSize += SEQUENCE_SIZE;
+		return headerSize + 8 * TRACE_WRITTEN;
+	}
+	/**
+	 * Get the size of the Message, known once it has been written or read
+	 * 
+	 * @return number of bytes of the Message
+	 */
+	public int getSize() {
+		return size;
+	}
+	/**
+	 * Message has a trace ?
+	 * 
+	 * @return true if the header contains a trace
+	 */
+	public boolean isTraced() {
+		return hasFlag(FLAG_TRACED);
+	}
+	/**
+	 * Message has a sequence number ?
+	 * 
+	 * @return true if the header contains a sequence number
+	 */
+	public boolean isSequenced() {
+		return hasFlag(FLAG_SEQUENCED);
+	}
+	/**
+	 * Message addresses clients by session ID ?
+	 * 
+	 * @return true if the header contains session IDs
+	 */
+	public boolean isCompact() {
+		return hasFlag(FLAG_COMPACT);
+	}
 	/**
 	 * Get Message type
 	 * 
 	 * @return Message type
 	 */
 	public Type getType() {
-		return ShortToTypeMessage(type);
+		return ShortToTypeMessage((short)(type & TYPE_MASK));
+	}
+	/**
+	 * Get compressed Message content. Content still in the output buffer of a PayloadCompressor is copied first.
+	 * 
+	 * @return compressed content, null if the Message is not compressed
+	 */
+	public byte[] getCompressedContent() {
+		if(isCompressedContentShared) {
+			compressedContent = Arrays.copyOf(compressedContent, compressedLength);
+			isCompressedContentShared = false;
+		}
+		return compressedContent;
+	}
+	/**
+	 * Message content is compressed ?
+	 * 
+	 * @return true if content is compressed
+	 */
+	public boolean isCompressed() {
+		return hasFlag(FLAG_COMPRESSED);
+	}
+	/**
+	 * Flag is set ?
+	 * 
+	 * @param flag One of the FLAG_* constants
+	 * @return true if the flag is set in the header
+	 */
+	public boolean hasFlag(short flag) {
+		return (type & flag) != 0;
 	}
 	/**
 	 * Message is valid ?
@@ -212,6 +522,14 @@ public class Message {
 	public boolean isValid() {
 		return isValid;
 	}
+	/**
+	 * Message is malformed ?
+	 * 
+	 * @return true if the size read by ConstructFromByteBuffer does not match the header, the connection should be closed
+	 */
+	public boolean isMalformed() {
+		return isMalformed;
+	}
 	
 	/**
 	 * Set new receiver
@@ -235,12 +553,144 @@ public class Message {
 	 * @param type New Message type
 	 */
 	public void setType(Type type) {
-		this.type = MessageTypetoShort(type);
+		this.type = (short)((this.type & ~TYPE_MASK) | MessageTypetoShort(type));
+	}
+	/**
+	 * Set a flag in the header
+	 * 
+	 * @param flag One of the FLAG_* constants
+	 */
+	public void setFlag(short flag) {
+		this.type |= flag;
+	}
+	/**
+	 * Set the sequence number. Message is flagged as sequenced.
+	 * 
+	 * @param sequence Sequence number
+	 */
+	public void setSequence(int sequence) {
+		this.sequence = sequence;
+		this.type |= FLAG_SEQUENCED;
+	}
+	/**
+	 * Remove the sequence number. Message is not flagged as sequenced anymore.
+	 */
+	public void clearSequence() {
+		this.sequence = 0;
+		this.type &= ~FLAG_SEQUENCED;
+	}
+	/**
+	 * Set a timestamp of the trace. Message is flagged as traced.
+	 * 
+	 * @param index TRACE_SENT, TRACE_RECEIVED or TRACE_WRITTEN
+	 * @param time Timestamp in microseconds since the epoch (see currentTimeMicros)
+	 */
+	public void setTrace(int index, long time) {
+		if(trace == null)
+			trace = new long[3];
+		trace[index] = time;
+		this.type |= FLAG_TRACED;
+	}
+	/**
+	 * Remove the trace. Message is not flagged as traced anymore.
+	 */
+	public void clearTrace() {
+		this.trace = null;
+		this.type &= ~FLAG_TRACED;
+	}
+	/**
+	 * Address the Message by session IDs. Message is flagged as compact.
+	 * 
+	 * @param fromId Session ID of the sender
+	 * @param toId Session ID of the receiver
+	 */
+	public void setCompactAddresses(int fromId, int toId) {
+		this.fromId = fromId;
+		this.toId = toId;
+		this.type |= FLAG_COMPACT;
+	}
+	/**
+	 * Address the Message by nicknames. Message is not compact anymore.
+	 * 
+	 * @param from Nickname of the sender
+	 * @param to Nickname of the receiver
+	 */
+	public void setNicknameAddresses(String from, String to) {
+		setFrom(from);
+		setTo(to);
+		this.type &= ~FLAG_COMPACT;
+	}
+	/**
+	 * Set new content. Message is not compressed anymore.
+	 * 
+	 * @param content New content
+	 */
+	public void setContent(String content) {
+		this.content = content;
+		this.compressedContent = null;
+		this.compressedLength = 0;
+		this.isCompressedContentShared = false;
+		this.type &= ~FLAG_COMPRESSED;
+	}
+	/**
+	 * Set new compressed content. Message is flagged as compressed.
+	 * 
+	 * @param compressedContent New compressed content
+	 */
+	public void setCompressedContent(byte[] compressedContent) {
+		setCompressedContent(compressedContent, compressedContent.length);
+		this.isCompressedContentShared = false;
+	}
+	/**
+	 * Set new compressed content left in the output buffer of a PayloadCompressor, without copying it.
+	 * The Message must be written before the compressor is used again (getCompressedContent copies it).
+	 * 
+	 * @param buffer Output buffer of the compressor
+	 * @param length Number of bytes of compressed content at the beginning of the buffer
+	 */
+	void setCompressedContent(byte[] buffer, int length) {
+		this.compressedContent = buffer;
+		this.compressedLength = length;
+		this.isCompressedContentShared = true;
+		this.content = null;
+		this.type |= FLAG_COMPRESSED;
+	}
+	
+	/**
+	 * Cut a content to the characters that fit in MAX_CONTENT_SIZE bytes once encoded in UTF-8. It is the limit of every content,
+	 * compressed or not : a compressed content is decompressed by the server for handlers, search and receivers without compression.
+	 * 
+	 * @param content Content of a Message
+	 * @return content itself if it fits, its longest prefix that fits otherwise
+	 */
+	public static String fitContent(String content) {
+		int nbBytes = 0;
+		for(int i = 0; i < content.length(); i++) {
+			char c = content.charAt(i);
+			boolean pair = Character.isHighSurrogate(c) && i + 1 < content.length() && Character.isLowSurrogate(content.charAt(i + 1));
+			nbBytes += c < 0x80 ? 1 : c < 0x800 ? 2 : pair ? 4 : 3;
+			if(nbBytes > MAX_CONTENT_SIZE)
+				return content.substring(0, i);
+			if(pair)
+				i++;
+		}
+		return content;
+	}
+	
+	/**
+	 * @return current time in microseconds since the epoch, the unit of the trace timestamps
+	 */
+	public static long currentTimeMicros() {
+		Instant now = Instant.now();
+		return now.getEpochSecond() * 1000000L + now.getNano() / 1000;
 	}
 	
 	@Override
 	public String toString() {
-		return "[" + this.size + ", " + this.type + ", " + this.from + ", " + this.to + ", " + this.content + "]";
+		String body = isCompressed() ? "<" + compressedLength + " compressed bytes>" : this.content;
+		if(isCompact())
+			return "[" + this.size + ", " + this.type + ", #" + this.fromId + ", #" + this.toId + ", " + body + "]";
+		return "[" + this.size + ", " + this.type + ", " + this.from + ", " + this.to + ", " + body + "]";
 	}
 	
 }
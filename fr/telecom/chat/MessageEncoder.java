@@ -0,0 +1,149 @@
+package fr.telecom.chat;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class serializes Messages directly into a buffer (usually the pending writing data of a connection).
+ * Strings are encoded in UTF-8 with a CharsetEncoder and a CharBuffer owned by the current thread,
+ * so that nothing is allocated when a Message is sent.
+ *
+ * Compact Messages (session IDs instead of nicknames) are written by encodeCompact.
+ * The sequence number is only written if the type field has the FLAG_SEQUENCED flag, the trace if it has the FLAG_TRACED flag.
+ * Nicknames are truncated to 12 bytes and contents to 996 bytes, always on a character boundary.
+ * The size field is computed from the number of bytes actually encoded.
+ *
+ */
+class MessageEncoder {
+	private static final ThreadLocal<MessageEncoder> ENCODERS = new ThreadLocal<MessageEncoder>() {
+		@Override
+		protected MessageEncoder initialValue() {
+			return new MessageEncoder();
+		}
+	};
+
+	private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	private final CharBuffer chars = CharBuffer.allocate(Message.MAX_CONTENT_SIZE);
+
+	/**
+	 * @return encoder of the current thread
+	 */
+	static MessageEncoder get() {
+		return ENCODERS.get();
+	}
+
+	/**
+	 * @return maximum number of bytes needed to encode one character
+	 */
+	int maxBytesPerChar() {
+		return (int)Math.ceil(encoder.maxBytesPerChar());
+	}
+
+	/**
+	 * Write a full Message at the position of the buffer. The caller has checked there is enough space.
+	 *
+	 * @param type Type field (type and flags)
+	 * @param from Sender nickname
+	 * @param to Receiver nickname
+	 * @param sequence Sequence number
+	 * @param trace Timestamps of the trace, null to write empty ones
+	 * @param content Content, ignored if compressedContent is not null
+	 * @param compressedContent Compressed content or null
+	 * @param compressedLength Number of bytes of compressed content
+	 * @param out Buffer in writing mode
+	 * @return number of bytes written (value of the size field)
+	 */
+	int encode(short type, String from, String to, int sequence, long[] trace, String content, byte[] compressedContent, int compressedLength, ByteBuffer out) {
+		int start = out.position();
+		// size is only known at the end
+		out.putShort((short)0);
+		out.putShort(type);
+		encodeString(from, out, Message.HEADER_NICKNAME_SIZE, true);
+		encodeString(to, out, Message.HEADER_NICKNAME_SIZE, true);
+		if((type & Message.FLAG_SEQUENCED) != 0)
+			out.putInt(sequence);
+		if((type & Message.FLAG_TRACED) != 0)
+			encodeTrace(trace, out);
+		if(compressedContent != null)
+			out.put(compressedContent, 0, compressedLength);
+		else
+			encodeString(content, out, Message.MAX_CONTENT_SIZE, false);
+		short size = (short)(out.position() - start);
+		out.putShort(start, size);
+		return size;
+	}
+
+	/**
+	 * Write a full compact Message at the position of the buffer. The caller has checked there is enough space.
+	 *
+	 * @param type Type field (type and flags, FLAG_COMPACT included)
+	 * @param fromId Session ID of the sender
+	 * @param toId Session ID of the receiver
+	 * @param sequence Sequence number
+	 * @param trace Timestamps of the trace, null to write empty ones
+	 * @param content Content, ignored if compressedContent is not null
+	 * @param compressedContent Compressed content or null
+	 * @param compressedLength Number of bytes of compressed content
+	 * @param out Buffer in writing mode
+	 * @return number of bytes written (value of the size field)
+	 */
+	int encodeCompact(short type, int fromId, int toId, int sequence, long[] trace, String content, byte[] compressedContent, int compressedLength, ByteBuffer out) {
+		int start = out.position();
+		out.putShort((short)0);
+		out.putShort(type);
+		out.putInt(fromId);
+		out.putInt(toId);
+		if((type & Message.FLAG_SEQUENCED) != 0)
+			out.putInt(sequence);
+		if((type & Message.FLAG_TRACED) != 0)
+			encodeTrace(trace, out);
+		if(compressedContent != null)
+			out.put(compressedContent, 0, compressedLength);
+		else
+			encodeString(content, out, Message.MAX_CONTENT_SIZE, false);
+		short size = (short)(out.position() - start);
+		out.putShort(start, size);
+		return size;
+	}
+
+	private static void encodeTrace(long[] trace, ByteBuffer out) {
+		for(int i = 0; i < Message.TRACE_SIZE / 8; i++)
+			out.putLong(trace != null ? trace[i] : 0);
+	}
+
+	/**
+	 * Encode a String in a field of the buffer.
+	 *
+	 * @param str String to be encoded
+	 * @param out Buffer in writing mode
+	 * @param maxBytes Maximum size of the field
+	 * @param padded true to fill the field with '\0' up to maxBytes
+	 */
+	private void encodeString(String str, ByteBuffer out, int maxBytes, boolean padded) {
+		int fieldEnd = out.position() + maxBytes;
+		int limit = out.limit();
+		out.limit(Math.min(limit, fieldEnd));
+
+		int length = Math.min(str.length(), chars.capacity());
+		chars.clear();
+		str.getChars(0, length, chars.array(), 0);
+		chars.limit(length);
+		encoder.reset();
+		// Stops before the first character that does not fit
+		encoder.encode(chars, out, true);
+		encoder.flush(out);
+
+		out.limit(limit);
+		if(padded) {
+			while(out.position() < fieldEnd)
+				out.put((byte)0);
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package fr.telecom.chat;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ * 
+ * Interface of the handlers a server runs on the Messages it receives, before it takes its own actions (see MessagePipeline).
+ * A handler can read and modify a Message, or drop it.
+ * 
+ * Cheap handlers run on the server thread. Handlers that may block or take time (persistence, filtering, authentication...)
+ * must say so : they run on a worker thread and must not use anything owned by the server thread.
+ *
+ */
+public interface MessageHandler {
+	/**
+	 * @return true if the handler is cheap and never blocks : it runs on the server thread. Otherwise it runs on a worker thread
+	 */
+	public abstract boolean isServerThreadSafe();
+	
+	/**
+	 * Handle a Message received by the server. Compressed content is decompressed before the handlers run
+	 * (it stays compressed only if it is corrupted or compression was not negotiated by the sender).
+	 * 
+	 * @param msg Message received, can be modified
+	 * @param sender Nickname of the sender (the nickname it has given if it is not registered yet)
+	 * @return true to pass the Message on, false to drop it
+	 */
+	public abstract boolean handle(Message msg, String sender);
+}
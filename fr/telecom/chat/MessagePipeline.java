@@ -0,0 +1,246 @@
+package fr.telecom.chat;
+
+import java.nio.channels.SelectionKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class runs the handlers registered for each type of Message (see MessageHandler) on the Messages received by the server,
+ * in order of registration, before the Message is given to the server (dispatcher).
+ *
+ * Handlers safe for the server thread run directly. The others are offloaded to a bounded worker pool
+ * (chat.pipeline.workers threads, default : 4, chat.pipeline.queue tasks waiting, default : 1024).
+ * Once a worker is done, the Message goes back to the server thread through a lock-free queue and the selector is woken up,
+ * the server calls completeNext to run the next handlers.
+ *
+ * A client has at most one Message offloaded : the server does not read its next Messages until it is done (see isWaiting),
+ * so the Messages of a client are handled and dispatched in order, while the other clients go on.
+ * Tasks the pool can not take wait on the server thread and are submitted again when a worker is done.
+ *
+ * Apart from the worker threads, used by the server thread only.
+ *
+ */
+public class MessagePipeline {
+	private static final int NB_WORKERS = Integer.getInteger("chat.pipeline.workers", 4);
+	private static final int QUEUE_SIZE = Integer.getInteger("chat.pipeline.queue", 1024);
+	private static Logger pipelineLogger = Logger.getLogger(MessagePipeline.class.getSimpleName());
+
+	private final Map<Message.Type, List<MessageHandler>> handlers = new EnumMap<Message.Type, List<MessageHandler>>(Message.Type.class);
+	private final MessageAnalyzer dispatcher;
+	private final MessageAnalyzer dropHandler;
+	private final Runnable wakeup;
+	private ThreadPoolExecutor workers;
+	private final Queue<OffloadedMessage> completed = new ConcurrentLinkedQueue<OffloadedMessage>();
+	private final Queue<OffloadedMessage> waitingForWorker = new ArrayDeque<OffloadedMessage>();
+	private final Set<SelectionKey> waitingKeys = new HashSet<SelectionKey>();
+
+	/**
+	 * A Message handled by a worker thread, with the handler to run and where to go on.
+	 */
+	private class OffloadedMessage implements Runnable {
+		private final Message msg;
+		private final SelectionKey key;
+		private final String sender;
+		private final List<MessageHandler> chain;
+		private final int index;
+		private boolean passed;
+
+		private OffloadedMessage(Message msg, SelectionKey key, String sender, List<MessageHandler> chain, int index) {
+			this.msg = msg;
+			this.key = key;
+			this.sender = sender;
+			this.chain = chain;
+			this.index = index;
+		}
+
+		/**
+		 * Run the handler on a worker thread and give the Message back to the server thread
+		 */
+		public void run() {
+			try {
+				passed = chain.get(index).handle(msg, sender);
+			} catch (RuntimeException e) {
+				pipelineLogger.warn("Message handler has failed, message from " + sender + " dropped : " + e);
+				passed = false;
+			}
+			completed.add(this);
+			wakeup.run();
+		}
+	}
+
+	/**
+	 * @param dispatcher Takes the actions of the server on the Messages passed on by every handler
+	 * @param dropHandler Called with the Messages dropped by a handler
+	 * @param wakeup Called from a worker thread when a Message is back for the server thread (wakes the selector up)
+	 */
+	public MessagePipeline(MessageAnalyzer dispatcher, MessageAnalyzer dropHandler, Runnable wakeup) {
+		this.dispatcher = dispatcher;
+		this.dropHandler = dropHandler;
+		this.wakeup = wakeup;
+	}
+
+	/**
+	 * Register a handler for a type of Message, after the ones already registered for it.
+	 * The worker pool is started with the first handler that is not safe for the server thread.
+	 *
+	 * @param type Type of the Messages to be handled
+	 * @param handler MessageHandler
+	 */
+	public void addHandler(Message.Type type, MessageHandler handler) {
+		List<MessageHandler> chain = handlers.get(type);
+		if(chain == null) {
+			chain = new ArrayList<MessageHandler>();
+			handlers.put(type, chain);
+		}
+		chain.add(handler);
+		if(!handler.isServerThreadSafe() && workers == null)
+			workers = createWorkers();
+	}
+
+	/**
+	 * @param type Type of Message
+	 * @return true if handlers are registered for this type
+	 */
+	public boolean hasHandlers(Message.Type type) {
+		return handlers.containsKey(type);
+	}
+
+	/**
+	 * Run the handlers on a Message received by a client, then give it to the dispatcher (or to the drop handler).
+	 * Without handler for its type, the Message goes directly to the dispatcher.
+	 *
+	 * @param msg Message received
+	 * @param key SelectionKey of the client
+	 * @param sender Nickname of the client
+	 * @return false if the Message has been offloaded : the server must not read the next Messages of the client until it is done
+	 */
+	public boolean process(Message msg, SelectionKey key, String sender) {
+		List<MessageHandler> chain = handlers.get(msg.getType());
+		if(chain == null) {
+			dispatcher.performActionFromReceivedMessage(msg, key);
+			return true;
+		}
+		return runChain(msg, key, sender, chain, 0);
+	}
+
+	/**
+	 * Go on with a Message given back by a worker : its next handlers are run and it is dispatched.
+	 * Messages of clients whose connection has been closed meanwhile are forgotten.
+	 * Tasks waiting for the pool are submitted again.
+	 *
+	 * @return SelectionKey of the client whose Message has been given back, null if there is none
+	 */
+	public SelectionKey completeNext() {
+		OffloadedMessage offloaded = completed.poll();
+		if(offloaded == null)
+			return null;
+		waitingKeys.remove(offloaded.key);
+		submitWaitingTasks();
+		if(!offloaded.key.isValid())
+			return offloaded.key;
+		if(!offloaded.passed)
+			dropHandler.performActionFromReceivedMessage(offloaded.msg, offloaded.key);
+		else
+			runChain(offloaded.msg, offloaded.key, offloaded.sender, offloaded.chain, offloaded.index + 1);
+		return offloaded.key;
+	}
+
+	/**
+	 * @param key SelectionKey of a client
+	 * @return true if a Message of the client is offloaded : its next Messages must wait
+	 */
+	public boolean isWaiting(SelectionKey key) {
+		return waitingKeys.contains(key);
+	}
+
+	/**
+	 * Stop the worker pool. Offloaded Messages are forgotten.
+	 */
+	public void shutdown() {
+		if(workers != null)
+			workers.shutdownNow();
+	}
+
+	/**
+	 * Run the handlers of a chain from an index, until a handler drops the Message or has to be offloaded.
+	 *
+	 * @return false if the Message has been offloaded
+	 */
+	private boolean runChain(Message msg, SelectionKey key, String sender, List<MessageHandler> chain, int index) {
+		for(int i = index; i < chain.size(); i++) {
+			MessageHandler handler = chain.get(i);
+			if(!handler.isServerThreadSafe()) {
+				waitingKeys.add(key);
+				submit(new OffloadedMessage(msg, key, sender, chain, i));
+				return false;
+			}
+			boolean passed;
+			try {
+				passed = handler.handle(msg, sender);
+			} catch (RuntimeException e) {
+				pipelineLogger.warn("Message handler has failed, message from " + sender + " dropped : " + e);
+				passed = false;
+			}
+			if(!passed) {
+				dropHandler.performActionFromReceivedMessage(msg, key);
+				return true;
+			}
+		}
+		dispatcher.performActionFromReceivedMessage(msg, key);
+		return true;
+	}
+
+	private void submit(OffloadedMessage offloaded) {
+		if(!waitingForWorker.isEmpty()) {
+			waitingForWorker.add(offloaded);
+			return;
+		}
+		try {
+			workers.execute(offloaded);
+		} catch (RejectedExecutionException e) {
+			waitingForWorker.add(offloaded);
+		}
+	}
+
+	private void submitWaitingTasks() {
+		OffloadedMessage offloaded;
+		while((offloaded = waitingForWorker.peek()) != null) {
+			try {
+				workers.execute(offloaded);
+			} catch (RejectedExecutionException e) {
+				return;
+			}
+			waitingForWorker.poll();
+		}
+	}
+
+	private static ThreadPoolExecutor createWorkers() {
+		pipelineLogger.info("Message handler pool started (" + NB_WORKERS + " workers)");
+		return new ThreadPoolExecutor(NB_WORKERS, NB_WORKERS, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadFactory() {
+			private final AtomicInteger nbThreads = new AtomicInteger();
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "message-handler-" + nbThreads.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+}
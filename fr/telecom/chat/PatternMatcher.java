@@ -0,0 +1,239 @@
+package fr.telecom.chat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class finds a set of patterns in a text in one pass (Aho-Corasick automaton), whatever the number of patterns.
+ * Matching ignores case.
+ *
+ * The automaton is compiled once : states are numbered in breadth-first order and kept in primitive arrays.
+ * Transitions of a state are sorted by character class and looked up by binary search, the root has a direct table.
+ * Characters are mapped to classes first : a character found in no pattern resets the automaton at once.
+ * Each state knows the length of the longest pattern ending at it, following failure links is not needed to report a match.
+ *
+ * Scanning a text does not allocate anything (masking allocates only if something is found).
+ * An instance is immutable and can be shared by several threads.
+ *
+ */
+public class PatternMatcher {
+	private static final int ROOT = 0;
+
+	/* Character class of each character, 0 for characters found in no pattern */
+	private final char[] classOf = new char[Character.MAX_VALUE + 1];
+	private final int[] rootTransitions;
+	/* Transitions of state s are edgeClasses / edgeTargets [edgeStart[s], edgeStart[s + 1]) */
+	private final int[] edgeStart;
+	private final char[] edgeClasses;
+	private final int[] edgeTargets;
+	private final int[] fail;
+	/* Length of the longest pattern ending at each state, 0 if none */
+	private final int[] matchLength;
+	private final int nbPatterns;
+
+	/**
+	 * A state of the trie while the automaton is compiled
+	 */
+	private static class Node {
+		private char[] classes = new char[2];
+		private int[] children = new int[2];
+		private int nbChildren = 0;
+		private int matchLength = 0;
+
+		private int child(char c) {
+			for(int i = 0; i < nbChildren; i++)
+				if(classes[i] == c)
+					return children[i];
+			return -1;
+		}
+
+		private void addChild(char c, int child) {
+			if(nbChildren == classes.length) {
+				classes = Arrays.copyOf(classes, nbChildren * 2);
+				children = Arrays.copyOf(children, nbChildren * 2);
+			}
+			classes[nbChildren] = c;
+			children[nbChildren++] = child;
+		}
+	}
+
+	/**
+	 * Compile the automaton of a set of patterns. Empty patterns are ignored.
+	 *
+	 * @param patterns Patterns to be found
+	 */
+	public PatternMatcher(Collection<String> patterns) {
+		// Character classes, in the order of the characters
+		boolean[] used = new boolean[Character.MAX_VALUE + 1];
+		int nbPatternsKept = 0;
+		for(String pattern : patterns) {
+			for(int i = 0; i < pattern.length(); i++)
+				used[Character.toLowerCase(pattern.charAt(i))] = true;
+			if(!pattern.isEmpty())
+				nbPatternsKept++;
+		}
+		nbPatterns = nbPatternsKept;
+		char[] classOfFolded = new char[Character.MAX_VALUE + 1];
+		char nbClasses = 0;
+		for(int c = 0; c <= Character.MAX_VALUE; c++)
+			if(used[c])
+				classOfFolded[c] = ++nbClasses;
+		for(int c = 0; c <= Character.MAX_VALUE; c++)
+			classOf[c] = classOfFolded[Character.toLowerCase((char) c)];
+
+		// Trie
+		List<Node> trie = new ArrayList<Node>();
+		trie.add(new Node());
+		for(String pattern : patterns) {
+			if(pattern.isEmpty())
+				continue;
+			int state = ROOT;
+			for(int i = 0; i < pattern.length(); i++) {
+				char c = classOf[pattern.charAt(i)];
+				int next = trie.get(state).child(c);
+				if(next < 0) {
+					next = trie.size();
+					trie.add(new Node());
+					trie.get(state).addChild(c, next);
+				}
+				state = next;
+			}
+			trie.get(state).matchLength = pattern.length();
+		}
+
+		// States numbered in breadth-first order, transitions sorted by class
+		int nbStates = trie.size();
+		int[] order = new int[nbStates];
+		int[] number = new int[nbStates];
+		int nbEdges = 0;
+		order[0] = ROOT;
+		for(int head = 0, tail = 1; head < tail; head++) {
+			Node node = trie.get(order[head]);
+			sortChildren(node);
+			for(int i = 0; i < node.nbChildren; i++) {
+				number[node.children[i]] = tail;
+				order[tail++] = node.children[i];
+			}
+			nbEdges += node.nbChildren;
+		}
+		edgeStart = new int[nbStates + 1];
+		edgeClasses = new char[nbEdges];
+		edgeTargets = new int[nbEdges];
+		matchLength = new int[nbStates];
+		fail = new int[nbStates];
+		for(int s = 0, edge = 0; s < nbStates; s++) {
+			Node node = trie.get(order[s]);
+			edgeStart[s] = edge;
+			matchLength[s] = node.matchLength;
+			for(int i = 0; i < node.nbChildren; i++, edge++) {
+				edgeClasses[edge] = node.classes[i];
+				edgeTargets[edge] = number[node.children[i]];
+			}
+		}
+		edgeStart[nbStates] = nbEdges;
+		rootTransitions = new int[nbClasses + 1];
+		for(int edge = edgeStart[ROOT]; edge < edgeStart[ROOT + 1]; edge++)
+			rootTransitions[edgeClasses[edge]] = edgeTargets[edge];
+
+		// Failure links, parents are done before their children in breadth-first order
+		for(int s = 0; s < nbStates; s++) {
+			for(int edge = edgeStart[s]; edge < edgeStart[s + 1]; edge++) {
+				int child = edgeTargets[edge];
+				fail[child] = s == ROOT ? ROOT : next(fail[s], edgeClasses[edge]);
+				matchLength[child] = Math.max(matchLength[child], matchLength[fail[child]]);
+			}
+		}
+	}
+
+	/**
+	 * Find the first pattern in a text.
+	 *
+	 * @param text Text to be scanned
+	 * @return index of the character ending the first pattern found, -1 if there is none
+	 */
+	public int find(CharSequence text) {
+		int state = ROOT;
+		for(int i = 0; i < text.length(); i++) {
+			char c = classOf[text.charAt(i)];
+			state = c == 0 ? ROOT : next(state, c);
+			if(matchLength[state] > 0)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Replace every character of the patterns found in a text.
+	 *
+	 * @param text Text to be scanned
+	 * @param mask Character replacing the ones of the patterns
+	 * @return the text itself if no pattern has been found, a masked copy otherwise
+	 */
+	public String mask(String text, char mask) {
+		char[] masked = null;
+		int state = ROOT;
+		for(int i = 0; i < text.length(); i++) {
+			char c = classOf[text.charAt(i)];
+			state = c == 0 ? ROOT : next(state, c);
+			if(matchLength[state] > 0) {
+				if(masked == null)
+					masked = text.toCharArray();
+				Arrays.fill(masked, i - matchLength[state] + 1, i + 1, mask);
+			}
+		}
+		return masked == null ? text : new String(masked);
+	}
+
+	/**
+	 * @return number of patterns of the automaton
+	 */
+	public int getNbPatterns() {
+		return nbPatterns;
+	}
+
+	/**
+	 * @return number of states of the automaton
+	 */
+	public int getNbStates() {
+		return fail.length;
+	}
+
+	private int next(int state, char c) {
+		while(state != ROOT) {
+			int low = edgeStart[state];
+			int high = edgeStart[state + 1] - 1;
+			while(low <= high) {
+				int middle = (low + high) >>> 1;
+				char middleClass = edgeClasses[middle];
+				if(middleClass < c)
+					low = middle + 1;
+				else if(middleClass > c)
+					high = middle - 1;
+				else
+					return edgeTargets[middle];
+			}
+			state = fail[state];
+		}
+		return rootTransitions[c];
+	}
+
+	private static void sortChildren(Node node) {
+		// Insertion sort : a state has few children
+		for(int i = 1; i < node.nbChildren; i++) {
+			char c = node.classes[i];
+			int child = node.children[i];
+			int j = i - 1;
+			while(j >= 0 && node.classes[j] > c) {
+				node.classes[j + 1] = node.classes[j];
+				node.children[j + 1] = node.children[j];
+				j--;
+			}
+			node.classes[j + 1] = c;
+			node.children[j + 1] = child;
+		}
+	}
+}
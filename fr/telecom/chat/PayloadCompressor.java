@@ -0,0 +1,103 @@
+package fr.telecom.chat;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class compresses and decompresses Message contents for one connection.
+ * Deflater, Inflater and working buffers are created once and reused for every Message of the connection :
+ * contents are encoded in UTF-8 in a buffer of the compressor and compressed in its output buffer, which the Message refers to
+ * until the next compression (see Message.setCompressedContent). A compressed Message must thus be written before the next one.
+ * Only contents bigger than COMPRESSION_THRESHOLD bytes are compressed, smaller ones are sent raw.
+ * Contents are never bigger than MAX_CONTENT_SIZE bytes once decompressed, the size a raw Message holds (see Message.fitContent) :
+ * a bigger content would be truncated when the server decompresses it for handlers, search or a receiver without compression.
+ *
+ * A PayloadCompressor is not thread safe. Compression and decompression have their own buffers,
+ * so one thread may compress while another one decompresses, but each of these operations must stay on a single thread.
+ *
+ */
+public class PayloadCompressor {
+	public static final int COMPRESSION_THRESHOLD = Integer.getInteger("chat.compression.threshold", 256);
+	/* A decompressed content can not be bigger than the content of a raw Message */
+	private static final int MAX_DECOMPRESSED_SIZE = Message.MAX_CONTENT_SIZE;
+
+	private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	private final CharBuffer chars = CharBuffer.allocate(MAX_DECOMPRESSED_SIZE);
+	private final ByteBuffer encodeBuffer = ByteBuffer.allocate(MAX_DECOMPRESSED_SIZE);
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private final Inflater inflater = new Inflater();
+	private final byte[] deflateBuffer = new byte[MAX_DECOMPRESSED_SIZE];
+	private final byte[] inflateBuffer = new byte[MAX_DECOMPRESSED_SIZE + 1];
+
+	/**
+	 * Compress the content of a Message if it is worth it.
+	 *
+	 * @param msg Message to compress, it is flagged as compressed on success and must be written before the next compression
+	 * @return true if the Message has been compressed
+	 */
+	public boolean compress(Message msg) {
+		String content = msg.getContent();
+		if(msg.isCompressed() || content == null || content.length() > chars.capacity())
+			return false;
+		chars.clear();
+		content.getChars(0, content.length(), chars.array(), 0);
+		chars.limit(content.length());
+		encodeBuffer.clear();
+		encoder.reset();
+		// Content too big for a raw Message : it is sent raw and truncated as any other (see Message.fitContent)
+		if(encoder.encode(chars, encodeBuffer, true).isOverflow() || encoder.flush(encodeBuffer).isOverflow())
+			return false;
+		int nbBytesRaw = encodeBuffer.position();
+		if(nbBytesRaw < COMPRESSION_THRESHOLD)
+			return false;
+		deflater.reset();
+		deflater.setInput(encodeBuffer.array(), 0, nbBytesRaw);
+		deflater.finish();
+		int nbBytesCompressed = deflater.deflate(deflateBuffer);
+		// Output is not smaller than input or does not fit in a Message : content is sent raw
+		if(!deflater.finished() || nbBytesCompressed >= nbBytesRaw || nbBytesCompressed > Message.MAX_CONTENT_SIZE)
+			return false;
+		msg.setCompressedContent(deflateBuffer, nbBytesCompressed);
+		return true;
+	}
+
+	/**
+	 * Decompress the content of a compressed Message.
+	 *
+	 * @param msg Message to decompress, it is not flagged as compressed anymore on success
+	 * @return true if the content has been decompressed (or was not compressed), false if it is corrupted or bigger than a raw Message content
+	 */
+	public boolean decompress(Message msg) {
+		if(!msg.isCompressed())
+			return true;
+		inflater.reset();
+		inflater.setInput(msg.getCompressedContent());
+		try {
+			int nbBytesDecompressed = inflater.inflate(inflateBuffer);
+			if(!inflater.finished() || nbBytesDecompressed > MAX_DECOMPRESSED_SIZE)
+				return false;
+			msg.setContent(new String(inflateBuffer, 0, nbBytesDecompressed, StandardCharsets.UTF_8));
+			return true;
+		} catch (DataFormatException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Release native resources of the Deflater and the Inflater. The compressor can not be used after.
+	 */
+	public void end() {
+		deflater.end();
+		inflater.end();
+	}
+}
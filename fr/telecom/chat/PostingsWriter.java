@@ -0,0 +1,74 @@
+package fr.telecom.chat;
+
+import java.util.Arrays;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class writes the postings of one term of the search index : for each Message containing the term (in order),
+ * the difference with the previous Message number, the number of occurrences and the differences between positions,
+ * all of them as variable-length integers (7 bits per byte, high bit set when more bytes follow).
+ * Small differences take one byte, so posting lists stay small.
+ *
+ * Read by IndexSegment. Not thread-safe.
+ *
+ */
+class PostingsWriter {
+	private byte[] bytes = new byte[16];
+	private int length = 0;
+	private int lastDocument = -1;
+	private int nbDocuments = 0;
+
+	/**
+	 * Add a Message containing the term
+	 *
+	 * @param document Number of the Message, greater than the previous one
+	 * @param positions Positions of the term in the Message, in increasing order
+	 * @param nbPositions Number of positions
+	 */
+	void add(int document, int[] positions, int nbPositions) {
+		writeVarint(document - lastDocument);
+		writeVarint(nbPositions);
+		int lastPosition = 0;
+		for(int i = 0; i < nbPositions; i++) {
+			writeVarint(positions[i] - lastPosition);
+			lastPosition = positions[i];
+		}
+		lastDocument = document;
+		nbDocuments++;
+	}
+
+	/**
+	 * @return number of Messages containing the term
+	 */
+	int getNbDocuments() {
+		return nbDocuments;
+	}
+
+	/**
+	 * @return number of bytes written
+	 */
+	int getLength() {
+		return length;
+	}
+
+	/**
+	 * Copy the bytes written
+	 *
+	 * @param destination Array receiving the bytes
+	 * @param offset Position of the first byte in the array
+	 */
+	void copyTo(byte[] destination, int offset) {
+		System.arraycopy(bytes, 0, destination, offset, length);
+	}
+
+	private void writeVarint(int value) {
+		if(length + 5 > bytes.length)
+			bytes = Arrays.copyOf(bytes, bytes.length * 2);
+		while((value & ~0x7F) != 0) {
+			bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		bytes[length++] = (byte) value;
+	}
+}
@@ -0,0 +1,204 @@
+package fr.telecom.chat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class collects clients connections and disconnections over a short time window so the server can send
+ * one aggregated PRESENCE Message per client per window instead of one Message per event.
+ * A connection and a disconnection of the same nickname inside a window cancel each other, except for the clients whose list
+ * of connected clients has been built between the two (see clientListed) : they receive the second event.
+ *
+ * Content of a presence Message : comma separated list of events, "+nickname" for a connection and "-nickname" for a disconnection.
+ * For clients using session IDs, the session ID follows the nickname : "+nickname:id".
+ * A disconnection followed by a connection with another session ID is sent as a connection, clients must update the ID they know.
+ *
+ */
+public class PresenceAggregator {
+	public static final char CONNECTED_PREFIX = '+';
+	public static final char DISCONNECTED_PREFIX = '-';
+	public static final char SEPARATOR = ',';
+	public static final char SESSION_ID_SEPARATOR = ':';
+
+	private final long windowMillis;
+	/* Insertion order is kept to send events in order */
+	private Map<String, PresenceEvent> pendingEvents = new LinkedHashMap<String, PresenceEvent>();
+	/* Number of events recorded when the list of connected clients has been built for a client, during the current window */
+	private Map<String, Long> listedClients = new HashMap<String, Long>();
+	private long windowStart = 0;
+	private long nbEventsRecorded = 0;
+	private long nbEventsCancelled = 0;
+
+	/**
+	 * @param windowMillis Duration of an aggregation window in milliseconds
+	 */
+	public PresenceAggregator(long windowMillis) {
+		this.windowMillis = windowMillis;
+	}
+
+	/**
+	 * Record that a client has connected
+	 *
+	 * @param nickname Nickname of the client
+	 * @param sessionId Session ID of the client
+	 */
+	public void clientConnected(String nickname, int sessionId) {
+		record(nickname, true, sessionId);
+	}
+
+	/**
+	 * Record that a client has disconnected
+	 *
+	 * @param nickname Nickname of the client
+	 * @param sessionId Session ID the client had
+	 */
+	public void clientDisconnected(String nickname, int sessionId) {
+		record(nickname, false, sessionId);
+	}
+
+	/**
+	 * Record that the list of connected clients has been built for a client : the events recorded until now are in the list.
+	 *
+	 * @param nickname Nickname of the client
+	 */
+	public void clientListed(String nickname) {
+		listedClients.put(nickname, nbEventsRecorded);
+	}
+
+	private void record(String nickname, boolean connected, int sessionId) {
+		if(nickname == null || nickname.isEmpty())
+			return;
+		long index = nbEventsRecorded++;
+		if(pendingEvents.isEmpty())
+			windowStart = System.currentTimeMillis();
+		PresenceEvent previous = pendingEvents.get(nickname);
+		if(previous != null && !previous.isCancelled() && previous.connected != connected) {
+			nbEventsCancelled += 2;
+			// Reconnection with a new session ID, recipients still have to learn the new ID
+			if(connected && previous.sessionId != sessionId) {
+				pendingEvents.remove(nickname);
+				pendingEvents.put(nickname, new PresenceEvent(true, sessionId, index));
+				return;
+			}
+			// Connection and disconnection in the same window, only recipients listed in between need to know
+			previous.cancelledIndex = index;
+			return;
+		}
+		pendingEvents.put(nickname, new PresenceEvent(connected, sessionId, index));
+	}
+
+	/**
+	 * @return true if events are waiting to be sent
+	 */
+	public boolean hasPendingEvents() {
+		return !pendingEvents.isEmpty();
+	}
+
+	/**
+	 * Get the time to wait before the current window has to be flushed.
+	 *
+	 * @return 0 if no event is pending (wait forever), otherwise a strictly positive number of milliseconds
+	 */
+	public long millisUntilFlush() {
+		if(pendingEvents.isEmpty())
+			return 0;
+		long remaining = windowStart + windowMillis - System.currentTimeMillis();
+		return Math.max(1, remaining);
+	}
+
+	/**
+	 * @return true if the current window is over and its events must be sent
+	 */
+	public boolean isFlushDue() {
+		return !pendingEvents.isEmpty() && System.currentTimeMillis() >= windowStart + windowMillis;
+	}
+
+	/**
+	 * Build the content of the presence Messages for one recipient. The events of the recipient itself are skipped.
+	 * Events cancelled by an opposite one are skipped too, unless the recipient has been listed between the two : 
+	 * its list contains the first one, it receives the second one.
+	 * Content is split so that each part fits in a single Message.
+	 *
+	 * @param recipient Nickname of the client that will receive the events
+	 * @param withSessionIds true if the recipient uses session IDs
+	 * @return list of Message contents, empty if there is nothing to send to this recipient
+	 */
+	public List<String> buildContents(String recipient, boolean withSessionIds) {
+		List<String> contents = new ArrayList<String>();
+		StringBuilder builder = new StringBuilder();
+		Long listedIndex = listedClients.get(recipient);
+		int eventStart;
+		for(Map.Entry<String, PresenceEvent> event : pendingEvents.entrySet()) {
+			if(event.getKey().equals(recipient))
+				continue;
+			boolean connected = event.getValue().connected;
+			if(event.getValue().isCancelled()) {
+				if(listedIndex == null || listedIndex <= event.getValue().index || listedIndex > event.getValue().cancelledIndex)
+					continue;
+				connected = !connected;
+			}
+			eventStart = builder.length();
+			if(builder.length() > 0)
+				builder.append(SEPARATOR);
+			builder.append(connected ? CONNECTED_PREFIX : DISCONNECTED_PREFIX).append(event.getKey());
+			if(withSessionIds)
+				builder.append(SESSION_ID_SEPARATOR).append(event.getValue().sessionId);
+			if(builder.length() > Message.MAX_CONTENT_SIZE) {
+				// Event does not fit, it starts the next Message
+				contents.add(builder.substring(0, eventStart));
+				builder.delete(0, eventStart + 1);
+			}
+		}
+		if(builder.length() > 0)
+			contents.add(builder.toString());
+		return contents;
+	}
+
+	/**
+	 * Close the current window. Must be called once every recipient has been served.
+	 */
+	public void clear() {
+		pendingEvents.clear();
+		listedClients.clear();
+	}
+
+	/**
+	 * Connection or disconnection of a client, possibly cancelled by the opposite event
+	 */
+	private static class PresenceEvent {
+		final boolean connected;
+		final int sessionId;
+		/* Number of events recorded before this one, and before the opposite event if it has been cancelled */
+		final long index;
+		long cancelledIndex = -1;
+
+		PresenceEvent(boolean connected, int sessionId, long index) {
+			this.connected = connected;
+			this.sessionId = sessionId;
+			this.index = index;
+		}
+
+		boolean isCancelled() {
+			return cancelledIndex >= 0;
+		}
+	}
+
+	/**
+	 * @return number of events recorded since the creation of the aggregator
+	 */
+	public long getNbEventsRecorded() {
+		return nbEventsRecorded;
+	}
+
+	/**
+	 * @return number of events that have been cancelled by an opposite event in the same window
+	 */
+	public long getNbEventsCancelled() {
+		return nbEventsCancelled;
+	}
+}
@@ -0,0 +1,101 @@
+package fr.telecom.chat;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class keeps the last presence events recorded by the server, numbered by a version.
+ *
+ * Clients able to resume their session know the version of the last presence Message they have received.
+ * When they resume, the server sends only the events recorded after this version instead of the whole list
+ * of connected clients. If these events are not in the log anymore, the whole list has to be sent.
+ *
+ * The capacity is given by the chat.presence.log system property (default : 4096 events).
+ *
+ */
+public class PresenceLog {
+	private static final int CAPACITY = Integer.getInteger("chat.presence.log", 4096);
+
+	/* Ring buffer : event of version v is at index v % capacity */
+	private final String[] nicknames;
+	private final boolean[] connected;
+	private final int[] sessionIds;
+	private int version = 0;
+	/* Version the log has started from, events up to it are not known */
+	private int baseVersion = 0;
+
+	public PresenceLog() {
+		this(CAPACITY);
+	}
+
+	/**
+	 * @param capacity Number of events kept
+	 */
+	public PresenceLog(int capacity) {
+		nicknames = new String[Math.max(1, capacity)];
+		connected = new boolean[nicknames.length];
+		sessionIds = new int[nicknames.length];
+	}
+
+	/**
+	 * Record an event
+	 *
+	 * @param nickname Nickname of the client
+	 * @param isConnected true for a connection, false for a disconnection
+	 * @param sessionId Session ID of the client
+	 * @return version of the event
+	 */
+	public int record(String nickname, boolean isConnected, int sessionId) {
+		version++;
+		int slot = version % nicknames.length;
+		nicknames[slot] = nickname;
+		connected[slot] = isConnected;
+		sessionIds[slot] = sessionId;
+		return version;
+	}
+
+	/**
+	 * Go on with the versions of another server (restart with state handoff). Events of the other server are not known :
+	 * clients knowing an older version receive the whole list.
+	 *
+	 * @param lastVersion Version of the last event recorded by the other server
+	 */
+	public void restore(int lastVersion) {
+		version = lastVersion;
+		baseVersion = lastVersion;
+	}
+
+	/**
+	 * @return version of the last event recorded
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Build the content of a presence Message with the events recorded after a version (same format as PresenceAggregator).
+	 * Events of the recipient itself are skipped.
+	 *
+	 * @param sinceVersion Version of the last event known by the recipient
+	 * @param recipient Nickname of the recipient
+	 * @param withSessionIds true if the recipient uses session IDs
+	 * @return content of the presence Message, null if the events are not all in the log anymore or do not fit in a single Message
+	 */
+	public String buildDelta(int sinceVersion, String recipient, boolean withSessionIds) {
+		if(sinceVersion > version || sinceVersion < baseVersion || version - sinceVersion > nicknames.length)
+			return null;
+		StringBuilder builder = new StringBuilder();
+		for(int v = sinceVersion + 1; v <= version; v++) {
+			int slot = v % nicknames.length;
+			if(nicknames[slot].equals(recipient))
+				continue;
+			if(builder.length() > 0)
+				builder.append(PresenceAggregator.SEPARATOR);
+			builder.append(connected[slot] ? PresenceAggregator.CONNECTED_PREFIX : PresenceAggregator.DISCONNECTED_PREFIX).append(nicknames[slot]);
+			if(withSessionIds)
+				builder.append(PresenceAggregator.SESSION_ID_SEPARATOR).append(sessionIds[slot]);
+			if(builder.length() > Message.MAX_CONTENT_SIZE)
+				return null;
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,141 @@
+package fr.telecom.chat;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class limits the Messages a single client can send to the server : one token bucket for Messages per second
+ * and one for bytes per second. A bucket holds the tokens of a burst at most, it is refilled as time goes by.
+ * A Message is processed only if both buckets have enough tokens.
+ *
+ * Only primitive fields : checking a Message does not allocate anything.
+ * Not thread-safe, used by the server thread only.
+ *
+ */
+public class RateLimiter {
+	/**
+	 * What the server does with a client sending faster than its rate
+	 */
+	public enum Policy {
+		/** Stop reading from the client until its buckets are refilled */
+		DELAY,
+		/** Drop the Messages in excess */
+		DROP,
+		/** Close the connection of the client */
+		DISCONNECT
+	}
+
+	private static final long NANOS_PER_SECOND = 1000000000L;
+
+	private final double messagesPerNano;
+	private final double bytesPerNano;
+	private final double messageCapacity;
+	private final double byteCapacity;
+	private double messageTokens;
+	private double byteTokens;
+	private long lastRefill;
+	/* Time (System.currentTimeMillis) when reading can go on, 0 if the client is not delayed */
+	private long delayedUntil = 0;
+
+	/**
+	 * Create a limiter with full buckets.
+	 *
+	 * @param messagesPerSecond Messages allowed per second, 0 for no limit
+	 * @param bytesPerSecond Bytes allowed per second, 0 for no limit
+	 * @param burstMillis Duration of the burst a bucket can hold
+	 * @param maxMessageSize Size of the biggest Message, the byte bucket can always hold one
+	 */
+	public RateLimiter(int messagesPerSecond, int bytesPerSecond, long burstMillis, int maxMessageSize) {
+		messagesPerNano = (double) messagesPerSecond / NANOS_PER_SECOND;
+		bytesPerNano = (double) bytesPerSecond / NANOS_PER_SECOND;
+		messageCapacity = messagesPerSecond == 0 ? Double.MAX_VALUE : Math.max(1, messagesPerSecond * burstMillis / 1000.0);
+		byteCapacity = bytesPerSecond == 0 ? Double.MAX_VALUE : Math.max(maxMessageSize, bytesPerSecond * burstMillis / 1000.0);
+		messageTokens = messageCapacity;
+		byteTokens = byteCapacity;
+		lastRefill = System.nanoTime();
+	}
+
+	/**
+	 * Take the tokens of a Message if both buckets have enough of them.
+	 *
+	 * @param messageSize Size of the Message in bytes
+	 * @return true if the Message can be processed
+	 */
+	public boolean tryAcquire(int messageSize) {
+		refill();
+		if(messageTokens < 1 || byteTokens < messageSize)
+			return false;
+		messageTokens -= 1;
+		byteTokens -= messageSize;
+		return true;
+	}
+
+	/**
+	 * Take the tokens of bytes already transferred, when their number is only known afterwards (file transfers).
+	 * The byte bucket may become negative : it has to be refilled before anything else is transferred.
+	 *
+	 * @param nbBytes Number of bytes transferred
+	 */
+	public void consume(long nbBytes) {
+		byteTokens -= nbBytes;
+	}
+
+	/**
+	 * @return true if the byte bucket has tokens left
+	 */
+	public boolean hasByteTokens() {
+		refill();
+		return byteTokens > 0;
+	}
+
+	/**
+	 * @param messageSize Size of the Message in bytes
+	 * @return time in milliseconds until both buckets have enough tokens for the Message (at least 1)
+	 */
+	public long millisUntilAvailable(int messageSize) {
+		refill();
+		double nanos = 0;
+		if(messageTokens < 1)
+			nanos = (1 - messageTokens) / messagesPerNano;
+		if(byteTokens < messageSize)
+			nanos = Math.max(nanos, (messageSize - byteTokens) / bytesPerNano);
+		return Math.max(1, (long) Math.ceil(nanos / 1000000));
+	}
+
+	/**
+	 * Record that reading from the client is delayed
+	 *
+	 * @param until Time (System.currentTimeMillis) when reading can go on
+	 */
+	public void delay(long until) {
+		delayedUntil = until;
+	}
+
+	/**
+	 * Record that reading from the client goes on
+	 */
+	public void resume() {
+		delayedUntil = 0;
+	}
+
+	/**
+	 * @return true if reading from the client is delayed
+	 */
+	public boolean isDelayed() {
+		return delayedUntil != 0;
+	}
+
+	/**
+	 * @return time (System.currentTimeMillis) when reading can go on, 0 if the client is not delayed
+	 */
+	public long getDelayedUntil() {
+		return delayedUntil;
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		long elapsed = now - lastRefill;
+		lastRefill = now;
+		messageTokens = Math.min(messageCapacity, messageTokens + elapsed * messagesPerNano);
+		byteTokens = Math.min(byteCapacity, byteTokens + elapsed * bytesPerNano);
+	}
+}
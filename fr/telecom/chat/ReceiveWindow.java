@@ -0,0 +1,135 @@
+package fr.telecom.chat;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class keeps which standard Messages of a client with reliable delivery have been accepted by the server.
+ *
+ * The window is the last sequence number up to which every Message has been accepted (cumulative acknowledgment)
+ * and a bitmap of the 64 following ones (selective acknowledgment). A Message already accepted is a duplicate sent
+ * again by the client, it must not be relayed twice.
+ *
+ * Acknowledgments are not sent for each Message : the server waits for several Messages or a short delay.
+ * The window keeps how many Messages are not acknowledged yet and when the acknowledgment is due.
+ * Only primitive fields : nothing is allocated per Message.
+ *
+ */
+public class ReceiveWindow {
+	private int cumulative = 0;
+	private long selective = 0;
+	private int nbUnacknowledged = 0;
+	private boolean acknowledgmentPending = false;
+	private long acknowledgmentDeadline = 0;
+
+	/**
+	 * @param sequence Sequence number of a Message received
+	 * @return true if the Message has not been accepted yet and fits in the window
+	 */
+	public boolean isNew(int sequence) {
+		int offset = sequence - cumulative - 1;
+		if(offset < 0 || offset >= SendWindow.MAX_CAPACITY)
+			return false;
+		return (selective & (1L << offset)) == 0;
+	}
+
+	/**
+	 * Record that a Message has been accepted
+	 *
+	 * @param sequence Sequence number of the Message, isNew must be true
+	 */
+	public void accept(int sequence) {
+		selective |= 1L << (sequence - cumulative - 1);
+		while((selective & 1) != 0) {
+			cumulative++;
+			selective >>>= 1;
+		}
+	}
+
+	/**
+	 * Write the accepted Messages (state handoff to another server)
+	 *
+	 * @param out DataOutput
+	 * @throws IOException if the writing has failed
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeInt(cumulative);
+		out.writeLong(selective);
+	}
+
+	/**
+	 * Read a window written by writeTo
+	 *
+	 * @param in DataInput
+	 * @return ReceiveWindow with the accepted Messages, no acknowledgment pending
+	 * @throws IOException if the reading has failed
+	 */
+	public static ReceiveWindow readFrom(DataInput in) throws IOException {
+		ReceiveWindow window = new ReceiveWindow();
+		window.cumulative = in.readInt();
+		window.selective = in.readLong();
+		return window;
+	}
+
+	/**
+	 * @return every Message up to this sequence number has been accepted
+	 */
+	public int getCumulative() {
+		return cumulative;
+	}
+
+	/**
+	 * @return bit i is set if Message getCumulative() + 1 + i has been accepted
+	 */
+	public long getSelective() {
+		return selective;
+	}
+
+	/**
+	 * Record that a Message has to be acknowledged.
+	 *
+	 * @param now Current time in milliseconds
+	 * @param delayMillis Maximum delay before the acknowledgment is sent
+	 * @return true if the acknowledgment was not pending yet (its deadline has been set)
+	 */
+	public boolean acknowledgmentNeeded(long now, long delayMillis) {
+		nbUnacknowledged++;
+		if(acknowledgmentPending)
+			return false;
+		acknowledgmentPending = true;
+		acknowledgmentDeadline = now + delayMillis;
+		return true;
+	}
+
+	/**
+	 * Record that the acknowledgment has been sent
+	 */
+	public void acknowledgmentSent() {
+		nbUnacknowledged = 0;
+		acknowledgmentPending = false;
+	}
+
+	/**
+	 * @return number of Messages received since the last acknowledgment
+	 */
+	public int getNbUnacknowledged() {
+		return nbUnacknowledged;
+	}
+
+	/**
+	 * @return true if an acknowledgment has to be sent
+	 */
+	public boolean isAcknowledgmentPending() {
+		return acknowledgmentPending;
+	}
+
+	/**
+	 * @return time when the pending acknowledgment must be sent
+	 */
+	public long getAcknowledgmentDeadline() {
+		return acknowledgmentDeadline;
+	}
+}
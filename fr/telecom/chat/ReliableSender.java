@@ -0,0 +1,165 @@
+package fr.telecom.chat;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class delivers the standard Messages of a client session reliably, once the server has accepted it (chat.reliable
+ * system property, default : false). Messages are numbered and kept in a SendWindow until the server acknowledges them.
+ * They are sent again if they are not acknowledged in time (chat.reliable.rto, default : 1 s) and after a resume.
+ * When the window is full (chat.reliable.window, default : 64 Messages), new Messages wait in the outbox of the session
+ * (see ClientReconnection). Messages refused by the server (unknown receiver) are not sent again.
+ * Not thread-safe, used on the engine thread only.
+ *
+ */
+class ReliableSender {
+	private static final int RELIABLE_WINDOW = Integer.getInteger("chat.reliable.window", SendWindow.MAX_CAPACITY);
+	private static final long RETRANSMIT_TIMEOUT_MILLIS = Long.getLong("chat.reliable.rto", 1000);
+
+	private final ClientSession _session;
+	/* Not null once reliable delivery has been accepted by the server */
+	private SendWindow _sendWindow;
+	private boolean _retransmissionScheduled = false;
+	private Logger reliableLogger;
+
+	/**
+	 * @param session ClientSession whose standard Messages are delivered
+	 */
+	ReliableSender(ClientSession session) {
+		_session = session;
+		reliableLogger = Logger.getLogger(ReliableSender.class.getSimpleName() + "." + session.getNickname());
+	}
+
+	/**
+	 * @return true if reliable delivery is used and no more Messages can wait for their acknowledgment
+	 */
+	boolean isFull() {
+		return _sendWindow != null && _sendWindow.isFull();
+	}
+
+	/**
+	 * Number a standard Message sent for the first time, it is kept until it is acknowledged
+	 *
+	 * @param content Content of the Message
+	 * @param to Nickname of the receiver
+	 * @return sequence number of the Message, 0 without reliable delivery
+	 */
+	int add(String content, String to) {
+		if(_sendWindow == null)
+			return 0;
+		int sequence = _sendWindow.add(content, to, System.currentTimeMillis());
+		scheduleRetransmission();
+		return sequence;
+	}
+
+	/**
+	 * Enable reliable delivery if the server has accepted it. Messages waiting for an acknowledgment from a previous
+	 * server session are sent again : at once after a resume, otherwise from the outbox with new sequence numbers.
+	 *
+	 * @param msg Connection or resume Message of the server
+	 * @param reliableEnabled true if the session has asked for reliable delivery
+	 * @param reconnection ClientReconnection holding the outbox of the session
+	 */
+	void enable(Message msg, boolean reliableEnabled, ClientReconnection reconnection) {
+		boolean resumed = msg.getType() == Message.Type.RESUME;
+		if(_sendWindow != null && (!resumed || !msg.hasFlag(Message.FLAG_RELIABLE))) {
+			// Put back the messages not acknowledged in front of the outbox, in order
+			for(int sequence = _sendWindow.getNextSequence() - 1; sequence >= _sendWindow.getFirstSequence(); sequence--) {
+				if(!_sendWindow.isAcknowledged(sequence))
+					reconnection.holdFirst(_sendWindow.getContent(sequence), _sendWindow.getReceiver(sequence));
+			}
+			_sendWindow.clear();
+		}
+		if(!reliableEnabled || !msg.hasFlag(Message.FLAG_RELIABLE)) {
+			_sendWindow = null;
+			return;
+		}
+		if(_sendWindow == null) {
+			_sendWindow = new SendWindow(RELIABLE_WINDOW);
+			reliableLogger.info("Reliable delivery enabled");
+		}
+		if(resumed) {
+			retransmit(true);
+			scheduleRetransmission();
+		}
+	}
+
+	/**
+	 * Release the Messages acknowledged by the server : every Message up to the sequence number of the acknowledgment,
+	 * and the ones following it whose bit is set in its content (hexadecimal).
+	 *
+	 * @param msg ACK Message of the server
+	 * @return false if reliable delivery is not used
+	 */
+	boolean acknowledge(Message msg) {
+		if(_sendWindow == null)
+			return false;
+		try {
+			long selective = msg.getContent().isEmpty() ? 0 : Long.parseUnsignedLong(msg.getContent(), 16);
+			_sendWindow.acknowledge(msg.getSequence(), selective);
+		} catch (NumberFormatException e) {
+			reliableLogger.warn("Invalid acknowledgment received");
+		}
+		return true;
+	}
+
+	/**
+	 * Release the Message refused by the server because its receiver is unknown
+	 *
+	 * @param msg NACK Message of the server, numbered with the sequence number of the Message refused
+	 * @return false if reliable delivery is not used
+	 */
+	boolean refuse(Message msg) {
+		if(_sendWindow == null || !msg.isSequenced())
+			return false;
+		int sequence = msg.getSequence();
+		if(sequence >= _sendWindow.getFirstSequence() && sequence < _sendWindow.getNextSequence())
+			reliableLogger.warn("Message to unknown client " + _sendWindow.getReceiver(sequence) + " refused by the server");
+		_sendWindow.refuse(sequence);
+		return true;
+	}
+
+	/**
+	 * Forget the Messages waiting for their acknowledgment, the session is closed
+	 */
+	void stop() {
+		_sendWindow = null;
+	}
+
+	/**
+	 * Check the messages not acknowledged after the retransmission timeout, as long as some are waiting.
+	 */
+	private void scheduleRetransmission() {
+		if(_retransmissionScheduled || _sendWindow == null || _sendWindow.isEmpty())
+			return;
+		_retransmissionScheduled = true;
+		_session.getEngine().schedule(new Runnable() {
+			public void run() {
+				_retransmissionScheduled = false;
+				if(_session.isClosed() || _session.isReconnecting() || _sendWindow == null)
+					return;
+				retransmit(false);
+				scheduleRetransmission();
+			}
+		}, RETRANSMIT_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * Send again the messages of the send window that are not acknowledged, as long as there is enough space in the pending writing data.
+	 *
+	 * @param all true to send every message not acknowledged (after a resume), false for the ones sent before the retransmission timeout
+	 */
+	private void retransmit(boolean all) {
+		long now = System.currentTimeMillis();
+		for(int sequence = _sendWindow.getFirstSequence(); sequence < _sendWindow.getNextSequence(); sequence++) {
+			if(_sendWindow.isAcknowledged(sequence) || (!all && now - _sendWindow.getSentTime(sequence) < RETRANSMIT_TIMEOUT_MILLIS))
+				continue;
+			if(!_session.hasSpaceForMessage())
+				return;
+			reliableLogger.info("Message " + sequence + " sent again");
+			_session.writeStandardMessage(_sendWindow.getContent(sequence), _sendWindow.getReceiver(sequence), sequence);
+			_sendWindow.setSentTime(sequence, now);
+		}
+	}
+}
@@ -0,0 +1,247 @@
+package fr.telecom.chat;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class keeps what the server needs to resume the session of a client after a connection loss.
+ *
+ * Standard Messages sent to the client are numbered per conversation (one sequence per sender) and the last ones
+ * are kept in a bounded history. When the connection is lost, the session is detached : its nickname and session ID
+ * are kept, Messages sent to it are still numbered and kept. When the client resumes with the last sequence number
+ * it has seen in each conversation, only the Messages it has missed are sent again.
+ *
+ * The client proves the session is its own with the token given at connection.
+ * The history size is given by the chat.resume.history system property (default : 256 Messages).
+ * A session can be written and read again by another server (restart with state handoff, see ServerSnapshot).
+ *
+ */
+public class ResumableSession {
+	private static final int HISTORY_SIZE = Integer.getInteger("chat.resume.history", 256);
+	private static final SecureRandom TOKEN_GENERATOR = new SecureRandom();
+
+	private final String token;
+	private final String nickname;
+	private final int sessionId;
+	private final Map<String, Integer> lastSequenceBySender = new HashMap<String, Integer>();
+	/* History ring buffer, in order of sending */
+	private final String[] historySenders = new String[HISTORY_SIZE];
+	private final int[] historySequences = new int[HISTORY_SIZE];
+	private final String[] historyContents = new String[HISTORY_SIZE];
+	private final byte[][] historyCompressedContents = new byte[HISTORY_SIZE][];
+	private int historyFirst = 0;
+	private int historySize = 0;
+	private long detachDeadline = 0;
+	private ReceiveWindow receiveWindow;
+
+	/**
+	 * @param nickname Nickname of the client
+	 * @param sessionId Session ID of the client
+	 */
+	public ResumableSession(String nickname, int sessionId) {
+		this(nickname, sessionId, Long.toHexString(TOKEN_GENERATOR.nextLong()));
+	}
+
+	private ResumableSession(String nickname, int sessionId, String token) {
+		this.nickname = nickname;
+		this.sessionId = sessionId;
+		this.token = token;
+	}
+
+	/**
+	 * Number a Message sent to the client and keep it in the history.
+	 *
+	 * @param from Nickname of the sender
+	 * @param msg Message to be sent, content is read before it is compressed for the client
+	 * @return sequence number of the Message in its conversation
+	 */
+	public int record(String from, Message msg) {
+		Integer lastSequence = lastSequenceBySender.get(from);
+		int sequence = lastSequence == null ? 1 : lastSequence + 1;
+		lastSequenceBySender.put(from, sequence);
+
+		if(msg.isCompressed())
+			addToHistory(from, sequence, null, msg.getCompressedContent());
+		else
+			addToHistory(from, sequence, msg.getContent(), null);
+		return sequence;
+	}
+
+	private void addToHistory(String from, int sequence, String content, byte[] compressedContent) {
+		int slot = (historyFirst + historySize) % historySenders.length;
+		if(historySize < historySenders.length)
+			historySize++;
+		else
+			historyFirst = (historyFirst + 1) % historySenders.length;
+		historySenders[slot] = from;
+		historySequences[slot] = sequence;
+		historyContents[slot] = content;
+		historyCompressedContents[slot] = compressedContent;
+	}
+
+	/**
+	 * Build the Messages of the history missed by the client.
+	 * Conversations not listed by the client are sent again from the beginning of the history.
+	 *
+	 * @param lastSeenSequences Last sequence number seen by the client in each conversation, by sender nickname
+	 * @return Messages addressed by nickname, sequenced, in order of sending
+	 */
+	public Message[] buildReplay(Map<String, Integer> lastSeenSequences) {
+		int nbMessages = 0;
+		Message[] replay = new Message[historySize];
+		for(int i = 0; i < historySize; i++) {
+			int slot = (historyFirst + i) % historySenders.length;
+			Integer lastSeen = lastSeenSequences.get(historySenders[slot]);
+			if(lastSeen != null && historySequences[slot] <= lastSeen)
+				continue;
+			Message msg;
+			if(historyCompressedContents[slot] != null) {
+				msg = new Message("", historySenders[slot], nickname, Message.Type.STANDARD);
+				msg.setCompressedContent(historyCompressedContents[slot]);
+			} else {
+				msg = new Message(historyContents[slot], historySenders[slot], nickname, Message.Type.STANDARD);
+			}
+			msg.setSequence(historySequences[slot]);
+			replay[nbMessages++] = msg;
+		}
+		Message[] result = new Message[nbMessages];
+		System.arraycopy(replay, 0, result, 0, nbMessages);
+		return result;
+	}
+
+	/**
+	 * Write the session : token, sequence numbers, history and reliable delivery state.
+	 *
+	 * @param out DataOutput
+	 * @throws IOException if the writing has failed
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeUTF(nickname);
+		out.writeInt(sessionId);
+		out.writeUTF(token);
+		out.writeInt(lastSequenceBySender.size());
+		for(Map.Entry<String, Integer> conversation : lastSequenceBySender.entrySet()) {
+			out.writeUTF(conversation.getKey());
+			out.writeInt(conversation.getValue());
+		}
+		out.writeInt(historySize);
+		for(int i = 0; i < historySize; i++) {
+			int slot = (historyFirst + i) % historySenders.length;
+			out.writeUTF(historySenders[slot]);
+			out.writeInt(historySequences[slot]);
+			byte[] compressedContent = historyCompressedContents[slot];
+			out.writeBoolean(compressedContent != null);
+			if(compressedContent != null) {
+				out.writeInt(compressedContent.length);
+				out.write(compressedContent);
+			} else {
+				out.writeUTF(historyContents[slot]);
+			}
+		}
+		out.writeBoolean(receiveWindow != null);
+		if(receiveWindow != null)
+			receiveWindow.writeTo(out);
+	}
+
+	/**
+	 * Read a session written by writeTo. The oldest Messages of the history are forgotten if it is smaller than the written one.
+	 *
+	 * @param in DataInput
+	 * @return ResumableSession, not detached yet
+	 * @throws IOException if the reading has failed
+	 */
+	public static ResumableSession readFrom(DataInput in) throws IOException {
+		ResumableSession session = new ResumableSession(in.readUTF(), in.readInt(), in.readUTF());
+		int nbConversations = in.readInt();
+		for(int i = 0; i < nbConversations; i++)
+			session.lastSequenceBySender.put(in.readUTF(), in.readInt());
+		int nbMessages = in.readInt();
+		for(int i = 0; i < nbMessages; i++) {
+			String from = in.readUTF();
+			int sequence = in.readInt();
+			byte[] compressedContent = null;
+			String content = null;
+			if(in.readBoolean()) {
+				compressedContent = new byte[in.readInt()];
+				in.readFully(compressedContent);
+			} else {
+				content = in.readUTF();
+			}
+			session.addToHistory(from, sequence, content, compressedContent);
+		}
+		if(in.readBoolean())
+			session.receiveWindow = ReceiveWindow.readFrom(in);
+		return session;
+	}
+
+	/**
+	 * Detach the session from its connection
+	 *
+	 * @param timeoutMillis Time given to the client to resume
+	 */
+	public void detach(long timeoutMillis) {
+		detachDeadline = System.currentTimeMillis() + timeoutMillis;
+	}
+
+	/**
+	 * Keep the reliable delivery state of the client while the session is detached
+	 *
+	 * @param receiveWindow ReceiveWindow of the client, null if it does not use reliable delivery
+	 */
+	public void setReceiveWindow(ReceiveWindow receiveWindow) {
+		this.receiveWindow = receiveWindow;
+	}
+
+	/**
+	 * @return ReceiveWindow of the client when the session has been detached, null if it does not use reliable delivery
+	 */
+	public ReceiveWindow getReceiveWindow() {
+		return receiveWindow;
+	}
+
+	/**
+	 * @return time when a detached session must be closed
+	 */
+	public long getDetachDeadline() {
+		return detachDeadline;
+	}
+
+	/**
+	 * Compare a token in constant time, so that the time taken does not tell how much of it is right
+	 * 
+	 * @param candidate Token sent by a client
+	 * @return true if it is the token of this session
+	 */
+	public boolean isTokenValid(String candidate) {
+		return candidate != null && MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8), candidate.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @return token given to the client at connection
+	 */
+	public String getToken() {
+		return token;
+	}
+
+	/**
+	 * @return nickname of the client
+	 */
+	public String getNickname() {
+		return nickname;
+	}
+
+	/**
+	 * @return session ID of the client
+	 */
+	public int getSessionId() {
+		return sessionId;
+	}
+}
@@ -0,0 +1,249 @@
+package fr.telecom.chat;
+
+import java.util.Collection;
+import java.util.Random;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class keeps the nicknames of the connected clients sorted, for rosters of tens of thousands of clients.
+ *
+ * Nicknames are stored in a treap (randomized balanced binary search tree) whose nodes know the size of their subtree,
+ * so that adding, removing, finding a nickname, finding the rank of a nickname and finding the nickname at a given rank
+ * all take O(log N). A virtual table asks for rows by index, which is a rank.
+ *
+ * Nicknames starting with a prefix are contiguous in the sorted order : a filter is a range of ranks,
+ * computed in O(log N) whatever the number of matching nicknames.
+ *
+ * Not thread-safe, the UI uses it from its thread only.
+ *
+ */
+public class RosterModel {
+	private final Random _random = new Random();
+	private Node _root;
+
+	/**
+	 * Add a nickname. Nothing is done if it is already in the roster.
+	 *
+	 * @param nickname String containing the nickname
+	 * @return true if the nickname has been added
+	 */
+	public boolean add(String nickname) {
+		if(contains(nickname))
+			return false;
+		_root = insert(_root, new Node(nickname, _random.nextInt()));
+		return true;
+	}
+
+	/**
+	 * Remove a nickname
+	 *
+	 * @param nickname String containing the nickname
+	 * @return true if the nickname was in the roster
+	 */
+	public boolean remove(String nickname) {
+		if(!contains(nickname))
+			return false;
+		_root = delete(_root, nickname);
+		return true;
+	}
+
+	/**
+	 * Apply a batch of presence changes
+	 *
+	 * @param connectedClients Nicknames to be added
+	 * @param disconnectedClients Nicknames to be removed
+	 * @return true if the roster has changed
+	 */
+	public boolean applyChanges(Collection<String> connectedClients, Collection<String> disconnectedClients) {
+		boolean changed = false;
+		for(String nickname : disconnectedClients)
+			changed |= remove(nickname);
+		for(String nickname : connectedClients)
+			changed |= add(nickname);
+		return changed;
+	}
+
+	/**
+	 * @param nickname String containing the nickname
+	 * @return true if the nickname is in the roster
+	 */
+	public boolean contains(String nickname) {
+		Node node = _root;
+		while(node != null) {
+			int comparison = nickname.compareTo(node.nickname);
+			if(comparison == 0)
+				return true;
+			node = comparison < 0 ? node.left : node.right;
+		}
+		return false;
+	}
+
+	/**
+	 * @return number of nicknames in the roster
+	 */
+	public int size() {
+		return size(_root);
+	}
+
+	/**
+	 * Remove every nickname
+	 */
+	public void clear() {
+		_root = null;
+	}
+
+	/**
+	 * Get the nickname at a position in the sorted order
+	 *
+	 * @param rank Position, between 0 and size() - 1
+	 * @return nickname at this position
+	 */
+	public String get(int rank) {
+		if(rank < 0 || rank >= size())
+			throw new IndexOutOfBoundsException("Rank " + rank + " out of " + size());
+		Node node = _root;
+		while(true) {
+			int leftSize = size(node.left);
+			if(rank < leftSize) {
+				node = node.left;
+			} else if(rank == leftSize) {
+				return node.nickname;
+			} else {
+				rank -= leftSize + 1;
+				node = node.right;
+			}
+		}
+	}
+
+	/**
+	 * Get the number of nicknames sorted before a String. It is the position of the nickname if it is in the roster.
+	 *
+	 * @param nickname String compared to the nicknames
+	 * @return number of nicknames strictly lower than the String
+	 */
+	public int rankOf(String nickname) {
+		int rank = 0;
+		Node node = _root;
+		while(node != null) {
+			if(nickname.compareTo(node.nickname) <= 0) {
+				node = node.left;
+			} else {
+				rank += size(node.left) + 1;
+				node = node.right;
+			}
+		}
+		return rank;
+	}
+
+	/**
+	 * Get the position of the first nickname starting with a prefix.
+	 *
+	 * @param prefix String containing the prefix, empty for the whole roster
+	 * @return position of the first matching nickname
+	 */
+	public int firstRankWithPrefix(String prefix) {
+		return rankOf(prefix);
+	}
+
+	/**
+	 * Get the number of nicknames starting with a prefix. They are contiguous from firstRankWithPrefix.
+	 *
+	 * @param prefix String containing the prefix, empty for the whole roster
+	 * @return number of matching nicknames
+	 */
+	public int countWithPrefix(String prefix) {
+		if(prefix.isEmpty())
+			return size();
+		return rankOf(prefix + Character.MAX_VALUE) - rankOf(prefix);
+	}
+
+	private static int size(Node node) {
+		return node == null ? 0 : node.size;
+	}
+
+	private static Node insert(Node node, Node newNode) {
+		if(node == null)
+			return newNode;
+		if(newNode.nickname.compareTo(node.nickname) < 0) {
+			node.left = insert(node.left, newNode);
+			if(node.left.priority > node.priority)
+				node = rotateRight(node);
+		} else {
+			node.right = insert(node.right, newNode);
+			if(node.right.priority > node.priority)
+				node = rotateLeft(node);
+		}
+		node.updateSize();
+		return node;
+	}
+
+	private static Node delete(Node node, String nickname) {
+		int comparison = nickname.compareTo(node.nickname);
+		if(comparison < 0) {
+			node.left = delete(node.left, nickname);
+		} else if(comparison > 0) {
+			node.right = delete(node.right, nickname);
+		} else {
+			return merge(node.left, node.right);
+		}
+		node.updateSize();
+		return node;
+	}
+
+	/**
+	 * Merge two treaps, every nickname of left being lower than every nickname of right
+	 */
+	private static Node merge(Node left, Node right) {
+		if(left == null)
+			return right;
+		if(right == null)
+			return left;
+		if(left.priority > right.priority) {
+			left.right = merge(left.right, right);
+			left.updateSize();
+			return left;
+		}
+		right.left = merge(left, right.left);
+		right.updateSize();
+		return right;
+	}
+
+	private static Node rotateRight(Node node) {
+		Node left = node.left;
+		node.left = left.right;
+		left.right = node;
+		node.updateSize();
+		left.updateSize();
+		return left;
+	}
+
+	private static Node rotateLeft(Node node) {
+		Node right = node.right;
+		node.right = right.left;
+		right.left = node;
+		node.updateSize();
+		right.updateSize();
+		return right;
+	}
+
+	/**
+	 * Node of the treap
+	 */
+	private static class Node {
+		final String nickname;
+		final int priority;
+		Node left;
+		Node right;
+		int size = 1;
+
+		Node(String nickname, int priority) {
+			this.nickname = nickname;
+			this.priority = priority;
+		}
+
+		void updateSize() {
+			size = 1 + RosterModel.size(left) + RosterModel.size(right);
+		}
+	}
+}
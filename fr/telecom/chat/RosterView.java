@@ -0,0 +1,161 @@
+package fr.telecom.chat;
+
+import java.util.Collection;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.events.ModifyEvent;
+import org.eclipse.swt.events.ModifyListener;
+import org.eclipse.swt.events.SelectionListener;
+import org.eclipse.swt.layout.FormAttachment;
+import org.eclipse.swt.layout.FormData;
+import org.eclipse.swt.layout.FormLayout;
+import org.eclipse.swt.widgets.Composite;
+import org.eclipse.swt.widgets.Control;
+import org.eclipse.swt.widgets.Event;
+import org.eclipse.swt.widgets.Listener;
+import org.eclipse.swt.widgets.Table;
+import org.eclipse.swt.widgets.TableItem;
+import org.eclipse.swt.widgets.Text;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class displays the connected clients, sorted by nickname, with a filter field above them.
+ *
+ * Nicknames are kept by a RosterModel. They are shown by a virtual Table : a row is only filled (SWT.SetData)
+ * when it becomes visible, so the size of the roster does not matter. Typing in the filter field only shows
+ * nicknames starting with the text typed, which is a range of the sorted roster.
+ * Must be used from the UI thread.
+ *
+ */
+public class RosterView {
+	private final Composite _composite;
+	private final Text _filterText;
+	private final Table _table;
+	private final RosterModel _model = new RosterModel();
+	private String _filter = "";
+	/* Rank in the model of the first row of the table */
+	private int _firstRank = 0;
+
+	/**
+	 * @param parent Composite containing the view
+	 */
+	public RosterView(Composite parent) {
+		_composite = new Composite(parent, SWT.NONE);
+		_composite.setLayout(new FormLayout());
+
+		_filterText = new Text(_composite, SWT.BORDER | SWT.SEARCH | SWT.ICON_CANCEL);
+		_filterText.setMessage("Filter");
+		FormData fd_filterText = new FormData();
+		fd_filterText.top = new FormAttachment(0);
+		fd_filterText.left = new FormAttachment(0);
+		fd_filterText.right = new FormAttachment(100);
+		_filterText.setLayoutData(fd_filterText);
+		_filterText.addModifyListener(new ModifyListener() {
+			public void modifyText(ModifyEvent e) {
+				_filter = _filterText.getText();
+				refresh();
+			}
+		});
+
+		_table = new Table(_composite, SWT.VIRTUAL | SWT.BORDER | SWT.SINGLE | SWT.FULL_SELECTION | SWT.V_SCROLL);
+		FormData fd_table = new FormData();
+		fd_table.top = new FormAttachment(_filterText, 2);
+		fd_table.left = new FormAttachment(0);
+		fd_table.right = new FormAttachment(100);
+		fd_table.bottom = new FormAttachment(100);
+		_table.setLayoutData(fd_table);
+		_table.addListener(SWT.SetData, new Listener() {
+			public void handleEvent(Event event) {
+				TableItem item = (TableItem)event.item;
+				int rank = _firstRank + event.index;
+				if(rank < _model.size())
+					item.setText(_model.get(rank));
+			}
+		});
+	}
+
+	/**
+	 * @return Control to be laid out in the window
+	 */
+	public Control getControl() {
+		return _composite;
+	}
+
+	/**
+	 * Add a listener called when the user selects a nickname
+	 *
+	 * @param listener SelectionListener
+	 */
+	public void addSelectionListener(SelectionListener listener) {
+		_table.addSelectionListener(listener);
+	}
+
+	/**
+	 * @return selected nickname, null if none is selected
+	 */
+	public String getSelection() {
+		int index = _table.getSelectionIndex();
+		if(index < 0 || _firstRank + index >= _model.size())
+			return null;
+		return _model.get(_firstRank + index);
+	}
+
+	/**
+	 * @param nickname String containing the nickname
+	 * @return true if the client is in the roster
+	 */
+	public boolean contains(String nickname) {
+		return _model.contains(nickname);
+	}
+
+	/**
+	 * Add the list of clients received at connection
+	 *
+	 * @param nicknames Nicknames of the clients, empty Strings are ignored
+	 */
+	public void addAll(String[] nicknames) {
+		boolean changed = false;
+		for(String nickname : nicknames) {
+			if(!nickname.isEmpty())
+				changed |= _model.add(nickname);
+		}
+		if(changed)
+			refresh();
+	}
+
+	/**
+	 * Apply a batch of presence changes. The table is refreshed once.
+	 *
+	 * @param connectedClients Nicknames to be added
+	 * @param disconnectedClients Nicknames to be removed
+	 */
+	public void applyChanges(Collection<String> connectedClients, Collection<String> disconnectedClients) {
+		if(_model.applyChanges(connectedClients, disconnectedClients))
+			refresh();
+	}
+
+	/**
+	 * Remove every client
+	 */
+	public void clear() {
+		_model.clear();
+		refresh();
+	}
+
+	/**
+	 * Show the nicknames matching the filter. Rows already filled are cleared, they are filled again when visible.
+	 * The selected nickname stays selected if it still matches.
+	 */
+	private void refresh() {
+		String selection = getSelection();
+		_table.setRedraw(false);
+		_firstRank = _model.firstRankWithPrefix(_filter);
+		_table.setItemCount(_model.countWithPrefix(_filter));
+		_table.clearAll();
+		_table.deselectAll();
+		if(selection != null && selection.startsWith(_filter) && _model.contains(selection))
+			_table.select(_model.rankOf(selection) - _firstRank);
+		_table.setRedraw(true);
+	}
+}
@@ -0,0 +1,72 @@
+package fr.telecom.chat;
+
+import java.util.List;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class answers the search requests of the clients (SEARCH Messages) from the SearchIndex of the server.
+ * Searching may take time : the handler runs on a worker thread (see MessagePipeline), the server only sends the answer back.
+ *
+ * A request contains the nickname of the other client of the conversation and the query, separated by FIELD_SEPARATOR.
+ * The answer contains the same two fields, then one record per Message found (most recent first, at most chat.search.maxResults,
+ * default : 20) : RECORD_SEPARATOR, time in milliseconds, sender and content separated by FIELD_SEPARATOR.
+ * Records are added as long as they fit in a Message, long contents are cut.
+ *
+ */
+public class SearchHandler implements MessageHandler {
+	/** Separates the fields of a request, of an answer and of its records */
+	public static final char FIELD_SEPARATOR = '\u001F';
+	/** Precedes each record of an answer */
+	public static final char RECORD_SEPARATOR = '\u001E';
+	private static final int MAX_RESULTS = Integer.getInteger("chat.search.maxResults", 20);
+	private static final int MAX_RECORD_CONTENT = 200;
+
+	private final SearchIndex searchIndex;
+
+	/**
+	 * @param searchIndex Index searched
+	 */
+	public SearchHandler(SearchIndex searchIndex) {
+		this.searchIndex = searchIndex;
+	}
+
+	/**
+	 * Searching may take time
+	 *
+	 * @return false
+	 */
+	public boolean isServerThreadSafe() {
+		return false;
+	}
+
+	/**
+	 * Replace the request by its answer
+	 *
+	 * @param msg SEARCH Message received
+	 * @param sender Nickname of the sender, one of the clients of the conversation
+	 * @return false if the request can not be read
+	 */
+	public boolean handle(Message msg, String sender) {
+		String request = msg.getContent();
+		int separator = request != null ? request.indexOf(FIELD_SEPARATOR) : -1;
+		if(separator < 0)
+			return false;
+		String with = request.substring(0, separator);
+		String query = request.substring(separator + 1);
+		List<SearchIndex.Hit> hits = searchIndex.search(sender, with, query, MAX_RESULTS);
+
+		StringBuilder answer = new StringBuilder(request);
+		for(SearchIndex.Hit hit : hits) {
+			String content = hit.getContent();
+			if(content.length() > MAX_RECORD_CONTENT)
+				content = content.substring(0, MAX_RECORD_CONTENT);
+			String record = RECORD_SEPARATOR + Long.toString(hit.getTime()) + FIELD_SEPARATOR + hit.getSender() + FIELD_SEPARATOR + content;
+			if(answer.length() + record.length() > Message.MAX_CONTENT_SIZE)
+				break;
+			answer.append(record);
+		}
+		msg.setContent(answer.toString());
+		return true;
+	}
+}
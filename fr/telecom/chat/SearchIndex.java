@@ -0,0 +1,262 @@
+package fr.telecom.chat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class is the full-text index of the standard Messages relayed by the server, searched by conversation.
+ *
+ * The server gives each Message to add, which only puts it in a bounded queue : an indexing thread builds the index.
+ * Messages are indexed in memory (see SegmentBuilder) and written as an immutable IndexSegment every
+ * chat.search.segmentSize Messages (default : 128) or as soon as no more Message is waiting, so that they can be searched at once.
+ * When the chat.search.mergeFactor (default : 8) most recent segments have the same size class, the indexing thread merges them
+ * in the background : a few big segments remain instead of many small ones. The oldest segments are forgotten once the index holds
+ * more than chat.search.maxDocuments Messages (default : 1000000).
+ *
+ * Segments are published as a new array through a volatile field : searches run on any thread without lock and never wait for indexing.
+ * A query is a list of terms, all of them must be found. Terms between double quotes form a phrase, found only if they follow each other.
+ *
+ */
+public class SearchIndex {
+	private static final int SEGMENT_SIZE = Integer.getInteger("chat.search.segmentSize", 128);
+	private static final int MERGE_FACTOR = Integer.getInteger("chat.search.mergeFactor", 8);
+	private static final int MAX_DOCUMENTS = Integer.getInteger("chat.search.maxDocuments", 1000000);
+	private static final int QUEUE_SIZE = Integer.getInteger("chat.search.queue", 65536);
+	private static final char CONVERSATION_SEPARATOR = '\0';
+	private static Logger indexLogger = Logger.getLogger(SearchIndex.class.getSimpleName());
+
+	private volatile IndexSegment[] segments = new IndexSegment[0];
+	private final BlockingQueue<IndexedMessage> queue = new ArrayBlockingQueue<IndexedMessage>(QUEUE_SIZE);
+	private final AtomicLong nbMessagesNotIndexed = new AtomicLong();
+	private final Thread indexer;
+
+	/**
+	 * A Message found by a search
+	 */
+	public static class Hit {
+		private final long time;
+		private final String sender;
+		private final String content;
+
+		Hit(long time, String sender, String content) {
+			this.time = time;
+			this.sender = sender;
+			this.content = content;
+		}
+
+		/**
+		 * @return time the Message has been received by the server
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * @return nickname of the sender
+		 */
+		public String getSender() {
+			return sender;
+		}
+
+		/**
+		 * @return content of the Message
+		 */
+		public String getContent() {
+			return content;
+		}
+	}
+
+	/**
+	 * A Message waiting to be indexed
+	 */
+	private static class IndexedMessage {
+		private final String from;
+		private final String to;
+		private final long time;
+		private final String content;
+		private final byte[] compressedContent;
+
+		private IndexedMessage(String from, String to, long time, String content, byte[] compressedContent) {
+			this.from = from;
+			this.to = to;
+			this.time = time;
+			this.content = content;
+			this.compressedContent = compressedContent;
+		}
+	}
+
+	/**
+	 * Create an empty index and start its indexing thread
+	 */
+	public SearchIndex() {
+		indexer = new Thread(new Runnable() {
+			public void run() {
+				index();
+			}
+		}, "search-indexer");
+		indexer.setDaemon(true);
+		indexer.start();
+	}
+
+	/**
+	 * Give a standard Message to be indexed. Never blocks : if too many Messages are waiting, the Message is not indexed.
+	 * A compressed content is decompressed by the indexing thread.
+	 *
+	 * @param from Nickname of the sender
+	 * @param to Nickname of the receiver
+	 * @param content Content, null if it is compressed
+	 * @param compressedContent Compressed content, null if it is not compressed
+	 */
+	public void add(String from, String to, String content, byte[] compressedContent) {
+		if(!queue.offer(new IndexedMessage(from, to, System.currentTimeMillis(), content, compressedContent))) {
+			long nbNotIndexed = nbMessagesNotIndexed.incrementAndGet();
+			if(nbNotIndexed % 1000 == 1)
+				indexLogger.warn("Indexing is late, " + nbNotIndexed + " messages not indexed since startup");
+		}
+	}
+
+	/**
+	 * Search the Messages of a conversation. Can be called from any thread.
+	 *
+	 * @param nickname One of the clients of the conversation
+	 * @param otherNickname The other client of the conversation
+	 * @param query Terms to be found, phrases between double quotes
+	 * @param maxHits Maximum number of Messages returned
+	 * @return Messages found, most recent first
+	 */
+	public List<Hit> search(String nickname, String otherNickname, String query, int maxHits) {
+		List<Hit> hits = new ArrayList<Hit>();
+		String[][] phrases = parseQuery(query);
+		if(phrases.length == 0)
+			return hits;
+		String conversation = conversation(nickname, otherNickname);
+		IndexSegment[] current = segments;
+		for(int i = current.length - 1; i >= 0 && hits.size() < maxHits; i--)
+			current[i].search(conversation, phrases, maxHits, hits);
+		return hits;
+	}
+
+	/**
+	 * Stop the indexing thread. Messages waiting are not indexed.
+	 */
+	public void shutdown() {
+		indexer.interrupt();
+	}
+
+	/**
+	 * @param nickname One of the clients of the conversation
+	 * @param otherNickname The other client of the conversation
+	 * @return name of the conversation, the same whichever client is given first
+	 */
+	static String conversation(String nickname, String otherNickname) {
+		if(nickname.compareTo(otherNickname) > 0)
+			return otherNickname + CONVERSATION_SEPARATOR + nickname;
+		return nickname + CONVERSATION_SEPARATOR + otherNickname;
+	}
+
+	/**
+	 * @param query Terms, phrases between double quotes
+	 * @return terms of each phrase, a term out of quotes is a phrase of one term
+	 */
+	static String[][] parseQuery(String query) {
+		List<String[]> phrases = new ArrayList<String[]>();
+		String[] parts = query.split("\"", -1);
+		for(int i = 0; i < parts.length; i++) {
+			List<String> terms = IndexSegment.tokenize(parts[i]);
+			if(i % 2 == 1 && !terms.isEmpty()) {
+				phrases.add(terms.toArray(new String[terms.size()]));
+			} else {
+				for(String term : terms)
+					phrases.add(new String[] {term});
+			}
+		}
+		return phrases.toArray(new String[phrases.size()][]);
+	}
+
+	/**
+	 * Loop of the indexing thread
+	 */
+	private void index() {
+		PayloadCompressor decompressor = new PayloadCompressor();
+		SegmentBuilder builder = new SegmentBuilder();
+		try {
+			while(true) {
+				IndexedMessage indexed = builder.getNbDocuments() == 0 ? queue.take() : queue.poll(0, TimeUnit.MILLISECONDS);
+				if(indexed != null) {
+					String content = indexed.content;
+					if(indexed.compressedContent != null) {
+						Message msg = new Message("", indexed.from, indexed.to, Message.Type.STANDARD);
+						msg.setCompressedContent(indexed.compressedContent);
+						content = decompressor.decompress(msg) ? msg.getContent() : null;
+					}
+					if(content != null)
+						builder.add(conversation(indexed.from, indexed.to), indexed.from, indexed.time, content);
+				}
+				if(builder.getNbDocuments() >= SEGMENT_SIZE || (indexed == null && builder.getNbDocuments() > 0)) {
+					publish(builder.build());
+					builder = new SegmentBuilder();
+				}
+			}
+		} catch (InterruptedException e) {
+			indexLogger.info("Indexing stopped");
+		} finally {
+			decompressor.end();
+		}
+	}
+
+	/**
+	 * Add a new segment, merge the most recent ones if needed and forget the oldest ones beyond the maximum number of Messages
+	 *
+	 * @param segment New segment
+	 */
+	private void publish(IndexSegment segment) {
+		List<IndexSegment> list = new ArrayList<IndexSegment>(Arrays.asList(segments));
+		list.add(segment);
+		segments = list.toArray(new IndexSegment[list.size()]);
+
+		while(list.size() >= MERGE_FACTOR) {
+			int last = list.size() - 1;
+			int level = level(list.get(last));
+			int first = last;
+			while(first > 0 && last - first + 1 < MERGE_FACTOR && level(list.get(first - 1)) == level)
+				first--;
+			if(last - first + 1 < MERGE_FACTOR)
+				break;
+			List<IndexSegment> merged = new ArrayList<IndexSegment>(list.subList(first, last + 1));
+			IndexSegment mergedSegment = IndexSegment.merge(merged);
+			list.subList(first, last + 1).clear();
+			list.add(mergedSegment);
+			segments = list.toArray(new IndexSegment[list.size()]);
+		}
+
+		int nbDocuments = 0;
+		for(IndexSegment s : list)
+			nbDocuments += s.getNbDocuments();
+		boolean trimmed = false;
+		while(list.size() > 1 && nbDocuments > MAX_DOCUMENTS) {
+			nbDocuments -= list.remove(0).getNbDocuments();
+			trimmed = true;
+		}
+		if(trimmed)
+			segments = list.toArray(new IndexSegment[list.size()]);
+	}
+
+	/**
+	 * @return size class of a segment : segments of the same class are merged together
+	 */
+	private static int level(IndexSegment segment) {
+		int level = 0;
+		for(long size = SEGMENT_SIZE; size < segment.getNbDocuments(); size *= MERGE_FACTOR)
+			level++;
+		return level;
+	}
+}
@@ -0,0 +1,14 @@
+package fr.telecom.chat;
+
+import java.util.List;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ * 
+ * Interface that provides the method called when the answer to a search request is received (see ClientApplication.search).
+ * Called on the client thread.
+ *
+ */
+public interface SearchResultsListener {
+		public abstract void searchResultsReceived(String with, String query, List<SearchIndex.Hit> hits);
+}
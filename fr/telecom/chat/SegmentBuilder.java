@@ -0,0 +1,100 @@
+package fr.telecom.chat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class indexes Messages one by one until they are written as an IndexSegment.
+ * Postings of each term are compressed as soon as a Message is added (see PostingsWriter).
+ *
+ * Used by the indexing thread of SearchIndex only.
+ *
+ */
+class SegmentBuilder {
+	private Map<String, PostingsWriter> postingsByTerm = new HashMap<String, PostingsWriter>();
+	private List<String> documentConversations = new ArrayList<String>();
+	private List<String> documentSenders = new ArrayList<String>();
+	private List<String> documentContents = new ArrayList<String>();
+	private long[] documentTimes = new long[16];
+	/* Positions of each term of the Message being added */
+	private Map<String, int[]> positionsByTerm = new HashMap<String, int[]>();
+
+	/**
+	 * Index a Message
+	 *
+	 * @param conversation Conversation of the Message (see SearchIndex.conversation)
+	 * @param sender Nickname of the sender
+	 * @param time Time the Message has been received
+	 * @param content Content of the Message
+	 */
+	void add(String conversation, String sender, long time, String content) {
+		int document = documentContents.size();
+		List<String> tokens = IndexSegment.tokenize(content);
+		// positions[0] is the number of positions
+		positionsByTerm.clear();
+		for(int position = 0; position < tokens.size(); position++) {
+			String term = tokens.get(position);
+			int[] positions = positionsByTerm.get(term);
+			if(positions == null) {
+				positions = new int[4];
+			} else if(positions[0] + 1 == positions.length) {
+				positions = Arrays.copyOf(positions, positions.length * 2);
+			}
+			positions[++positions[0]] = position;
+			positionsByTerm.put(term, positions);
+		}
+		for(Map.Entry<String, int[]> entry : positionsByTerm.entrySet()) {
+			PostingsWriter writer = postingsByTerm.get(entry.getKey());
+			if(writer == null) {
+				writer = new PostingsWriter();
+				postingsByTerm.put(entry.getKey(), writer);
+			}
+			int[] positions = entry.getValue();
+			writer.add(document, Arrays.copyOfRange(positions, 1, positions[0] + 1), positions[0]);
+		}
+
+		documentConversations.add(conversation);
+		documentSenders.add(sender);
+		documentContents.add(content);
+		if(document == documentTimes.length)
+			documentTimes = Arrays.copyOf(documentTimes, document * 2);
+		documentTimes[document] = time;
+	}
+
+	/**
+	 * @return number of Messages added
+	 */
+	int getNbDocuments() {
+		return documentContents.size();
+	}
+
+	/**
+	 * Write the Messages added as a segment
+	 *
+	 * @return new IndexSegment
+	 */
+	IndexSegment build() {
+		int nbDocuments = documentContents.size();
+		String[] conversations = new TreeSet<String>(documentConversations).toArray(new String[0]);
+		int[] conversationIndexes = new int[nbDocuments];
+		for(int d = 0; d < nbDocuments; d++)
+			conversationIndexes[d] = Arrays.binarySearch(conversations, documentConversations.get(d));
+
+		String[] terms = postingsByTerm.keySet().toArray(new String[postingsByTerm.size()]);
+		Arrays.sort(terms);
+		PostingsWriter[] writers = new PostingsWriter[terms.length];
+		int postingsLength = 0;
+		for(int t = 0; t < terms.length; t++) {
+			writers[t] = postingsByTerm.get(terms[t]);
+			postingsLength += writers[t].getLength();
+		}
+		return IndexSegment.build(terms, writers, postingsLength, conversations, conversationIndexes, Arrays.copyOf(documentTimes, nbDocuments),
+				documentSenders.toArray(new String[nbDocuments]), documentContents.toArray(new String[nbDocuments]));
+	}
+}
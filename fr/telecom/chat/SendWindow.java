@@ -0,0 +1,187 @@
+package fr.telecom.chat;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class keeps the standard Messages sent by a client with reliable delivery until the server acknowledges them.
+ *
+ * Messages are numbered from 1 in the order they are sent. At most capacity Messages can wait for their acknowledgment,
+ * the client waits for room before sending more. The server acknowledges every Message up to a sequence number
+ * (cumulative acknowledgment) and the Messages received after it (selective acknowledgment, one bit per Message).
+ * Messages that are not acknowledged in time are sent again, unless the server has refused them (unknown receiver).
+ *
+ * Entries are kept in preallocated arrays : nothing is allocated when a Message is sent or acknowledged.
+ * Not thread-safe, used on the engine thread only.
+ *
+ */
+public class SendWindow {
+	/** A selective acknowledgment covers the 64 Messages following the cumulative acknowledgment */
+	public static final int MAX_CAPACITY = 64;
+
+	/* Ring buffer : Message of sequence s is at index s % capacity */
+	private final String[] contents;
+	private final String[] receivers;
+	private final long[] sentTimes;
+	private final boolean[] acknowledged;
+	/* Oldest Message not acknowledged, equal to nextSequence when the window is empty */
+	private int firstSequence = 1;
+	private int nextSequence = 1;
+
+	/**
+	 * @param capacity Maximum number of Messages waiting for their acknowledgment, at most MAX_CAPACITY
+	 */
+	public SendWindow(int capacity) {
+		int size = Math.max(1, Math.min(MAX_CAPACITY, capacity));
+		contents = new String[size];
+		receivers = new String[size];
+		sentTimes = new long[size];
+		acknowledged = new boolean[size];
+	}
+
+	/**
+	 * Keep a Message sent
+	 *
+	 * @param content Content of the Message
+	 * @param to Nickname of the receiver
+	 * @param now Current time in milliseconds
+	 * @return sequence number of the Message
+	 */
+	public int add(String content, String to, long now) {
+		if(isFull())
+			throw new IllegalStateException("Send window is full");
+		int slot = slot(nextSequence);
+		contents[slot] = content;
+		receivers[slot] = to;
+		sentTimes[slot] = now;
+		acknowledged[slot] = false;
+		return nextSequence++;
+	}
+
+	/**
+	 * Release the Messages acknowledged by the server
+	 *
+	 * @param cumulative Every Message up to this sequence number has been received
+	 * @param selective Bit i is set if Message cumulative + 1 + i has been received
+	 * @return number of Messages released
+	 */
+	public int acknowledge(int cumulative, long selective) {
+		int firstBefore = firstSequence;
+		if(cumulative >= nextSequence)
+			cumulative = nextSequence - 1;
+		while(firstSequence <= cumulative)
+			release(firstSequence++);
+		for(int i = 0; i < MAX_CAPACITY && selective != 0; i++, selective >>>= 1) {
+			int sequence = cumulative + 1 + i;
+			if((selective & 1) != 0 && sequence >= firstSequence && sequence < nextSequence)
+				acknowledged[slot(sequence)] = true;
+		}
+		while(firstSequence < nextSequence && acknowledged[slot(firstSequence)])
+			release(firstSequence++);
+		return firstSequence - firstBefore;
+	}
+
+	/**
+	 * Release a Message refused by the server : it is not sent again
+	 *
+	 * @param sequence Sequence number of the Message
+	 * @return number of Messages released
+	 */
+	public int refuse(int sequence) {
+		if(sequence < firstSequence || sequence >= nextSequence)
+			return 0;
+		int firstBefore = firstSequence;
+		acknowledged[slot(sequence)] = true;
+		while(firstSequence < nextSequence && acknowledged[slot(firstSequence)])
+			release(firstSequence++);
+		return firstSequence - firstBefore;
+	}
+
+	/**
+	 * Forget every Message and number the next ones from 1 again (new session on the server)
+	 */
+	public void clear() {
+		while(firstSequence < nextSequence)
+			release(firstSequence++);
+		firstSequence = 1;
+		nextSequence = 1;
+	}
+
+	/**
+	 * @return true if no more Message can be sent before an acknowledgment
+	 */
+	public boolean isFull() {
+		return nextSequence - firstSequence >= contents.length;
+	}
+
+	/**
+	 * @return true if no Message waits for its acknowledgment
+	 */
+	public boolean isEmpty() {
+		return firstSequence == nextSequence;
+	}
+
+	/**
+	 * @return sequence number of the oldest Message not acknowledged
+	 */
+	public int getFirstSequence() {
+		return firstSequence;
+	}
+
+	/**
+	 * @return sequence number of the next Message
+	 */
+	public int getNextSequence() {
+		return nextSequence;
+	}
+
+	/**
+	 * @param sequence Sequence number between getFirstSequence and getNextSequence - 1
+	 * @return true if the Message has been acknowledged
+	 */
+	public boolean isAcknowledged(int sequence) {
+		return acknowledged[slot(sequence)];
+	}
+
+	/**
+	 * @param sequence Sequence number between getFirstSequence and getNextSequence - 1
+	 * @return content of the Message
+	 */
+	public String getContent(int sequence) {
+		return contents[slot(sequence)];
+	}
+
+	/**
+	 * @param sequence Sequence number between getFirstSequence and getNextSequence - 1
+	 * @return nickname of the receiver
+	 */
+	public String getReceiver(int sequence) {
+		return receivers[slot(sequence)];
+	}
+
+	/**
+	 * @param sequence Sequence number between getFirstSequence and getNextSequence - 1
+	 * @return time the Message has been sent for the last time
+	 */
+	public long getSentTime(int sequence) {
+		return sentTimes[slot(sequence)];
+	}
+
+	/**
+	 * @param sequence Sequence number between getFirstSequence and getNextSequence - 1
+	 * @param now Time the Message is sent again
+	 */
+	public void setSentTime(int sequence, long now) {
+		sentTimes[slot(sequence)] = now;
+	}
+
+	private void release(int sequence) {
+		int slot = slot(sequence);
+		contents[slot] = null;
+		receivers[slot] = null;
+		acknowledged[slot] = false;
+	}
+
+	private int slot(int sequence) {
+		return (sequence & Integer.MAX_VALUE) % contents.length;
+	}
+}
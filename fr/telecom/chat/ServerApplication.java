@@ -1,20 +1,31 @@
 package fr.telecom.chat;
 
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Channels;
 import java.nio.channels.ClosedChannelException;
+import java.security.NoSuchAlgorithmException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
-import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import org.apache.log4j.Logger;
 
 import fr.telecom.chat.ChannelIO;
@@ -24,52 +35,227 @@ import fr.telecom.chat.ChannelIO;
  * 
  * This class implements the server side of the chat. 
  * It handles clients connections and allows them to communicate using the Message protocol.
- * Server is running on a single Thread.
+ * Server is running on a single Thread. Only the delegated tasks of TLS handshakes are run by other threads (see TlsContext).
+ * Clients connect with a Transport (chat.transport, TCP by default), through a Unix domain socket (see UnixTransport)
+ * or with WebSocket (see WebSocketSession) : they all share the sessions and the routing.
+ * Sessions are kept for a while after a connection loss (see ResumableSession) and handed over to a new server
+ * when it takes over the running one (see handOver).
+ * 
+ * Each client is limited in Messages and bytes per second (see RateLimiter) so that a flooding client does not starve the others :
+ * chat.rate.messages (default : 200), chat.rate.bytes (default : 256 KiB), chat.rate.burst (default : 2000 ms), 0 for no limit.
+ * chat.rate.policy tells what is done with a client sending faster : delay (default), drop or disconnect.
+ * 
+ * Other features have their own class : Message handlers (see MessagePipeline, ContentFilter and SearchHandler),
+ * reliable delivery (see ReceiveWindow), file transfers (see FileTransferServer), signals (see SignalChannel),
+ * latency traces (see Message.FLAG_TRACED) and Java Flight Recorder events (see ServerEvents).
  *
  */
 public class ServerApplication implements MessageAnalyzer{
-	private static final int MAX_MESSAGE_SIZE = ChannelIO.BUFFER_SIZE;
-	private static final int MAX_PENDING_DATA_SIZE = 2048;
+	private static final int MAX_MESSAGE_SIZE = Message.MAX_SIZE;
+	/* Space a Message may take in pending writing data, WebSocket frame included */
+	private static final int MAX_FRAME_SIZE = MAX_MESSAGE_SIZE + WebSocketSession.MAX_FRAME_HEADER_SIZE;
+	/* Pending reading data hold a Message not complete yet and the data read after it (no more than a Message) */
+	private static final int MAX_PENDING_DATA_SIZE = 2 * MAX_FRAME_SIZE;
 	/* Constantes */
 	private static final int PORT = 1234;
+	private static final long PRESENCE_WINDOW_MILLIS = Long.getLong("chat.presence.window", 100);
+	private static final boolean COMPRESSION_ENABLED = Boolean.parseBoolean(System.getProperty("chat.compression", "true"));
+	private static final boolean SESSION_IDS_ENABLED = Boolean.parseBoolean(System.getProperty("chat.sessionIds", "true"));
+	private static final boolean RESUME_ENABLED = Boolean.parseBoolean(System.getProperty("chat.resume", "true"));
+	private static final long RESUME_TIMEOUT_MILLIS = Long.getLong("chat.resume.timeout", 60000);
+	private static final String RESUME_SEPARATOR = ";";
+	private static final boolean RELIABLE_ENABLED = Boolean.parseBoolean(System.getProperty("chat.reliable", "true"));
+	private static final int ACK_EVERY = Integer.getInteger("chat.reliable.ackEvery", 16);
+	private static final long ACK_DELAY_MILLIS = Long.getLong("chat.reliable.ackDelay", 5);
+	private static final boolean TRACE_ENABLED = Boolean.parseBoolean(System.getProperty("chat.trace", "true"));
+	private static final int HANDOFF_PORT = Integer.getInteger("chat.handoff.port", 0);
+	private static final String UNIX_SOCKET_PATH = System.getProperty("chat.unix.path");
+	private static final int WEBSOCKET_PORT = Integer.getInteger("chat.websocket.port", 0);
+	private static final int HANDOFF_TIMEOUT_MILLIS = Integer.getInteger("chat.handoff.timeout", 5000);
+	private static final long HANDOFF_DRAIN_MILLIS = Long.getLong("chat.handoff.drain", 1000);
+	private static final int RATE_MESSAGES = Integer.getInteger("chat.rate.messages", 200);
+	private static final int RATE_BYTES = Integer.getInteger("chat.rate.bytes", 256 * 1024);
+	private static final long RATE_BURST_MILLIS = Long.getLong("chat.rate.burst", 2000);
+	private static final String MODERATION_PATTERNS = System.getProperty("chat.moderation.patterns");
+	private static final long MODERATION_RELOAD_MILLIS = Long.getLong("chat.moderation.reload", 5000);
+	private static final boolean SEARCH_ENABLED = Boolean.parseBoolean(System.getProperty("chat.search", "true"));
+	private static final int SIGNAL_PORT = Integer.getInteger("chat.signal.port", 0);
+	private static final int SIGNAL_MAX_SIZE = Math.min(Integer.getInteger("chat.signal.maxSize", 256), MAX_MESSAGE_SIZE);
+	/* Messages queued at most for a client behind the Messages of the server waiting for space (see sendMessage) */
+	private static final int MAX_PENDING_MESSAGES = 1024;
+	/* Datagrams relayed at most per event, so that the loop goes on */
+	private static final int SIGNAL_BATCH_SIZE = 64;
+	private static final RateLimiter.Policy RATE_POLICY = RateLimiter.Policy.valueOf(System.getProperty("chat.rate.policy", "delay").toUpperCase());
 	/* Attributs */
-	private ServerSocketChannel _serverSocket;
+	private Transport _transport = Transports.getDefault();
+	private boolean _serverSocketInherited = false;
+	private SelectionKey _serverKey;
+	private UnixTransport _unixTransport;
+	private SelectionKey _unixServerKey;
+	private Transport _webSocketTransport;
+	private SelectionKey _webSocketServerKey;
+	private Map<SelectionKey, WebSocketSession> webSocketSessions = new HashMap<SelectionKey, WebSocketSession>();
+	private FileTransferServer fileTransferServer = new FileTransferServer(this);
+	private SignalChannel _signalChannel;
+	private HandoffListener _handoffListener;
+	private boolean _takeover = Boolean.getBoolean("chat.takeover");
 	private Selector _selector;
 	private Map<String, SelectionKey> mapNicknameKey = new HashMap<String, SelectionKey>();
+	private SessionTable sessionTable = new SessionTable();
+	/* Clients receiving traces, with the offsets of the TRACE_WRITTEN timestamps in their pending writing data (in order) */
+	private Map<SelectionKey, Queue<Integer>> traceOffsets = new HashMap<SelectionKey, Queue<Integer>>();
 	private Map<SelectionKey, ByteBuffer> pendingWritingData = new HashMap<SelectionKey, ByteBuffer>();
 	private boolean pendingWritingDataHasEnoughSpace = true;
 	private Map<SelectionKey, ByteBuffer> pendingReadingData = new HashMap<SelectionKey, ByteBuffer>();
+	private Map<SelectionKey, TlsSession> tlsSessions = new HashMap<SelectionKey, TlsSession>();
+	private Queue<SelectionKey> tlsTasksCompleted = new ConcurrentLinkedQueue<SelectionKey>();
+	private Map<SelectionKey, PayloadCompressor> compressors = new HashMap<SelectionKey, PayloadCompressor>();
+	private PresenceAggregator presenceAggregator = new PresenceAggregator(PRESENCE_WINDOW_MILLIS);
+	private PresenceLog presenceLog = new PresenceLog();
+	private Map<SelectionKey, ResumableSession> resumableSessions = new HashMap<SelectionKey, ResumableSession>();
+	/* Sessions waiting for their client to resume, by nickname */
+	private Map<String, ResumableSession> detachedSessions = new HashMap<String, ResumableSession>();
+	/* Messages of the server waiting for space in the pending writing data of a client (missed Messages sent again, presence, client list), in order */
+	private Map<SelectionKey, Queue<Message>> pendingMessages = new HashMap<SelectionKey, Queue<Message>>();
+	/* Decompress replayed Messages for clients that do not support compression anymore */
+	private PayloadCompressor replayCompressor = new PayloadCompressor();
+	private Map<SelectionKey, ReceiveWindow> receiveWindows = new HashMap<SelectionKey, ReceiveWindow>();
+	/* Clients waiting for an acknowledgment, in order of deadline */
+	private Queue<SelectionKey> pendingAcknowledgments = new ArrayDeque<SelectionKey>();
+	/* Acknowledgments are encoded as soon as they are built : a single Message is reused */
+	private Message acknowledgment = new Message("", "Server", "", Message.Type.ACK);
+	private Map<SelectionKey, RateLimiter> rateLimiters = new HashMap<SelectionKey, RateLimiter>();
+	private List<SelectionKey> delayedKeys = new ArrayList<SelectionKey>();
+	private long nbMessagesDelayed = 0;
+	private long nbMessagesDropped = 0;
+	private long nbClientsDisconnected = 0;
+	/* Keys having pending reading data, copied at each turn of the loop because processing may close connections */
+	private SelectionKey[] keysToProcess = new SelectionKey[0];
+	private MessagePipeline messagePipeline = new MessagePipeline(this, new MessageAnalyzer() {
+		public void performActionFromReceivedMessage(Message msg, SelectionKey key) {
+			messageDropped(msg, key);
+		}
+	}, new Runnable() {
+		public void run() {
+			_selector.wakeup();
+		}
+	});
+	private SearchIndex searchIndex;
+	private long nbPresenceMessagesSent = 0;
 	private static Logger serverLogger = Logger.getLogger(ServerApplication.class.getSimpleName());
 
 	
 
+	/**
+	 * Take over the sessions of a running server. Must be called before setup. Default value is given by the chat.takeover system property.
+	 * 
+	 * @param takeover true to take over the sessions of the server listening on the handoff port
+	 */
+	public void setTakeover(boolean takeover) {
+		_takeover = takeover;
+	}
+
+	/**
+	 * Set the Transport clients connect with. Must be called before setup. Default value is given by the chat.transport system property.
+	 * The handoff port always uses TCP.
+	 * 
+	 * @param transport Transport
+	 */
+	public void setTransport(Transport transport) {
+		_transport = transport;
+	}
+
+	/**
+	 * Register a handler for a type of Message received from clients, after the ones already registered for it.
+	 * Handlers run before the server takes its own actions, they can modify or drop the Message. Must be called before run.
+	 * 
+	 * @param type Type of the Messages to be handled
+	 * @param handler MessageHandler
+	 */
+	public void addMessageHandler(Message.Type type, MessageHandler handler) {
+		messagePipeline.addHandler(type, handler);
+	}
+
 	/**
 	 *  Setup the server. 
-	 *  Open the ServerSocket, set non-blocking mode and register the Selector. 
-	 *  Port is by default 1234. 
-	 *  ServerSocket is set up to listen for incoming connections (OP_ACCEPT).
+	 *  Listen with the Transport (TCP by default) and register the Selector. 
+	 *  Port is by default 1234. The listening socket given by the process launching the server is used if any (System.inheritedChannel).
+	 *  The listening channel is set up to listen for incoming connections (OP_ACCEPT).
+	 *  If chat.unix.path gives the path of a socket file, the server also listens on this Unix domain socket (see UnixTransport).
+	 *  If chat.websocket.port gives a port, the server also listens on it for browsers (see WebSocketSession).
+	 *  If chat.file.port gives a port, the server also listens on it for the data connections of file transfers (see FileTransferServer).
+	 *  If chat.signal.port gives a UDP port, signals are relayed on it (see SignalChannel).
+	 *  If the server takes over a running one, its sessions are received before listening. 
+	 *  The handoff port is opened if it is configured.
+	 *  The moderation filter is registered if a file of patterns is configured, the search index is created if search is enabled.
 	 */
 	public void setup(){
 		serverLogger.info("Server setup starting");
 		try {		
-			_serverSocket = ServerSocketChannel.open();
 			_selector = Selector.open();
-			_serverSocket.configureBlocking(false);
-			_serverSocket.socket().bind(new InetSocketAddress(PORT));
-			_serverSocket.register(_selector, SelectionKey.OP_ACCEPT);
+			if(MODERATION_PATTERNS != null) {
+				ContentFilter contentFilter = new ContentFilter();
+				contentFilter.loadPatterns(new File(MODERATION_PATTERNS));
+				if(MODERATION_RELOAD_MILLIS > 0)
+					contentFilter.startReloading(new File(MODERATION_PATTERNS), MODERATION_RELOAD_MILLIS);
+				addMessageHandler(Message.Type.STANDARD, contentFilter);
+			}
+			if(SEARCH_ENABLED) {
+				searchIndex = new SearchIndex();
+				addMessageHandler(Message.Type.SEARCH, new SearchHandler(searchIndex));
+			}
+			SocketChannel control = null;
+			ServerSnapshot snapshot = null;
+			if(_takeover && HANDOFF_PORT > 0) {
+				control = HandoffListener.connect(HANDOFF_PORT);
+				snapshot = ServerSnapshot.readFrom(new DataInputStream(new BufferedInputStream(Channels.newInputStream(control))));
+			}
+			_serverKey = _transport.listen(_selector, PORT);
+			_serverSocketInherited = _serverKey.channel() == System.inheritedChannel();
+			if(UNIX_SOCKET_PATH != null) {
+				_unixTransport = new UnixTransport(UNIX_SOCKET_PATH);
+				_unixServerKey = _unixTransport.listen(_selector, PORT);
+				serverLogger.info("Listening on Unix domain socket " + UNIX_SOCKET_PATH);
+			}
+			if(WEBSOCKET_PORT > 0) {
+				_webSocketTransport = new TcpTransport(false);
+				_webSocketServerKey = _webSocketTransport.listen(_selector, WEBSOCKET_PORT);
+				serverLogger.info("Listening for WebSocket connections on port " + WEBSOCKET_PORT);
+			}
+			fileTransferServer.listen(_selector);
+			if(SIGNAL_PORT > 0) {
+				_signalChannel = new SignalChannel(_selector, SIGNAL_PORT, SIGNAL_MAX_SIZE);
+				serverLogger.info("Relaying signals on UDP port " + SIGNAL_PORT);
+			}
+			if(control != null) {
+				// Old server can close its connections : clients will find this one listening
+				control.write(ByteBuffer.wrap(new byte[] {1}));
+				control.close();
+				restore(snapshot);
+			}
+			if(HANDOFF_PORT > 0) {
+				_handoffListener = new HandoffListener(HANDOFF_PORT, HANDOFF_TIMEOUT_MILLIS, _selector);
+				_handoffListener.start();
+			}
 
 		} catch (IOException e) {
-			serverLogger.fatal("Server setup failed");
+			serverLogger.fatal("Server setup failed : " + e);
 		}
 		serverLogger.info("Server launched");
 	}
-
+	
 	/**
 	 * Run the server.
-	 * Loop start by processing the pending reading data if any. 
-	 * After that it iterates over all the SelectionKey to check if events are pending (Acceptable, Readable or Writable). Only keys that have event are checked.
-	 * Finally low level operations are made : if key is acceptable, server connects client, if key is readable, server reads it and adds pending reading data to the client, if key is writable, 
-	 * server writes its pending writing data to the client socket.
+	 * Loop start by resuming TLS handshakes whose delegated tasks are done and by processing the pending reading data if any
+	 * (including data already decrypted by TLS sessions). Blobs committed by the worker of the blob store are given back to their file transfers. 
+	 * Presence events (connections and disconnections) are sent when their aggregation window is over, the selector does not wait longer than that.
+	 * Detached sessions whose client has not resumed in time are closed, file transfers left unfinished for too long
+	 * are cancelled and pending acknowledgments are sent, 
+	 * the selector does not wait longer than the next deadline either.
+	 * If a new server taking over has been authenticated (see HandoffListener), the sessions are handed over and the loop ends.
+	 * The selector does not wait at all if keys handled by the Transport are already ready.
+	 * After that it iterates over the SelectionKey selected by the Selector, then over the ones selected by the Transport, 
+	 * to check if events are pending (Acceptable, Readable or Writable). Only keys that have event are checked (see processSelectedKeys).
 	 * 
 	 * It is important to notice that we can not write or read directly from channel that is why pending data are used.
 	 */
@@ -77,58 +263,48 @@ public class ServerApplication implements MessageAnalyzer{
 
 		try {			
 			while(true){
-				for(SelectionKey key : pendingReadingData.keySet()) {
-					if(key.isValid())
+				resumeTlsHandshakes();
+				resumeOffloadedMessages();
+				resumeDelayedReading();
+				fileTransferServer.resume();
+				boolean tlsDataBuffered = false;
+				keysToProcess = pendingReadingData.keySet().toArray(keysToProcess);
+				for(int i = 0; i < keysToProcess.length && keysToProcess[i] != null; i++) {
+					SelectionKey key = keysToProcess[i];
+					keysToProcess[i] = null;
+					if(key.isValid() && pendingReadingData.containsKey(key)) {
+						tlsDataBuffered |= readBufferedTlsData(key);
 						processPendingReadingData(key);
+					}
 				}
 				
-				int readyChannels = _selector.select(); // wait for connection
-				if(readyChannels == 0) continue;
-
-				Set<SelectionKey> selectedKeys = _selector.selectedKeys();
-				Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
-
-				while(keyIterator.hasNext()) {
-					SelectionKey key = keyIterator.next();
-					if(key.isAcceptable()) {
-						serverLogger.info("New incomming connection");
-						acceptClient();
-
-					} else {
-						if (key.isReadable()) {
-							// a channel is ready for reading
-							SocketChannel channel = (SocketChannel)key.channel();
-							try {
-								ByteBuffer dataToBeRead = ChannelIO.readDataFromChannel(channel);
-								addPendingReadingData(key, dataToBeRead);
-							} catch (IOException e) {
-								String clientDisconnected = getNicknameWithKey(mapNicknameKey, key);
-								mapNicknameKey.remove(clientDisconnected);
-								pendingWritingData.remove(key);
-								pendingReadingData.remove(key);
-								serverLogger.warn("Unexpected disconnection from client " + clientDisconnected);
-								broadcast(new Message("", clientDisconnected, "Broadcast", Message.Type.CLIENT_DISCONNECTED), key);
-							}
-													
-						} else if (key.isWritable()) {
-							// a channel is ready for writing
-							SocketChannel channel = (SocketChannel) key.channel();
-							ByteBuffer dataToBeWritten = pendingWritingData.get(key);
-							dataToBeWritten.flip();
-							int dataRemaining =  dataToBeWritten.remaining();
-							int nbBytesWritten = 
-									ChannelIO.writeDataToChannel(dataToBeWritten, channel);
-
-							if(nbBytesWritten == dataRemaining) {
-								key.interestOps(SelectionKey.OP_READ);
-								dataToBeWritten.clear();
-							}
-							else
-								dataToBeWritten.compact();
-						}
-					}
-						keyIterator.remove();
+				ServerEvents.SelectWakeup wakeupEvent = null;
+				if(ServerEvents.SELECT_WAKEUP.isEnabled()) {
+					wakeupEvent = new ServerEvents.SelectWakeup();
+					wakeupEvent.begin();
+				}
+				int readyKeys;
+				if(tlsDataBuffered || _transport.hasReadyKeys(_selector))
+					readyKeys = _selector.selectNow();
+				else
+					readyKeys = _selector.select(millisUntilNextDeadline()); // wait for connection
+				if(wakeupEvent != null) {
+					wakeupEvent.readyKeys = readyKeys;
+					wakeupEvent.commit();
 				}
+				expireDetachedSessions();
+				fileTransferServer.expire();
+				if(presenceAggregator.isFlushDue())
+					flushPresenceEvents();
+				sendDueAcknowledgments();
+				SocketChannel control = _handoffListener != null ? _handoffListener.takeControl() : null;
+				if(control != null) {
+					handOver(control);
+					return;
+				}
+
+				processSelectedKeys(_selector.selectedKeys());
+				processSelectedKeys(_transport.selectedKeys(_selector));
 			}
 		} catch (Exception e) {
 			serverLogger.fatal("Error has occured, server will shut down");
@@ -136,30 +312,513 @@ public class ServerApplication implements MessageAnalyzer{
 		}
 	}
 
+	/**
+	 * Handle the keys that are ready : if key is acceptable, server connects client, if key is readable, server reads it and adds pending reading data to the client, 
+	 * if key is writable, server writes its pending writing data to the client channel. Keys are removed from the set once handled.
+	 * Data connections of file transfers are handled apart (see FileTransferServer).
+	 * 
+	 * @param selectedKeys Keys selected by the Selector or by the Transport
+	 * @throws IOException if a connection can not be accepted
+	 */
+	private void processSelectedKeys(Set<SelectionKey> selectedKeys) throws IOException {
+		Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
+
+		while(keyIterator.hasNext()) {
+			SelectionKey key = keyIterator.next();
+			// A connection closed while handling a previous key (file transfer removed) is skipped
+			if(!key.isValid()) {
+				keyIterator.remove();
+				continue;
+			}
+			if(key.isAcceptable() && fileTransferServer.isListening(key)) {
+				fileTransferServer.accept();
+			} else if(key.isAcceptable()) {
+				serverLogger.info("New incomming connection");
+				acceptClient(key);
+
+			} else if(_signalChannel != null && key == _signalChannel.getKey()) {
+				receiveSignals();
+			} else if(fileTransferServer.isConnection(key)) {
+				fileTransferServer.processConnection(key);
+			} else {
+				if (key.isReadable()) {
+					// a channel is ready for reading
+					ByteChannel channel = (ByteChannel) key.channel();
+					try {
+						ByteBuffer dataToBeRead = ChannelIO.readDataFromChannel(channel, tlsSessions.get(key));
+						if(dataToBeRead.capacity() == 0) {
+							clientConnectionLost(key);
+						} else if(webSocketSessions.containsKey(key)) {
+							dataToBeRead = decodeWebSocketFrames(key, dataToBeRead);
+							if(dataToBeRead != null)
+								addPendingReadingData(key, dataToBeRead);
+						} else {
+							addPendingReadingData(key, dataToBeRead);
+							updateTlsInterestOps(key);
+						}
+					} catch (IOException e) {
+						clientConnectionLost(key);
+					}
+											
+				} else if (key.isWritable()) {
+					// a channel is ready for writing
+					ByteChannel channel = (ByteChannel) key.channel();
+					ByteBuffer dataToBeWritten = pendingWritingData.get(key);
+					TlsSession tls = tlsSessions.get(key);
+					boolean full = dataToBeWritten.remaining() < MAX_FRAME_SIZE;
+					Queue<Integer> offsets = traceOffsets.get(key);
+					stampWrittenTraces(dataToBeWritten, offsets);
+					dataToBeWritten.flip();
+					int dataRemaining =  dataToBeWritten.remaining();
+					try {
+						int nbBytesWritten = 
+								ChannelIO.writeDataToChannel(dataToBeWritten, channel, tls);
+						forgetWrittenTraces(offsets, dataToBeWritten.position());
+
+						if(nbBytesWritten == dataRemaining && (tls == null || !tls.hasPendingNetworkData())) {
+							key.interestOps(readInterest(key));
+							dataToBeWritten.clear();
+							if(full)
+								recordBackpressure(key, false, "pending writing data full");
+						}
+						else {
+							recordPartialWrite(key, nbBytesWritten, dataRemaining - nbBytesWritten);
+							dataToBeWritten.compact();
+							updateTlsInterestOps(key);
+						}
+						sendPendingMessages(key);
+						sendOverdueAcknowledgment(key);
+					} catch (IOException e) {
+						clientConnectionLost(key);
+					}
+				}
+			}
+				keyIterator.remove();
+		}
+	}
+
+	/**
+	 * Decode the data received from a browser. The answer to its handshake and to its control frames are sent with the pending writing data.
+	 * When the connection must be closed (handshake refused, close frame), the answer is written at once and the connection is closed.
+	 * 
+	 * @param key SelectionKey of the browser
+	 * @param data Data read from the connection
+	 * @return bytes of the Messages received, null if the connection has been closed
+	 */
+	private ByteBuffer decodeWebSocketFrames(SelectionKey key, ByteBuffer data) {
+		ByteBuffer dataToBeWritten = pendingWritingData.get(key);
+		int positionBefore = dataToBeWritten.position();
+		ByteBuffer payload = webSocketSessions.get(key).decode(data, dataToBeWritten);
+		if(payload == null) {
+			dataToBeWritten.flip();
+			try {
+				ChannelIO.writeDataToChannel(dataToBeWritten, (ByteChannel) key.channel());
+			} catch (IOException e) {
+				// Connection is closed anyway
+			}
+			clientConnectionLost(key);
+			return null;
+		}
+		if(dataToBeWritten.position() > positionBefore)
+			key.interestOps(readInterest(key) | SelectionKey.OP_WRITE);
+		return payload;
+	}
+
 	/**
 	 * Process pending reading data of a client.
 	 * 
 	 * This methods tries to construct messages from the pending data of the client.
 	 * If the message constructed is valid, it also called performActionFromReceivedMessage automatically.
+	 * Each complete message is checked against the rate of the client first (see applyRatePolicy).
+	 * A malformed message (size not matching its header) can never be completed : the connection of the client is closed.
+	 * Messages go through the handlers registered for their type. If a Message is offloaded to the worker pool,
+	 * reading from the client stops until it is done.
 	 * 
 	 * @param key Selection key of the client
 	 */
 	private void processPendingReadingData(SelectionKey key) {
 		ByteBuffer pendingData = pendingReadingData.get(key);
+		RateLimiter rateLimiter = rateLimiters.get(key);
+		if((rateLimiter != null && rateLimiter.isDelayed()) || messagePipeline.isWaiting(key))
+			return;
 
 		boolean msgValid = true;
 		do {
+			boolean allowed = true;
+			int messageSize = completeMessageSize(pendingData);
+			if(rateLimiter != null && messageSize > 0 && !rateLimiter.tryAcquire(messageSize)) {
+				if(!applyRatePolicy(key, rateLimiter, messageSize))
+					return;
+				allowed = false;
+			}
+			ServerEvents.FrameDecode decodeEvent = null;
+			if(ServerEvents.FRAME_DECODE.isEnabled()) {
+				decodeEvent = new ServerEvents.FrameDecode();
+				decodeEvent.begin();
+			}
 			Message newMsg = new Message();
 			pendingData.flip();
 			newMsg.ConstructFromByteBuffer(pendingData);
 			pendingData.compact();
 
+			if(newMsg.isMalformed()) {
+				int sessionId = getSessionId(key);
+				serverLogger.warn("Malformed message received from " + (sessionId != SessionTable.NO_SESSION_ID ? sessionTable.getNickname(sessionId) : "<not registered>") + ", connection closed");
+				clientConnectionLost(key);
+				return;
+			}
 			if (newMsg.isValid()) {
-				performActionFromReceivedMessage(newMsg, key);
+				if(newMsg.isTraced())
+					newMsg.setTrace(Message.TRACE_RECEIVED, Message.currentTimeMicros());
+				if(decodeEvent != null) {
+					describeSession(decodeEvent, newMsg, key);
+					decodeEvent.size = messageSize;
+					decodeEvent.type = newMsg.getType().name();
+					decodeEvent.commit();
+				}
+				if(allowed && newMsg.isCompressed() && messagePipeline.hasHandlers(newMsg.getType()))
+					decompressForHandlers(newMsg, key);
+				if(allowed && !messagePipeline.process(newMsg, key, senderNickname(newMsg, key))) {
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+					recordBackpressure(key, true, "offloaded handler");
+					return;
+				}
 			} else {
 				msgValid = false;
 			}
-		} while (pendingData.hasRemaining() && msgValid && pendingWritingDataHasEnoughSpace);
+		} while (pendingData.hasRemaining() && msgValid && pendingWritingDataHasEnoughSpace && key.isValid());
+		// Reading stopped by full pending reading data starts again once they have been processed
+		if(key.isValid() && (key.interestOps() & SelectionKey.OP_READ) == 0 && pendingWritingData.get(key).remaining() >= MAX_FRAME_SIZE)
+			key.interestOps(key.interestOps() | readInterest(key));
+	}
+	
+	/**
+	 * Get the size of the first Message of pending reading data without decoding it.
+	 * 
+	 * @param pendingData Pending reading data in writing mode
+	 * @return size of the Message, 0 if it has not been completely received
+	 */
+	static int completeMessageSize(ByteBuffer pendingData) {
+		if(pendingData.position() < 2)
+			return 0;
+		int messageSize = pendingData.getShort(0);
+		return messageSize > 0 && messageSize <= pendingData.position() ? messageSize : 0;
+	}
+	
+	/**
+	 * Apply the rate policy to a client sending faster than its rate.
+	 * Delay : reading from the client stops until its buckets have enough tokens for the Message, which is kept.
+	 * Drop : the Message is dropped.
+	 * Disconnect : the session of the client is closed (it can not be resumed) and so is its connection.
+	 * 
+	 * @param key SelectionKey of the client
+	 * @param rateLimiter RateLimiter of the client
+	 * @param messageSize Size of the Message in excess
+	 * @return true if the Message must be read and dropped, false if the processing of the pending reading data must stop
+	 */
+	private boolean applyRatePolicy(SelectionKey key, RateLimiter rateLimiter, int messageSize) {
+		int sessionId = getSessionId(key);
+		String nickname = sessionId != SessionTable.NO_SESSION_ID ? sessionTable.getNickname(sessionId) : "<not registered>";
+		switch(RATE_POLICY) {
+			case DROP:
+				nbMessagesDropped++;
+				if(nbMessagesDropped % 100 == 1)
+					serverLogger.warn("Client " + nickname + " sends too fast, message dropped (" + nbMessagesDropped + " messages dropped since startup)");
+				return true;
+			case DISCONNECT:
+				nbClientsDisconnected++;
+				serverLogger.warn("Client " + nickname + " sends too fast, it is disconnected (" + nbClientsDisconnected + " clients disconnected since startup)");
+				resumableSessions.remove(key);
+				clientConnectionLost(key);
+				return false;
+			case DELAY:
+			default:
+				nbMessagesDelayed++;
+				rateLimiter.delay(System.currentTimeMillis() + rateLimiter.millisUntilAvailable(messageSize));
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+				delayedKeys.add(key);
+				recordBackpressure(key, true, "rate");
+				if(nbMessagesDelayed % 100 == 1)
+					serverLogger.info("Client " + nickname + " sends too fast, reading is delayed (" + nbMessagesDelayed + " delays since startup)");
+				return false;
+		}
+	}
+	
+	/**
+	 * Read again from the clients whose delay is over. Their pending reading data are processed by the same turn of the loop.
+	 */
+	private void resumeDelayedReading() {
+		if(delayedKeys.isEmpty())
+			return;
+		long now = System.currentTimeMillis();
+		for(int i = delayedKeys.size() - 1; i >= 0; i--) {
+			SelectionKey key = delayedKeys.get(i);
+			RateLimiter rateLimiter = rateLimiters.get(key);
+			if(rateLimiter != null && key.isValid() && rateLimiter.getDelayedUntil() > now)
+				continue;
+			// Swap with the last one : order does not matter
+			delayedKeys.set(i, delayedKeys.get(delayedKeys.size() - 1));
+			delayedKeys.remove(delayedKeys.size() - 1);
+			if(rateLimiter == null || !key.isValid())
+				continue;
+			rateLimiter.resume();
+			key.interestOps(key.interestOps() | readInterest(key));
+			recordBackpressure(key, false, "rate");
+		}
+	}
+	
+	/**
+	 * @param key SelectionKey of a client
+	 * @return OP_READ, or 0 if reading from the client is delayed, waits for an offloaded Message 
+	 * or if its pending reading data have not enough space left for the data of a read
+	 */
+	private int readInterest(SelectionKey key) {
+		ByteBuffer pendingData = pendingReadingData.get(key);
+		if(pendingData != null && pendingData.remaining() < MAX_MESSAGE_SIZE)
+			return 0;
+		RateLimiter rateLimiter = rateLimiters.get(key);
+		if(rateLimiter != null && rateLimiter.isDelayed())
+			return 0;
+		return messagePipeline.isWaiting(key) ? 0 : SelectionKey.OP_READ;
+	}
+	
+	/**
+	 * Go on with the Messages whose offloaded handlers are done. Reading from their clients starts again.
+	 */
+	private void resumeOffloadedMessages() {
+		SelectionKey key;
+		while((key = messagePipeline.completeNext()) != null) {
+			if(key.isValid()) {
+				key.interestOps(key.interestOps() | readInterest(key));
+				recordBackpressure(key, false, "offloaded handler");
+			}
+		}
+	}
+	
+	/**
+	 * Decompress a Message before handlers read its content. It is compressed again for its receiver if the receiver supports compression.
+	 * 
+	 * @param msg Compressed Message received
+	 * @param key SelectionKey of the sender
+	 */
+	private void decompressForHandlers(Message msg, SelectionKey key) {
+		PayloadCompressor senderCompressor = compressors.get(key);
+		if(senderCompressor == null || !senderCompressor.decompress(msg))
+			serverLogger.warn("Unable to decompress message from " + senderNickname(msg, key) + " for its handlers");
+	}
+	
+	/**
+	 * @param msg Message received
+	 * @param key SelectionKey of the sender
+	 * @return nickname of the sender, the one given in the Message if it is not registered yet
+	 */
+	private String senderNickname(Message msg, SelectionKey key) {
+		int sessionId = getSessionId(key);
+		return sessionId != SessionTable.NO_SESSION_ID ? sessionTable.getNickname(sessionId) : msg.getFrom();
+	}
+	
+	/**
+	 * @param key SelectionKey of a client
+	 * @return session ID of the client, attached to its key when it registers, SessionTable.NO_SESSION_ID if it is not registered
+	 */
+	private static int getSessionId(SelectionKey key) {
+		Object sessionId = key.attachment();
+		return sessionId != null ? (Integer) sessionId : SessionTable.NO_SESSION_ID;
+	}
+	
+	/**
+	 * Give the session of a client to an event
+	 * 
+	 * @param event Event to be filled
+	 * @param msg Message received from the client, gives its nickname while it is not registered
+	 * @param key SelectionKey of the client
+	 */
+	private void describeSession(ServerEvents.SessionEvent event, Message msg, SelectionKey key) {
+		int sessionId = getSessionId(key);
+		event.sessionId = sessionId != SessionTable.NO_SESSION_ID ? sessionId : 0;
+		event.nickname = sessionId != SessionTable.NO_SESSION_ID ? sessionTable.getNickname(sessionId) : msg != null ? msg.getFrom() : null;
+	}
+
+	/**
+	 * Record that reading from a client stops or starts again, if Backpressure events are enabled
+	 * 
+	 * @param key SelectionKey of the client
+	 * @param paused true if reading stops
+	 * @param cause Cause of the backpressure : pending writing data full, rate or offloaded handler
+	 */
+	private void recordBackpressure(SelectionKey key, boolean paused, String cause) {
+		if(!ServerEvents.BACKPRESSURE.isEnabled())
+			return;
+		ServerEvents.Backpressure event = new ServerEvents.Backpressure();
+		describeSession(event, null, key);
+		event.paused = paused;
+		event.cause = cause;
+		event.commit();
+	}
+
+	/**
+	 * Record that pending writing data of a client have not been written at once, if PartialWrite events are enabled
+	 * 
+	 * @param key SelectionKey of the client
+	 * @param written Number of bytes written
+	 * @param remaining Number of bytes left in the pending writing data
+	 */
+	private void recordPartialWrite(SelectionKey key, int written, int remaining) {
+		if(!ServerEvents.PARTIAL_WRITE.isEnabled())
+			return;
+		ServerEvents.PartialWrite event = new ServerEvents.PartialWrite();
+		describeSession(event, null, key);
+		event.written = written;
+		event.remaining = remaining;
+		event.commit();
+	}
+
+	/**
+	 * Take a Message dropped by a handler into account : a Message of a client using reliable delivery is acknowledged
+	 * so that it is not sent again.
+	 * 
+	 * @param msg Message dropped
+	 * @param key SelectionKey of the sender
+	 */
+	private void messageDropped(Message msg, SelectionKey key) {
+		serverLogger.info("Message from " + senderNickname(msg, key) + " dropped by a handler");
+		ReceiveWindow receiveWindow = msg.isSequenced() && msg.getType() == Message.Type.STANDARD ? receiveWindows.get(key) : null;
+		if(receiveWindow == null)
+			return;
+		if(receiveWindow.isNew(msg.getSequence()))
+			receiveWindow.accept(msg.getSequence());
+		acknowledgmentNeeded(key, receiveWindow);
+	}
+
+	/**
+	 * Hand the sessions over to a new server connected to the handoff port, once it has sent the handoff secret (see HandoffListener).
+	 * The new server is started with the chat.takeover system property, the handoff port is given by chat.handoff.port.
+	 * 
+	 * Accepting stops, pending writing data are sent (for chat.handoff.drain milliseconds at most), the snapshot of the sessions is sent.
+	 * Connections are closed once the new server listens (or after chat.handoff.timeout milliseconds), their clients will resume on it.
+	 * If the listening socket is inherited (System.inheritedChannel, socket activation), both servers share it and no connection is refused meanwhile.
+	 * 
+	 * @param control Control connection of the new server, authenticated
+	 * @throws IOException if the listening channels can not be closed
+	 */
+	private void handOver(SocketChannel control) throws IOException {
+		serverLogger.info("New server is taking over, accepting is stopped");
+		messagePipeline.shutdown();
+		if(searchIndex != null)
+			searchIndex.shutdown();
+		_serverKey.cancel();
+		if(!_serverSocketInherited)
+			_serverKey.channel().close();
+		closeExtraListeningChannels();
+		fileTransferServer.close();
+		_handoffListener.close();
+		// Registered sockets are only released once their keys are deregistered by a selection : ports are free for the new server
+		_selector.selectNow();
+		drainPendingWritingData();
+
+		ServerSnapshot snapshot = takeSnapshot();
+		try {
+			control.configureBlocking(true);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(control)));
+			snapshot.writeTo(out);
+			out.flush();
+			control.socket().setSoTimeout(HANDOFF_TIMEOUT_MILLIS);
+			if(control.socket().getInputStream().read() < 0)
+				serverLogger.warn("New server has not confirmed it is listening");
+		} catch (IOException e) {
+			serverLogger.warn("Handoff to the new server failed : " + e);
+		}
+		control.close();
+
+		for(SelectionKey key : new ArrayList<SelectionKey>(pendingWritingData.keySet())) {
+			ByteChannel channel = (ByteChannel) key.channel();
+			TlsSession tls = tlsSessions.remove(key);
+			if(tls != null)
+				tls.close(channel);
+			ChannelIO.forceCloseConnection(channel);
+		}
+		_selector.close();
+		serverLogger.info(snapshot.getSessions().size() + " sessions handed over, " 
+				+ snapshot.getDepartedNicknames().size() + " clients not able to resume, server stopped");
+	}
+	
+	/**
+	 * Write the pending writing data of every client, until they are all written or the drain delay is over.
+	 * Connections whose TLS handshake is not finished are skipped.
+	 */
+	private void drainPendingWritingData() throws IOException {
+		long deadline = System.currentTimeMillis() + HANDOFF_DRAIN_MILLIS;
+		boolean dataRemaining = true;
+		while(dataRemaining && System.currentTimeMillis() < deadline) {
+			dataRemaining = false;
+			for(Map.Entry<SelectionKey, ByteBuffer> entry : pendingWritingData.entrySet()) {
+				SelectionKey key = entry.getKey();
+				ByteBuffer dataToBeWritten = entry.getValue();
+				TlsSession tls = tlsSessions.get(key);
+				if(!key.isValid() || (tls != null && tls.isHandshaking()))
+					continue;
+				if(dataToBeWritten.position() == 0 && (tls == null || !tls.hasPendingNetworkData()))
+					continue;
+				Queue<Integer> offsets = traceOffsets.get(key);
+				stampWrittenTraces(dataToBeWritten, offsets);
+				dataToBeWritten.flip();
+				try {
+					ChannelIO.writeDataToChannel(dataToBeWritten, (ByteChannel) key.channel(), tls);
+					forgetWrittenTraces(offsets, dataToBeWritten.position());
+					dataToBeWritten.compact();
+				} catch (IOException e) {
+					dataToBeWritten.clear();
+					if(offsets != null)
+						offsets.clear();
+					continue;
+				}
+				dataRemaining |= dataToBeWritten.position() > 0 || (tls != null && tls.hasPendingNetworkData());
+			}
+			if(dataRemaining) {
+				_selector.select(10);
+				_selector.selectedKeys().clear();
+			}
+		}
+	}
+	
+	/**
+	 * Build the snapshot handed over to a new server : sessions of the clients able to resume (detached ones included)
+	 * and clients that will not be able to resume.
+	 * 
+	 * @return ServerSnapshot
+	 */
+	private ServerSnapshot takeSnapshot() {
+		ServerSnapshot snapshot = new ServerSnapshot(presenceLog.getVersion());
+		for(Map.Entry<String, SelectionKey> entry : mapNicknameKey.entrySet()) {
+			ResumableSession session = resumableSessions.get(entry.getValue());
+			if(session != null) {
+				session.setReceiveWindow(receiveWindows.get(entry.getValue()));
+				snapshot.addSession(session);
+			} else {
+				snapshot.addDepartedClient(entry.getKey(), getSessionId(entry.getValue()));
+			}
+		}
+		for(ResumableSession session : detachedSessions.values())
+			snapshot.addSession(session);
+		return snapshot;
+	}
+	
+	/**
+	 * Restore the sessions handed over by the old server : they are detached until their clients resume.
+	 * Clients that will not be able to resume are recorded as disconnected.
+	 * 
+	 * @param snapshot ServerSnapshot received from the old server
+	 */
+	private void restore(ServerSnapshot snapshot) {
+		presenceLog.restore(snapshot.getPresenceVersion());
+		for(ResumableSession session : snapshot.getSessions()) {
+			sessionTable.restore(session.getSessionId(), session.getNickname());
+			session.detach(RESUME_TIMEOUT_MILLIS);
+			detachedSessions.put(session.getNickname(), session);
+		}
+		for(int i = 0; i < snapshot.getDepartedNicknames().size(); i++)
+			recordDisconnection(snapshot.getDepartedNicknames().get(i), snapshot.getDepartedSessionIds().get(i));
+		serverLogger.info(snapshot.getSessions().size() + " sessions taken over, waiting for their clients to resume");
 	}
 
 	/**
@@ -169,60 +828,193 @@ public class ServerApplication implements MessageAnalyzer{
 		try {
 
 			serverLogger.info("Server stopped");
-			_serverSocket.close();
+			messagePipeline.shutdown();
+			if(searchIndex != null)
+				searchIndex.shutdown();
+			_serverKey.channel().close();
+			closeExtraListeningChannels();
+			fileTransferServer.close();
+			if(_handoffListener != null)
+				_handoffListener.close();
 
 		} catch (IOException e) {
 			serverLogger.fatal(e);
 		}
 	}
 
+	/**
+	 * Stop listening on the Unix domain socket if any and remove its file (the new server listens on a new file),
+	 * stop listening for WebSocket connections and for data connections if the ports are open
+	 * 
+	 * @throws IOException if a listening channel can not be closed
+	 */
+	private void closeExtraListeningChannels() throws IOException {
+		if(_unixServerKey != null) {
+			_unixServerKey.channel().close();
+			_unixTransport.deleteSocketFile();
+		}
+		if(_webSocketServerKey != null)
+			_webSocketServerKey.channel().close();
+		fileTransferServer.stopListening();
+		if(_signalChannel != null)
+			_signalChannel.close();
+	}
+
 	/**
 	 * Method to analyze message and take actions from it. This method implements how to deal with Messages received from clients.
-	 * Disconnection : Send acknowledgment, remove client from server, broadcast that a client has disconnected.
-	 * Connection : Register nickname of client in the server, broadcast that a client has connected, send to the new client a list containing clients already connected.
-	 * Standard : Send message to the corresponding receiver .
+	 * Disconnection : Send acknowledgment, remove client from server, record that a client has disconnected for the next presence Message.
+	 * Connection : Register nickname of client in the server, record that a client has connected for the next presence Message, send to the new client a list containing clients already connected.
+	 * Compression is enabled for the client if it has asked for it, the answer is flagged accordingly.
+	 * A session ID is given to the client. If it has asked for session IDs, the answer is a compact Message addressed to its session ID
+	 * and the list contains the session ID of each client ("nickname:id").
+	 * If the client is able to resume its session, the list is preceded by the token of its session ("token;list")
+	 * and the answer carries the version of the presence log the list corresponds to.
+	 * A client that has asked for the UDP side channel is then given its token (see issueSignalToken), after a resume as well.
+	 * Resume : Attach a detached session to the new connection of its client (see resumeSession).
+	 * Standard : Send message to the corresponding receiver (see relayMessage). Compact Messages are routed by session ID.
+	 * Messages to a detached session are kept until its client resumes.
+	 * Messages of a client using reliable delivery are acknowledged once accepted. A Message is not accepted if the pending writing data
+	 * of its receiver have not enough space left for it (the client will send it again), duplicates are acknowledged again but not relayed.
+	 * Messages to an unknown client are refused (see sendRefusal).
+	 * Messages relayed are indexed for search.
+	 * Search : Send the answer built by the SearchHandler back to the client.
+	 * File offer, accept or cancel : Start, accept or cancel a file transfer between two clients (see FileTransferServer).
+	 * Each action is recorded by a Dispatch event when it is enabled (see ServerEvents).
 	 * 
 	 * @param msg Message to be read
 	 * @param key SelectionKey that contains the sender channel
 	 */
 	public void performActionFromReceivedMessage(Message msg, SelectionKey key) {
+		if(!ServerEvents.DISPATCH.isEnabled()) {
+			takeAction(msg, key);
+			return;
+		}
+		ServerEvents.Dispatch dispatchEvent = new ServerEvents.Dispatch();
+		describeSession(dispatchEvent, msg, key);
+		dispatchEvent.type = msg.getType().name();
+		dispatchEvent.begin();
+		takeAction(msg, key);
+		dispatchEvent.commit();
+	}
+
+	/**
+	 * Take the action of a Message received (see performActionFromReceivedMessage)
+	 * 
+	 * @param msg Message to be read
+	 * @param key SelectionKey that contains the sender channel
+	 */
+	private void takeAction(Message msg, SelectionKey key) {
+		int sessionId = getSessionId(key);
+		if(msg.isCompact() && (sessionId == SessionTable.NO_SESSION_ID || sessionId != msg.getFromId())) {
+			serverLogger.warn("Compact message received with session ID " + msg.getFromId() + " which does not belong to its sender");
+			return;
+		}
 		switch(msg.getType()) {
 			case DISCONNECTION:
+				String nickname = sessionId != SessionTable.NO_SESSION_ID ? sessionTable.getNickname(sessionId) : msg.getFrom();
 				//Send acknowledgement for the disconnection message from the client
-				serverLogger.info("Client " + msg.getFrom() + " is disconnected");
-				addPendingWritingData(key, new Message("","Server",msg.getFrom(), Message.Type.DISCONNECTION).constructByteBuffer());
-				mapNicknameKey.remove(msg.getFrom());
-				msg.setType(Message.Type.CLIENT_DISCONNECTED);
-				broadcast(msg, key);
+				serverLogger.info("Client " + nickname + " is disconnected");
+				if(sessionTable.isCompact(sessionId))
+					addPendingWritingData(key, new Message("", SessionTable.SERVER_SESSION_ID, sessionId, Message.Type.DISCONNECTION));
+				else
+					addPendingWritingData(key, new Message("","Server", nickname, Message.Type.DISCONNECTION));
+				removeSession(key);
+				removeCompressor(key);
 				break;
 			//Connection message from new client, allow server to get his nickname
 			case CONNECTION:
-				//Nickname is already used
-				if(mapNicknameKey.get(msg.getFrom()) != null) {
-						ChannelIO.forceCloseConnection((SocketChannel)key.channel());
+				//Nickname is already used, or kept by a detached session until its client resumes with the token or the session expires
+				if(mapNicknameKey.get(msg.getFrom()) != null || detachedSessions.containsKey(msg.getFrom()) || sessionId != SessionTable.NO_SESSION_ID) {
+						ChannelIO.forceCloseConnection(key.channel());
 						serverLogger.info("Client " + msg.getFrom() + "has tried to connect but this nickname is already used");
 				}
 				else {
+					int newSessionId = sessionTable.register(msg.getFrom(), key);
 					mapNicknameKey.put(msg.getFrom(), key);
-					msg.setType(Message.Type.CLIENT_CONNECTED);
-					broadcast(msg, key);
-					
-					List<String> nicknameList= new ArrayList<String>();
-					for (String nickname : mapNicknameKey.keySet()) {
-						if (!nickname.equals(msg.getFrom()))
-							nicknameList.add(nickname);				
+					key.attach(newSessionId);
+					recordConnection(msg.getFrom(), newSessionId);
+					ResumableSession resumableSession = null;
+					if(RESUME_ENABLED && msg.hasFlag(Message.FLAG_RESUME_SUPPORTED)) {
+						resumableSession = new ResumableSession(msg.getFrom(), newSessionId);
+						resumableSessions.put(key, resumableSession);
 					}
-					String listConnectedClients = String.join(",", nicknameList);
-					Message listConnectedClientsMessage = new Message(listConnectedClients, "Server", msg.getFrom(), Message.Type.CONNECTION);
-					addPendingWritingData(key, listConnectedClientsMessage.constructByteBuffer());
-					serverLogger.info("Client " + msg.getFrom() + " is registered to the Server");
+					negotiateOptions(msg, key, null);
+					queueMessages(key, buildClientList(key, resumableSession));
+					issueSignalToken(msg, key);
+					serverLogger.info("Client " + msg.getFrom() + " is registered to the Server with session ID " + newSessionId);
+				}
+				break;
+			case RESUME:
+				if(sessionId != SessionTable.NO_SESSION_ID) {
+					serverLogger.warn("Resume message received from client " + sessionTable.getNickname(sessionId) + " which already has a session");
+					break;
+				}
+				if(!resumeSession(msg, key)) {
+					// Session is over : the client is registered as a new one
+					serverLogger.info("Client " + msg.getFrom() + " can not resume its session, it is connected again");
+					msg.setType(Message.Type.CONNECTION);
+					takeAction(msg, key);
 				}
 				break;
 			case STANDARD:
-				SelectionKey keyTo = mapNicknameKey.get(msg.getTo());
-				if(mapNicknameKey.values().contains(keyTo))
-					addPendingWritingData(keyTo, msg.constructByteBuffer());
-					serverLogger.info("Message from " + msg.getFrom() + " to " + msg.getTo() + " : " + msg.getContent());
+				if(sessionId == SessionTable.NO_SESSION_ID) {
+					serverLogger.warn("Message received from a client that is not registered");
+					break;
+				}
+				ReceiveWindow receiveWindow = msg.isSequenced() ? receiveWindows.get(key) : null;
+				int sequence = msg.getSequence();
+				msg.clearSequence();
+				if(receiveWindow != null && !receiveWindow.isNew(sequence)) {
+					// Sent again because the acknowledgment has not been received
+					acknowledgmentNeeded(key, receiveWindow);
+					break;
+				}
+				String nicknameTo = getReceiver(msg);
+				SelectionKey keyTo = msg.isCompact() ? sessionTable.getKey(msg.getToId()) : mapNicknameKey.get(msg.getTo());
+				// Relaying may compress or decompress the content for the receiver
+				String content = msg.getContent();
+				byte[] compressedContent = msg.getCompressedContent();
+				boolean accepted = true;
+				boolean delivered = true;
+				if(keyTo != null && keyTo.isValid())
+					accepted = relayMessage(msg, key, keyTo, receiveWindow != null);
+				else if(nicknameTo != null && detachedSessions.containsKey(nicknameTo))
+					keepForDetachedSession(msg, key, detachedSessions.get(nicknameTo));
+				else {
+					delivered = false;
+					serverLogger.warn("Message from " + senderNickname(msg, key) + " to unknown client " + (nicknameTo != null ? nicknameTo : "#" + msg.getToId()) + " dropped");
+				}
+				if(searchIndex != null && accepted && delivered)
+					searchIndex.add(sessionTable.getNickname(sessionId), nicknameTo, content, compressedContent);
+				if(receiveWindow != null && !delivered) {
+					// Refused, not acknowledged : the client stops sending it again
+					receiveWindow.accept(sequence);
+					sendRefusal(key, sequence);
+				} else if(receiveWindow != null && accepted) {
+					receiveWindow.accept(sequence);
+					acknowledgmentNeeded(key, receiveWindow);
+				}
+				serverLogger.info("Message from " + senderNickname(msg, key) + " to " + nicknameTo + " : " + (msg.isCompressed() ? "<compressed>" : msg.getContent()));
+				break;
+			case SEARCH:
+				// The content is already the answer (see SearchHandler)
+				if(sessionId == SessionTable.NO_SESSION_ID || searchIndex == null) {
+					serverLogger.warn("Search request received from " + msg.getFrom() + " but search is not available");
+					break;
+				}
+				if(sessionTable.isCompact(sessionId))
+					sendMessage(key, new Message(msg.getContent(), SessionTable.SERVER_SESSION_ID, sessionId, Message.Type.SEARCH));
+				else
+					sendMessage(key, new Message(msg.getContent(), "Server", sessionTable.getNickname(sessionId), Message.Type.SEARCH));
+				break;
+			case FILE_OFFER:
+			case FILE_ACCEPT:
+			case FILE_CANCEL:
+				if(sessionId == SessionTable.NO_SESSION_ID || msg.isCompressed()) {
+					serverLogger.warn("File transfer message received from a client that is not registered");
+					break;
+				}
+				fileTransferServer.processMessage(msg, key);
 				break;
 			case BAD_MESSAGE:
 			default:
@@ -232,57 +1024,911 @@ public class ServerApplication implements MessageAnalyzer{
 
 	}
 
+	/**
+	 * Enable the options asked by a client in its connection (or resume) Message : session IDs, compression and reliable delivery.
+	 * 
+	 * @param msg Connection or resume Message of the client
+	 * @param key SelectionKey of the client
+	 * @param receiveWindow ReceiveWindow of the resumed session, null to start a new one
+	 */
+	private void negotiateOptions(Message msg, SelectionKey key, ReceiveWindow receiveWindow) {
+		if(SESSION_IDS_ENABLED && msg.hasFlag(Message.FLAG_SESSION_IDS))
+			sessionTable.setCompact(getSessionId(key), true);
+		if(COMPRESSION_ENABLED && msg.hasFlag(Message.FLAG_COMPRESSION_SUPPORTED) && !compressors.containsKey(key))
+			compressors.put(key, new PayloadCompressor());
+		if(RELIABLE_ENABLED && msg.hasFlag(Message.FLAG_RELIABLE))
+			receiveWindows.put(key, receiveWindow != null ? receiveWindow : new ReceiveWindow());
+		if(TRACE_ENABLED && msg.hasFlag(Message.FLAG_TRACED) && !traceOffsets.containsKey(key))
+			traceOffsets.put(key, new ArrayDeque<Integer>());
+	}
+	
+	/**
+	 * Flag the answer to a connection (or resume) with the options enabled for the client.
+	 * 
+	 * @param msg Answer to the client
+	 * @param key SelectionKey of the client
+	 */
+	private void setOptionFlags(Message msg, SelectionKey key) {
+		if(compressors.containsKey(key))
+			msg.setFlag(Message.FLAG_COMPRESSION_SUPPORTED);
+		if(receiveWindows.containsKey(key))
+			msg.setFlag(Message.FLAG_RELIABLE);
+		if(traceOffsets.containsKey(key))
+			msg.setFlag(Message.FLAG_TRACED);
+	}
+
+	/**
+	 * Build the answer to a connection : the list of the other clients, detached sessions included.
+	 * The presence events of the current window are then sent to the client as they relate to its list (see PresenceAggregator.clientListed).
+	 * A list too long for a Message is continued by PRESENCE Messages of connection events.
+	 * 
+	 * @param key SelectionKey of the client
+	 * @param resumableSession Session of the client if it is able to resume it, null otherwise
+	 * @return CONNECTION Message flagged with the options enabled for the client, followed by the rest of the list if any
+	 */
+	private List<Message> buildClientList(SelectionKey key, ResumableSession resumableSession) {
+		int sessionId = getSessionId(key);
+		String nickname = sessionTable.getNickname(sessionId);
+		boolean useSessionIds = sessionTable.isCompact(sessionId);
+		List<String> nicknameList= new ArrayList<String>();
+		for (Map.Entry<String, SelectionKey> client : mapNicknameKey.entrySet()) {
+			if (client.getValue() == key)
+				continue;
+			if (useSessionIds)
+				nicknameList.add(client.getKey() + PresenceAggregator.SESSION_ID_SEPARATOR + getSessionId(client.getValue()));
+			else
+				nicknameList.add(client.getKey());
+		}
+		for (ResumableSession detachedSession : detachedSessions.values()) {
+			if (useSessionIds)
+				nicknameList.add(detachedSession.getNickname() + PresenceAggregator.SESSION_ID_SEPARATOR + detachedSession.getSessionId());
+			else
+				nicknameList.add(detachedSession.getNickname());
+		}
+		presenceAggregator.clientListed(nickname);
+		StringBuilder list = new StringBuilder();
+		if(resumableSession != null)
+			list.append(resumableSession.getToken()).append(RESUME_SEPARATOR);
+		int listStart = list.length();
+		int nbListed = 0;
+		for(; nbListed < nicknameList.size(); nbListed++) {
+			String client = nicknameList.get(nbListed);
+			if(list.length() + client.length() + 1 > Message.MAX_CONTENT_SIZE)
+				break;
+			if(list.length() > listStart)
+				list.append(PresenceAggregator.SEPARATOR);
+			list.append(client);
+		}
+		String listConnectedClients = list.toString();
+		Message listConnectedClientsMessage;
+		if(useSessionIds) {
+			listConnectedClientsMessage = new Message(listConnectedClients, SessionTable.SERVER_SESSION_ID, sessionId, Message.Type.CONNECTION);
+			listConnectedClientsMessage.setFlag(Message.FLAG_SESSION_IDS);
+		} else {
+			listConnectedClientsMessage = new Message(listConnectedClients, "Server", nickname, Message.Type.CONNECTION);
+		}
+		setOptionFlags(listConnectedClientsMessage, key);
+		if(resumableSession != null) {
+			listConnectedClientsMessage.setFlag(Message.FLAG_RESUME_SUPPORTED);
+			listConnectedClientsMessage.setSequence(presenceLog.getVersion());
+		}
+		List<Message> messages = new ArrayList<Message>();
+		messages.add(listConnectedClientsMessage);
+		StringBuilder events = new StringBuilder();
+		for(int i = nbListed; i < nicknameList.size(); i++) {
+			String event = PresenceAggregator.CONNECTED_PREFIX + nicknameList.get(i);
+			if(events.length() > 0 && events.length() + event.length() + 1 > Message.MAX_CONTENT_SIZE) {
+				messages.add(buildPresenceMessage(events.toString(), key));
+				events.setLength(0);
+			}
+			if(events.length() > 0)
+				events.append(PresenceAggregator.SEPARATOR);
+			events.append(event);
+		}
+		if(events.length() > 0)
+			messages.add(buildPresenceMessage(events.toString(), key));
+		return messages;
+	}
+
+	/**
+	 * Attach the session of a client to its new connection.
+	 * 
+	 * Content of the resume Message is "token;presenceVersion;nickname:sequence,nickname:sequence..." : the token of the session,
+	 * the version of the last presence Message received by the client and the last sequence number it has received from each client.
+	 * A session still attached to a connection that has not been detected as lost yet is taken over.
+	 * 
+	 * The client receives a RESUME Message with the presence events it has missed (the whole list in a CONNECTION Message
+	 * if they are not all in the presence log anymore), then the standard Messages it has missed.
+	 * 
+	 * @param msg Resume Message of the client
+	 * @param key SelectionKey of the new connection
+	 * @return true if the session has been resumed, false if it does not exist anymore or the token is not valid
+	 */
+	private boolean resumeSession(Message msg, SelectionKey key) {
+		if(!RESUME_ENABLED || msg.isCompressed())
+			return false;
+		String[] fields = msg.getContent().split(RESUME_SEPARATOR, -1);
+		if(fields.length != 3)
+			return false;
+		String nickname = msg.getFrom();
+		SelectionKey previousKey = mapNicknameKey.get(nickname);
+		ResumableSession previousSession = previousKey != null ? resumableSessions.get(previousKey) : null;
+		if(previousSession != null && previousSession.isTokenValid(fields[0])) {
+			serverLogger.info("Client " + nickname + " resumes its session from a new connection, previous connection is closed");
+			clientConnectionLost(previousKey);
+		}
+		ResumableSession session = detachedSessions.get(nickname);
+		if(session == null || !session.isTokenValid(fields[0]))
+			return false;
+		int presenceVersion;
+		Map<String, Integer> lastSeenSequences = new HashMap<String, Integer>();
+		try {
+			presenceVersion = Integer.parseInt(fields[1]);
+			if(!fields[2].isEmpty()) {
+				for(String conversation : fields[2].split(",")) {
+					int separator = conversation.lastIndexOf(PresenceAggregator.SESSION_ID_SEPARATOR);
+					lastSeenSequences.put(conversation.substring(0, separator), Integer.parseInt(conversation.substring(separator + 1)));
+				}
+			}
+		} catch (RuntimeException e) {
+			serverLogger.warn("Malformed resume message from " + nickname);
+			return false;
+		}
+
+		detachedSessions.remove(nickname);
+		sessionTable.attach(session.getSessionId(), key);
+		mapNicknameKey.put(nickname, key);
+		key.attach(session.getSessionId());
+		resumableSessions.put(key, session);
+		negotiateOptions(msg, key, session.getReceiveWindow());
+		session.setReceiveWindow(null);
+		boolean useSessionIds = sessionTable.isCompact(session.getSessionId());
+		String presenceDelta = presenceLog.buildDelta(presenceVersion, nickname, useSessionIds);
+		if(presenceDelta == null) {
+			queueMessages(key, buildClientList(key, session));
+		} else {
+			Message resumeMessage;
+			if(useSessionIds) {
+				resumeMessage = new Message(presenceDelta, SessionTable.SERVER_SESSION_ID, session.getSessionId(), Message.Type.RESUME);
+				resumeMessage.setFlag(Message.FLAG_SESSION_IDS);
+			} else {
+				resumeMessage = new Message(presenceDelta, "Server", nickname, Message.Type.RESUME);
+			}
+			setOptionFlags(resumeMessage, key);
+			resumeMessage.setFlag(Message.FLAG_RESUME_SUPPORTED);
+			resumeMessage.setSequence(presenceLog.getVersion());
+			addPendingWritingData(key, resumeMessage);
+		}
+		issueSignalToken(msg, key);
+
+		Message[] replay = session.buildReplay(lastSeenSequences);
+		queueMessages(key, Arrays.asList(replay));
+		serverLogger.info("Client " + nickname + " has resumed its session with session ID " + session.getSessionId() 
+				+ (presenceDelta == null ? ", whole list sent" : "") + ", " + replay.length + " messages sent again");
+		return true;
+	}
+
+	/**
+	 * Send Messages of the server to a client, in order. Those that do not fit in its pending writing data wait
+	 * until they have been written (see sendPendingMessages), the Messages sent to the client meanwhile wait behind them.
+	 * 
+	 * @param key SelectionKey of the client
+	 * @param messages Messages to be sent
+	 */
+	private void queueMessages(SelectionKey key, List<Message> messages) {
+		if(messages.isEmpty())
+			return;
+		Queue<Message> queue = pendingMessages.get(key);
+		if(queue == null) {
+			queue = new ArrayDeque<Message>(messages.size());
+			pendingMessages.put(key, queue);
+		}
+		queue.addAll(messages);
+		sendPendingMessages(key);
+	}
+
+	/**
+	 * Move the Messages waiting for a client to its pending writing data, as long as there is enough space.
+	 * Missed Messages sent again are addressed by nickname since their sender may not have a session ID anymore.
+	 * 
+	 * @param key SelectionKey of the client
+	 */
+	private void sendPendingMessages(SelectionKey key) {
+		Queue<Message> queue = pendingMessages.get(key);
+		if(queue == null || !key.isValid())
+			return;
+		while(!queue.isEmpty() && pendingWritingData.get(key).remaining() >= MAX_FRAME_SIZE) {
+			Message pendingMessage = queue.poll();
+			if(pendingMessage.isCompressed() && !compressors.containsKey(key) && !replayCompressor.decompress(pendingMessage))
+				continue;
+			writeMessage(key, pendingMessage);
+		}
+		if(queue.isEmpty())
+			pendingMessages.remove(key);
+	}
+
+	/**
+	 * @param key SelectionKey of a registered client
+	 * @return nickname of the client
+	 */
+	String getNickname(SelectionKey key) {
+		return sessionTable.getNickname(getSessionId(key));
+	}
+	
+	/**
+	 * @param nickname Nickname of a client
+	 * @return SelectionKey of the client, null if it is not connected
+	 */
+	SelectionKey getKey(String nickname) {
+		return mapNicknameKey.get(nickname);
+	}
+	
+	/**
+	 * @param msg Message of a client, addressed with a session ID or a nickname
+	 * @return nickname of the receiver, null if its session ID is unknown
+	 */
+	String getReceiver(Message msg) {
+		return msg.isCompact() ? sessionTable.getNickname(msg.getToId()) : msg.getTo();
+	}
+	
+	/**
+	 * Build a Message addressed with session IDs or nicknames, depending on what the receiver uses
+	 * 
+	 * @param content Content of the Message
+	 * @param keyFrom SelectionKey of the sender, null for the server
+	 * @param keyTo SelectionKey of the receiver
+	 * @param type Type of the Message
+	 * @return Message
+	 */
+	Message buildMessage(String content, SelectionKey keyFrom, SelectionKey keyTo, Message.Type type) {
+		int fromId = keyFrom != null ? getSessionId(keyFrom) : SessionTable.SERVER_SESSION_ID;
+		int toId = getSessionId(keyTo);
+		if(sessionTable.isCompact(toId))
+			return new Message(content, fromId, toId, type);
+		return new Message(content, keyFrom != null ? sessionTable.getNickname(fromId) : "Server", sessionTable.getNickname(toId), type);
+	}
+	
 	/**
 	 * Accept a client on the server.
 	 * 
-	 * Firstly it accept and create a new socket that is set up in non-blocking mode.
-	 * A SelectionKey is also registered.
-	 * Client buffers are allocated.
+	 * Firstly the Transport accepts the connection, its channel is non-blocking and its SelectionKey is registered.
+	 * Client buffers are allocated. If TLS is enabled, a TLS session is created and waits for the client handshake.
+	 * Connections to the WebSocket port get a WebSocketSession instead, waiting for the HTTP Upgrade request of the browser.
 	 * 
+	 * @param listeningKey SelectionKey of the listening channel : the one of the Transport, of the Unix domain socket or of the WebSocket port
 	 * @throws IOException if connection has failed
 	 * @throws ClosedChannelException if channel is closed
 	 */
-	private void acceptClient() throws IOException, ClosedChannelException {
-		SocketChannel socket = _serverSocket.accept();
-		socket.configureBlocking(false);
-		SelectionKey clientKey = socket.register(_selector, SelectionKey.OP_READ);	
+	private void acceptClient(SelectionKey listeningKey) throws IOException, ClosedChannelException {
+		boolean webSocket = listeningKey == _webSocketServerKey;
+		Transport transport = webSocket ? _webSocketTransport : listeningKey == _unixServerKey ? _unixTransport : _transport;
+		SelectionKey clientKey = transport.accept(listeningKey, _selector);
+		if(clientKey == null)
+			return;
 		pendingWritingData.put(clientKey,ByteBuffer.allocate(MAX_PENDING_DATA_SIZE));
 		pendingReadingData.put(clientKey,ByteBuffer.allocate(MAX_PENDING_DATA_SIZE));
+		if(RATE_MESSAGES > 0 || RATE_BYTES > 0)
+			rateLimiters.put(clientKey, new RateLimiter(RATE_MESSAGES, RATE_BYTES, RATE_BURST_MILLIS, MAX_MESSAGE_SIZE));
+		if(webSocket)
+			webSocketSessions.put(clientKey, new WebSocketSession());
+		if(TlsContext.isEnabled() && !webSocket) {
+			final SelectionKey tlsKey = clientKey;
+			try {
+				tlsSessions.put(clientKey, TlsContext.createServerSession(new Runnable() {
+					public void run() {
+						tlsTasksCompleted.add(tlsKey);
+						_selector.wakeup();
+					}
+				}));
+			} catch (NoSuchAlgorithmException e) {
+				serverLogger.fatal("TLS is not available : " + e);
+				clientConnectionLost(clientKey);
+				return;
+			}
+		}
 		serverLogger.info("Incomming connection accepted");
 	}
+	
+	/**
+	 * Give a token of the UDP side channel to a client that has asked for it on its connection (or resume) : "token, port".
+	 * 
+	 * @param msg CONNECTION or RESUME Message of the client
+	 * @param key SelectionKey of the client
+	 */
+	private void issueSignalToken(Message msg, SelectionKey key) {
+		if(_signalChannel == null || !msg.hasFlag(Message.FLAG_SIGNALS))
+			return;
+		String token = _signalChannel.issueToken(key);
+		addPendingWritingData(key, buildMessage(token + SignalChannel.FIELD_SEPARATOR + SIGNAL_PORT, null, key, Message.Type.SIGNAL));
+	}
+	
+	/**
+	 * Relay the signals received on the UDP side channel (SIGNAL_BATCH_SIZE datagrams at most).
+	 * A datagram addressed to the server binds the address it comes from with the token it holds, it is answered by an empty
+	 * SIGNAL datagram. Other datagrams must come from a bound address : they are checked against the rate of their sender
+	 * and sent at once to the bound address of their receiver. Signals are dropped whenever that is not possible.
+	 */
+	private void receiveSignals() {
+		for(int i = 0; i < SIGNAL_BATCH_SIZE; i++) {
+			SocketAddress address;
+			try {
+				address = _signalChannel.receive();
+			} catch (IOException e) {
+				serverLogger.warn("Unable to receive signal : " + e);
+				return;
+			}
+			if(address == null)
+				return;
+			int size = _signalChannel.getDatagram().remaining();
+			Message msg = SignalChannel.decode(_signalChannel.getDatagram());
+			if(msg == null)
+				continue;
+			if(msg.isCompact() ? msg.getToId() == SessionTable.SERVER_SESSION_ID : "Server".equals(msg.getTo())) {
+				SelectionKey key = _signalChannel.bind(msg.getContent(), address);
+				if(key != null && key.isValid())
+					_signalChannel.send(buildMessage("", null, key, Message.Type.SIGNAL), key);
+				continue;
+			}
+			SelectionKey key = _signalChannel.getSession(address);
+			if(key == null || !key.isValid())
+				continue;
+			RateLimiter rateLimiter = rateLimiters.get(key);
+			if(rateLimiter != null && !rateLimiter.tryAcquire(size))
+				continue;
+			SelectionKey keyTo = msg.isCompact() ? sessionTable.getKey(msg.getToId()) : mapNicknameKey.get(msg.getTo());
+			if(keyTo != null && keyTo != key && keyTo.isValid())
+				_signalChannel.send(buildMessage(msg.getContent(), key, keyTo, Message.Type.SIGNAL), keyTo);
+		}
+	}
+	
+	/**
+	 * Remove a client whose connection has been lost or closed : its buffers and sessions are released 
+	 * and its disconnection is recorded for the next presence Message.
+	 * If the client is able to resume its session, the session is detached instead and nothing is recorded.
+	 * 
+	 * @param key SelectionKey of the client
+	 */
+	private void clientConnectionLost(SelectionKey key) {
+		ByteChannel channel = (ByteChannel) key.channel();
+		int sessionId = getSessionId(key);
+		String clientDisconnected = sessionId != SessionTable.NO_SESSION_ID ? sessionTable.getNickname(sessionId) : "";
+		if(resumableSessions.containsKey(key))
+			detachSession(key);
+		else
+			removeSession(key);
+		pendingWritingData.remove(key);
+		pendingReadingData.remove(key);
+		rateLimiters.remove(key);
+		removeCompressor(key);
+		webSocketSessions.remove(key);
+		TlsSession tls = tlsSessions.remove(key);
+		if(tls != null)
+			tls.close(channel);
+		ChannelIO.forceCloseConnection(channel);
+		if(!clientDisconnected.isEmpty()) {
+			serverLogger.warn("Unexpected disconnection from client " + clientDisconnected);
+		}
+	}
+	
+	/**
+	 * Unregister the session of a client : its nickname and session ID are released
+	 * and its disconnection is recorded for the next presence Message.
+	 * 
+	 * @param key SelectionKey of the client
+	 */
+	private void removeSession(SelectionKey key) {
+		int sessionId = getSessionId(key);
+		key.attach(null);
+		traceOffsets.remove(key);
+		resumableSessions.remove(key);
+		pendingMessages.remove(key);
+		receiveWindows.remove(key);
+		if(_signalChannel != null)
+			_signalChannel.remove(key);
+		if(sessionId == SessionTable.NO_SESSION_ID)
+			return;
+		String nickname = sessionTable.getNickname(sessionId);
+		mapNicknameKey.remove(nickname);
+		sessionTable.unregister(sessionId);
+		recordDisconnection(nickname, sessionId);
+	}
+	
+	/**
+	 * Detach the session of a client from its lost connection. Its nickname and session ID are kept 
+	 * until the client resumes or the resume timeout is over.
+	 * 
+	 * @param key SelectionKey of the client
+	 */
+	private void detachSession(SelectionKey key) {
+		ResumableSession session = resumableSessions.remove(key);
+		int sessionId = getSessionId(key);
+		key.attach(null);
+		traceOffsets.remove(key);
+		pendingMessages.remove(key);
+		session.setReceiveWindow(receiveWindows.remove(key));
+		if(_signalChannel != null)
+			_signalChannel.remove(key);
+		if(sessionId == SessionTable.NO_SESSION_ID)
+			return;
+		mapNicknameKey.remove(session.getNickname());
+		sessionTable.detach(sessionId);
+		session.detach(RESUME_TIMEOUT_MILLIS);
+		detachedSessions.put(session.getNickname(), session);
+		serverLogger.info("Session of client " + session.getNickname() + " is detached, waiting for the client to resume it");
+	}
+	
+	/**
+	 * Close a detached session : its nickname and session ID are released 
+	 * and its disconnection is recorded for the next presence Message.
+	 * 
+	 * @param session Detached session
+	 */
+	private void closeDetachedSession(ResumableSession session) {
+		sessionTable.unregister(session.getSessionId());
+		recordDisconnection(session.getNickname(), session.getSessionId());
+	}
+	
+	/**
+	 * Close the detached sessions whose client has not resumed in time.
+	 */
+	private void expireDetachedSessions() {
+		if(detachedSessions.isEmpty())
+			return;
+		long now = System.currentTimeMillis();
+		Iterator<ResumableSession> iterator = detachedSessions.values().iterator();
+		while(iterator.hasNext()) {
+			ResumableSession session = iterator.next();
+			if(session.getDetachDeadline() <= now) {
+				iterator.remove();
+				closeDetachedSession(session);
+				serverLogger.info("Client " + session.getNickname() + " has not resumed its session in time, it is disconnected");
+			}
+		}
+	}
+	
+	/**
+	 * Record that a client using reliable delivery has to receive an acknowledgment.
+	 * It is sent at once if enough Messages are waiting for it, otherwise after a short delay.
+	 * 
+	 * @param key SelectionKey of the client
+	 * @param receiveWindow ReceiveWindow of the client
+	 */
+	private void acknowledgmentNeeded(SelectionKey key, ReceiveWindow receiveWindow) {
+		if(receiveWindow.acknowledgmentNeeded(System.currentTimeMillis(), ACK_DELAY_MILLIS))
+			pendingAcknowledgments.add(key);
+		if(receiveWindow.getNbUnacknowledged() >= ACK_EVERY)
+			sendAcknowledgment(key, receiveWindow);
+	}
+	
+	/**
+	 * Send the acknowledgments whose delay is over.
+	 */
+	private void sendDueAcknowledgments() {
+		long now = System.currentTimeMillis();
+		while(!pendingAcknowledgments.isEmpty()) {
+			SelectionKey key = pendingAcknowledgments.peek();
+			ReceiveWindow receiveWindow = receiveWindows.get(key);
+			if(receiveWindow != null && receiveWindow.isAcknowledgmentPending()) {
+				if(receiveWindow.getAcknowledgmentDeadline() > now)
+					return;
+				if(key.isValid())
+					sendAcknowledgment(key, receiveWindow);
+			}
+			pendingAcknowledgments.poll();
+		}
+	}
+	
+	/**
+	 * Send an acknowledgment to a client : the cumulative acknowledgment is the sequence number, 
+	 * the selective acknowledgment is the content (hexadecimal bitmap, empty if no Message has been accepted after the cumulative one).
+	 * 
+	 * @param key SelectionKey of the client
+	 * @param receiveWindow ReceiveWindow of the client
+	 */
+	private void sendAcknowledgment(SelectionKey key, ReceiveWindow receiveWindow) {
+		int sessionId = getSessionId(key);
+		if(sessionTable.isCompact(sessionId))
+			acknowledgment.setCompactAddresses(SessionTable.SERVER_SESSION_ID, sessionId);
+		else
+			acknowledgment.setNicknameAddresses("Server", sessionTable.getNickname(sessionId));
+		long selective = receiveWindow.getSelective();
+		acknowledgment.setContent(selective == 0 ? "" : Long.toHexString(selective));
+		acknowledgment.setSequence(receiveWindow.getCumulative());
+		// Not sent : it stays pending, it is sent once the pending writing data have been written (see sendOverdueAcknowledgment)
+		if(addPendingWritingData(key, acknowledgment))
+			receiveWindow.acknowledgmentSent();
+	}
+	
+	/**
+	 * Send the acknowledgment of a client whose delay is over but which did not fit in its pending writing data.
+	 * Called once pending writing data have been written.
+	 * 
+	 * @param key SelectionKey of the client
+	 */
+	private void sendOverdueAcknowledgment(SelectionKey key) {
+		ReceiveWindow receiveWindow = receiveWindows.get(key);
+		if(receiveWindow != null && receiveWindow.isAcknowledgmentPending() && key.isValid()
+				&& receiveWindow.getAcknowledgmentDeadline() <= System.currentTimeMillis())
+			sendAcknowledgment(key, receiveWindow);
+	}
+	
+	/**
+	 * Tell a client using reliable delivery that a Message has been refused because its receiver is unknown.
+	 * The sequence number is the one of the Message.
+	 * 
+	 * @param key SelectionKey of the client
+	 * @param sequence Sequence number of the Message refused
+	 */
+	private void sendRefusal(SelectionKey key, int sequence) {
+		int sessionId = getSessionId(key);
+		Message refusal;
+		if(sessionTable.isCompact(sessionId))
+			refusal = new Message("", SessionTable.SERVER_SESSION_ID, sessionId, Message.Type.NACK);
+		else
+			refusal = new Message("", "Server", sessionTable.getNickname(sessionId), Message.Type.NACK);
+		refusal.setSequence(sequence);
+		addPendingWritingData(key, refusal);
+	}
+	
+	/**
+	 * @return time the selector can wait before presence events or acknowledgments have to be sent, a detached session has to be closed,
+	 * a delayed client can be read again or a file transfer goes on or expires, 0 if nothing is due
+	 */
+	private long millisUntilNextDeadline() {
+		long timeout = presenceAggregator.millisUntilFlush();
+		long now = System.currentTimeMillis();
+		for(int i = 0; i < delayedKeys.size(); i++) {
+			RateLimiter rateLimiter = rateLimiters.get(delayedKeys.get(i));
+			long remaining = rateLimiter == null ? 1 : Math.max(1, rateLimiter.getDelayedUntil() - now);
+			if(timeout == 0 || remaining < timeout)
+				timeout = remaining;
+		}
+		for(SelectionKey key : pendingAcknowledgments) {
+			ReceiveWindow receiveWindow = receiveWindows.get(key);
+			if(receiveWindow == null || !receiveWindow.isAcknowledgmentPending())
+				continue;
+			long remaining = Math.max(1, receiveWindow.getAcknowledgmentDeadline() - now);
+			if(timeout == 0 || remaining < timeout)
+				timeout = remaining;
+			break;
+		}
+		for(ResumableSession session : detachedSessions.values()) {
+			long remaining = Math.max(1, session.getDetachDeadline() - now);
+			if(timeout == 0 || remaining < timeout)
+				timeout = remaining;
+		}
+		long fileRemaining = fileTransferServer.millisUntilNextDeadline(now);
+		if(fileRemaining > 0 && (timeout == 0 || fileRemaining < timeout))
+			timeout = fileRemaining;
+		return timeout;
+	}
+	
+	/**
+	 * Record that a client has connected, for the next presence Message and for the presence log.
+	 * 
+	 * @param nickname Nickname of the client
+	 * @param sessionId Session ID of the client
+	 */
+	private void recordConnection(String nickname, int sessionId) {
+		presenceAggregator.clientConnected(nickname, sessionId);
+		presenceLog.record(nickname, true, sessionId);
+	}
+	
+	/**
+	 * Record that a client has disconnected, for the next presence Message and for the presence log.
+	 * 
+	 * @param nickname Nickname of the client
+	 * @param sessionId Session ID of the client
+	 */
+	private void recordDisconnection(String nickname, int sessionId) {
+		presenceAggregator.clientDisconnected(nickname, sessionId);
+		presenceLog.record(nickname, false, sessionId);
+	}
+	
+	/**
+	 * Resume the TLS handshakes whose delegated tasks have been completed by the worker pool.
+	 */
+	private void resumeTlsHandshakes() {
+		SelectionKey key;
+		while((key = tlsTasksCompleted.poll()) != null) {
+			TlsSession tls = tlsSessions.get(key);
+			if(tls == null || !key.isValid())
+				continue;
+			try {
+				tls.handshake((ByteChannel) key.channel());
+				updateTlsInterestOps(key);
+			} catch (IOException e) {
+				serverLogger.warn("TLS handshake failed : " + e);
+				clientConnectionLost(key);
+			}
+		}
+	}
+	
+	/**
+	 * Move data already decrypted by the TLS session of a client to its pending reading data.
+	 * 
+	 * @param key SelectionKey of the client
+	 * @return true if decrypted data are still waiting in the TLS session
+	 */
+	private boolean readBufferedTlsData(SelectionKey key) {
+		TlsSession tls = tlsSessions.get(key);
+		if(tls == null || !tls.hasBufferedData())
+			return false;
+		ByteBuffer pendingData = pendingReadingData.get(key);
+		if(pendingData.remaining() >= MAX_MESSAGE_SIZE) {
+			try {
+				tls.readBufferedData(pendingData);
+			} catch (IOException e) {
+				serverLogger.warn("TLS decryption failed : " + e);
+			}
+		}
+		return tls.hasBufferedData();
+	}
+	
+	/**
+	 * Ask for writing events while the TLS session of a client has encrypted data waiting to be written,
+	 * or when the handshake is finished and pending writing data can be sent.
+	 * Writing events are not needed while the handshake waits for the client.
+	 * 
+	 * @param key SelectionKey of the client
+	 */
+	private void updateTlsInterestOps(SelectionKey key) {
+		TlsSession tls = tlsSessions.get(key);
+		if(tls == null || !key.isValid())
+			return;
+		if(tls.hasPendingNetworkData() || (!tls.isHandshaking() && pendingWritingData.get(key).position() > 0))
+			key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+		else if(tls.isHandshaking())
+			key.interestOps(SelectionKey.OP_READ);
+	}
 
 	/**
-	 * Send a Message to all the connected clients excepted to the sender.
+	 * Send the presence events of the window that is over to all the connected clients.
 	 * 
-	 * @param msg Message to be broadcasted
-	 * @param key SelectionKey of the sender
+	 * Each client receives one PRESENCE Message (more only if the events do not fit in a single Message) 
+	 * instead of one Message per connection or disconnection. Its own events are not sent to it.
+	 * Clients able to resume their session receive the version of the presence log with the last part.
 	 */
-	private void broadcast(Message msg, SelectionKey key) {
-		for (String nickname : mapNicknameKey.keySet()) {
-			SelectionKey selectionKey = mapNicknameKey.get(nickname);
-			if (selectionKey.isValid() && key != selectionKey) {
-				msg.setTo(nickname);
-				addPendingWritingData(selectionKey, msg.constructByteBuffer());
+	private void flushPresenceEvents() {
+		ServerEvents.FanOut fanOutEvent = null;
+		if(ServerEvents.FAN_OUT.isEnabled()) {
+			fanOutEvent = new ServerEvents.FanOut();
+			fanOutEvent.begin();
+		}
+		long nbMessagesBefore = nbPresenceMessagesSent;
+		int nbRecipients = 0;
+		for (Map.Entry<String, SelectionKey> entry : mapNicknameKey.entrySet()) {
+			SelectionKey selectionKey = entry.getValue();
+			if (!selectionKey.isValid())
+				continue;
+			nbRecipients++;
+			boolean compact = sessionTable.isCompact(getSessionId(selectionKey));
+			List<String> contents = presenceAggregator.buildContents(entry.getKey(), compact);
+			List<Message> presenceMessages = new ArrayList<Message>(contents.size());
+			for (int i = 0; i < contents.size(); i++) {
+				Message presenceMessage = buildPresenceMessage(contents.get(i), selectionKey);
+				if(i == contents.size() - 1 && resumableSessions.containsKey(selectionKey))
+					presenceMessage.setSequence(presenceLog.getVersion());
+				presenceMessages.add(presenceMessage);
 			}
+			// Every part is sent, even if they do not all fit in the pending writing data at once
+			queueMessages(selectionKey, presenceMessages);
+			nbPresenceMessagesSent += presenceMessages.size();
+		}
+		presenceAggregator.clear();
+		if(fanOutEvent != null) {
+			fanOutEvent.sessionId = SessionTable.SERVER_SESSION_ID;
+			fanOutEvent.nickname = "Server";
+			fanOutEvent.type = Message.Type.PRESENCE.name();
+			fanOutEvent.recipients = nbRecipients;
+			fanOutEvent.messages = (int) (nbPresenceMessagesSent - nbMessagesBefore);
+			fanOutEvent.commit();
 		}
+		serverLogger.info((nbPresenceMessagesSent - nbMessagesBefore) + " presence messages sent (" 
+				+ presenceAggregator.getNbEventsRecorded() + " events recorded, " 
+				+ presenceAggregator.getNbEventsCancelled() + " cancelled, " 
+				+ nbPresenceMessagesSent + " presence messages sent since startup)");
+	}
+
+	/**
+	 * Build a presence Message for a client, addressed by session ID if it uses them.
+	 * 
+	 * @param content Presence events (see PresenceAggregator)
+	 * @param key SelectionKey of the client
+	 * @return PRESENCE Message
+	 */
+	private Message buildPresenceMessage(String content, SelectionKey key) {
+		int sessionId = getSessionId(key);
+		if(sessionTable.isCompact(sessionId))
+			return new Message(content, SessionTable.SERVER_SESSION_ID, sessionId, Message.Type.PRESENCE);
+		return new Message(content, "Server", sessionTable.getNickname(sessionId), Message.Type.PRESENCE);
 	}
 
 	/**
-	 * Add data to the pending writing buffer of a client.
+	 * Relay a Message from a client to another one.
+	 * 
+	 * Compressed content is forwarded without being decompressed if the receiver supports compression.
+	 * Otherwise it is decompressed with the compressor of the sender's connection.
+	 * Message is addressed with session IDs or nicknames, depending on what the receiver uses.
+	 * If the receiver is able to resume its session, the Message is numbered in its conversation and kept for a resume.
+	 * 
+	 * @param msg Message to be relayed
+	 * @param keyFrom SelectionKey of the sender
+	 * @param keyTo SelectionKey of the receiver
+	 * @param reliable true if the sender uses reliable delivery : the Message is not relayed if the pending writing data 
+	 * of the receiver have not enough space left for it
+	 * @return false if the Message has not been relayed because the pending writing data of the receiver are full
+	 */
+	private boolean relayMessage(Message msg, SelectionKey keyFrom, SelectionKey keyTo, boolean reliable) {
+		if(msg.isCompressed()) {
+			PayloadCompressor senderCompressor = compressors.get(keyFrom);
+			if(senderCompressor == null) {
+				serverLogger.warn("Compressed message received from " + msg.getFrom() + " but compression was not negotiated");
+				return true;
+			}
+			if(!compressors.containsKey(keyTo) && !senderCompressor.decompress(msg)) {
+				serverLogger.warn("Unable to decompress message from " + msg.getFrom());
+				return true;
+			}
+		}
+		int fromId = getSessionId(keyFrom);
+		int toId = getSessionId(keyTo);
+		if(sessionTable.isCompact(toId))
+			msg.setCompactAddresses(fromId, toId);
+		else
+			msg.setNicknameAddresses(sessionTable.getNickname(fromId), sessionTable.getNickname(toId));
+		ResumableSession resumableSession = resumableSessions.get(keyTo);
+		// Nothing is recorded for a resume if the Message is not relayed
+		if(reliable && !hasSpaceFor(keyTo, msg, resumableSession != null))
+			return false;
+		if(resumableSession != null)
+			msg.setSequence(resumableSession.record(sessionTable.getNickname(fromId), msg));
+		return sendMessage(keyTo, msg);
+	}
+	
+	/**
+	 * Tell whether a Message fits in the pending writing data of a client, as it will be written for the client :
+	 * with a sequence number if the client can resume its session, without its trace if the client does not receive traces
+	 * and in a frame if the client is a browser.
+	 * 
+	 * @param key SelectionKey of the client
+	 * @param msg Message addressed to the client
+	 * @param sequenced true if a sequence number will be added to the Message
+	 * @return true if the pending writing data have enough space left for the Message
+	 */
+	private boolean hasSpaceFor(SelectionKey key, Message msg, boolean sequenced) {
+		int size = msg.getMaxEncodedSize();
+		if(sequenced && !msg.isSequenced())
+			size += Message.SEQUENCE_SIZE;
+		if(msg.isTraced() && !traceOffsets.containsKey(key))
+			size -= Message.TRACE_SIZE;
+		if(webSocketSessions.containsKey(key))
+			size += WebSocketSession.MAX_FRAME_HEADER_SIZE;
+		return pendingWritingData.get(key).remaining() >= size;
+	}
+	
+	/**
+	 * Keep a Message to a detached session until its client resumes.
+	 * 
+	 * @param msg Message to be kept
+	 * @param keyFrom SelectionKey of the sender
+	 * @param session Detached session of the receiver
+	 */
+	private void keepForDetachedSession(Message msg, SelectionKey keyFrom, ResumableSession session) {
+		if(msg.isCompressed() && !compressors.containsKey(keyFrom)) {
+			serverLogger.warn("Compressed message received from " + msg.getFrom() + " but compression was not negotiated");
+			return;
+		}
+		session.record(sessionTable.getNickname(getSessionId(keyFrom)), msg);
+	}
+	
+	/**
+	 * Send a Message to a client. It waits behind the Messages of the server waiting for the client, if any (see queueMessages).
+	 * 
+	 * @param key SelectionKey of the client
+	 * @param msg Message to be sent
+	 * @return false if the Message has been dropped because the pending writing data of the client are full
+	 */
+	boolean sendMessage(SelectionKey key, Message msg) {
+		Queue<Message> queue = pendingMessages.get(key);
+		if(queue == null)
+			return writeMessage(key, msg);
+		if(queue.size() >= MAX_PENDING_MESSAGES) {
+			serverLogger.warn("Too many messages waiting, message to " + sessionTable.getNickname(getSessionId(key)) + " dropped");
+			return false;
+		}
+		queue.add(msg);
+		return true;
+	}
+
+	/**
+	 * Write a Message to the pending writing data of a client. Content is compressed if the client supports compression and the content is big enough.
+	 * 
+	 * @param key SelectionKey of the client
+	 * @param msg Message to be written
+	 * @return false if the Message has been dropped because the pending writing data of the client are full
+	 */
+	private boolean writeMessage(SelectionKey key, Message msg) {
+		PayloadCompressor compressor = compressors.get(key);
+		// The answer to a connection is read by the client before it enables compression
+		if(compressor != null && msg.getType() != Message.Type.CONNECTION)
+			compressor.compress(msg);
+		return addPendingWritingData(key, msg);
+	}
+	
+	/**
+	 * Release the compressor of a client, if any.
+	 * 
+	 * @param key SelectionKey of the client
+	 */
+	private void removeCompressor(SelectionKey key) {
+		PayloadCompressor compressor = compressors.remove(key);
+		if(compressor != null)
+			compressor.end();
+	}
+	
+	/**
+	 * Add a Message to the pending writing buffer of a client. The Message is encoded directly in the buffer,
+	 * in a binary frame if the client is a browser (see WebSocketSession).
+	 * The trace of a traced Message is removed if the client does not receive traces, otherwise the place of its
+	 * TRACE_WRITTEN timestamp is kept so that it is stamped when it is written (see stampWrittenTraces).
 	 * 
 	 * SelectionKey is set to write mode if the buffer is full. 
 	 * It allows to free the buffer by actually write data on the ChannelSocket during the server loop.
 	 * 
 	 * @param key SelectionKey of the client
-	 * @param buffer ByteBuffer to be added
+	 * @param msg Message to be added
+	 * @return false if the Message has been dropped because the pending writing data are full
 	 */
-	private void addPendingWritingData(SelectionKey key, ByteBuffer buffer){
-		pendingWritingData.get(key).put(buffer);
-		key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-		if (pendingWritingData.get(key).remaining() < MAX_MESSAGE_SIZE) {
+	private boolean addPendingWritingData(SelectionKey key, Message msg){
+		ByteBuffer buffer = pendingWritingData.get(key);
+		Queue<Integer> offsets = traceOffsets.get(key);
+		if(msg.isTraced() && offsets == null)
+			msg.clearTrace();
+		else if(msg.isTraced())
+			msg.setTrace(Message.TRACE_WRITTEN, Message.currentTimeMicros());
+		if(webSocketSessions.containsKey(key) ? !WebSocketSession.writeFrame(msg, buffer) : !msg.writeTo(buffer)) {
+			serverLogger.warn("Pending writing data is full, message to " + sessionTable.getNickname(getSessionId(key)) + " dropped");
+			return false;
+		}
+		if(msg.isTraced())
+			offsets.add(buffer.position() - msg.getSize() + msg.getWrittenTraceOffset());
+		key.interestOps(readInterest(key) | SelectionKey.OP_WRITE);
+		if (buffer.remaining() < MAX_FRAME_SIZE) {
 			pendingWritingDataHasEnoughSpace = false;
 			key.interestOps(SelectionKey.OP_WRITE);
+			recordBackpressure(key, true, "pending writing data full");
 		}
+		return true;
+	}
+	
+	/**
+	 * Stamp the traced Messages of pending writing data with the time they are written.
+	 * 
+	 * @param dataToBeWritten Pending writing data in writing mode
+	 * @param offsets Offsets of the TRACE_WRITTEN timestamps, null if the client does not receive traces
+	 */
+	private static void stampWrittenTraces(ByteBuffer dataToBeWritten, Queue<Integer> offsets) {
+		if(offsets == null || offsets.isEmpty())
+			return;
+		long now = Message.currentTimeMicros();
+		for(int offset : offsets)
+			dataToBeWritten.putLong(offset, now);
+	}
+	
+	/**
+	 * Forget the timestamps whose writing has started, the others move with the data compacted.
+	 * 
+	 * @param offsets Offsets of the TRACE_WRITTEN timestamps, null if the client does not receive traces
+	 * @param nbBytesWritten Number of bytes of pending writing data written
+	 */
+	private static void forgetWrittenTraces(Queue<Integer> offsets, int nbBytesWritten) {
+		if(offsets == null || nbBytesWritten == 0)
+			return;
+		while(!offsets.isEmpty() && offsets.peek() < nbBytesWritten)
+			offsets.poll();
+		for(int i = offsets.size(); i > 0; i--)
+			offsets.add(offsets.poll() - nbBytesWritten);
 	}
 	
 	/**
@@ -301,24 +1947,6 @@ public class ServerApplication implements MessageAnalyzer{
 		}
 	}
 	
-	/**
-	 * Allows user to get a nickname from a SelectionKey
-	 * 
-	 * @param map Map to search in
-	 * @param value SelectionKey of the researched nickname
-	 * @return string containing nickname associated with SelectionKey
-	 */
-	private String getNicknameWithKey(
-			Map<String, SelectionKey> map, SelectionKey value) {
-        String nickname = "";
-		for(Map.Entry<String,SelectionKey> entry: map.entrySet()){
-            if(value.equals(entry.getValue())){
-                nickname = entry.getKey();
-            }
-        }
-		return nickname;
-	}
-	
 	/**
 	 * Launch application
 	 * 
@@ -0,0 +1,138 @@
+package fr.telecom.chat;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class gathers the Java Flight Recorder events of the server loop, so that its stalls can be read next to the GC
+ * and safepoint events of the same recording (JDK Mission Control, jfr print) : select wakeups, decoding of the Messages,
+ * dispatch of each type of Message, fan-out of the presence events, partial writes and backpressure.
+ *
+ * Events are disabled by default, they are enabled by the settings of a recording, for instance :
+ * -XX:StartFlightRecording:settings=chat.jfc with the events named fr.telecom.chat.* enabled.
+ * They carry no stack trace. The server checks their EventType before allocating them : nothing is allocated while they are disabled.
+ * Used by the server thread only.
+ *
+ */
+public final class ServerEvents {
+	/* Types of the events, enabled or not by the recordings */
+	static final EventType SELECT_WAKEUP = EventType.getEventType(SelectWakeup.class);
+	static final EventType FRAME_DECODE = EventType.getEventType(FrameDecode.class);
+	static final EventType DISPATCH = EventType.getEventType(Dispatch.class);
+	static final EventType FAN_OUT = EventType.getEventType(FanOut.class);
+	static final EventType PARTIAL_WRITE = EventType.getEventType(PartialWrite.class);
+	static final EventType BACKPRESSURE = EventType.getEventType(Backpressure.class);
+
+	private ServerEvents() {
+	}
+
+	/**
+	 * Event about a client : its session ID and its nickname, 0 and null while it is not registered
+	 */
+	@Category({"Chat", "Server"})
+	@Enabled(false)
+	@StackTrace(false)
+	public static abstract class SessionEvent extends Event {
+		@Label("Session ID")
+		public int sessionId;
+
+		@Label("Nickname")
+		public String nickname;
+	}
+
+	/**
+	 * Wakeup of the selector of the server loop
+	 */
+	@Name("fr.telecom.chat.SelectWakeup")
+	@Label("Select Wakeup")
+	@Description("Selector of the server loop woken up, with the number of keys ready")
+	@Category({"Chat", "Server"})
+	@Enabled(false)
+	@StackTrace(false)
+	public static class SelectWakeup extends Event {
+		@Label("Ready Keys")
+		public int readyKeys;
+	}
+
+	/**
+	 * Message decoded from the pending reading data of a client
+	 */
+	@Name("fr.telecom.chat.FrameDecode")
+	@Label("Frame Decode")
+	@Description("Message decoded from the pending reading data of a client")
+	public static class FrameDecode extends SessionEvent {
+		@Label("Size")
+		@DataAmount
+		public int size;
+
+		@Label("Type")
+		public String type;
+	}
+
+	/**
+	 * Action taken by the server on a Message, once its handlers have passed it
+	 */
+	@Name("fr.telecom.chat.Dispatch")
+	@Label("Dispatch")
+	@Description("Action taken by the server on a Message received")
+	public static class Dispatch extends SessionEvent {
+		@Label("Type")
+		public String type;
+	}
+
+	/**
+	 * Messages sent to all the connected clients
+	 */
+	@Name("fr.telecom.chat.FanOut")
+	@Label("Fan-out")
+	@Description("Messages sent to all the connected clients")
+	public static class FanOut extends SessionEvent {
+		@Label("Type")
+		public String type;
+
+		@Label("Recipients")
+		public int recipients;
+
+		@Label("Messages")
+		public int messages;
+	}
+
+	/**
+	 * Pending writing data of a client not written at once : the socket buffer of the client is full
+	 */
+	@Name("fr.telecom.chat.PartialWrite")
+	@Label("Partial Write")
+	@Description("Pending writing data of a client not written at once")
+	public static class PartialWrite extends SessionEvent {
+		@Label("Written")
+		@DataAmount
+		public int written;
+
+		@Label("Remaining")
+		@DataAmount
+		public int remaining;
+	}
+
+	/**
+	 * Reading from a client stopped or started again
+	 */
+	@Name("fr.telecom.chat.Backpressure")
+	@Label("Backpressure")
+	@Description("Reading from a client stopped or started again")
+	public static class Backpressure extends SessionEvent {
+		@Label("Paused")
+		public boolean paused;
+
+		@Label("Cause")
+		public String cause;
+	}
+}
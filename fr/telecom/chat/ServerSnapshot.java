@@ -0,0 +1,123 @@
+package fr.telecom.chat;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class contains the state handed over by a server to the server replacing it (restart with state handoff).
+ *
+ * Connections can not be handed over to another process : they are closed by the old server.
+ * The sessions of clients able to resume are handed over, the new server keeps them detached until their clients
+ * reconnect and resume. Presence versions go on, so that resumed clients only receive the presence events they
+ * have missed. Clients not able to resume are recorded as disconnected by the new server.
+ *
+ */
+public class ServerSnapshot {
+	/* Changed when the format changes, a server does not read a snapshot of another format */
+	private static final int FORMAT_VERSION = 1;
+
+	private int presenceVersion;
+	private List<ResumableSession> sessions = new ArrayList<ResumableSession>();
+	private List<String> departedNicknames = new ArrayList<String>();
+	private List<Integer> departedSessionIds = new ArrayList<Integer>();
+
+	/**
+	 * @param presenceVersion Version of the last presence event recorded
+	 */
+	public ServerSnapshot(int presenceVersion) {
+		this.presenceVersion = presenceVersion;
+	}
+
+	/**
+	 * Add a session to be resumed on the new server
+	 *
+	 * @param session ResumableSession
+	 */
+	public void addSession(ResumableSession session) {
+		sessions.add(session);
+	}
+
+	/**
+	 * Add a client that will not be able to resume its session
+	 *
+	 * @param nickname Nickname of the client
+	 * @param sessionId Session ID of the client
+	 */
+	public void addDepartedClient(String nickname, int sessionId) {
+		departedNicknames.add(nickname);
+		departedSessionIds.add(sessionId);
+	}
+
+	/**
+	 * @return version of the last presence event recorded by the old server
+	 */
+	public int getPresenceVersion() {
+		return presenceVersion;
+	}
+
+	/**
+	 * @return sessions to be resumed
+	 */
+	public List<ResumableSession> getSessions() {
+		return sessions;
+	}
+
+	/**
+	 * @return nicknames of the clients that will not be able to resume their session
+	 */
+	public List<String> getDepartedNicknames() {
+		return departedNicknames;
+	}
+
+	/**
+	 * @return session IDs of the clients that will not be able to resume their session, in the order of getDepartedNicknames
+	 */
+	public List<Integer> getDepartedSessionIds() {
+		return departedSessionIds;
+	}
+
+	/**
+	 * Write the snapshot
+	 *
+	 * @param out DataOutput
+	 * @throws IOException if the writing has failed
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeInt(FORMAT_VERSION);
+		out.writeInt(presenceVersion);
+		out.writeInt(sessions.size());
+		for(ResumableSession session : sessions)
+			session.writeTo(out);
+		out.writeInt(departedNicknames.size());
+		for(int i = 0; i < departedNicknames.size(); i++) {
+			out.writeUTF(departedNicknames.get(i));
+			out.writeInt(departedSessionIds.get(i));
+		}
+	}
+
+	/**
+	 * Read a snapshot written by writeTo
+	 *
+	 * @param in DataInput
+	 * @return ServerSnapshot
+	 * @throws IOException if the reading has failed or the format is not known
+	 */
+	public static ServerSnapshot readFrom(DataInput in) throws IOException {
+		int format = in.readInt();
+		if(format != FORMAT_VERSION)
+			throw new IOException("Unknown snapshot format " + format);
+		ServerSnapshot snapshot = new ServerSnapshot(in.readInt());
+		int nbSessions = in.readInt();
+		for(int i = 0; i < nbSessions; i++)
+			snapshot.addSession(ResumableSession.readFrom(in));
+		int nbDeparted = in.readInt();
+		for(int i = 0; i < nbDeparted; i++)
+			snapshot.addDepartedClient(in.readUTF(), in.readInt());
+		return snapshot;
+	}
+}
@@ -0,0 +1,194 @@
+package fr.telecom.chat;
+
+import java.nio.channels.SelectionKey;
+import java.util.Arrays;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * Table of the sessions registered on the server, indexed by session ID.
+ * Session IDs are small integers so that a session is found by a direct array access, without hashing any nickname.
+ * ID 0 is reserved for the server itself.
+ *
+ * Released IDs are reused in the order they have been released, so that an ID is not given again
+ * right after its session has left (Messages still addressed to the old session would reach the new one).
+ *
+ * A session can be detached from its connection (see ResumableSession) : it keeps its ID and nickname
+ * but has no SelectionKey until it is attached again.
+ *
+ * The table also keeps whether the connection of a session uses compact addressing (session IDs instead of nicknames),
+ * while the SelectionKey of the connection carries the session ID as its attachment : the server finds both without hashing.
+ *
+ */
+public class SessionTable {
+	public static final int SERVER_SESSION_ID = 0;
+	/** Session ID of a client that is not registered */
+	public static final int NO_SESSION_ID = -1;
+	private static final int INITIAL_CAPACITY = 64;
+
+	private SelectionKey[] keys = new SelectionKey[INITIAL_CAPACITY];
+	private String[] nicknames = new String[INITIAL_CAPACITY];
+	private boolean[] compact = new boolean[INITIAL_CAPACITY];
+	/* Circular queue of released IDs */
+	private int[] freeIds = new int[INITIAL_CAPACITY];
+	private int freeIdsHead = 0;
+	private int nbFreeIds = 0;
+	private int nextId = SERVER_SESSION_ID + 1;
+	private int nbSessions = 0;
+
+	/**
+	 * Register a session and give it an ID.
+	 *
+	 * @param nickname Nickname of the client
+	 * @param key SelectionKey of the client
+	 * @return session ID
+	 */
+	public int register(String nickname, SelectionKey key) {
+		int id;
+		// Released IDs are only reused when the table is full
+		if(nextId < keys.length || nbFreeIds == 0) {
+			id = nextId++;
+			if(id >= keys.length)
+				grow();
+		} else {
+			id = freeIds[freeIdsHead];
+			freeIdsHead = (freeIdsHead + 1) % freeIds.length;
+			nbFreeIds--;
+		}
+		keys[id] = key;
+		nicknames[id] = nickname;
+		nbSessions++;
+		return id;
+	}
+
+	/**
+	 * Release a session ID.
+	 *
+	 * @param id Session ID
+	 */
+	public void unregister(int id) {
+		if(!isRegistered(id))
+			return;
+		keys[id] = null;
+		nicknames[id] = null;
+		compact[id] = false;
+		nbSessions--;
+		if(nbFreeIds == freeIds.length)
+			freeIds = unrollFreeIds(freeIds.length * 2);
+		freeIds[(freeIdsHead + nbFreeIds) % freeIds.length] = id;
+		nbFreeIds++;
+	}
+
+	/**
+	 * Register a detached session with the ID it had on another server (restart with state handoff).
+	 *
+	 * @param id Session ID
+	 * @param nickname Nickname of the client
+	 */
+	public void restore(int id, String nickname) {
+		if(id <= SERVER_SESSION_ID || isRegistered(id))
+			return;
+		while(id >= keys.length)
+			grow();
+		nicknames[id] = nickname;
+		nbSessions++;
+		if(id >= nextId)
+			nextId = id + 1;
+	}
+
+	/**
+	 * Detach a session from its connection. Its ID and nickname are kept, addressing is negotiated again by the next connection.
+	 *
+	 * @param id Session ID
+	 */
+	public void detach(int id) {
+		if(isRegistered(id)) {
+			keys[id] = null;
+			compact[id] = false;
+		}
+	}
+
+	/**
+	 * Set whether the connection of a session uses compact addressing
+	 *
+	 * @param id Session ID
+	 * @param isCompact true if Messages are addressed with session IDs
+	 */
+	public void setCompact(int id, boolean isCompact) {
+		if(isRegistered(id))
+			compact[id] = isCompact;
+	}
+
+	/**
+	 * @param id Session ID
+	 * @return true if Messages to this session are addressed with session IDs, false if no session has this ID
+	 */
+	public boolean isCompact(int id) {
+		return id > SERVER_SESSION_ID && id < compact.length && compact[id];
+	}
+
+	/**
+	 * Attach a detached session to a new connection.
+	 *
+	 * @param id Session ID
+	 * @param key SelectionKey of the new connection
+	 */
+	public void attach(int id, SelectionKey key) {
+		if(isRegistered(id))
+			keys[id] = key;
+	}
+
+	/**
+	 * @param id Session ID
+	 * @return true if a session is registered with this ID, attached or not
+	 */
+	public boolean isRegistered(int id) {
+		return id > SERVER_SESSION_ID && id < nicknames.length && nicknames[id] != null;
+	}
+
+	/**
+	 * @param id Session ID
+	 * @return SelectionKey of the session, null if no session has this ID or if it is detached
+	 */
+	public SelectionKey getKey(int id) {
+		if(id < 0 || id >= keys.length)
+			return null;
+		return keys[id];
+	}
+
+	/**
+	 * @param id Session ID
+	 * @return nickname of the session, "Server" for the server ID, null if no session has this ID
+	 */
+	public String getNickname(int id) {
+		if(id == SERVER_SESSION_ID)
+			return "Server";
+		if(id < 0 || id >= nicknames.length)
+			return null;
+		return nicknames[id];
+	}
+
+	/**
+	 * @return number of registered sessions
+	 */
+	public int size() {
+		return nbSessions;
+	}
+
+	private void grow() {
+		keys = Arrays.copyOf(keys, keys.length * 2);
+		nicknames = Arrays.copyOf(nicknames, nicknames.length * 2);
+		compact = Arrays.copyOf(compact, compact.length * 2);
+	}
+
+	/**
+	 * Copy the queue of released IDs in a new array, starting at index 0.
+	 */
+	private int[] unrollFreeIds(int capacity) {
+		int[] newFreeIds = new int[capacity];
+		for(int i = 0; i < nbFreeIds; i++)
+			newFreeIds[i] = freeIds[(freeIdsHead + i) % freeIds.length];
+		freeIdsHead = 0;
+		return newFreeIds;
+	}
+}
@@ -0,0 +1,205 @@
+package fr.telecom.chat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class is the UDP side channel of the server : ephemeral signals (typing indicators, presence pings) are relayed
+ * in datagrams, so that they never wait behind the Messages of the TCP connections. Signals are neither queued nor sent again :
+ * a signal is dropped if the datagram can not be sent at once, if its sender or its receiver is not bound.
+ *
+ * A client asks for the side channel with FLAG_SIGNALS on its CONNECTION (or RESUME) Message. The server then sends it a SIGNAL
+ * Message "token, port" on the TCP connection (see issueToken). The client binds its datagram socket by sending a SIGNAL datagram
+ * to the server with the token as content, answered by an empty SIGNAL datagram. Signals are then SIGNAL datagrams addressed to
+ * another client : the server relays them from the bound address of their sender to the bound address of their receiver.
+ * Each datagram holds a single Message (see decode). Fields of the Messages are separated by FIELD_SEPARATOR.
+ * Used by the server thread only.
+ *
+ */
+public class SignalChannel {
+	/** Separator of the fields of the SIGNAL Message giving the token */
+	public static final char FIELD_SEPARATOR = '\u001F';
+	private static final SecureRandom TOKEN_GENERATOR = new SecureRandom();
+	private static Logger signalLogger = Logger.getLogger(SignalChannel.class.getSimpleName());
+
+	private final DatagramChannel channel;
+	private final SelectionKey key;
+	private final int maxSize;
+	private final ByteBuffer buffer;
+	private final Map<String, SelectionKey> sessionByToken = new HashMap<String, SelectionKey>();
+	private final Map<SelectionKey, String> tokenBySession = new HashMap<SelectionKey, String>();
+	private final Map<SelectionKey, SocketAddress> addressBySession = new HashMap<SelectionKey, SocketAddress>();
+	private final Map<SocketAddress, SelectionKey> sessionByAddress = new HashMap<SocketAddress, SelectionKey>();
+
+	/**
+	 * Open the side channel and register it with the selector of the server (OP_READ)
+	 *
+	 * @param selector Selector of the server
+	 * @param port UDP port of the side channel
+	 * @param maxSize Size of the biggest datagram accepted, in bytes
+	 * @throws IOException if the port can not be bound
+	 */
+	public SignalChannel(Selector selector, int port, int maxSize) throws IOException {
+		this.maxSize = maxSize;
+		// One more byte : a datagram filling the buffer is too big
+		buffer = ByteBuffer.allocateDirect(maxSize + 1);
+		channel = DatagramChannel.open();
+		channel.configureBlocking(false);
+		channel.bind(new InetSocketAddress(port));
+		key = channel.register(selector, SelectionKey.OP_READ);
+	}
+
+	/**
+	 * @return SelectionKey of the side channel
+	 */
+	public SelectionKey getKey() {
+		return key;
+	}
+
+	/**
+	 * Give a new token to a session, its previous token and its binding are forgotten
+	 *
+	 * @param session SelectionKey of the TCP connection of the client
+	 * @return token to be sent to the client
+	 */
+	public String issueToken(SelectionKey session) {
+		remove(session);
+		String token = Long.toHexString(TOKEN_GENERATOR.nextLong());
+		sessionByToken.put(token, session);
+		tokenBySession.put(session, token);
+		return token;
+	}
+
+	/**
+	 * Forget the token and the binding of a session whose connection is over
+	 *
+	 * @param session SelectionKey of the TCP connection of the client
+	 */
+	public void remove(SelectionKey session) {
+		String token = tokenBySession.remove(session);
+		if(token != null)
+			sessionByToken.remove(token);
+		SocketAddress address = addressBySession.remove(session);
+		if(address != null)
+			sessionByAddress.remove(address);
+	}
+
+	/**
+	 * Bind the address a token is received from to its session. A session binds again when its address changes.
+	 *
+	 * @param token Token received
+	 * @param address Address of the datagram
+	 * @return SelectionKey of the session bound, null if the token is unknown
+	 */
+	public SelectionKey bind(String token, SocketAddress address) {
+		SelectionKey session = sessionByToken.get(token);
+		if(session == null)
+			return null;
+		SelectionKey previous = sessionByAddress.get(address);
+		if(previous != null && previous != session)
+			addressBySession.remove(previous);
+		SocketAddress previousAddress = addressBySession.put(session, address);
+		if(previousAddress != null && !previousAddress.equals(address))
+			sessionByAddress.remove(previousAddress);
+		sessionByAddress.put(address, session);
+		return session;
+	}
+
+	/**
+	 * @param address Address of a datagram
+	 * @return SelectionKey of the session bound to the address, null if none
+	 */
+	public SelectionKey getSession(SocketAddress address) {
+		return sessionByAddress.get(address);
+	}
+
+	/**
+	 * Receive the next datagram. Datagrams too big are dropped.
+	 *
+	 * @return address of the datagram, null if none is waiting. Its content is given by getDatagram
+	 * @throws IOException if the channel has failed
+	 */
+	public SocketAddress receive() throws IOException {
+		SocketAddress address;
+		do {
+			buffer.clear();
+			address = channel.receive(buffer);
+		} while(address != null && buffer.position() > maxSize);
+		buffer.flip();
+		return address;
+	}
+
+	/**
+	 * @return content of the last datagram received, in reading mode
+	 */
+	public ByteBuffer getDatagram() {
+		return buffer;
+	}
+
+	/**
+	 * Send a Message to the bound address of a session, at once or never
+	 *
+	 * @param msg Message to be sent
+	 * @param session SelectionKey of the receiver
+	 * @return false if the signal has been dropped
+	 */
+	public boolean send(Message msg, SelectionKey session) {
+		SocketAddress address = addressBySession.get(session);
+		if(address == null)
+			return false;
+		buffer.clear();
+		if(!msg.writeTo(buffer))
+			return false;
+		buffer.flip();
+		try {
+			return channel.send(buffer, address) > 0;
+		} catch (IOException e) {
+			signalLogger.warn("Unable to send signal to " + address + " : " + e);
+			return false;
+		}
+	}
+
+	/**
+	 * Close the side channel
+	 */
+	public void close() {
+		key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			signalLogger.warn("Unable to close the side channel : " + e);
+		}
+	}
+
+	/**
+	 * Read the Message held by a datagram
+	 *
+	 * @param datagram Content of the datagram, in reading mode
+	 * @return Message, null if the datagram is not a valid uncompressed SIGNAL Message
+	 */
+	public static Message decode(ByteBuffer datagram) {
+		if(datagram.remaining() < 2 || datagram.getShort(datagram.position()) != datagram.remaining())
+			return null;
+		Message msg = new Message();
+		try {
+			msg.ConstructFromByteBuffer(datagram);
+		} catch (RuntimeException e) {
+			return null;
+		}
+		if(!msg.isValid() || msg.isCompressed() || msg.getType() != Message.Type.SIGNAL)
+			return null;
+		return msg;
+	}
+}
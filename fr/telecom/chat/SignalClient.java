@@ -0,0 +1,174 @@
+package fr.telecom.chat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import org.apache.log4j.Logger;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class is the client side of the UDP side channel of the server (see SignalChannel) : ephemeral signals of a
+ * client session (typing indicators, presence pings, see ClientSession.sendSignal) go through it if the server has one.
+ * The datagram channel is bound with the token given at connection, again every chat.signal.keepalive ms (default : 15 s)
+ * so that the address stays bound. Signals are dropped while the side channel is not bound, and may be lost on the way.
+ * Not thread-safe, used on the engine thread only.
+ *
+ */
+class SignalClient {
+	private static final long SIGNAL_KEEPALIVE_MILLIS = Long.getLong("chat.signal.keepalive", 15000);
+	private static final long SIGNAL_BIND_RETRY_MILLIS = 1000;
+
+	private final ClientSession _session;
+	private volatile SignalListener _signalLsn;
+	/* UDP side channel, connected to the server once a token has been given */
+	private DatagramChannel _signalChannel;
+	private SelectionKey _signalKey;
+	private String _signalToken;
+	private boolean _signalBound = false;
+	private ByteBuffer _signalBuffer = ByteBuffer.allocate(Message.MAX_SIZE);
+	private Logger signalLogger;
+
+	/**
+	 * @param session ClientSession the signals are sent for
+	 */
+	SignalClient(ClientSession session) {
+		_session = session;
+		signalLogger = Logger.getLogger(SignalClient.class.getSimpleName() + "." + session.getNickname());
+	}
+
+	/**
+	 * Change the listener of the signals. Can be called from any thread.
+	 *
+	 * @param signalLsn SignalListener receiving the signals of the other clients, null to ignore them
+	 */
+	void setListener(SignalListener signalLsn) {
+		_signalLsn = signalLsn;
+	}
+
+	/**
+	 * Send a signal to another client, dropped if the side channel is not bound.
+	 *
+	 * @param to Nickname of the receiver
+	 * @param content Content of the signal
+	 */
+	void send(String to, String content) {
+		if(!_signalBound || _session.isReconnecting())
+			return;
+		Integer toId = _session.getSessionId(to);
+		if(_session.getSessionId() >= 0 && toId != null)
+			write(new Message(content, _session.getSessionId(), toId, Message.Type.SIGNAL));
+		else
+			write(new Message(content, _session.getNickname(), to, Message.Type.SIGNAL));
+	}
+
+	/**
+	 * Open the UDP side channel with the token given by the server : "token, port". It is bound at once (see bind).
+	 *
+	 * @param content Content of the SIGNAL Message of the server
+	 */
+	void open(String content) {
+		close();
+		String[] fields = content.split(String.valueOf(SignalChannel.FIELD_SEPARATOR), -1);
+		try {
+			int port = Integer.parseInt(fields[1]);
+			DatagramChannel channel = DatagramChannel.open();
+			channel.configureBlocking(false);
+			channel.connect(new InetSocketAddress(_session.dataConnectionHost(), port));
+			_signalChannel = channel;
+			_signalKey = channel.register(_session.getSelector(), SelectionKey.OP_READ);
+			_session.getEngine().signalChannelOpened(_signalKey, _session);
+		} catch (IOException | RuntimeException e) {
+			signalLogger.warn("Unable to open the side channel : " + e);
+			close();
+			return;
+		}
+		_signalToken = fields[0];
+		bind(_signalChannel);
+	}
+
+	/**
+	 * Read the datagrams received on the side channel : the answer of the server to the token, or signals of other clients
+	 * given to the SignalListener.
+	 */
+	void read() {
+		while(_signalChannel != null) {
+			_signalBuffer.clear();
+			try {
+				if(_signalChannel.read(_signalBuffer) <= 0)
+					return;
+			} catch (IOException e) {
+				// Server not reachable (ICMP port unreachable) : signals are dropped until it is
+				signalLogger.warn("Unable to receive signal : " + e);
+				return;
+			}
+			_signalBuffer.flip();
+			Message msg = SignalChannel.decode(_signalBuffer);
+			if(msg == null)
+				continue;
+			String from = msg.isCompact() ? _session.getNickname(msg.getFromId()) : msg.getFrom();
+			if(msg.isCompact() ? msg.getFromId() == SessionTable.SERVER_SESSION_ID : "Server".equals(from)) {
+				if(!_signalBound)
+					signalLogger.info("Side channel bound");
+				_signalBound = true;
+				continue;
+			}
+			SignalListener signalLsn = _signalLsn;
+			if(from != null && signalLsn != null)
+				signalLsn.signalReceived(from, msg.getContent());
+		}
+	}
+
+	/**
+	 * Close the side channel, a new token is given by the server at the next connection
+	 */
+	void close() {
+		if(_signalKey != null)
+			_session.getEngine().signalChannelClosed(_signalKey);
+		if(_signalChannel != null)
+			ChannelIO.forceCloseConnection(_signalChannel);
+		_signalChannel = null;
+		_signalKey = null;
+		_signalToken = null;
+		_signalBound = false;
+	}
+
+	/**
+	 * Send the token on the side channel, every second until the server has answered, then every chat.signal.keepalive ms
+	 * so that the address stays bound (NAT mappings expire).
+	 *
+	 * @param channel DatagramChannel of the side channel, nothing is done once it has been closed
+	 */
+	private void bind(final DatagramChannel channel) {
+		if(channel != _signalChannel)
+			return;
+		if(_session.getSessionId() >= 0)
+			write(new Message(_signalToken, _session.getSessionId(), SessionTable.SERVER_SESSION_ID, Message.Type.SIGNAL));
+		else
+			write(new Message(_signalToken, _session.getNickname(), "Server", Message.Type.SIGNAL));
+		_session.getEngine().schedule(new Runnable() {
+			public void run() {
+				bind(channel);
+			}
+		}, _signalBound ? SIGNAL_KEEPALIVE_MILLIS : SIGNAL_BIND_RETRY_MILLIS);
+	}
+
+	/**
+	 * Send a Message in a datagram of the side channel, at once or never
+	 *
+	 * @param msg SIGNAL Message
+	 */
+	private void write(Message msg) {
+		_signalBuffer.clear();
+		msg.writeTo(_signalBuffer);
+		_signalBuffer.flip();
+		try {
+			if(_signalChannel.write(_signalBuffer) == 0)
+				signalLogger.warn("Signal to " + msg.getTo() + " dropped");
+		} catch (IOException e) {
+			signalLogger.warn("Unable to send signal : " + e);
+		}
+	}
+}
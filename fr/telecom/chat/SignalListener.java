@@ -0,0 +1,12 @@
+package fr.telecom.chat;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ * 
+ * Interface that provides the method called when a signal (typing indicator, presence ping) is received on the UDP side channel
+ * (see ClientApplication.sendSignal). Signals may be lost or received out of order. Called on the client thread.
+ *
+ */
+public interface SignalListener {
+		public abstract void signalReceived(String from, String content);
+}
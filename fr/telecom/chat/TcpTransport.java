@@ -0,0 +1,128 @@
+package fr.telecom.chat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class is the default Transport : TCP connections made of SocketChannels, their keys are handled by the Selector.
+ * The listening socket given by the process launching the server is used if any (System.inheritedChannel, socket activation).
+ *
+ */
+public class TcpTransport implements Transport {
+	private static Logger transportLogger = Logger.getLogger(TcpTransport.class.getSimpleName());
+
+	private final boolean inheritedChannelUsed;
+
+	/**
+	 * Create a transport listening on the inherited socket if any
+	 */
+	public TcpTransport() {
+		this(true);
+	}
+
+	/**
+	 * @param inheritedChannelUsed false for a transport listening on another port than the main one : it never uses the inherited socket
+	 */
+	public TcpTransport(boolean inheritedChannelUsed) {
+		this.inheritedChannelUsed = inheritedChannelUsed;
+	}
+
+	/**
+	 * Listen on the inherited socket if any (and if it is used), on a new socket bound to the port otherwise
+	 *
+	 * @param selector Selector of the server
+	 * @param port Port to listen on
+	 * @return SelectionKey of the ServerSocketChannel
+	 * @throws IOException if the socket can not be bound
+	 */
+	public SelectionKey listen(Selector selector, int port) throws IOException {
+		ServerSocketChannel serverSocket;
+		Channel inherited = inheritedChannelUsed ? System.inheritedChannel() : null;
+		if(inherited instanceof ServerSocketChannel) {
+			transportLogger.info("Using inherited listening socket");
+			serverSocket = (ServerSocketChannel) inherited;
+		} else {
+			serverSocket = ServerSocketChannel.open();
+			serverSocket.socket().setReuseAddress(true);
+			serverSocket.socket().bind(new InetSocketAddress(port));
+		}
+		serverSocket.configureBlocking(false);
+		return serverSocket.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * @param listeningKey SelectionKey of the ServerSocketChannel
+	 * @param selector Selector of the server
+	 * @return SelectionKey of the new SocketChannel, null if no connection is pending
+	 * @throws IOException if the connection can not be accepted
+	 */
+	public SelectionKey accept(SelectionKey listeningKey, Selector selector) throws IOException {
+		SocketChannel socket = ((ServerSocketChannel) listeningKey.channel()).accept();
+		if(socket == null)
+			return null;
+		socket.configureBlocking(false);
+		return socket.register(selector, SelectionKey.OP_READ);
+	}
+
+	/**
+	 * @param selector Selector of the client
+	 * @param host String containing the IP address
+	 * @param port Port of the server
+	 * @return SelectionKey of the new SocketChannel
+	 * @throws IOException if the connection can not be started
+	 */
+	public SelectionKey connect(Selector selector, String host, int port) throws IOException {
+		SocketChannel socket = SocketChannel.open();
+		try {
+			socket.configureBlocking(false);
+			socket.connect(new InetSocketAddress(host, port));
+			return socket.register(selector, SelectionKey.OP_CONNECT);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * A connection may be established as soon as it is started (local connections) : it is not pending anymore
+	 *
+	 * @param key SelectionKey of the SocketChannel
+	 * @return true if the connection is established
+	 * @throws IOException if the connection has failed
+	 */
+	public boolean finishConnect(SelectionKey key) throws IOException {
+		SocketChannel socket = (SocketChannel) key.channel();
+		return socket.isConnectionPending() ? socket.finishConnect() : socket.isConnected();
+	}
+
+	/**
+	 * Keys are all handled by the Selector
+	 *
+	 * @param selector Selector of the loop
+	 * @return false
+	 */
+	public boolean hasReadyKeys(Selector selector) {
+		return false;
+	}
+
+	/**
+	 * Keys are all handled by the Selector
+	 *
+	 * @param selector Selector of the loop
+	 * @return empty set
+	 */
+	public Set<SelectionKey> selectedKeys(Selector selector) {
+		return Collections.emptySet();
+	}
+}
@@ -0,0 +1,111 @@
+package fr.telecom.chat;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class provides what is shared by all the TLS sessions of the application :
+ * the SSLContext (and its session caches), the buffer pools and the worker pool running SSLEngine delegated tasks.
+ *
+ * TLS is enabled with the system property chat.tls=true. Certificates are configured with the standard
+ * javax.net.ssl.keyStore / javax.net.ssl.trustStore system properties of the default SSLContext.
+ * The client session cache is used to resume sessions when a client reconnects to the same server.
+ *
+ */
+public class TlsContext {
+	private static final boolean TLS_ENABLED = Boolean.getBoolean("chat.tls");
+	private static final int SESSION_CACHE_SIZE = Integer.getInteger("chat.tls.sessionCacheSize", 10000);
+	private static final int SESSION_TIMEOUT_SECONDS = Integer.getInteger("chat.tls.sessionTimeout", 3600);
+	private static final int NB_TASK_THREADS = Integer.getInteger("chat.tls.taskThreads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+	private static final int MAX_POOLED_BUFFERS = Integer.getInteger("chat.tls.pooledBuffers", 1024);
+	private static Logger tlsLogger = Logger.getLogger(TlsContext.class.getSimpleName());
+
+	private static SSLContext sslContext;
+	private static BufferPool packetBufferPool;
+	private static BufferPool applicationBufferPool;
+	private static ExecutorService taskExecutor;
+
+	/**
+	 * @return true if TLS has been enabled for the application
+	 */
+	public static boolean isEnabled() {
+		return TLS_ENABLED;
+	}
+
+	/**
+	 * Create a TLS session for a connection accepted by the server.
+	 *
+	 * @param taskCompletionCallback Called from a worker thread when delegated tasks of the handshake are done
+	 * @return new TLS session, handshake is started
+	 * @throws NoSuchAlgorithmException if the default SSLContext is not available
+	 * @throws SSLException if the handshake can not be started
+	 */
+	public static TlsSession createServerSession(Runnable taskCompletionCallback) throws NoSuchAlgorithmException, SSLException {
+		SSLEngine engine = getSslContext().createSSLEngine();
+		engine.setUseClientMode(false);
+		return new TlsSession(engine, packetBufferPool, applicationBufferPool, taskExecutor, taskCompletionCallback);
+	}
+
+	/**
+	 * Create a TLS session for a client connection.
+	 * Host and port are given to the SSLEngine so that a previous session with this server can be resumed.
+	 *
+	 * @param host Server host
+	 * @param port Server port
+	 * @param taskCompletionCallback Called from a worker thread when delegated tasks of the handshake are done
+	 * @return new TLS session, handshake is started
+	 * @throws NoSuchAlgorithmException if the default SSLContext is not available
+	 * @throws SSLException if the handshake can not be started
+	 */
+	public static TlsSession createClientSession(String host, int port, Runnable taskCompletionCallback) throws NoSuchAlgorithmException, SSLException {
+		SSLEngine engine = getSslContext().createSSLEngine(host, port);
+		engine.setUseClientMode(true);
+		return new TlsSession(engine, packetBufferPool, applicationBufferPool, taskExecutor, taskCompletionCallback);
+	}
+
+	/**
+	 * Initialize the shared objects on first use.
+	 *
+	 * @return the SSLContext of the application
+	 * @throws NoSuchAlgorithmException if the default SSLContext is not available
+	 */
+	private static synchronized SSLContext getSslContext() throws NoSuchAlgorithmException {
+		if(sslContext == null) {
+			sslContext = SSLContext.getDefault();
+			sslContext.getServerSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+			sslContext.getServerSessionContext().setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+			sslContext.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+			sslContext.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+
+			SSLSession sampleSession = sslContext.createSSLEngine().getSession();
+			packetBufferPool = new BufferPool(sampleSession.getPacketBufferSize(), MAX_POOLED_BUFFERS, true);
+			applicationBufferPool = new BufferPool(sampleSession.getApplicationBufferSize(), MAX_POOLED_BUFFERS, false);
+			taskExecutor = Executors.newFixedThreadPool(NB_TASK_THREADS, new ThreadFactory() {
+				private final AtomicInteger nbThreads = new AtomicInteger();
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "tls-task-" + nbThreads.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			tlsLogger.info("TLS context initialized (" + NB_TASK_THREADS + " task threads, packet buffers of "
+					+ packetBufferPool.getBufferSize() + " bytes)");
+		}
+		return sslContext;
+	}
+
+	private TlsContext() {
+	}
+}
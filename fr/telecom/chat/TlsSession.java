@@ -0,0 +1,307 @@
+package fr.telecom.chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.util.concurrent.Executor;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class encrypts and decrypts the data of one non-blocking channel (see Transport) with an SSLEngine.
+ *
+ * Nothing blocks : the handshake goes forward each time the channel is readable or writable,
+ * and delegated tasks of the SSLEngine are run on a worker pool. When they are done, the task completion callback
+ * is called so that the owner of the channel can resume the handshake from its selector thread.
+ *
+ * Network and application buffers are taken from pools and must be given back by calling close.
+ * All methods except the task completion callback must be called from the thread handling the channel.
+ *
+ */
+public class TlsSession {
+	private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+	private static Logger tlsLogger = Logger.getLogger(TlsSession.class.getSimpleName());
+
+	private final SSLEngine engine;
+	private final BufferPool packetBufferPool;
+	private final BufferPool applicationBufferPool;
+	private final Executor taskExecutor;
+	private final Runnable taskCompletionCallback;
+	/* All buffers are kept in writing mode */
+	private ByteBuffer netIn;
+	private ByteBuffer netOut;
+	private ByteBuffer appIn;
+	private volatile boolean taskPending = false;
+	private boolean closed = false;
+
+	/**
+	 * Create a TLS session and start its handshake. Use TlsContext to create sessions.
+	 *
+	 * @param engine SSLEngine configured in client or server mode
+	 * @param packetBufferPool Pool of network buffers
+	 * @param applicationBufferPool Pool of application buffers
+	 * @param taskExecutor Worker pool running the delegated tasks
+	 * @param taskCompletionCallback Called from the worker pool when delegated tasks are done
+	 */
+	TlsSession(SSLEngine engine, BufferPool packetBufferPool, BufferPool applicationBufferPool,
+			Executor taskExecutor, Runnable taskCompletionCallback) throws SSLException {
+		this.engine = engine;
+		this.packetBufferPool = packetBufferPool;
+		this.applicationBufferPool = applicationBufferPool;
+		this.taskExecutor = taskExecutor;
+		this.taskCompletionCallback = taskCompletionCallback;
+		netIn = packetBufferPool.acquire();
+		netOut = packetBufferPool.acquire();
+		appIn = applicationBufferPool.acquire();
+		engine.beginHandshake();
+	}
+
+	/**
+	 * Read and decrypt data from the channel. Handshake goes forward if needed.
+	 * Decrypted data that do not fit in the destination buffer are kept for the next call (see hasBufferedData).
+	 *
+	 * @param channel Channel to read from
+	 * @param dst Buffer in writing mode receiving the decrypted data
+	 * @return number of bytes put in dst, -1 if the connection has been closed by the peer
+	 * @throws IOException if the reading or the decryption has failed
+	 */
+	public int read(ByteChannel channel, ByteBuffer dst) throws IOException {
+		if(closed)
+			return ChannelIO.DISCONNECTED_BY_USER_CODE;
+		if(channel.read(netIn) == ChannelIO.DISCONNECTED_BY_USER_CODE) {
+			closed = true;
+			try {
+				engine.closeInbound();
+			} catch (SSLException e) {
+				tlsLogger.warn("Connection closed without TLS close_notify");
+			}
+			return ChannelIO.DISCONNECTED_BY_USER_CODE;
+		}
+		if(isHandshaking()) {
+			handshake(channel);
+			if(isHandshaking())
+				return 0;
+		}
+		unwrapAvailableData();
+		// Post-handshake messages (new session ticket, key update...)
+		if(isHandshaking())
+			handshake(channel);
+		int nbBytesTransferred = readBufferedData(dst);
+		return closed && nbBytesTransferred == 0 ? ChannelIO.DISCONNECTED_BY_USER_CODE : nbBytesTransferred;
+	}
+
+	/**
+	 * Get decrypted data kept by a previous read without reading the channel.
+	 *
+	 * @param dst Buffer in writing mode receiving the decrypted data
+	 * @return number of bytes put in dst
+	 * @throws SSLException if the decryption of the next records has failed
+	 */
+	public int readBufferedData(ByteBuffer dst) throws SSLException {
+		int nbBytesTransferred = transferApplicationData(dst);
+		if(appIn.position() == 0 && netIn.position() > 0 && !isHandshaking())
+			unwrapAvailableData();
+		return nbBytesTransferred;
+	}
+
+	/**
+	 * Encrypt and write data on the channel. Nothing is written while the handshake is not finished.
+	 * Encrypted data that can not be written right now are kept until the next call (see hasPendingNetworkData).
+	 *
+	 * @param src Buffer in reading mode containing the data to be sent
+	 * @param channel Channel to write on
+	 * @return number of bytes of src consumed
+	 * @throws IOException if the writing or the encryption has failed
+	 */
+	public int write(ByteBuffer src, ByteChannel channel) throws IOException {
+		if(closed)
+			throw new IOException("TLS session is closed");
+		if(isHandshaking()) {
+			handshake(channel);
+			return 0;
+		}
+		if(!flush(channel))
+			return 0;
+		int nbBytesConsumed = 0;
+		while(src.hasRemaining()) {
+			SSLEngineResult result = engine.wrap(src, netOut);
+			nbBytesConsumed += result.bytesConsumed();
+			if(result.getStatus() == SSLEngineResult.Status.CLOSED)
+				throw new IOException("TLS session closed by peer");
+			if(!flush(channel))
+				break;
+		}
+		return nbBytesConsumed;
+	}
+
+	/**
+	 * Make the handshake go forward as far as possible without blocking.
+	 * Must be called when the delegated tasks are done (see task completion callback).
+	 *
+	 * @param channel Channel of the session
+	 * @throws IOException if the handshake has failed
+	 */
+	public void handshake(ByteChannel channel) throws IOException {
+		while(!taskPending && !closed) {
+			SSLEngineResult result;
+			switch(engine.getHandshakeStatus()) {
+				case NEED_WRAP:
+					result = engine.wrap(EMPTY_BUFFER, netOut);
+					if(result.getStatus() == SSLEngineResult.Status.CLOSED)
+						closed = true;
+					if(!flush(channel))
+						return;
+					break;
+				case NEED_UNWRAP:
+					netIn.flip();
+					result = engine.unwrap(netIn, appIn);
+					netIn.compact();
+					if(result.getStatus() == SSLEngineResult.Status.CLOSED) {
+						closed = true;
+					} else if(result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+						int nbBytesRead = channel.read(netIn);
+						if(nbBytesRead == ChannelIO.DISCONNECTED_BY_USER_CODE)
+							throw new IOException("Connection closed during TLS handshake");
+						if(nbBytesRead == 0)
+							return;
+					}
+					break;
+				case NEED_TASK:
+					runDelegatedTasks();
+					return;
+				default:
+					// FINISHED or NOT_HANDSHAKING
+					flush(channel);
+					return;
+			}
+		}
+	}
+
+	/**
+	 * @return true if the handshake is not finished, including when delegated tasks are running
+	 */
+	public boolean isHandshaking() {
+		if(taskPending)
+			return true;
+		HandshakeStatus status = engine.getHandshakeStatus();
+		return status != HandshakeStatus.NOT_HANDSHAKING && status != HandshakeStatus.FINISHED;
+	}
+
+	/**
+	 * @return true if encrypted data are waiting for the channel to be writable
+	 */
+	public boolean hasPendingNetworkData() {
+		return netOut.position() > 0;
+	}
+
+	/**
+	 * @return true if decrypted data are waiting to be read without reading the channel
+	 */
+	public boolean hasBufferedData() {
+		return appIn.position() > 0;
+	}
+
+	/**
+	 * Send close_notify if possible and give back the buffers to their pools. The session can not be used after.
+	 *
+	 * @param channel Channel of the session
+	 */
+	public void close(ByteChannel channel) {
+		if(netIn == null)
+			return;
+		engine.closeOutbound();
+		try {
+			if(channel.isOpen() && !taskPending) {
+				engine.wrap(EMPTY_BUFFER, netOut);
+				flush(channel);
+			}
+		} catch (IOException e) {
+			tlsLogger.warn("Unable to send TLS close_notify");
+		}
+		closed = true;
+		// Buffers are still referenced by a running task, let them be garbage collected
+		if(!taskPending) {
+			packetBufferPool.release(netIn);
+			packetBufferPool.release(netOut);
+			applicationBufferPool.release(appIn);
+		}
+		netIn = null;
+		netOut = null;
+		appIn = null;
+	}
+
+	/**
+	 * Decrypt as many records of netIn as possible into appIn.
+	 */
+	private void unwrapAvailableData() throws SSLException {
+		netIn.flip();
+		try {
+			while(netIn.hasRemaining()) {
+				SSLEngineResult result = engine.unwrap(netIn, appIn);
+				if(result.getStatus() == SSLEngineResult.Status.CLOSED) {
+					closed = true;
+					break;
+				}
+				if(result.getStatus() != SSLEngineResult.Status.OK || isHandshaking())
+					break;
+			}
+		} finally {
+			netIn.compact();
+		}
+	}
+
+	/**
+	 * Move decrypted data from appIn to the destination buffer.
+	 *
+	 * @return number of bytes moved
+	 */
+	private int transferApplicationData(ByteBuffer dst) {
+		appIn.flip();
+		int nbBytes = Math.min(appIn.remaining(), dst.remaining());
+		int limit = appIn.limit();
+		appIn.limit(appIn.position() + nbBytes);
+		dst.put(appIn);
+		appIn.limit(limit);
+		appIn.compact();
+		return nbBytes;
+	}
+
+	/**
+	 * Write pending encrypted data on the channel.
+	 *
+	 * @return true if every pending byte has been written
+	 */
+	private boolean flush(ByteChannel channel) throws IOException {
+		netOut.flip();
+		try {
+			while(netOut.hasRemaining() && channel.write(netOut) > 0);
+		} finally {
+			netOut.compact();
+		}
+		return netOut.position() == 0;
+	}
+
+	/**
+	 * Run the delegated tasks of the SSLEngine on the worker pool.
+	 */
+	private void runDelegatedTasks() {
+		taskPending = true;
+		taskExecutor.execute(new Runnable() {
+			public void run() {
+				Runnable task;
+				while((task = engine.getDelegatedTask()) != null) {
+					task.run();
+				}
+				taskPending = false;
+				taskCompletionCallback.run();
+			}
+		});
+	}
+}
@@ -0,0 +1,77 @@
+package fr.telecom.chat;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Set;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * Interface of the ways connections between clients and server are made (see TcpTransport and LoopbackTransport).
+ * The server and client loops only see SelectionKeys : the channel of a connection key is a ByteChannel read and written
+ * with ChannelIO, the channel of a listening key is given back to accept. Connections are always non-blocking.
+ *
+ * Keys of a transport may be handled by the Selector they are given (TCP) or by the transport itself : before waiting,
+ * a loop asks the transport whether some of its keys are already ready, and after the Selector returns it handles
+ * the keys selected by the transport as well as the ones selected by the Selector.
+ * A transport wakes the Selector up when one of its own keys becomes ready.
+ *
+ */
+public interface Transport {
+	/**
+	 * Start listening for incoming connections
+	 *
+	 * @param selector Selector of the server
+	 * @param port Port to listen on
+	 * @return SelectionKey of the listening channel, interested in OP_ACCEPT
+	 * @throws IOException if the port can not be listened on
+	 */
+	public abstract SelectionKey listen(Selector selector, int port) throws IOException;
+
+	/**
+	 * Accept an incoming connection
+	 *
+	 * @param listeningKey SelectionKey given by listen
+	 * @param selector Selector of the server
+	 * @return SelectionKey of the new connection, interested in OP_READ, null if no connection is pending
+	 * @throws IOException if the connection can not be accepted
+	 */
+	public abstract SelectionKey accept(SelectionKey listeningKey, Selector selector) throws IOException;
+
+	/**
+	 * Start a connection to a server
+	 *
+	 * @param selector Selector of the client
+	 * @param host Address of the server
+	 * @param port Port of the server
+	 * @return SelectionKey of the connection, interested in OP_CONNECT
+	 * @throws IOException if the connection can not be started
+	 */
+	public abstract SelectionKey connect(Selector selector, String host, int port) throws IOException;
+
+	/**
+	 * Finish a connection whose key is connectable
+	 *
+	 * @param key SelectionKey given by connect
+	 * @return true if the connection is established
+	 * @throws IOException if the connection has failed
+	 */
+	public abstract boolean finishConnect(SelectionKey key) throws IOException;
+
+	/**
+	 * Called by the loop before waiting on the Selector
+	 *
+	 * @param selector Selector of the loop
+	 * @return true if keys handled by the transport are ready : the loop must not wait
+	 */
+	public abstract boolean hasReadyKeys(Selector selector);
+
+	/**
+	 * Called by the loop after the Selector has returned
+	 *
+	 * @param selector Selector of the loop
+	 * @return keys handled by the transport that are ready, the loop removes them once handled
+	 */
+	public abstract Set<SelectionKey> selectedKeys(Selector selector);
+}
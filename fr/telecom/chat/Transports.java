@@ -0,0 +1,27 @@
+package fr.telecom.chat;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class gives the Transport used by default by servers and client engines,
+ * chosen by the chat.transport system property : tcp (default) or loopback (see LoopbackTransport).
+ *
+ */
+public final class Transports {
+	private static final String TRANSPORT = System.getProperty("chat.transport", "tcp");
+
+	/**
+	 * @return Transport chosen by the chat.transport system property
+	 * @throws IllegalArgumentException if the transport is unknown
+	 */
+	public static Transport getDefault() {
+		if("tcp".equalsIgnoreCase(TRANSPORT))
+			return new TcpTransport();
+		if("loopback".equalsIgnoreCase(TRANSPORT))
+			return LoopbackTransport.getInstance();
+		throw new IllegalArgumentException("Unknown transport " + TRANSPORT);
+	}
+
+	private Transports() {
+	}
+}
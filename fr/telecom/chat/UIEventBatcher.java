@@ -0,0 +1,187 @@
+package fr.telecom.chat;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.eclipse.swt.widgets.Display;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class sits between the ClientApplication and the UI. Events of the client thread are queued
+ * and delivered to the UI in batches, by a single UI task per display frame instead of one Display.asyncExec per event.
+ *
+ * Inside a batch, messages are grouped per sender and presence changes are merged into one roster update
+ * (only the last state of each nickname is kept). Connection status events keep their place in the order of events :
+ * the batch collected before them is delivered first.
+ *
+ * The frame duration is given by the chat.ui.frame system property (default : 16 ms).
+ *
+ */
+public class UIEventBatcher implements ClientApplicationListener {
+	private static final int FRAME_MILLIS = Integer.getInteger("chat.ui.frame", 16);
+
+	private final Display _display;
+	private final ClientApplicationBatchListener _lsn;
+	private final Queue<UIEvent> _events = new ConcurrentLinkedQueue<UIEvent>();
+	/* true while a drain task is scheduled on the UI thread */
+	private final AtomicBoolean _drainScheduled = new AtomicBoolean(false);
+	/* UI thread only */
+	private long _lastDrain = 0;
+	private Map<String, List<String>> _messagesBySender = new LinkedHashMap<String, List<String>>();
+	private Map<String, Boolean> _rosterChanges = new LinkedHashMap<String, Boolean>();
+
+	private final Runnable _drainTask = new Runnable() {
+		public void run() {
+			drain();
+		}
+	};
+	private final Runnable _scheduleTask = new Runnable() {
+		public void run() {
+			if(_display.isDisposed())
+				return;
+			long wait = _lastDrain + FRAME_MILLIS - System.currentTimeMillis();
+			if(wait > 0)
+				_display.timerExec((int)wait, _drainTask);
+			else
+				drain();
+		}
+	};
+
+	/**
+	 * @param display Display of the UI
+	 * @param lsn Listener receiving the batches on the UI thread
+	 */
+	public UIEventBatcher(Display display, ClientApplicationBatchListener lsn) {
+		_display = display;
+		_lsn = lsn;
+	}
+
+	public void messageReceived(String text, String from) {
+		post(new UIEvent(Kind.MESSAGE, from, text, null));
+	}
+
+	public void connected() {
+		post(new UIEvent(Kind.CONNECTED, null, null, null));
+	}
+
+	public void disconnected() {
+		post(new UIEvent(Kind.DISCONNECTED, null, null, null));
+	}
+
+	public void listClientsReceived(String[] listClients) {
+		post(new UIEvent(Kind.LIST_RECEIVED, null, null, listClients));
+	}
+
+	public void clientConnected(String nickname) {
+		post(new UIEvent(Kind.CLIENT_CONNECTED, nickname, null, null));
+	}
+
+	public void clientDisconnected(String nickname) {
+		post(new UIEvent(Kind.CLIENT_DISCONNECTED, nickname, null, null));
+	}
+
+	/**
+	 * Queue an event. The UI thread is only asked to drain the queue if it has not been asked yet.
+	 */
+	private void post(UIEvent event) {
+		_events.offer(event);
+		if(_drainScheduled.compareAndSet(false, true) && !_display.isDisposed())
+			_display.asyncExec(_scheduleTask);
+	}
+
+	/**
+	 * Deliver every queued event. Runs on the UI thread.
+	 */
+	private void drain() {
+		// Events posted from now on need another drain
+		_drainScheduled.set(false);
+		_lastDrain = System.currentTimeMillis();
+		UIEvent event;
+		while((event = _events.poll()) != null) {
+			switch(event.kind) {
+				case MESSAGE:
+					List<String> texts = _messagesBySender.get(event.nickname);
+					if(texts == null) {
+						texts = new ArrayList<String>();
+						_messagesBySender.put(event.nickname, texts);
+					}
+					texts.add(event.text);
+					break;
+				case CLIENT_CONNECTED:
+					_rosterChanges.remove(event.nickname);
+					_rosterChanges.put(event.nickname, Boolean.TRUE);
+					break;
+				case CLIENT_DISCONNECTED:
+					_rosterChanges.remove(event.nickname);
+					_rosterChanges.put(event.nickname, Boolean.FALSE);
+					break;
+				case CONNECTED:
+					deliverBatch();
+					_lsn.connected();
+					break;
+				case DISCONNECTED:
+					deliverBatch();
+					_lsn.disconnected();
+					break;
+				case LIST_RECEIVED:
+					deliverBatch();
+					_lsn.listClientsReceived(event.list);
+					break;
+			}
+		}
+		deliverBatch();
+	}
+
+	/**
+	 * Deliver the roster changes and the messages collected so far.
+	 */
+	private void deliverBatch() {
+		if(!_rosterChanges.isEmpty()) {
+			List<String> connectedClients = new ArrayList<String>();
+			List<String> disconnectedClients = new ArrayList<String>();
+			for(Map.Entry<String, Boolean> change : _rosterChanges.entrySet()) {
+				if(change.getValue())
+					connectedClients.add(change.getKey());
+				else
+					disconnectedClients.add(change.getKey());
+			}
+			_rosterChanges.clear();
+			_lsn.rosterChanged(connectedClients, disconnectedClients);
+		}
+		if(!_messagesBySender.isEmpty()) {
+			for(Map.Entry<String, List<String>> messages : _messagesBySender.entrySet())
+				_lsn.messagesReceived(messages.getKey(), messages.getValue());
+			_messagesBySender.clear();
+		}
+	}
+
+	/**
+	 * Kinds of the events received from the client thread
+	 */
+	private enum Kind {
+		MESSAGE, CONNECTED, DISCONNECTED, LIST_RECEIVED, CLIENT_CONNECTED, CLIENT_DISCONNECTED
+	}
+
+	/**
+	 * Event received from the client thread
+	 */
+	private static class UIEvent {
+		final Kind kind;
+		final String nickname;
+		final String text;
+		final String[] list;
+
+		UIEvent(Kind kind, String nickname, String text, String[] list) {
+			this.kind = kind;
+			this.nickname = nickname;
+			this.text = text;
+			this.list = list;
+		}
+	}
+}
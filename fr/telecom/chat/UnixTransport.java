@@ -0,0 +1,94 @@
+package fr.telecom.chat;
+
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class is a Transport over a Unix domain socket, for clients running on the same host as the server (bots, gateways) :
+ * no TCP/IP stack is crossed. Its channels are SocketChannels handled by the Selector, as the TCP ones.
+ *
+ * The address of the transport is the path of its socket file : the port given to listen and the host and port given to connect
+ * are ignored. A file left by a server that has not been stopped is replaced when listening.
+ *
+ */
+public class UnixTransport extends TcpTransport {
+	private final Path socketPath;
+
+	/**
+	 * @param socketPath Path of the socket file
+	 */
+	public UnixTransport(String socketPath) {
+		this.socketPath = Paths.get(socketPath);
+	}
+
+	/**
+	 * A socket path is given where an IP address or a host name is expected : it is the only one containing a '/'
+	 *
+	 * @param address IP address, host name or path of a socket file
+	 * @return true if the address is the path of a socket file
+	 */
+	public static boolean isSocketPath(String address) {
+		return address.indexOf('/') >= 0;
+	}
+
+	/**
+	 * Listen on the socket file, created again if it already exists
+	 *
+	 * @param selector Selector of the server
+	 * @param port Ignored
+	 * @return SelectionKey of the ServerSocketChannel
+	 * @throws IOException if the socket can not be bound
+	 */
+	public SelectionKey listen(Selector selector, int port) throws IOException {
+		Files.deleteIfExists(socketPath);
+		ServerSocketChannel serverSocket = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		try {
+			serverSocket.bind(UnixDomainSocketAddress.of(socketPath));
+			serverSocket.configureBlocking(false);
+			return serverSocket.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			serverSocket.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @param selector Selector of the client
+	 * @param host Ignored
+	 * @param port Ignored
+	 * @return SelectionKey of the new SocketChannel
+	 * @throws IOException if the connection can not be started
+	 */
+	public SelectionKey connect(Selector selector, String host, int port) throws IOException {
+		SocketChannel socket = SocketChannel.open(StandardProtocolFamily.UNIX);
+		try {
+			socket.configureBlocking(false);
+			socket.connect(UnixDomainSocketAddress.of(socketPath));
+			return socket.register(selector, SelectionKey.OP_CONNECT);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Remove the socket file once the listening channel is closed
+	 */
+	public void deleteSocketFile() {
+		try {
+			Files.deleteIfExists(socketPath);
+		} catch (IOException e) {
+			// The file is replaced by the next server listening on it
+		}
+	}
+}
@@ -0,0 +1,312 @@
+package fr.telecom.chat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Locale;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author Tristan Klempka and Valentin Roussel - 2015
+ *
+ * This class handles the WebSocket protocol (RFC 6455) of one browser connection, so that browsers talk to the server
+ * without a proxy : the same Messages are carried in binary frames.
+ *
+ * The connection starts with an HTTP Upgrade request, answered once it has been read completely.
+ * Frames received are then decoded as they arrive, even split over several reads : the payload of binary frames
+ * (and of their continuation frames) is unmasked in place and given back as the bytes of the Messages received.
+ * Pings are answered by pongs, a close frame is answered by a close frame and ends the connection. Text frames are refused.
+ *
+ * Frames sent are written directly in the pending writing data of the client : each Message is a single binary frame (see writeFrame).
+ * Used by the server thread only.
+ *
+ */
+public class WebSocketSession {
+	/** Maximum size of the header of a frame sent by the server, its payload being shorter than 65536 bytes */
+	public static final int MAX_FRAME_HEADER_SIZE = 4;
+	private static final int MAX_HANDSHAKE_SIZE = 8192;
+	private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+	private static final int OPCODE_CONTINUATION = 0x0;
+	private static final int OPCODE_TEXT = 0x1;
+	private static final int OPCODE_BINARY = 0x2;
+	private static final int OPCODE_CLOSE = 0x8;
+	private static final int OPCODE_PING = 0x9;
+	private static final int OPCODE_PONG = 0xA;
+	private static final int CLOSE_PROTOCOL_ERROR = 1002;
+	private static final int CLOSE_UNSUPPORTED_DATA = 1003;
+	private static final int MAX_CONTROL_PAYLOAD_SIZE = 125;
+	private static Logger webSocketLogger = Logger.getLogger(WebSocketSession.class.getSimpleName());
+
+	private ByteBuffer handshake = ByteBuffer.allocate(MAX_HANDSHAKE_SIZE);
+	/* Header of the frame being received : 2 to 14 bytes */
+	private final byte[] header = new byte[14];
+	private int headerLength = 0;
+	private int opcode;
+	private long payloadRemaining = 0;
+	private final byte[] mask = new byte[4];
+	private int maskIndex = 0;
+	private boolean inPayload = false;
+	/* Payload of the control frame being received */
+	private final byte[] controlPayload = new byte[MAX_CONTROL_PAYLOAD_SIZE];
+	private int controlPayloadLength = 0;
+	private boolean closed = false;
+
+	/**
+	 * @return true once the HTTP Upgrade request has been accepted
+	 */
+	public boolean isOpen() {
+		return handshake == null;
+	}
+
+	/**
+	 * Decode the data read from the connection. The handshake answer and the control frames sent back are added to the pending writing data.
+	 *
+	 * @param data Data read, in reading mode. It is overwritten by the payload of the binary frames
+	 * @param out Pending writing data of the client
+	 * @return bytes of the Messages received, in reading mode, null if the connection must be closed once out has been written
+	 */
+	public ByteBuffer decode(ByteBuffer data, ByteBuffer out) {
+		if(closed || (handshake != null && !readHandshake(data, out) && closed))
+			return null;
+		// Payload is never longer than the frames it comes from : it is written in place, behind the data not decoded yet
+		int start = data.position();
+		ByteBuffer payload = data.duplicate();
+		while(data.hasRemaining()) {
+			if(!inPayload) {
+				if(!readHeader(data, out) || closed)
+					break;
+				continue;
+			}
+			int length = (int) Math.min(payloadRemaining, data.remaining());
+			if(opcode == OPCODE_BINARY) {
+				for(int i = 0; i < length; i++)
+					payload.put((byte) (data.get() ^ mask[maskIndex++ & 3]));
+			} else {
+				for(int i = 0; i < length; i++)
+					controlPayload[controlPayloadLength++] = (byte) (data.get() ^ mask[maskIndex++ & 3]);
+			}
+			payloadRemaining -= length;
+			if(payloadRemaining == 0)
+				endFrame(out);
+			if(closed)
+				return null;
+		}
+		if(closed)
+			return null;
+		payload.limit(payload.position());
+		payload.position(start);
+		return payload;
+	}
+
+	/**
+	 * Write a Message as a binary frame : header then encoded Message
+	 *
+	 * @param msg Message to be written
+	 * @param out Pending writing data of the client
+	 * @return false if there is not enough space left
+	 */
+	public static boolean writeFrame(Message msg, ByteBuffer out) {
+		int start = out.position();
+		if(out.remaining() < MAX_FRAME_HEADER_SIZE)
+			return false;
+		out.position(start + MAX_FRAME_HEADER_SIZE);
+		if(!msg.writeTo(out)) {
+			out.position(start);
+			return false;
+		}
+		int length = out.position() - start - MAX_FRAME_HEADER_SIZE;
+		if(length <= MAX_CONTROL_PAYLOAD_SIZE) {
+			// Length must be written in the shortest form : the Message is moved next to a 2 bytes header
+			ByteBuffer encoded = out.duplicate();
+			encoded.limit(out.position());
+			encoded.position(start + MAX_FRAME_HEADER_SIZE);
+			out.position(start);
+			out.put((byte) (0x80 | OPCODE_BINARY));
+			out.put((byte) length);
+			out.put(encoded);
+		} else {
+			out.put(start, (byte) (0x80 | OPCODE_BINARY));
+			out.put(start + 1, (byte) 126);
+			out.putShort(start + 2, (short) length);
+		}
+		return true;
+	}
+
+	/**
+	 * Read the HTTP Upgrade request and answer it once it is complete
+	 *
+	 * @return true if the request has been accepted, data then contains the frames following the request
+	 */
+	private boolean readHandshake(ByteBuffer data, ByteBuffer out) {
+		while(data.hasRemaining()) {
+			if(!handshake.hasRemaining()) {
+				refuse(out, "431 Request Header Fields Too Large", "");
+				return false;
+			}
+			handshake.put(data.get());
+			int end = handshake.position();
+			if(end >= 4 && handshake.get(end - 4) == '\r' && handshake.get(end - 3) == '\n' && handshake.get(end - 2) == '\r' && handshake.get(end - 1) == '\n')
+				return answerHandshake(new String(handshake.array(), 0, end, StandardCharsets.ISO_8859_1), out);
+		}
+		return false;
+	}
+
+	/**
+	 * Accept the request if it is a WebSocket version 13 Upgrade
+	 *
+	 * @param request HTTP request, headers included
+	 * @return true if the request has been accepted
+	 */
+	private boolean answerHandshake(String request, ByteBuffer out) {
+		String[] lines = request.split("\r\n");
+		String key = null;
+		String version = null;
+		boolean upgrade = false;
+		boolean connectionUpgrade = false;
+		for(int i = 1; i < lines.length; i++) {
+			int colon = lines[i].indexOf(':');
+			if(colon <= 0)
+				continue;
+			String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+			String value = lines[i].substring(colon + 1).trim();
+			if(name.equals("upgrade"))
+				upgrade = value.toLowerCase(Locale.ROOT).contains("websocket");
+			else if(name.equals("connection"))
+				connectionUpgrade = value.toLowerCase(Locale.ROOT).contains("upgrade");
+			else if(name.equals("sec-websocket-key"))
+				key = value;
+			else if(name.equals("sec-websocket-version"))
+				version = value;
+		}
+		if(!lines[0].startsWith("GET ") || !upgrade || !connectionUpgrade || key == null) {
+			refuse(out, "400 Bad Request", "");
+			return false;
+		}
+		if(!"13".equals(version)) {
+			refuse(out, "426 Upgrade Required", "Sec-WebSocket-Version: 13\r\n");
+			return false;
+		}
+		String accept;
+		try {
+			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			accept = Base64.getEncoder().encodeToString(sha1.digest((key + ACCEPT_GUID).getBytes(StandardCharsets.ISO_8859_1)));
+		} catch (NoSuchAlgorithmException e) {
+			refuse(out, "500 Internal Server Error", "");
+			return false;
+		}
+		out.put(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\nSec-WebSocket-Accept: "
+				+ accept + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+		handshake = null;
+		webSocketLogger.info("WebSocket connection opened");
+		return true;
+	}
+
+	private void refuse(ByteBuffer out, String status, String headers) {
+		webSocketLogger.warn("WebSocket handshake refused : " + status);
+		out.put(("HTTP/1.1 " + status + "\r\n" + headers + "Content-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+		closed = true;
+	}
+
+	/**
+	 * Read the header of the next frame, possibly split over several reads
+	 *
+	 * @return false if more data are needed
+	 */
+	private boolean readHeader(ByteBuffer data, ByteBuffer out) {
+		while(headerLength < headerSize()) {
+			if(!data.hasRemaining())
+				return false;
+			header[headerLength++] = data.get();
+		}
+		int flags = header[0] & 0xF0;
+		opcode = header[0] & 0x0F;
+		boolean masked = (header[1] & 0x80) != 0;
+		int length = header[1] & 0x7F;
+		if(length == 126) {
+			payloadRemaining = ((header[2] & 0xFF) << 8) | (header[3] & 0xFF);
+		} else if(length == 127) {
+			payloadRemaining = 0;
+			for(int i = 2; i < 10; i++)
+				payloadRemaining = (payloadRemaining << 8) | (header[i] & 0xFF);
+		} else {
+			payloadRemaining = length;
+		}
+		// Clients must mask their frames, extensions are not negotiated
+		int size = headerLength;
+		headerLength = 0;
+		if(!masked || (flags & 0x70) != 0 || payloadRemaining < 0) {
+			close(out, CLOSE_PROTOCOL_ERROR);
+			return false;
+		}
+		boolean control = (opcode & 0x8) != 0;
+		if(control && ((flags & 0x80) == 0 || payloadRemaining > MAX_CONTROL_PAYLOAD_SIZE)) {
+			close(out, CLOSE_PROTOCOL_ERROR);
+			return false;
+		}
+		if(opcode == OPCODE_TEXT) {
+			close(out, CLOSE_UNSUPPORTED_DATA);
+			return false;
+		}
+		if(opcode == OPCODE_CONTINUATION)
+			opcode = OPCODE_BINARY;
+		else if(!control && opcode != OPCODE_BINARY) {
+			close(out, CLOSE_PROTOCOL_ERROR);
+			return false;
+		}
+		System.arraycopy(header, size - 4, mask, 0, 4);
+		maskIndex = 0;
+		controlPayloadLength = 0;
+		inPayload = true;
+		if(payloadRemaining == 0)
+			endFrame(out);
+		return true;
+	}
+
+	/**
+	 * @return size of the header being read, known once its first bytes are read
+	 */
+	private int headerSize() {
+		if(headerLength < 2)
+			return 2;
+		int length = header[1] & 0x7F;
+		int maskSize = (header[1] & 0x80) != 0 ? 4 : 0;
+		return 2 + (length == 126 ? 2 : length == 127 ? 8 : 0) + maskSize;
+	}
+
+	/**
+	 * A frame has been received completely : control frames are answered
+	 */
+	private void endFrame(ByteBuffer out) {
+		inPayload = false;
+		if(opcode == OPCODE_PING) {
+			writeControlFrame(out, OPCODE_PONG, controlPayload, controlPayloadLength);
+		} else if(opcode == OPCODE_CLOSE) {
+			// The status code received is sent back
+			writeControlFrame(out, OPCODE_CLOSE, controlPayload, Math.min(controlPayloadLength, 2));
+			closed = true;
+			webSocketLogger.info("WebSocket connection closed by the browser");
+		}
+	}
+
+	/**
+	 * Send a close frame and end the connection
+	 *
+	 * @param status Status code of the close frame
+	 */
+	private void close(ByteBuffer out, int status) {
+		webSocketLogger.warn("WebSocket connection closed : status " + status);
+		writeControlFrame(out, OPCODE_CLOSE, new byte[] {(byte) (status >> 8), (byte) status}, 2);
+		closed = true;
+	}
+
+	private static void writeControlFrame(ByteBuffer out, int controlOpcode, byte[] payload, int length) {
+		if(out.remaining() < 2 + length)
+			return;
+		out.put((byte) (0x80 | controlOpcode));
+		out.put((byte) length);
+		out.put(payload, 0, length);
+	}
+}
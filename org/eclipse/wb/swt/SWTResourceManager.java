@@ -13,7 +13,13 @@ package org.eclipse.wb.swt;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.eclipse.swt.SWT;
@@ -26,6 +32,7 @@ import org.eclipse.swt.graphics.Image;
 import org.eclipse.swt.graphics.ImageData;
 import org.eclipse.swt.graphics.RGB;
 import org.eclipse.swt.graphics.Rectangle;
+import org.eclipse.swt.graphics.Resource;
 import org.eclipse.swt.widgets.Display;
 
 /**
@@ -35,6 +42,13 @@ import org.eclipse.swt.widgets.Display;
  * operating system resources managed by cached objects when those objects and OS resources are no longer
  * needed (e.g. on application shutdown)
  * <p>
+ * Resources returned by the <code>getXXX()</code> methods are kept until <code>dispose()</code>: their caches grow with
+ * every distinct color, image or font asked for, the ones having an <code>acquireXXX()</code> counterpart are deprecated.
+ * Resources returned by the <code>acquireXXX()</code> methods are reference counted: each of them must be given back with
+ * <code>release()</code>. A released resource stays cached while it is among the most recently used unreferenced
+ * resources of its kind (see <code>setMaxUnusedResources()</code>), older ones are disposed. Hits, misses, evictions
+ * and live handles are counted for each kind of resource (see <code>getStatistics()</code>).
+ * <p>
  * This class may be freely distributed as part of any application or plugin.
  * <p>
  * @author scheglov_ke
@@ -46,7 +60,7 @@ public class SWTResourceManager {
 	// Color
 	//
 	////////////////////////////////////////////////////////////////////////////
-	private static Map<RGB, Color> m_colorMap = new HashMap<RGB, Color>();
+	private static ResourceCache<RGB, Color> m_colorCache = new ResourceCache<RGB, Color>("Color");
 	/**
 	 * Returns the system {@link Color} matching the specific ID.
 	 * 
@@ -68,9 +82,11 @@ public class SWTResourceManager {
 	 * @param b
 	 *            the blue component of the color
 	 * @return the {@link Color} matching the given red, green and blue component values
+	 * @deprecated the color is kept until {@link #dispose()}, use {@link #acquireColor(int, int, int)}
 	 */
+	@Deprecated
 	public static Color getColor(int r, int g, int b) {
-		return getColor(new RGB(r, g, b));
+		return getColor(new RGB(r, g, b), true);
 	}
 	/**
 	 * Returns a {@link Color} given its RGB value.
@@ -78,13 +94,33 @@ public class SWTResourceManager {
 	 * @param rgb
 	 *            the {@link RGB} value of the color
 	 * @return the {@link Color} matching the RGB value
+	 * @deprecated the color is kept until {@link #dispose()}, use {@link #acquireColor(int, int, int)}
 	 */
+	@Deprecated
 	public static Color getColor(RGB rgb) {
-		Color color = m_colorMap.get(rgb);
+		return getColor(rgb, true);
+	}
+	/**
+	 * Returns a reference counted {@link Color} given its red, green and blue component values. It must be given back
+	 * with {@link #release(Resource)}.
+	 * 
+	 * @param r
+	 *            the red component of the color
+	 * @param g
+	 *            the green component of the color
+	 * @param b
+	 *            the blue component of the color
+	 * @return the {@link Color} matching the given red, green and blue component values
+	 */
+	public static Color acquireColor(int r, int g, int b) {
+		return getColor(new RGB(r, g, b), false);
+	}
+	private static Color getColor(RGB rgb, boolean pinned) {
+		Color color = m_colorCache.get(rgb, pinned);
 		if (color == null) {
 			Display display = Display.getCurrent();
 			color = new Color(display, rgb);
-			m_colorMap.put(rgb, color);
+			m_colorCache.put(rgb, color, pinned);
 		}
 		return color;
 	}
@@ -92,10 +128,7 @@ public class SWTResourceManager {
 	 * Dispose of all the cached {@link Color}'s.
 	 */
 	public static void disposeColors() {
-		for (Color color : m_colorMap.values()) {
-			color.dispose();
-		}
-		m_colorMap.clear();
+		m_colorCache.disposeAll();
 	}
 	////////////////////////////////////////////////////////////////////////////
 	//
@@ -105,7 +138,7 @@ public class SWTResourceManager {
 	/**
 	 * Maps image paths to images.
 	 */
-	private static Map<String, Image> m_imageMap = new HashMap<String, Image>();
+	private static ResourceCache<String, Image> m_imageCache = new ResourceCache<String, Image>("Image");
 	/**
 	 * Returns an {@link Image} encoded by the specified {@link InputStream}.
 	 * 
@@ -131,17 +164,32 @@ public class SWTResourceManager {
 	 * @param path
 	 *            the path to the image file
 	 * @return the {@link Image} stored in the file at the specified path
+	 * @deprecated the image is kept until {@link #dispose()}, use {@link #acquireImage(String)}
 	 */
+	@Deprecated
 	public static Image getImage(String path) {
-		Image image = m_imageMap.get(path);
+		return getImage(path, true);
+	}
+	/**
+	 * Returns a reference counted {@link Image} stored in the file at the specified path. It must be given back with
+	 * {@link #release(Resource)}.
+	 * 
+	 * @param path
+	 *            the path to the image file
+	 * @return the {@link Image} stored in the file at the specified path
+	 */
+	public static Image acquireImage(String path) {
+		return getImage(path, false);
+	}
+	private static Image getImage(String path, boolean pinned) {
+		Image image = m_imageCache.get(path, pinned);
 		if (image == null) {
 			try {
 				image = getImage(new FileInputStream(path));
-				m_imageMap.put(path, image);
 			} catch (Exception e) {
 				image = getMissingImage();
-				m_imageMap.put(path, image);
 			}
+			m_imageCache.put(path, image, pinned);
 		}
 		return image;
 	}
@@ -156,15 +204,14 @@ public class SWTResourceManager {
 	 */
 	public static Image getImage(Class<?> clazz, String path) {
 		String key = clazz.getName() + '|' + path;
-		Image image = m_imageMap.get(key);
+		Image image = m_imageCache.get(key, true);
 		if (image == null) {
 			try {
 				image = getImage(clazz.getResourceAsStream(path));
-				m_imageMap.put(key, image);
 			} catch (Exception e) {
 				image = getMissingImage();
-				m_imageMap.put(key, image);
 			}
+			m_imageCache.put(key, image, true);
 		}
 		return image;
 	}
@@ -203,10 +250,9 @@ public class SWTResourceManager {
 	 */
 	protected static final int LAST_CORNER_KEY = 5;
 	/**
-	 * Maps images to decorated images.
+	 * Maps (corner, base image, decorator) to decorated images.
 	 */
-	@SuppressWarnings("unchecked")
-	private static Map<Image, Map<Image, Image>>[] m_decoratedImageMap = new Map[LAST_CORNER_KEY];
+	private static ResourceCache<List<Object>, Image> m_decoratedImageCache = new ResourceCache<List<Object>, Image>("Decorated image");
 	/**
 	 * Returns an {@link Image} composed of a base image decorated by another image.
 	 * 
@@ -234,18 +280,8 @@ public class SWTResourceManager {
 		if (corner <= 0 || corner >= LAST_CORNER_KEY) {
 			throw new IllegalArgumentException("Wrong decorate corner");
 		}
-		Map<Image, Map<Image, Image>> cornerDecoratedImageMap = m_decoratedImageMap[corner];
-		if (cornerDecoratedImageMap == null) {
-			cornerDecoratedImageMap = new HashMap<Image, Map<Image, Image>>();
-			m_decoratedImageMap[corner] = cornerDecoratedImageMap;
-		}
-		Map<Image, Image> decoratedMap = cornerDecoratedImageMap.get(baseImage);
-		if (decoratedMap == null) {
-			decoratedMap = new HashMap<Image, Image>();
-			cornerDecoratedImageMap.put(baseImage, decoratedMap);
-		}
-		//
-		Image result = decoratedMap.get(decorator);
+		List<Object> key = Arrays.<Object>asList(Integer.valueOf(corner), baseImage, decorator);
+		Image result = m_decoratedImageCache.get(key, true);
 		if (result == null) {
 			Rectangle bib = baseImage.getBounds();
 			Rectangle dib = decorator.getBounds();
@@ -265,7 +301,7 @@ public class SWTResourceManager {
 			}
 			gc.dispose();
 			//
-			decoratedMap.put(decorator, result);
+			m_decoratedImageCache.put(key, result, true);
 		}
 		return result;
 	}
@@ -274,25 +310,9 @@ public class SWTResourceManager {
 	 */
 	public static void disposeImages() {
 		// dispose loaded images
-		{
-			for (Image image : m_imageMap.values()) {
-				image.dispose();
-			}
-			m_imageMap.clear();
-		}
+		m_imageCache.disposeAll();
 		// dispose decorated images
-		for (int i = 0; i < m_decoratedImageMap.length; i++) {
-			Map<Image, Map<Image, Image>> cornerDecoratedImageMap = m_decoratedImageMap[i];
-			if (cornerDecoratedImageMap != null) {
-				for (Map<Image, Image> decoratedMap : cornerDecoratedImageMap.values()) {
-					for (Image image : decoratedMap.values()) {
-						image.dispose();
-					}
-					decoratedMap.clear();
-				}
-				cornerDecoratedImageMap.clear();
-			}
-		}
+		m_decoratedImageCache.disposeAll();
 	}
 	////////////////////////////////////////////////////////////////////////////
 	//
@@ -302,11 +322,11 @@ public class SWTResourceManager {
 	/**
 	 * Maps font names to fonts.
 	 */
-	private static Map<String, Font> m_fontMap = new HashMap<String, Font>();
+	private static ResourceCache<String, Font> m_fontCache = new ResourceCache<String, Font>("Font");
 	/**
 	 * Maps fonts to their bold versions.
 	 */
-	private static Map<Font, Font> m_fontToBoldFontMap = new HashMap<Font, Font>();
+	private static ResourceCache<Font, Font> m_fontToBoldFontCache = new ResourceCache<Font, Font>("Bold font");
 	/**
 	 * Returns a {@link Font} based on its name, height and style.
 	 * 
@@ -317,9 +337,11 @@ public class SWTResourceManager {
 	 * @param style
 	 *            the style of the font
 	 * @return {@link Font} The font matching the name, height and style
+	 * @deprecated the font is kept until {@link #dispose()}, use {@link #acquireFont(String, int, int)}
 	 */
+	@Deprecated
 	public static Font getFont(String name, int height, int style) {
-		return getFont(name, height, style, false, false);
+		return getFont(name, height, style, false, false, true);
 	}
 	/**
 	 * Returns a {@link Font} based on its name, height and style. Windows-specific strikeout and underline
@@ -336,10 +358,30 @@ public class SWTResourceManager {
 	 * @param underline
 	 *            the underline flag (warning: Windows only)
 	 * @return {@link Font} The font matching the name, height, style, strikeout and underline
+	 * @deprecated the font is kept until {@link #dispose()}, use {@link #acquireFont(String, int, int)}
 	 */
+	@Deprecated
 	public static Font getFont(String name, int size, int style, boolean strikeout, boolean underline) {
+		return getFont(name, size, style, strikeout, underline, true);
+	}
+	/**
+	 * Returns a reference counted {@link Font} based on its name, height and style. It must be given back with
+	 * {@link #release(Resource)}.
+	 * 
+	 * @param name
+	 *            the name of the font
+	 * @param height
+	 *            the height of the font
+	 * @param style
+	 *            the style of the font
+	 * @return {@link Font} The font matching the name, height and style
+	 */
+	public static Font acquireFont(String name, int height, int style) {
+		return getFont(name, height, style, false, false, false);
+	}
+	private static Font getFont(String name, int size, int style, boolean strikeout, boolean underline, boolean pinned) {
 		String fontName = name + '|' + size + '|' + style + '|' + strikeout + '|' + underline;
-		Font font = m_fontMap.get(fontName);
+		Font font = m_fontCache.get(fontName, pinned);
 		if (font == null) {
 			FontData fontData = new FontData(name, size, style);
 			if (strikeout || underline) {
@@ -359,7 +401,7 @@ public class SWTResourceManager {
 				}
 			}
 			font = new Font(Display.getCurrent(), fontData);
-			m_fontMap.put(fontName, font);
+			m_fontCache.put(fontName, font, pinned);
 		}
 		return font;
 	}
@@ -371,12 +413,12 @@ public class SWTResourceManager {
 	 * @return the bold version of the given {@link Font}
 	 */
 	public static Font getBoldFont(Font baseFont) {
-		Font font = m_fontToBoldFontMap.get(baseFont);
+		Font font = m_fontToBoldFontCache.get(baseFont, true);
 		if (font == null) {
 			FontData fontDatas[] = baseFont.getFontData();
 			FontData data = fontDatas[0];
 			font = new Font(Display.getCurrent(), data.getName(), data.getHeight(), SWT.BOLD);
-			m_fontToBoldFontMap.put(baseFont, font);
+			m_fontToBoldFontCache.put(baseFont, font, true);
 		}
 		return font;
 	}
@@ -385,15 +427,9 @@ public class SWTResourceManager {
 	 */
 	public static void disposeFonts() {
 		// clear fonts
-		for (Font font : m_fontMap.values()) {
-			font.dispose();
-		}
-		m_fontMap.clear();
+		m_fontCache.disposeAll();
 		// clear bold fonts
-		for (Font font : m_fontToBoldFontMap.values()) {
-			font.dispose();
-		}
-		m_fontToBoldFontMap.clear();
+		m_fontToBoldFontCache.disposeAll();
 	}
 	////////////////////////////////////////////////////////////////////////////
 	//
@@ -403,7 +439,7 @@ public class SWTResourceManager {
 	/**
 	 * Maps IDs to cursors.
 	 */
-	private static Map<Integer, Cursor> m_idToCursorMap = new HashMap<Integer, Cursor>();
+	private static ResourceCache<Integer, Cursor> m_idToCursorCache = new ResourceCache<Integer, Cursor>("Cursor");
 	/**
 	 * Returns the system cursor matching the specific ID.
 	 * 
@@ -413,10 +449,10 @@ public class SWTResourceManager {
 	 */
 	public static Cursor getCursor(int id) {
 		Integer key = Integer.valueOf(id);
-		Cursor cursor = m_idToCursorMap.get(key);
+		Cursor cursor = m_idToCursorCache.get(key, true);
 		if (cursor == null) {
 			cursor = new Cursor(Display.getDefault(), id);
-			m_idToCursorMap.put(key, cursor);
+			m_idToCursorCache.put(key, cursor, true);
 		}
 		return cursor;
 	}
@@ -424,10 +460,7 @@ public class SWTResourceManager {
 	 * Dispose all of the cached cursors.
 	 */
 	public static void disposeCursors() {
-		for (Cursor cursor : m_idToCursorMap.values()) {
-			cursor.dispose();
-		}
-		m_idToCursorMap.clear();
+		m_idToCursorCache.disposeAll();
 	}
 	////////////////////////////////////////////////////////////////////////////
 	//
@@ -444,4 +477,184 @@ public class SWTResourceManager {
 		disposeFonts();
 		disposeCursors();
 	}
+	/**
+	 * Gives back a resource returned by one of the <code>acquireXXX()</code> methods. When it is not referenced
+	 * anymore, it is kept among the unused resources and disposed when it becomes the least recently used one.
+	 * 
+	 * @param resource
+	 *            the {@link Resource} to release
+	 */
+	public static void release(Resource resource) {
+		if (resource == null) {
+			return;
+		}
+		for (ResourceCache<?, ?> cache : getCaches()) {
+			if (cache.release(resource)) {
+				return;
+			}
+		}
+	}
+	/**
+	 * Sets the number of unreferenced resources of each kind kept for later use. Default is 64.
+	 * 
+	 * @param maxUnusedResources
+	 *            the maximum number of unreferenced resources kept by each cache
+	 */
+	public static void setMaxUnusedResources(int maxUnusedResources) {
+		m_maxUnusedResources = Math.max(0, maxUnusedResources);
+		for (ResourceCache<?, ?> cache : getCaches()) {
+			cache.evictUnused();
+		}
+	}
+	/**
+	 * @return the number of OS handles currently owned by the resource manager
+	 */
+	public static int getLiveHandles() {
+		int liveHandles = 0;
+		for (ResourceCache<?, ?> cache : getCaches()) {
+			liveHandles += cache.size();
+		}
+		return liveHandles;
+	}
+	/**
+	 * Returns hits, misses, evictions and live handles of each kind of resource, for example:
+	 * <code>Color: 12 hits, 3 misses, 0 evictions, 3 live</code>.
+	 * 
+	 * @return one line per kind of resource
+	 */
+	public static String getStatistics() {
+		StringBuilder statistics = new StringBuilder();
+		for (ResourceCache<?, ?> cache : getCaches()) {
+			statistics.append(cache).append('\n');
+		}
+		statistics.append("Total: ").append(getLiveHandles()).append(" live handles");
+		return statistics.toString();
+	}
+	private static List<ResourceCache<?, ?>> getCaches() {
+		List<ResourceCache<?, ?>> caches = new ArrayList<ResourceCache<?, ?>>();
+		caches.add(m_colorCache);
+		caches.add(m_imageCache);
+		caches.add(m_decoratedImageCache);
+		caches.add(m_fontCache);
+		caches.add(m_fontToBoldFontCache);
+		caches.add(m_idToCursorCache);
+		return caches;
+	}
+	////////////////////////////////////////////////////////////////////////////
+	//
+	// Cache
+	//
+	////////////////////////////////////////////////////////////////////////////
+	private static int m_maxUnusedResources = 64;
+	/**
+	 * Cache of one kind of resource. Pinned resources (returned by <code>getXXX()</code>) are kept until
+	 * <code>disposeAll()</code>. Other resources are reference counted, unreferenced ones are kept in LRU order and
+	 * the least recently used ones are disposed when there are more than <code>m_maxUnusedResources</code>.
+	 */
+	private static final class ResourceCache<K, R extends Resource> {
+		private final String m_name;
+		private final Map<K, CacheEntry<R>> m_entries = new HashMap<K, CacheEntry<R>>();
+		private final Map<Resource, K> m_keys = new IdentityHashMap<Resource, K>();
+		/**
+		 * Unreferenced entries, least recently used first.
+		 */
+		private final LinkedHashMap<K, CacheEntry<R>> m_unused = new LinkedHashMap<K, CacheEntry<R>>(16, 0.75f, true);
+		private long m_hits;
+		private long m_misses;
+		private long m_evictions;
+		ResourceCache(String name) {
+			m_name = name;
+		}
+		/**
+		 * @return the cached resource, referenced once more (or pinned), <code>null</code> if it is not cached
+		 */
+		R get(K key, boolean pinned) {
+			CacheEntry<R> entry = m_entries.get(key);
+			if (entry == null || entry.resource.isDisposed()) {
+				if (entry != null) {
+					remove(key, entry);
+				}
+				m_misses++;
+				return null;
+			}
+			m_hits++;
+			reference(key, entry, pinned);
+			return entry.resource;
+		}
+		/**
+		 * Adds a new resource, referenced once (or pinned).
+		 */
+		void put(K key, R resource, boolean pinned) {
+			CacheEntry<R> entry = new CacheEntry<R>(resource);
+			m_entries.put(key, entry);
+			m_keys.put(resource, key);
+			reference(key, entry, pinned);
+		}
+		/**
+		 * @return <code>true</code> if the resource belongs to this cache
+		 */
+		boolean release(Resource resource) {
+			K key = m_keys.get(resource);
+			if (key == null) {
+				return false;
+			}
+			CacheEntry<R> entry = m_entries.get(key);
+			if (entry.references > 0) {
+				entry.references--;
+			}
+			if (entry.references == 0 && !entry.pinned) {
+				m_unused.put(key, entry);
+				evictUnused();
+			}
+			return true;
+		}
+		void evictUnused() {
+			Iterator<Map.Entry<K, CacheEntry<R>>> iterator = m_unused.entrySet().iterator();
+			while (m_unused.size() > m_maxUnusedResources && iterator.hasNext()) {
+				Map.Entry<K, CacheEntry<R>> eldest = iterator.next();
+				iterator.remove();
+				m_entries.remove(eldest.getKey());
+				m_keys.remove(eldest.getValue().resource);
+				eldest.getValue().resource.dispose();
+				m_evictions++;
+			}
+		}
+		void disposeAll() {
+			for (CacheEntry<R> entry : m_entries.values()) {
+				entry.resource.dispose();
+			}
+			m_entries.clear();
+			m_keys.clear();
+			m_unused.clear();
+		}
+		int size() {
+			return m_entries.size();
+		}
+		private void reference(K key, CacheEntry<R> entry, boolean pinned) {
+			if (pinned) {
+				entry.pinned = true;
+			} else {
+				entry.references++;
+			}
+			m_unused.remove(key);
+		}
+		private void remove(K key, CacheEntry<R> entry) {
+			m_entries.remove(key);
+			m_keys.remove(entry.resource);
+			m_unused.remove(key);
+		}
+		@Override
+		public String toString() {
+			return m_name + ": " + m_hits + " hits, " + m_misses + " misses, " + m_evictions + " evictions, "
+					+ m_entries.size() + " live";
+		}
+	}
+	private static final class CacheEntry<R extends Resource> {
+		final R resource;
+		int references;
+		boolean pinned;
+		CacheEntry(R resource) {
+			this.resource = resource;
+		}
+	}
 }
\ No newline at end of file